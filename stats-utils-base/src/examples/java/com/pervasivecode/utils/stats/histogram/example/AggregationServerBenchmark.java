@@ -0,0 +1,117 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+import com.pervasivecode.utils.stats.histogram.HistogramAggregationServer;
+import com.pervasivecode.utils.stats.histogram.HistogramReporter;
+
+/**
+ * Benchmark that measures how many histogram snapshots per second a
+ * {@link HistogramAggregationServer} can receive and merge, when several {@link HistogramReporter}
+ * clients on the same host report constantly changing histograms to it over the loopback
+ * interface.
+ * <p>
+ * Usage: {@code AggregationServerBenchmark [numReporters] [seconds]}
+ */
+public class AggregationServerBenchmark implements ExampleApplication {
+  private static final int NUM_KEYS = 16;
+  private static final int NUM_BUCKETS = 64;
+  private static final int VALUES_PER_SNAPSHOT = 10;
+
+  private final int numReporters;
+  private final long durationMillis;
+
+  public AggregationServerBenchmark(int numReporters, long durationMillis) {
+    this.numReporters = numReporters;
+    this.durationMillis = durationMillis;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, NUM_BUCKETS);
+    AtomicLong snapshotsSent = new AtomicLong();
+
+    try (HistogramAggregationServer<Long> server = HistogramAggregationServer
+        .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), bucketer)) {
+      long startNanos = System.nanoTime();
+      long endMillis = System.currentTimeMillis() + durationMillis;
+      List<Thread> reporterThreads = new ArrayList<>();
+      for (int i = 0; i < numReporters; i++) {
+        HistogramReporter reporter = HistogramReporter.connect(server.localAddress());
+        Thread reporterThread = new Thread(() -> {
+          try (HistogramReporter r = reporter) {
+            report(r, bucketer, endMillis, snapshotsSent);
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }, "reporter-" + i);
+        reporterThread.start();
+        reporterThreads.add(reporterThread);
+      }
+
+      try {
+        for (Thread reporterThread : reporterThreads) {
+          reporterThread.join();
+        }
+        while (server.framesReceived() < snapshotsSent.get()) {
+          Thread.sleep(1);
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the benchmark to finish.");
+      }
+      double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+
+      NumberFormat usNumberFormat = NumberFormat.getInstance(Locale.US);
+      output.println(String.format("%d reporters sent %s snapshots of %d keys in %.1f seconds.",
+          numReporters, usNumberFormat.format(snapshotsSent.get()), NUM_KEYS, elapsedSeconds));
+      output.println(String.format("Throughput: %s snapshots/sec",
+          usNumberFormat.format(Math.round(snapshotsSent.get() / elapsedSeconds))));
+    }
+  }
+
+  private static void report(HistogramReporter reporter, BucketSelector<Long> bucketer,
+      long endMillis, AtomicLong snapshotsSent) throws IOException {
+    List<ConcurrentHistogram<Long>> histograms = new ArrayList<>();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      histograms.add(new ConcurrentHistogram<>(bucketer));
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long numSent = 0;
+    while (System.currentTimeMillis() < endMillis) {
+      for (int i = 0; i < NUM_KEYS; i++) {
+        ConcurrentHistogram<Long> histogram = histograms.get(i);
+        for (int j = 0; j < VALUES_PER_SNAPSHOT; j++) {
+          // Values spread across many buckets, like request latencies in microseconds.
+          histogram.countValue(1L << random.nextInt(20) | random.nextInt(1024));
+        }
+        reporter.report("key" + i, histogram);
+        numSent++;
+      }
+    }
+    reporter.flush();
+    snapshotsSent.addAndGet(numSent);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numReporters = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+    long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 5;
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new AggregationServerBenchmark(numReporters, seconds * 1000L)
+        .runExample(new PrintWriter(osw, true));
+  }
+}
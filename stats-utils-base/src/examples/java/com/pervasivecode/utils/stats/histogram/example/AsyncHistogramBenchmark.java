@@ -0,0 +1,128 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.LongConsumer;
+import com.pervasivecode.utils.stats.histogram.AsyncHistogram;
+import com.pervasivecode.utils.stats.histogram.AsyncHistogram.OverflowPolicy;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+
+/**
+ * Benchmark that compares the latency of recording one value via
+ * {@link AsyncHistogram#recordValue(long)} and via {@link ConcurrentHistogram#countValue(Object)},
+ * with several threads recording at once. The latency of each call is measured with
+ * {@link System#nanoTime()}, so the reported latencies include the cost of calling nanoTime.
+ * <p>
+ * Usage: {@code AsyncHistogramBenchmark [numThreads]}
+ */
+public class AsyncHistogramBenchmark implements ExampleApplication {
+  private static final int NUM_BUCKETS = 64;
+  private static final int RING_BUFFER_CAPACITY = 1 << 16;
+  private static final int VALUES_PER_THREAD = 2_000_000;
+  private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9, 99.99};
+
+  private final int numThreads;
+
+  public AsyncHistogramBenchmark(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, NUM_BUCKETS);
+    output.println(String.format("%d thread(s), %,d values per thread", numThreads,
+        VALUES_PER_THREAD));
+
+    // Run each histogram type twice, and report the second run, so that the JIT has warmed up.
+    for (int run = 0; run < 2; run++) {
+      ConcurrentHistogram<Long> concurrent = new ConcurrentHistogram<>(bucketer);
+      long[] concurrentLatencies = measureLatencies(concurrent::countValue);
+
+      long[] dropLatencies;
+      long dropped;
+      try (AsyncHistogram async =
+          new AsyncHistogram(bucketer, RING_BUFFER_CAPACITY, OverflowPolicy.DROP)) {
+        dropLatencies = measureLatencies(async::recordValue);
+        dropped = async.droppedCount();
+      }
+
+      long[] spinLatencies;
+      try (AsyncHistogram async =
+          new AsyncHistogram(bucketer, RING_BUFFER_CAPACITY, OverflowPolicy.SPIN)) {
+        spinLatencies = measureLatencies(async::recordValue);
+      }
+
+      if (run == 1) {
+        printPercentiles(output, "ConcurrentHistogram.countValue", concurrentLatencies);
+        printPercentiles(output, "AsyncHistogram.recordValue (DROP)", dropLatencies);
+        output.println(String.format("  dropped: %,d values", dropped));
+        printPercentiles(output, "AsyncHistogram.recordValue (SPIN)", spinLatencies);
+      }
+    }
+  }
+
+  private long[] measureLatencies(LongConsumer recorder) throws IOException {
+    long[][] latenciesPerThread = new long[numThreads][VALUES_PER_THREAD];
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      long[] latencies = latenciesPerThread[t];
+      long seed = t;
+      threads.add(new Thread(() -> {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < VALUES_PER_THREAD; i++) {
+          // Values spread across about 20 buckets, like request latencies in microseconds.
+          long value = 1L << random.nextInt(20);
+          long startNanos = System.nanoTime();
+          recorder.accept(value);
+          latencies[i] = System.nanoTime() - startNanos;
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the benchmark to finish.");
+    }
+
+    long[] allLatencies = new long[numThreads * VALUES_PER_THREAD];
+    for (int t = 0; t < numThreads; t++) {
+      System.arraycopy(latenciesPerThread[t], 0, allLatencies, t * VALUES_PER_THREAD,
+          VALUES_PER_THREAD);
+    }
+    Arrays.sort(allLatencies);
+    return allLatencies;
+  }
+
+  private static void printPercentiles(PrintWriter output, String name, long[] sortedLatencies) {
+    StringBuilder sb = new StringBuilder(name).append(':');
+    for (double percentile : PERCENTILES) {
+      int index = (int) Math.min(sortedLatencies.length - 1,
+          Math.ceil(sortedLatencies.length * percentile / 100.0) - 1);
+      sb.append(String.format(" p%s=%dns", percentile, sortedLatencies[index]));
+    }
+    sb.append(String.format(" max=%dns", sortedLatencies[sortedLatencies.length - 1]));
+    output.println(sb);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numThreads = (args.length > 0) ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new AsyncHistogramBenchmark(numThreads).runExample(new PrintWriter(osw, true));
+  }
+}
@@ -0,0 +1,101 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.SplittableRandom;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Longs;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.Histograms;
+import com.pervasivecode.utils.stats.histogram.IrregularSetBucketSelector;
+import com.pervasivecode.utils.stats.histogram.LongBucketSelector;
+
+/**
+ * Benchmark that compares three ways of counting an array of {@code long} values into a histogram:
+ * boxing each value and calling {@link BucketSelector#bucketIndexFor(Object)}, calling
+ * {@link LongBucketSelector#bucketIndexFor(long)} for each value, and counting the whole array via
+ * {@link Histograms#countValues(long[], LongBucketSelector)}.
+ * <p>
+ * Usage: {@code BulkBucketingBenchmark [numValues]}
+ */
+public class BulkBucketingBenchmark implements ExampleApplication {
+  private static final long[] IRREGULAR_UPPER_BOUNDS =
+      {1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000,
+          200_000, 500_000, 1_000_000};
+
+  private final int numValues;
+
+  public BulkBucketingBenchmark(int numValues) {
+    this.numValues = numValues;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    // Values spread across about 20 powers of 2, like request latencies in microseconds.
+    SplittableRandom random = new SplittableRandom(1);
+    long[] values = new long[numValues];
+    for (int i = 0; i < numValues; i++) {
+      values[i] = random.nextLong(1L << random.nextInt(20)) + 1;
+    }
+    output.println(String.format("%,d values", numValues));
+
+    ImmutableMap<String, LongBucketSelector> bucketers = ImmutableMap.of( //
+        "powerOf2LongValues", BucketSelectors.powerOf2LongValues(0, 24), //
+        "linearLongValues", BucketSelectors.linearLongValues(0, 1_000_000, 102), //
+        "irregularLongValues", BucketSelectors.irregularLongValues(IRREGULAR_UPPER_BOUNDS));
+    for (String name : bucketers.keySet()) {
+      LongBucketSelector bucketer = bucketers.get(name);
+      // Run each method several times, and report the last run, so that the JIT has warmed up.
+      double boxedNanos = 0, scalarNanos = 0, bulkNanos = 0;
+      for (int run = 0; run < 5; run++) {
+        boxedNanos = nanosPerValue(() -> countBoxed(values, bucketer));
+        scalarNanos = nanosPerValue(() -> countScalar(values, bucketer));
+        bulkNanos = nanosPerValue(() -> Histograms.countValues(values, bucketer));
+      }
+      output.println(String.format("%s: %.2f ns/value (boxed), %.2f ns/value (primitive), "
+          + "%.2f ns/value (bulk)", name, boxedNanos, scalarNanos, bulkNanos));
+    }
+
+    // For comparison, the generic selector for irregular bounds, which must box each value.
+    IrregularSetBucketSelector<Long> generic = new IrregularSetBucketSelector<>(
+        ImmutableSortedSet.copyOf(Longs.asList(IRREGULAR_UPPER_BOUNDS)));
+    double genericNanos = 0;
+    for (int run = 0; run < 5; run++) {
+      genericNanos = nanosPerValue(() -> countBoxed(values, generic));
+    }
+    output.println(String.format("IrregularSetBucketSelector: %.2f ns/value (boxed)",
+        genericNanos));
+  }
+
+  private double nanosPerValue(Runnable counter) {
+    long startNanos = System.nanoTime();
+    counter.run();
+    return (double) (System.nanoTime() - startNanos) / numValues;
+  }
+
+  private static long[] countBoxed(long[] values, BucketSelector<Long> bucketer) {
+    long[] counts = new long[bucketer.numBuckets()];
+    for (long value : values) {
+      counts[bucketer.bucketIndexFor(Long.valueOf(value))]++;
+    }
+    return counts;
+  }
+
+  private static long[] countScalar(long[] values, LongBucketSelector bucketer) {
+    long[] counts = new long[bucketer.numBuckets()];
+    for (long value : values) {
+      counts[bucketer.bucketIndexFor(value)]++;
+    }
+    return counts;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numValues = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new BulkBucketingBenchmark(numValues).runExample(new PrintWriter(osw, true));
+  }
+}
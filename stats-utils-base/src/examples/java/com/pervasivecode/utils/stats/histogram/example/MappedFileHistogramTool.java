@@ -0,0 +1,98 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static com.pervasivecode.utils.stats.histogram.HistogramBucketCountFormatters.percentFormatter;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.List;
+import java.util.Locale;
+import com.google.common.base.Splitter;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.HistogramFormat;
+import com.pervasivecode.utils.stats.histogram.HistogramFormatter;
+import com.pervasivecode.utils.stats.histogram.ImmutableHistogram;
+import com.pervasivecode.utils.stats.histogram.MappedFileIngester;
+import com.pervasivecode.utils.stats.histogram.NumericRecordFormat;
+
+/**
+ * Command-line tool that builds a histogram of the numeric values in a (potentially very large)
+ * text or binary file using {@link MappedFileIngester}, and prints it.
+ * <p>
+ * Usage: {@code MappedFileHistogramTool <file> <format> [numBuckets]}, where format is one of:
+ * <ul>
+ * <li>{@code csv:N} - comma-separated text, counting column N (starting from 0)</li>
+ * <li>{@code ws:N} - whitespace-separated text, counting column N (starting from 0)</li>
+ * <li>{@code long:LENGTH:OFFSET} - LENGTH-byte records with a little-endian long at OFFSET</li>
+ * <li>{@code double:LENGTH:OFFSET} - LENGTH-byte records with a little-endian double at
+ * OFFSET</li>
+ * </ul>
+ * Values are counted in buckets whose upper bounds are powers of 2.
+ */
+public class MappedFileHistogramTool implements ExampleApplication {
+  private final Path file;
+  private final NumericRecordFormat format;
+  private final int numBuckets;
+
+  public MappedFileHistogramTool(Path file, NumericRecordFormat format, int numBuckets) {
+    this.file = file;
+    this.format = format;
+    this.numBuckets = numBuckets;
+  }
+
+  static NumericRecordFormat parseFormat(String formatSpec) {
+    List<String> parts = Splitter.on(':').splitToList(formatSpec);
+    switch (parts.get(0)) {
+      case "csv":
+        return NumericRecordFormat.delimitedText(Integer.parseInt(parts.get(1)), ',');
+      case "ws":
+        return NumericRecordFormat.whitespaceSeparatedText(Integer.parseInt(parts.get(1)));
+      case "long":
+        return NumericRecordFormat.littleEndianLongs(Integer.parseInt(parts.get(1)),
+            Integer.parseInt(parts.get(2)));
+      case "double":
+        return NumericRecordFormat.littleEndianDoubles(Integer.parseInt(parts.get(1)),
+            Integer.parseInt(parts.get(2)));
+      default:
+        throw new IllegalArgumentException("Unknown format: " + formatSpec);
+    }
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, numBuckets);
+
+    long startNanos = System.nanoTime();
+    ImmutableHistogram<Long> histo = MappedFileIngester.countLongValues(file, format, bucketer);
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000L;
+
+    NumberFormat usNumberFormat = NumberFormat.getInstance(Locale.US);
+    HistogramFormatter<Long> histoFormatter = new HistogramFormatter<Long>( //
+        HistogramFormat.<Long>builder() //
+            .setUpperBoundValueFormatter((v) -> usNumberFormat.format(v)) //
+            .setLabelForSingularBucket("All") //
+            .setBucketCountFormatter(percentFormatter(Locale.US)) //
+            .setMaxWidth(80) //
+            .build());
+
+    output.println(String.format("Counted %s values in %d ms.",
+        usNumberFormat.format(histo.totalCount()), elapsedMillis));
+    output.println(histoFormatter.format(histo));
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: MappedFileHistogramTool <file> <format> [numBuckets]");
+      System.err.println("  format: csv:N | ws:N | long:LENGTH:OFFSET | double:LENGTH:OFFSET");
+      System.exit(1);
+    }
+    int numBuckets = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new MappedFileHistogramTool(Paths.get(args[0]), parseFormat(args[1]), numBuckets)
+        .runExample(new PrintWriter(osw, true));
+  }
+}
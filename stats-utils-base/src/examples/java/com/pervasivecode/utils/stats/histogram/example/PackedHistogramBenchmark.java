@@ -0,0 +1,96 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+import com.pervasivecode.utils.stats.histogram.MutableHistogram;
+import com.pervasivecode.utils.stats.histogram.PackedConcurrentHistogram;
+
+/**
+ * Benchmark that compares the recording cost and memory use of {@link ConcurrentHistogram} and
+ * {@link PackedConcurrentHistogram} with 16-bit and 32-bit counters, using one thread and then
+ * several threads recording into the same histogram.
+ * <p>
+ * Usage: {@code PackedHistogramBenchmark [numThreads]}
+ */
+public class PackedHistogramBenchmark implements ExampleApplication {
+  private static final int NUM_BUCKETS = 64;
+  private static final int VALUES_PER_THREAD = 20_000_000;
+
+  private final int numThreads;
+
+  public PackedHistogramBenchmark(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, NUM_BUCKETS);
+    output.println(String.format("%d buckets; counter memory: %d bytes (64-bit), %d bytes "
+        + "(packed 32-bit), %d bytes (packed 16-bit)", NUM_BUCKETS, NUM_BUCKETS * Long.BYTES,
+        new PackedConcurrentHistogram<>(bucketer, 32).counterBytes(),
+        new PackedConcurrentHistogram<>(bucketer, 16).counterBytes()));
+
+    for (int threads : new int[] {1, numThreads}) {
+      // Run each histogram type twice, and report the second run, so that the JIT has warmed up.
+      for (int run = 0; run < 2; run++) {
+        double concurrentNanos = nanosPerValue(new ConcurrentHistogram<>(bucketer), threads);
+        double packed32Nanos =
+            nanosPerValue(new PackedConcurrentHistogram<>(bucketer, 32), threads);
+        PackedConcurrentHistogram<Long> packed16 = new PackedConcurrentHistogram<>(bucketer, 16);
+        double packed16Nanos = nanosPerValue(packed16, threads);
+        if (run == 1) {
+          output.println(String.format("%d thread(s): %.1f ns/value (64-bit), %.1f ns/value "
+              + "(packed 32-bit), %.1f ns/value (packed 16-bit)", threads, concurrentNanos,
+              packed32Nanos, packed16Nanos));
+          // Every bucket that was counted in has overflowed its 16-bit counter by now.
+          output.println(String.format("  packed 16-bit counter memory after recording: %d bytes",
+              packed16.counterBytes()));
+        }
+      }
+    }
+  }
+
+  private static double nanosPerValue(MutableHistogram<Long> histogram, int numThreads)
+      throws IOException {
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      long seed = t;
+      threads.add(new Thread(() -> {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < VALUES_PER_THREAD; i++) {
+          // Values spread across about 20 buckets, like request latencies in microseconds.
+          histogram.countValue(1L << random.nextInt(20));
+        }
+      }));
+    }
+    long startNanos = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the benchmark to finish.");
+    }
+    return (double) (System.nanoTime() - startNanos) / VALUES_PER_THREAD;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numThreads = (args.length > 0) ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new PackedHistogramBenchmark(numThreads).runExample(new PrintWriter(osw, true));
+  }
+}
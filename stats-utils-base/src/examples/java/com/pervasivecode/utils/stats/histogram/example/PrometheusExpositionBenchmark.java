@@ -0,0 +1,91 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import com.google.common.collect.ImmutableMap;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+import com.pervasivecode.utils.stats.histogram.PrometheusExpositionWriter;
+import com.pervasivecode.utils.stats.histogram.PrometheusExpositionWriter.BucketLabels;
+
+/**
+ * Benchmark that measures how long it takes a {@link PrometheusExpositionWriter} to serialize a
+ * scrape containing a large number of histogram series.
+ * <p>
+ * Usage: {@code PrometheusExpositionBenchmark [numSeries] [numScrapes]}
+ */
+public class PrometheusExpositionBenchmark implements ExampleApplication {
+  private static final String METRIC_NAME = "http_request_duration_microseconds";
+  private static final int NUM_BUCKETS = 24;
+  private static final int NUM_WARMUP_SCRAPES = 20;
+
+  private final int numSeries;
+  private final int numScrapes;
+
+  public PrometheusExpositionBenchmark(int numSeries, int numScrapes) {
+    this.numSeries = numSeries;
+    this.numScrapes = numScrapes;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, NUM_BUCKETS);
+    BucketLabels<Long> bucketLabels = BucketLabels.of(bucketer);
+
+    Random random = new Random(1234L);
+    List<ConcurrentHistogram<Long>> histograms = new ArrayList<>();
+    List<String> labels = new ArrayList<>();
+    for (int i = 0; i < numSeries; i++) {
+      ConcurrentHistogram<Long> histogram = new ConcurrentHistogram<>(bucketer);
+      for (int j = 0; j < 100; j++) {
+        histogram.countValue((long) random.nextInt(1 << 20));
+      }
+      histograms.add(histogram);
+      labels.add(PrometheusExpositionWriter.formatLabels(ImmutableMap.of( //
+          "path", "/api/v1/resource" + (i / 10), //
+          "status", Integer.toString(200 + (i % 10)))));
+    }
+
+    PrometheusExpositionWriter writer = new PrometheusExpositionWriter();
+    for (int i = 0; i < NUM_WARMUP_SCRAPES; i++) {
+      scrape(writer, histograms, labels, bucketLabels);
+    }
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < numScrapes; i++) {
+      scrape(writer, histograms, labels, bucketLabels);
+    }
+    long nanosPerScrape = (System.nanoTime() - startNanos) / numScrapes;
+
+    NumberFormat usNumberFormat = NumberFormat.getInstance(Locale.US);
+    output.println(String.format("Serialized %s series with %d buckets each (%s bytes).",
+        usNumberFormat.format(numSeries), NUM_BUCKETS, usNumberFormat.format(writer.size())));
+    output.println(String.format("Average time per scrape: %.2f ms (%s ns per series)",
+        nanosPerScrape / 1_000_000.0, usNumberFormat.format(nanosPerScrape / numSeries)));
+  }
+
+  private static void scrape(PrometheusExpositionWriter writer,
+      List<ConcurrentHistogram<Long>> histograms, List<String> labels,
+      BucketLabels<Long> bucketLabels) {
+    writer.reset();
+    writer.writeHistogramHeader(METRIC_NAME, "HTTP request latency in microseconds.");
+    for (int i = 0; i < histograms.size(); i++) {
+      writer.writeHistogram(METRIC_NAME, labels.get(i), histograms.get(i), bucketLabels);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numSeries = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+    int numScrapes = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new PrometheusExpositionBenchmark(numSeries, numScrapes)
+        .runExample(new PrintWriter(osw, true));
+  }
+}
@@ -0,0 +1,116 @@
+package com.pervasivecode.utils.stats.histogram.example;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+import com.pervasivecode.utils.stats.histogram.ImmutableHistogram;
+import com.pervasivecode.utils.stats.histogram.MutableHistogram;
+import com.pervasivecode.utils.stats.histogram.StripedHistogram;
+
+/**
+ * Benchmark that compares {@link ConcurrentHistogram} and {@link StripedHistogram} when one short
+ * task per request records a few values, with 100,000 tasks running at once.
+ * <p>
+ * When this runs on JDK 21 or later, each task runs in its own virtual thread. This class is
+ * compiled for Java 8, so the virtual thread executor is found via reflection; on earlier JDKs the
+ * tasks run in a fixed-size pool of platform threads instead.
+ * <p>
+ * Usage: {@code VirtualThreadRecordingBenchmark [numTasks]}
+ */
+public class VirtualThreadRecordingBenchmark implements ExampleApplication {
+  private static final int NUM_BUCKETS = 64;
+  private static final int VALUES_PER_TASK = 100;
+
+  private final int numTasks;
+
+  public VirtualThreadRecordingBenchmark(int numTasks) {
+    this.numTasks = numTasks;
+  }
+
+  @Override
+  public void runExample(PrintWriter output) throws IOException {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, NUM_BUCKETS);
+    output.println(String.format("%,d tasks, %d values per task, %s", numTasks, VALUES_PER_TASK,
+        virtualThreadsAvailable() ? "one virtual thread per task"
+            : "virtual threads are not available; using a pool of platform threads"));
+
+    // Run each histogram type twice, and report the second run, so that the JIT has warmed up.
+    for (int run = 0; run < 2; run++) {
+      ConcurrentHistogram<Long> concurrent = new ConcurrentHistogram<>(bucketer);
+      long concurrentNanos = runTasks(concurrent);
+      StripedHistogram<Long> striped = new StripedHistogram<>(bucketer);
+      long stripedNanos = runTasks(striped);
+      if (run == 1) {
+        output.println(String.format("ConcurrentHistogram: %,d ms (%,d values counted)",
+            TimeUnit.NANOSECONDS.toMillis(concurrentNanos),
+            ImmutableHistogram.copyOf(concurrent).totalCount()));
+        output.println(String.format("StripedHistogram (%d stripes): %,d ms (%,d values counted)",
+            striped.numStripes(), TimeUnit.NANOSECONDS.toMillis(stripedNanos),
+            ImmutableHistogram.copyOf(striped).totalCount()));
+      }
+    }
+  }
+
+  private long runTasks(MutableHistogram<Long> histogram) throws IOException {
+    ExecutorService executor = newVirtualThreadExecutor();
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
+    }
+    long startNanos = System.nanoTime();
+    for (int t = 0; t < numTasks; t++) {
+      long seed = t;
+      executor.execute(() -> {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < VALUES_PER_TASK; i++) {
+          // Values spread across about 20 buckets, like request latencies in microseconds.
+          histogram.countValue(1L << random.nextInt(20));
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the benchmark to finish.");
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  private static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException nsme) {
+      return false;
+    }
+  }
+
+  // Returns null if this JVM doesn't support virtual threads.
+  private static ExecutorService newVirtualThreadExecutor() {
+    if (!virtualThreadsAvailable()) {
+      return null;
+    }
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numTasks = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+    OutputStreamWriter osw = new OutputStreamWriter(System.out, UTF_8);
+    new VirtualThreadRecordingBenchmark(numTasks).runExample(new PrintWriter(osw, true));
+  }
+}
@@ -18,6 +18,7 @@ import com.pervasivecode.utils.stats.histogram.BucketSelectors;
 import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
 import com.pervasivecode.utils.stats.histogram.HistogramFormat;
 import com.pervasivecode.utils.stats.histogram.HistogramFormatter;
+import com.pervasivecode.utils.stats.histogram.LookupTableBucketSelector;
 import com.pervasivecode.utils.stats.histogram.MutableHistogram;
 import com.pervasivecode.utils.stats.histogram.example.ExampleApplication;
 
@@ -35,7 +36,9 @@ public class WordCountHistogramExample implements ExampleApplication {
 
     // Bucket word-lengths into 5 buckets with upper bounds 2^0, 2^1, 2^2, 2^3, 2^4, and unbounded:
     // [Integer.MIN_VALUE..1], (1..2], (2..4], (4..8], (8..Integer.MAX_VALUE]
-    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, 5);
+    // Since words are short, look up the buckets of lengths up to 64 in a table.
+    BucketSelector<Long> bucketer =
+        new LookupTableBucketSelector(BucketSelectors.powerOf2LongValues(0, 5), 0, 64);
     MutableHistogram<Long> histo = new ConcurrentHistogram<>(bucketer);
 
     Predicate<String> isWord = Pattern.compile("\\w+").asPredicate();
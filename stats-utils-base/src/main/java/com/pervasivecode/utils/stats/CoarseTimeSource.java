@@ -0,0 +1,128 @@
+package com.pervasivecode.utils.stats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import com.pervasivecode.utils.time.TimeSource;
+
+/**
+ * A TimeSource whose time values are read from a pair of volatile fields that are updated
+ * periodically by a single background thread, rather than from the system clock on every call.
+ * <p>
+ * This trades precision for speed: reading the time via {@link #currentTimeMillis()} or
+ * {@link #nanoTime()} costs one volatile read and allocates nothing, but the value returned may be
+ * up to one resolution interval old. This is useful for callers that read the time thousands of
+ * times per second, such as progress displays and rate-based throttling logic that call
+ * {@link DurationEstimator#estimatedRateAsAmountPerSecond()} repeatedly.
+ * <p>
+ * {@link SimpleDurationEstimator} and {@link CompositeDurationEstimator} recognize instances of
+ * this class, and read the time via {@link #currentTimeMillis()} instead of {@link #now()}.
+ * <p>
+ * The background thread is a daemon thread, so it will not prevent the JVM from exiting, but it
+ * should be stopped via {@link #close()} when the instance is no longer needed.
+ */
+public final class CoarseTimeSource implements TimeSource, AutoCloseable {
+  private final long resolutionNanos;
+  private final Thread ticker;
+
+  private volatile long currentTimeMillis;
+  private volatile long nanoTime;
+  private volatile boolean closed = false;
+
+  /**
+   * Create a CoarseTimeSource and start its background thread.
+   *
+   * @param resolution The interval between updates of the time values. This must be positive.
+   */
+  public CoarseTimeSource(Duration resolution) {
+    checkNotNull(resolution);
+    checkArgument(!resolution.isNegative() && !resolution.isZero(),
+        "resolution must be positive.");
+    this.resolutionNanos = resolution.toNanos();
+    tick();
+    this.ticker = new Thread(this::runTicker, "CoarseTimeSource ticker");
+    this.ticker.setDaemon(true);
+    this.ticker.start();
+  }
+
+  private void tick() {
+    this.nanoTime = System.nanoTime();
+    this.currentTimeMillis = System.currentTimeMillis();
+  }
+
+  private void runTicker() {
+    while (!closed) {
+      LockSupport.parkNanos(this, resolutionNanos);
+      tick();
+    }
+  }
+
+  /**
+   * Get the most recently cached value of {@link System#currentTimeMillis()}.
+   *
+   * @return The current time in milliseconds since the epoch, as of the last update.
+   */
+  public long currentTimeMillis() {
+    return currentTimeMillis;
+  }
+
+  /**
+   * Get the most recently cached value of {@link System#nanoTime()}. As with
+   * {@link System#nanoTime()}, this value is only meaningful when compared to another value
+   * obtained from this method.
+   *
+   * @return The current value of the system's high-resolution time source, as of the last update.
+   */
+  public long nanoTime() {
+    return nanoTime;
+  }
+
+  /**
+   * Get the most recently cached time as an Instant. Callers that want to avoid allocating an
+   * Instant should use {@link #currentTimeMillis()} instead.
+   *
+   * @return The current time, as of the last update.
+   */
+  @Override
+  public Instant now() {
+    return Instant.ofEpochMilli(currentTimeMillis);
+  }
+
+  /**
+   * Stop the background thread. After this method returns, the time values will no longer change.
+   * <p>
+   * The background thread stops promptly, so this method waits for it to stop even if the calling
+   * thread is interrupted, and then restores the calling thread's interrupt status.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(ticker);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        ticker.join();
+        break;
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get a function that returns the current time in epoch milliseconds from the specified
+   * TimeSource, without allocating an Instant if the TimeSource is a CoarseTimeSource.
+   */
+  static LongSupplier millisSupplier(TimeSource timeSource) {
+    if (timeSource instanceof CoarseTimeSource) {
+      return ((CoarseTimeSource) timeSource)::currentTimeMillis;
+    }
+    return () -> timeSource.now().toEpochMilli();
+  }
+}
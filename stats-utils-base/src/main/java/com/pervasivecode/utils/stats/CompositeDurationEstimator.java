@@ -0,0 +1,346 @@
+package com.pervasivecode.utils.stats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import com.pervasivecode.utils.time.TimeSource;
+
+/**
+ * A DurationEstimator that is one node in a tree of estimators, where each node's progress and
+ * total amount of work include the progress and total amounts of all of its descendants.
+ * <p>
+ * This is intended for jobs that are split into many partitions (and optionally, groups of
+ * partitions) that make progress independently, possibly on different threads. Each partition
+ * records its own progress via {@link #recordAmountSoFar(long)}, and the change in value is added
+ * to each ancestor node's totals, so that the completed, total, and remaining amounts of any node
+ * can be read without visiting its descendants.
+ * <p>
+ * Example: a job with 3 partitions of 100 units each:
+ *
+ * <pre>
+ * CompositeDurationEstimator job = CompositeDurationEstimator.root(timeSource);
+ * CompositeDurationEstimator p1 = job.newChild(100);
+ * CompositeDurationEstimator p2 = job.newChild(100);
+ * CompositeDurationEstimator p3 = job.newChild(100);
+ * // ... later, on partition threads:
+ * p2.recordAmountSoFar(40);
+ * // ... and on a progress-reporting thread:
+ * Optional&lt;Duration&gt; eta = job.estimateTimeToCompletion();
+ * </pre>
+ * <p>
+ * All methods are thread-safe and do not block. Updating a node costs time proportional to the
+ * depth of the node in the tree. Each node keeps track of which of its children has the latest
+ * predicted finish time, so the children of a node are only checked one by one (for the
+ * critical-path estimate) when that child's predicted finish time gets earlier, or when concurrent
+ * updates race. Adding a child costs constant time plus the cost of an update.
+ * <p>
+ * Time values are internally limited to milliseconds precision. If the TimeSource is a
+ * {@link CoarseTimeSource}, time values are read from it as primitive millisecond values.
+ */
+public final class CompositeDurationEstimator implements DurationEstimator {
+  // Sentinel values for criticalFinishMillis.
+  private static final long NO_WORK_REMAINING = Long.MIN_VALUE;
+  private static final long FINISH_UNKNOWN = Long.MAX_VALUE;
+
+  private final TimeSource timeSource;
+  private final LongSupplier currentTimeMillis;
+  private final CompositeDurationEstimator parent;
+  private final long startMillis;
+  private final Queue<CompositeDurationEstimator> children;
+
+  // The progress and total amounts recorded directly on this node.
+  private final AtomicLong ownAmountSoFar;
+  private final AtomicLong ownTotalAmount;
+
+  // The progress and total amounts of this node plus all of its descendants.
+  private final AtomicLong aggregateAmountSoFar;
+  private final AtomicLong aggregateTotalAmount;
+
+  // The latest predicted finish time (in epoch millis) of this node's own work, or of the work of
+  // any descendant node, whichever is later. The version is incremented after each recalculation
+  // so that concurrent recalculations can detect that they raced, and retry.
+  private final AtomicLong ownFinishMillis;
+  private final AtomicLong criticalFinishMillis;
+  private final AtomicLong criticalVersion;
+
+  // The child whose criticalFinishMillis was the latest as of the last recalculation (or null if
+  // there are no children), and the value of its criticalFinishMillis at that time.
+  private volatile CompositeDurationEstimator criticalChild;
+  private volatile long criticalChildMillis;
+
+  private CompositeDurationEstimator(TimeSource timeSource, CompositeDurationEstimator parent) {
+    this.timeSource = checkNotNull(timeSource);
+    this.currentTimeMillis = CoarseTimeSource.millisSupplier(timeSource);
+    this.parent = parent;
+    this.startMillis = currentTimeMillis.getAsLong();
+    this.children = new ConcurrentLinkedQueue<>();
+    this.ownAmountSoFar = new AtomicLong(0L);
+    this.ownTotalAmount = new AtomicLong(0L);
+    this.aggregateAmountSoFar = new AtomicLong(0L);
+    this.aggregateTotalAmount = new AtomicLong(0L);
+    this.ownFinishMillis = new AtomicLong(NO_WORK_REMAINING);
+    this.criticalFinishMillis = new AtomicLong(NO_WORK_REMAINING);
+    this.criticalVersion = new AtomicLong(0L);
+    this.criticalChild = null;
+    this.criticalChildMillis = NO_WORK_REMAINING;
+  }
+
+  /**
+   * Create and start the root node of a new tree of estimators. The root node has no work of its
+   * own; add work to it by creating child nodes via {@link #newChild(long)}.
+   *
+   * @param timeSource The source of time to be used to determine how much time has elapsed.
+   * @return The root node of the new tree.
+   */
+  public static CompositeDurationEstimator root(TimeSource timeSource) {
+    return new CompositeDurationEstimator(timeSource, null);
+  }
+
+  /**
+   * Create and start a child node of this node, which represents a partition (or a group of
+   * partitions) of this node's work.
+   *
+   * @param totalAmount The total amount of work that the child node will have to process itself,
+   *        not including the work of any children that may be added to it later. This must not be
+   *        negative.
+   * @return The new child node.
+   */
+  public CompositeDurationEstimator newChild(long totalAmount) {
+    checkArgument(totalAmount >= 0, "totalAmount cannot be negative.");
+    CompositeDurationEstimator child = new CompositeDurationEstimator(timeSource, this);
+    children.add(child);
+    // Add the child's total via the normal update path, so ancestors' totals include it.
+    child.setTotalAmount(totalAmount);
+    return child;
+  }
+
+  /**
+   * Replace the progress amount of this node's own work with a new value. The difference between
+   * the new value and the old value is added to the progress amount of every ancestor node.
+   *
+   * @param newAmount The new progress amount of this node's own work.
+   */
+  @Override
+  public void recordAmountSoFar(long newAmount) {
+    long delta = newAmount - ownAmountSoFar.getAndSet(newAmount);
+    for (CompositeDurationEstimator node = this; node != null; node = node.parent) {
+      node.aggregateAmountSoFar.addAndGet(delta);
+    }
+    updatePredictedFinish();
+  }
+
+  /**
+   * Replace the total amount of this node's own work with a new value. The difference between the
+   * new value and the old value is added to the total amount of every ancestor node.
+   *
+   * @param newTotalAmount The new total amount of this node's own work. This must not be negative.
+   */
+  public void setTotalAmount(long newTotalAmount) {
+    checkArgument(newTotalAmount >= 0, "newTotalAmount cannot be negative.");
+    long delta = newTotalAmount - ownTotalAmount.getAndSet(newTotalAmount);
+    for (CompositeDurationEstimator node = this; node != null; node = node.parent) {
+      node.aggregateTotalAmount.addAndGet(delta);
+    }
+    updatePredictedFinish();
+  }
+
+  /**
+   * Get the progress amount of this node and all of its descendants.
+   *
+   * @return The total amount processed so far.
+   */
+  public long amountSoFar() {
+    return aggregateAmountSoFar.get();
+  }
+
+  /**
+   * Get the total amount of work of this node and all of its descendants.
+   *
+   * @return The total amount of work.
+   */
+  public long totalAmount() {
+    return aggregateTotalAmount.get();
+  }
+
+  /**
+   * Get the amount of work of this node and all of its descendants that has not yet been
+   * processed.
+   *
+   * @return The remaining amount of work. This will not be negative.
+   */
+  public long remainingAmount() {
+    return Math.max(0L, totalAmount() - amountSoFar());
+  }
+
+  /**
+   * Get an estimate of the rate of change of the progress amount of this node and all of its
+   * descendants, per second since this node was created.
+   *
+   * @return The estimated rate.
+   */
+  @Override
+  public float estimatedRateAsAmountPerSecond() {
+    float elapsedSeconds = (currentTimeMillis.getAsLong() - startMillis) / 1000f;
+    if (elapsedSeconds <= 0.0f) {
+      return 0.0f;
+    }
+    return amountSoFar() / elapsedSeconds;
+  }
+
+  /**
+   * Using the current estimatedRateAsAmountPerSecond, predict how much time would be needed to
+   * process a specified amount starting now.
+   *
+   * @param amountLeft The amount whose processing time is to be estimated.
+   * @return The amount of time that would be required to process the specified amount, given the
+   *         current estimated rate.
+   */
+  @Override
+  public Optional<Duration> estimateTimeToProcessAmount(long amountLeft) {
+    float rate = estimatedRateAsAmountPerSecond();
+    if (rate <= 0.0f) {
+      return Optional.empty();
+    }
+    return Optional.of(Duration.ofMillis((long) (amountLeft / rate * 1000.0f)));
+  }
+
+  /**
+   * Predict how much time will be needed for the slowest partition under this node to finish,
+   * based on the rate of each partition as of the last time its progress or total amount was
+   * updated.
+   *
+   * @return The estimated time until the last partition finishes. If any unfinished partition has
+   *         not made any progress yet, it is impossible to compute an estimate, so Optional.empty
+   *         is returned.
+   */
+  public Optional<Duration> estimateCriticalPathTimeToCompletion() {
+    long finishMillis = criticalFinishMillis.get();
+    if (finishMillis == FINISH_UNKNOWN) {
+      return Optional.empty();
+    }
+    if (finishMillis == NO_WORK_REMAINING) {
+      return Optional.of(Duration.ZERO);
+    }
+    long millisLeft = finishMillis - currentTimeMillis.getAsLong();
+    return Optional.of(Duration.ofMillis(Math.max(0L, millisLeft)));
+  }
+
+  /**
+   * Predict how much time will be needed to finish all of the remaining work of this node and its
+   * descendants. This is the larger of the estimate based on the aggregate rate of progress of
+   * this node (see {@link #estimateTimeToProcessAmount(long)}), and the estimate based on the
+   * slowest partition (see {@link #estimateCriticalPathTimeToCompletion()}).
+   *
+   * @return The estimated time until all work is finished. If neither estimate can be computed,
+   *         Optional.empty is returned.
+   */
+  public Optional<Duration> estimateTimeToCompletion() {
+    long remaining = remainingAmount();
+    if (remaining == 0L) {
+      return Optional.of(Duration.ZERO);
+    }
+    Optional<Duration> aggregateEstimate = estimateTimeToProcessAmount(remaining);
+    Optional<Duration> criticalPathEstimate = estimateCriticalPathTimeToCompletion();
+    if (!aggregateEstimate.isPresent()) {
+      return criticalPathEstimate;
+    }
+    if (!criticalPathEstimate.isPresent()) {
+      return aggregateEstimate;
+    }
+    Duration a = aggregateEstimate.get();
+    Duration c = criticalPathEstimate.get();
+    return Optional.of(a.compareTo(c) >= 0 ? a : c);
+  }
+
+  private void updatePredictedFinish() {
+    long nowMillis = currentTimeMillis.getAsLong();
+    long totalAmount = ownTotalAmount.get();
+    long amountSoFar = ownAmountSoFar.get();
+    long remaining = totalAmount - amountSoFar;
+    long elapsedMillis = nowMillis - startMillis;
+
+    final long finishMillis;
+    if (remaining <= 0L) {
+      finishMillis = (totalAmount == 0L) ? NO_WORK_REMAINING : nowMillis;
+    } else if (amountSoFar <= 0L || elapsedMillis <= 0L) {
+      finishMillis = FINISH_UNKNOWN;
+    } else {
+      double millisPerUnit = ((double) elapsedMillis) / amountSoFar;
+      finishMillis = nowMillis + (long) (remaining * millisPerUnit);
+    }
+    ownFinishMillis.set(finishMillis);
+
+    CompositeDurationEstimator changedChild = null;
+    for (CompositeDurationEstimator node = this; node != null; node = node.parent) {
+      node.recalculateCriticalFinish(changedChild);
+      changedChild = node;
+    }
+  }
+
+  /**
+   * Recalculate this node's criticalFinishMillis after its own predicted finish time or the
+   * criticalFinishMillis of one of its children changed.
+   *
+   * @param changedChild The child whose criticalFinishMillis changed, or null if only this node's
+   *        own predicted finish time changed.
+   */
+  private void recalculateCriticalFinish(CompositeDurationEstimator changedChild) {
+    long version = criticalVersion.get();
+    if (updateCriticalChild(changedChild) && criticalVersion.compareAndSet(version, version + 1)) {
+      return;
+    }
+    // The critical child got earlier, or another thread raced with this one (so criticalChild may
+    // have been set from stale values), so check every child.
+    do {
+      version = criticalVersion.get();
+      CompositeDurationEstimator latestChild = null;
+      long latestChildMillis = NO_WORK_REMAINING;
+      for (CompositeDurationEstimator child : children) {
+        long childMillis = child.criticalFinishMillis.get();
+        if (latestChild == null || childMillis > latestChildMillis) {
+          latestChild = child;
+          latestChildMillis = childMillis;
+        }
+      }
+      setCriticalFinish(latestChild, latestChildMillis);
+    } while (!criticalVersion.compareAndSet(version, version + 1));
+  }
+
+  /**
+   * Update criticalChild and criticalFinishMillis by comparing the current critical child with the
+   * changed child.
+   *
+   * @return False if the critical child's criticalFinishMillis got earlier, in which case another
+   *         child may be the latest one now, so every child has to be checked.
+   */
+  private boolean updateCriticalChild(CompositeDurationEstimator changedChild) {
+    CompositeDurationEstimator latestChild = criticalChild;
+    long latestChildMillis = NO_WORK_REMAINING;
+    if (latestChild != null) {
+      latestChildMillis = latestChild.criticalFinishMillis.get();
+      if (latestChildMillis < criticalChildMillis) {
+        return false;
+      }
+    }
+    if (changedChild != null && changedChild != latestChild) {
+      long changedChildMillis = changedChild.criticalFinishMillis.get();
+      if (latestChild == null || changedChildMillis > latestChildMillis) {
+        latestChild = changedChild;
+        latestChildMillis = changedChildMillis;
+      }
+    }
+    setCriticalFinish(latestChild, latestChildMillis);
+    return true;
+  }
+
+  private void setCriticalFinish(CompositeDurationEstimator latestChild, long latestChildMillis) {
+    criticalChild = latestChild;
+    criticalChildMillis = latestChildMillis;
+    criticalFinishMillis.set(Math.max(ownFinishMillis.get(), latestChildMillis));
+  }
+}
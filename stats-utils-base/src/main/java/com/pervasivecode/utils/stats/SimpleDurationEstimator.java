@@ -2,9 +2,9 @@ package com.pervasivecode.utils.stats;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import com.pervasivecode.utils.time.TimeSource;
 
 /**
@@ -17,12 +17,14 @@ import com.pervasivecode.utils.time.TimeSource;
  * the estimated rate returned after each recordAmountSoFar call would be {0.0f, 0.0f, 0.0f,
  * 250.0f}.
  * <p>
- * Time values are internally limited to milliseconds precision.
+ * Time values are internally limited to milliseconds precision. If the TimeSource is a
+ * {@link CoarseTimeSource}, time values are read from it as primitive millisecond values, so
+ * {@link #estimatedRateAsAmountPerSecond()} does not allocate any objects.
  */
 public class SimpleDurationEstimator implements DurationEstimator {
 
-  private final TimeSource timeSource;
-  private final Instant startTime;
+  private final LongSupplier currentTimeMillis;
+  private final long startTimeMillis;
   private final long initialProgressValue;
 
   // This must not be a "long", because it needs to be modified by one thread without another thread
@@ -51,8 +53,8 @@ public class SimpleDurationEstimator implements DurationEstimator {
    * @param initialProgressValue The initial value to be used when estimating progress.
    */
   public SimpleDurationEstimator(TimeSource timeSource, long initialProgressValue) {
-    this.timeSource = checkNotNull(timeSource);
-    this.startTime = timeSource.now();
+    this.currentTimeMillis = CoarseTimeSource.millisSupplier(checkNotNull(timeSource));
+    this.startTimeMillis = currentTimeMillis.getAsLong();
     this.initialProgressValue = initialProgressValue;
     this.progressValue = new AtomicLong(initialProgressValue);
   }
@@ -74,7 +76,7 @@ public class SimpleDurationEstimator implements DurationEstimator {
    */
   @Override
   public float estimatedRateAsAmountPerSecond() {
-    float elapsedSeconds = Duration.between(startTime, timeSource.now()).toMillis() / 1000f;
+    float elapsedSeconds = (currentTimeMillis.getAsLong() - startTimeMillis) / 1000f;
     if (elapsedSeconds == 0.0f) {
       return 0.0f;
     }
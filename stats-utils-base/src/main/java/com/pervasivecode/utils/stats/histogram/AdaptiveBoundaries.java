@@ -0,0 +1,229 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Utility methods for choosing bucket upper bounds that fit the values that are actually counted,
+ * rather than covering a fixed range of values evenly.
+ * <p>
+ * A {@link Builder} takes a sample of the values, such as a reservoir of recently counted values,
+ * or an existing histogram that has many narrow buckets, and chooses equi-depth upper bounds for a
+ * smaller number of buckets: each bucket is expected to contain about the same number of values,
+ * so that the buckets are narrow where most of the values are, and wide where few values are.
+ * Histograms that were already counted with the narrow buckets can then be converted to the new
+ * buckets via {@link #rebucket(Histogram, BucketSelector)}.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * LongBucketSelector adaptive = AdaptiveBoundaries.builder(32)
+ *     .addHistogram(fineLatencies)
+ *     .build();
+ * ImmutableHistogram&lt;Long&gt; coarseLatencies =
+ *     AdaptiveBoundaries.rebucket(fineLatencies, adaptive);
+ * </pre>
+ *
+ * @see BucketingSystem
+ */
+public final class AdaptiveBoundaries {
+  private AdaptiveBoundaries() {}
+
+  /**
+   * Obtain a builder that allows construction of a BucketSelector with equi-depth upper bounds.
+   *
+   * @param numBuckets The number of buckets that the BucketSelector should have, including the
+   *        last bucket, which has no upper bound. The BucketSelector will have fewer buckets if the
+   *        sample does not have enough distinct values to fill this many buckets.
+   * @return A new Builder instance with no sample values.
+   */
+  public static Builder builder(int numBuckets) {
+    checkArgument(numBuckets > 0, "numBuckets must be positive.");
+    return new Builder(numBuckets);
+  }
+
+  /**
+   * An object that collects sample values and creates a BucketSelector whose upper bounds divide
+   * the sample values into buckets of about equal size.
+   */
+  public static final class Builder {
+    private final int numBuckets;
+    private long[] sampleValues = new long[16];
+    private int numSampleValues = 0;
+    // Counts of the buckets of sample histograms, keyed by the bucket upper bound.
+    private final TreeMap<Long, Long> weightedValues = new TreeMap<>();
+    // Counts of the last buckets of sample histograms, which are above all of their upper bounds.
+    private long unboundedWeight = 0;
+
+    private Builder(int numBuckets) {
+      this.numBuckets = numBuckets;
+    }
+
+    /**
+     * Add sample values.
+     *
+     * @param values The sample values.
+     * @return This Builder.
+     */
+    public Builder addValues(long... values) {
+      requireNonNull(values, "The values parameter is required.");
+      return addValues(values, 0, values.length);
+    }
+
+    /**
+     * Add a range of the sample values in an array.
+     *
+     * @param values The array containing the sample values.
+     * @param offset The index in the values array of the first sample value.
+     * @param length The number of sample values.
+     * @return This Builder.
+     */
+    public Builder addValues(long[] values, int offset, int length) {
+      requireNonNull(values, "The values parameter is required.");
+      checkPositionIndexes(offset, offset + length, values.length);
+      if (numSampleValues + length > sampleValues.length) {
+        int newLength = Math.max(sampleValues.length * 2, numSampleValues + length);
+        sampleValues = Arrays.copyOf(sampleValues, newLength);
+      }
+      System.arraycopy(values, offset, sampleValues, numSampleValues, length);
+      numSampleValues += length;
+      return this;
+    }
+
+    /**
+     * Add the values counted by a histogram as sample values.
+     * <p>
+     * The values in each bucket are treated as if they were all equal to the bucket's upper bound,
+     * so every upper bound chosen by this Builder from histogram samples alone is also an upper
+     * bound of one of the histograms. This means that the histograms can be converted exactly to
+     * the new buckets via {@link AdaptiveBoundaries#rebucket(Histogram, BucketSelector)}.
+     *
+     * @param histogram A histogram of sample values.
+     * @return This Builder.
+     */
+    public Builder addHistogram(Histogram<Long> histogram) {
+      requireNonNull(histogram, "The histogram parameter is required.");
+      int lastIndex = histogram.numBuckets() - 1;
+      for (int i = 0; i < lastIndex; i++) {
+        long count = histogram.countInBucket(i);
+        if (count > 0) {
+          weightedValues.merge(histogram.bucketUpperBound(i), count, Long::sum);
+        }
+      }
+      unboundedWeight += histogram.countInBucket(lastIndex);
+      return this;
+    }
+
+    /**
+     * Choose equi-depth upper bounds for the sample values that were added to this Builder.
+     * <p>
+     * The upper bounds are chosen one at a time, in ascending order. Each one is the smallest
+     * sample value such that the sample values up to and including it fill at least an equal share
+     * of the sample values that are not yet in a bucket, among the buckets that remain. A sample
+     * value that is repeated so many times that it fills more than one bucket's share gets a bucket
+     * to itself, and the remaining values are shared among the remaining buckets. The largest
+     * sample value is never chosen as an upper bound, so that the last bucket is not empty.
+     *
+     * @return A BucketSelector with at most the requested number of buckets.
+     * @throws IllegalStateException if no sample values were added.
+     */
+    public LongBucketSelector build() {
+      long[] values = Arrays.copyOf(sampleValues, numSampleValues);
+      Arrays.sort(values);
+      long[] distinctValues = new long[values.length + weightedValues.size()];
+      long[] weights = new long[distinctValues.length];
+      int numDistinct = mergeSamples(values, weightedValues, distinctValues, weights);
+
+      long totalWeight = unboundedWeight;
+      for (int i = 0; i < numDistinct; i++) {
+        totalWeight += weights[i];
+      }
+      checkState(totalWeight > 0, "No sample values were added.");
+
+      long[] upperBounds = new long[numBuckets - 1];
+      int numUpperBounds = 0;
+      long cumulativeWeight = 0;
+      int i = 0;
+      while (numUpperBounds < upperBounds.length && i < numDistinct) {
+        int remainingBuckets = numBuckets - numUpperBounds;
+        long remainingWeight = totalWeight - cumulativeWeight;
+        // The weight that this bucket should hold, rounded up so that the last bucket isn't left
+        // with more than its share.
+        long share = (remainingWeight + remainingBuckets - 1) / remainingBuckets;
+        long target = cumulativeWeight + share;
+        while (i < numDistinct && cumulativeWeight + weights[i] < target) {
+          cumulativeWeight += weights[i];
+          i++;
+        }
+        if (i == numDistinct || cumulativeWeight + weights[i] == totalWeight) {
+          // The rest of the sample values are in the last bucket, which has no upper bound.
+          break;
+        }
+        cumulativeWeight += weights[i];
+        upperBounds[numUpperBounds++] = distinctValues[i];
+        i++;
+      }
+      return BucketSelectors.irregularLongValues(Arrays.copyOf(upperBounds, numUpperBounds));
+    }
+
+    /**
+     * Merge sorted sample values and weighted sample values into arrays of distinct values and
+     * their weights.
+     *
+     * @return The number of distinct values.
+     */
+    private static int mergeSamples(long[] sortedValues, TreeMap<Long, Long> weightedValues,
+        long[] distinctValues, long[] weights) {
+      int numDistinct = 0;
+      int v = 0;
+      for (Map.Entry<Long, Long> entry : weightedValues.entrySet()) {
+        long weightedValue = entry.getKey();
+        while (v < sortedValues.length && sortedValues[v] < weightedValue) {
+          numDistinct = addWeight(sortedValues[v++], 1, distinctValues, weights, numDistinct);
+        }
+        numDistinct =
+            addWeight(weightedValue, entry.getValue(), distinctValues, weights, numDistinct);
+      }
+      while (v < sortedValues.length) {
+        numDistinct = addWeight(sortedValues[v++], 1, distinctValues, weights, numDistinct);
+      }
+      return numDistinct;
+    }
+
+    private static int addWeight(long value, long weight, long[] distinctValues, long[] weights,
+        int numDistinct) {
+      if (numDistinct > 0 && distinctValues[numDistinct - 1] == value) {
+        weights[numDistinct - 1] += weight;
+        return numDistinct;
+      }
+      distinctValues[numDistinct] = value;
+      weights[numDistinct] = weight;
+      return numDistinct + 1;
+    }
+  }
+
+  /**
+   * Convert a histogram to a different set of buckets, whose upper bounds are a subset of the
+   * histogram's upper bounds, such as the buckets of a BucketSelector made by a {@link Builder}
+   * from the histogram.
+   * <p>
+   * Each of the histogram's buckets must fit entirely within one of the new buckets, so that its
+   * count can be added to that bucket exactly. To convert a histogram to arbitrary buckets, use
+   * {@link Histograms#rebucket(Histogram, BucketingSystem, Histograms.RebucketingStrategy)}.
+   *
+   * @param source The histogram to convert.
+   * @param target The BucketingSystem of the new buckets.
+   * @return A histogram of the same values, counted in the new buckets.
+   * @throws IllegalArgumentException if one of the histogram's buckets would have to be split
+   *         between new buckets.
+   */
+  public static ImmutableHistogram<Long> rebucket(Histogram<Long> source,
+      BucketSelector<Long> target) {
+    return Histograms.rebucket(source, target, Histograms.RebucketingStrategy.EXACT);
+  }
+}
@@ -0,0 +1,217 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Histogram of long values that are counted asynchronously: threads that record values only
+ * write them into a pre-allocated ring buffer, and a background thread takes them out of the ring
+ * buffer in batches and counts them in a histogram that only it writes to.
+ * <p>
+ * This keeps the cost of {@link #recordValue(long)} low and predictable, since it does not select
+ * a bucket or update a bucket count, which is shared with every other thread that counts values
+ * in the same bucket. Instead, it claims a slot in the ring buffer via compare-and-set of the
+ * buffer's tail position, writes the value into the slot, and publishes it with an ordered write.
+ * <p>
+ * The counts lag behind the values that have been recorded. Call {@link #flush()} before reading
+ * the counts, to wait until every value recorded before the call has been counted.
+ * <p>
+ * If the ring buffer is full because values are being recorded faster than the background thread
+ * can count them, the {@link OverflowPolicy} determines what happens to a new value.
+ * <p>
+ * The background thread is a daemon thread, so it will not prevent the JVM from exiting, but it
+ * should be stopped via {@link #close()} when the instance is no longer needed.
+ */
+public final class AsyncHistogram implements MutableHistogram<Long>, Closeable {
+  /** What to do with a value that is recorded when the ring buffer is full. */
+  public enum OverflowPolicy {
+    /** Discard the value, and add one to {@link AsyncHistogram#droppedCount()}. */
+    DROP,
+    /** Wait until the background thread makes room for the value in the ring buffer. */
+    SPIN
+  }
+
+  private static final int MAX_BATCH_SIZE = 1024;
+  private static final long IDLE_PARK_NANOS = 100_000L;
+
+  private final BucketSelector<Long> bucketer;
+  private final OverflowPolicy overflowPolicy;
+  private final int mask;
+  private final long[] values;
+  // The sequence number of each slot: equal to the position of the next value to be written there
+  // when the slot is free, or to that position plus one once the value has been written.
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final SingleWriterHistogram<Long> counts;
+  private final Thread aggregator;
+
+  // Position of the next value that the aggregator will take. Only written by the aggregator.
+  private volatile long head = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * Create an AsyncHistogram and start its background thread.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   * @param capacity The number of values that the ring buffer can hold. This must be a power of 2.
+   * @param overflowPolicy What to do with a value that is recorded when the ring buffer is full.
+   */
+  public AsyncHistogram(BucketSelector<Long> bucketer, int capacity,
+      OverflowPolicy overflowPolicy) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of 2.");
+    this.overflowPolicy =
+        requireNonNull(overflowPolicy, "The overflowPolicy parameter is required.");
+    this.mask = capacity - 1;
+    this.values = new long[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.counts = new SingleWriterHistogram<>(bucketer);
+    this.aggregator = new Thread(this::runAggregator, "AsyncHistogram aggregator");
+    this.aggregator.setDaemon(true);
+    this.aggregator.start();
+  }
+
+  @Override
+  public int numBuckets() {
+    return bucketer.numBuckets();
+  }
+
+  @Override
+  public Long bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  /**
+   * Get the number of values counted in a bucket so far. This does not include values that are
+   * still in the ring buffer; call {@link #flush()} first to include them.
+   */
+  @Override
+  public long countInBucket(int index) {
+    return counts.countInBucket(index);
+  }
+
+  @Override
+  public void countValue(Long value) {
+    recordValue(requireNonNull(value, "The value parameter is required."));
+  }
+
+  /**
+   * Record a value, to be counted by the background thread.
+   *
+   * @param value The value to count.
+   * @throws IllegalStateException if this histogram has been closed.
+   */
+  public void recordValue(long value) {
+    checkState(!closed, "This histogram has been closed.");
+    while (true) {
+      long position = tail.get();
+      int slot = (int) position & mask;
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          values[slot] = value;
+          sequences.lazySet(slot, position + 1);
+          return;
+        }
+      } else if (sequence < position) {
+        // The slot still holds a value from the previous lap, so the ring buffer is full.
+        if (overflowPolicy == OverflowPolicy.DROP) {
+          droppedCount.incrementAndGet();
+          return;
+        }
+        checkState(!closed, "This histogram has been closed.");
+        Thread.yield();
+      }
+      // Otherwise another thread claimed the slot first; try again with the new tail.
+    }
+  }
+
+  /**
+   * Get the number of values that were discarded because the ring buffer was full. This is always
+   * zero for {@link OverflowPolicy#SPIN}.
+   *
+   * @return The number of discarded values.
+   */
+  public long droppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Wait until every value recorded before this method was called has been counted.
+   *
+   * @throws InterruptedException if the calling thread is interrupted while waiting.
+   */
+  public void flush() throws InterruptedException {
+    long target = tail.get();
+    while (head < target) {
+      checkState(aggregator.isAlive(), "The background thread has stopped.");
+      LockSupport.unpark(aggregator);
+      Thread.sleep(0, 100_000);
+    }
+  }
+
+  private void runAggregator() {
+    while (true) {
+      int numTaken = drainBatch();
+      if (numTaken == 0) {
+        if (closed) {
+          // Values recorded before close() have all been counted.
+          return;
+        }
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  private int drainBatch() {
+    long position = head;
+    int numTaken = 0;
+    while (numTaken < MAX_BATCH_SIZE) {
+      int slot = (int) position & mask;
+      if (sequences.get(slot) != position + 1) {
+        break;
+      }
+      long value = values[slot];
+      sequences.lazySet(slot, position + mask + 1);
+      counts.countValue(value);
+      position++;
+      numTaken++;
+    }
+    if (numTaken > 0) {
+      head = position;
+    }
+    return numTaken;
+  }
+
+  /**
+   * Stop accepting values, and stop the background thread once it has counted all of the values
+   * that were recorded before this method was called. Values that are recorded by other threads
+   * while this method is running may or may not be counted.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(aggregator);
+    boolean interrupted = false;
+    while (aggregator.isAlive()) {
+      try {
+        aggregator.join();
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
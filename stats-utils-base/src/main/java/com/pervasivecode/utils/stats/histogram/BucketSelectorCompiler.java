@@ -0,0 +1,506 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for LongBucketSelectors whose {@link LongBucketSelector#bucketIndexFor(long)}
+ * method is a class generated at runtime, with the upper bounds compiled into its bytecode as
+ * constants.
+ * <p>
+ * The selectors returned by {@link BucketSelectors} read their parameters from fields, and when
+ * selectors of several types are used in the same process, the call sites that call them see
+ * several receiver classes, so the JIT compiler may not inline them. Each selector returned by this
+ * class has its own class, so a call site that uses only one selector sees only one receiver
+ * class, and can inline the generated method and fold its constants into the caller.
+ * <ul>
+ * <li>{@link #irregularLongValues(long...)} generates an unrolled binary tree of comparisons with
+ * the upper bounds. Its branches are quickly predicted when most values are counted in a few
+ * buckets, which is common; when values are spread evenly across many buckets, the branchless
+ * search of {@link BucketSelectors#irregularLongValues(long...)} may be faster.
+ * <li>{@link #powerOf2LongValues(int, int)} generates a branchless count of leading zero bits,
+ * with the smallest power of 2 and the number of buckets as constants.
+ * <li>{@link #linearLongValues(long, long, int)} generates a division by the constant bucket width.
+ * </ul>
+ * <p>
+ * Generated classes are defined as hidden classes via {@code Lookup.defineHiddenClass} on Java 15
+ * and later, so that they can be unloaded once the selector is no longer used. On Java 9 through
+ * 14 they are defined via {@code Lookup.defineClass}, and on Java 8 via
+ * {@link ClassLoader}'s protected {@code defineClass} method, and so remain loaded until this
+ * class's ClassLoader is unloaded. If a class can't be generated or defined (for example, because
+ * a SecurityManager forbids it), or if the bucketing system is too large to be worth compiling,
+ * these methods return the equivalent selector from {@link BucketSelectors} instead.
+ */
+public final class BucketSelectorCompiler {
+  /**
+   * The largest number of upper bounds that {@link #irregularLongValues(long...)} compiles into a
+   * comparison tree. The generated method for this many bounds is 305 bytes of bytecode, which is
+   * small enough for HotSpot to inline it into a frequently executed caller (by default, HotSpot
+   * only inlines frequently executed methods of up to 325 bytes, as set by
+   * {@code -XX:FreqInlineSize}).
+   */
+  public static final int MAX_UNROLLED_BOUNDS = 28;
+
+  private static final String SUPERCLASS_NAME =
+      CompiledSelector.class.getName().replace('.', '/');
+  private static final String PACKAGE_PREFIX =
+      BucketSelectorCompiler.class.getPackage().getName().replace('.', '/') + '/';
+  private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+  private BucketSelectorCompiler() {}
+
+  /**
+   * The superclass of generated selectors. Subclasses implement {@link #bucketIndexFor(long)}.
+   */
+  abstract static class CompiledSelector implements LongBucketSelector {
+    private final long[] upperBounds;
+
+    CompiledSelector(long[] upperBounds) {
+      this.upperBounds = upperBounds;
+    }
+
+    @Override
+    public final int numBuckets() {
+      return upperBounds.length + 1;
+    }
+
+    @Override
+    public final Long bucketUpperBound(int index) {
+      checkElementIndex(index, numBuckets());
+      checkArgument(index < upperBounds.length,
+          IrregularSetBucketSelector.NO_UPPER_BOUND_IN_LAST_BUCKET_MESSAGE);
+      return upperBounds[index];
+    }
+  }
+
+  /**
+   * Get a compiled equivalent of {@link BucketSelectors#irregularLongValues(long...)}.
+   *
+   * @param upperBounds The upper bound values for the buckets, in strictly ascending order. (There
+   *        will also be one more bucket that has no upper bound.)
+   * @return A {@code LongBucketSelector} instance. If there are more than
+   *         {@link #MAX_UNROLLED_BOUNDS} upper bounds, this is the selector returned by
+   *         {@link BucketSelectors#irregularLongValues(long...)}.
+   */
+  public static LongBucketSelector irregularLongValues(long... upperBounds) {
+    LongBucketSelector interpreted = BucketSelectors.irregularLongValues(upperBounds);
+    if (upperBounds.length > MAX_UNROLLED_BOUNDS) {
+      return interpreted;
+    }
+    long[] bounds = upperBounds.clone();
+    return compile(interpreted, bounds, comparisonTree(bounds));
+  }
+
+  private static CodeGenerator comparisonTree(long[] upperBounds) {
+    return (code) -> code.comparisonTree(upperBounds, 0, upperBounds.length);
+  }
+
+  /**
+   * Get the size of the bytecode of the bucketIndexFor method that
+   * {@link #irregularLongValues(long...)} generates for a set of upper bounds.
+   */
+  static int irregularLongValuesCodeSize(long[] upperBounds) {
+    Code code = new Code(new ConstantPool());
+    comparisonTree(upperBounds).generate(code);
+    return code.length();
+  }
+
+  /**
+   * Get a compiled equivalent of {@link BucketSelectors#powerOf2LongValues(int, int)}.
+   *
+   * @param minPower The smallest power of 2 to use when generating upper bound values. This must be
+   *        non-negative.
+   * @param numBuckets The number of buckets that the BucketSelector should provide.
+   * @return A {@code LongBucketSelector} instance. If the largest upper bound doesn't fit in a
+   *         {@code long}, this is the selector returned by
+   *         {@link BucketSelectors#powerOf2LongValues(int, int)}.
+   */
+  public static LongBucketSelector powerOf2LongValues(int minPower, int numBuckets) {
+    LongBucketSelector interpreted = BucketSelectors.powerOf2LongValues(minPower, numBuckets);
+    if ((long) minPower + numBuckets - 2 > 62) {
+      return interpreted;
+    }
+    return compile(interpreted, upperBoundsOf(interpreted),
+        (code) -> code.leadingZerosIndex(minPower, numBuckets - 1));
+  }
+
+  /**
+   * Get a compiled equivalent of {@link BucketSelectors#linearLongValues(long, long, int)}.
+   *
+   * @param lowestUpperBound The upper-bound value for the first bucket (index 0).
+   * @param highestUpperBound The upper-bound value for the next-to-last bucket
+   *        ({@code index (numBuckets - 2)}).
+   * @param numBuckets The total number of buckets.
+   * @return A {@code LongBucketSelector} instance. If the bucket width is zero, this is the
+   *         selector returned by {@link BucketSelectors#linearLongValues(long, long, int)}.
+   */
+  public static LongBucketSelector linearLongValues(long lowestUpperBound, long highestUpperBound,
+      int numBuckets) {
+    LongBucketSelector interpreted =
+        BucketSelectors.linearLongValues(lowestUpperBound, highestUpperBound, numBuckets);
+    long bucketWidth = interpreted.bucketUpperBound(1) - interpreted.bucketUpperBound(0);
+    if (bucketWidth == 0) {
+      return interpreted;
+    }
+    return compile(interpreted, upperBoundsOf(interpreted), (code) -> code
+        .linearIndex(lowestUpperBound, highestUpperBound, bucketWidth, numBuckets - 1));
+  }
+
+  private static long[] upperBoundsOf(LongBucketSelector selector) {
+    long[] upperBounds = new long[selector.numBuckets() - 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = selector.bucketUpperBound(i);
+    }
+    return upperBounds;
+  }
+
+  private interface CodeGenerator {
+    void generate(Code code);
+  }
+
+  private static LongBucketSelector compile(LongBucketSelector interpreted, long[] upperBounds,
+      CodeGenerator bucketIndexForBody) {
+    String className = PACKAGE_PREFIX + "CompiledBucketSelector$" + CLASS_COUNTER.incrementAndGet();
+    try {
+      byte[] classBytes = generateClass(className, bucketIndexForBody);
+      Class<?> selectorClass = defineClass(className, classBytes);
+      return (LongBucketSelector) selectorClass.getConstructor(long[].class)
+          .newInstance((Object) upperBounds);
+    } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+      return interpreted;
+    }
+  }
+
+  private static Class<?> defineClass(String className, byte[] classBytes)
+      throws ReflectiveOperationException {
+    Lookup lookup = MethodHandles.lookup();
+    try {
+      // Java 15 and later.
+      Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      Object noOptions = Array.newInstance(optionClass, 0);
+      Method defineHiddenClass = Lookup.class.getMethod("defineHiddenClass", byte[].class,
+          boolean.class, noOptions.getClass());
+      return ((Lookup) defineHiddenClass.invoke(lookup, classBytes, true, noOptions))
+          .lookupClass();
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      // Not available in this version of Java.
+    }
+    try {
+      // Java 9 and later.
+      Method defineClass = Lookup.class.getMethod("defineClass", byte[].class);
+      return (Class<?>) defineClass.invoke(lookup, (Object) classBytes);
+    } catch (NoSuchMethodException e) {
+      // Not available in this version of Java.
+    }
+    Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class,
+        byte[].class, int.class, int.class);
+    defineClass.setAccessible(true);
+    return (Class<?>) defineClass.invoke(BucketSelectorCompiler.class.getClassLoader(),
+        className.replace('/', '.'), classBytes, 0, classBytes.length);
+  }
+
+  // Class file version 49 (Java 5) doesn't require StackMapTable attributes, so the generated
+  // branches don't need stack map frames.
+  private static final int CLASS_FILE_MAJOR_VERSION = 49;
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static byte[] generateClass(String className, CodeGenerator bucketIndexForBody) {
+    // The constant pool is written before the methods, so every constant must be added first.
+    ConstantPool pool = new ConstantPool();
+    int thisClass = pool.classRef(className);
+    int superClass = pool.classRef(SUPERCLASS_NAME);
+    int codeName = pool.utf8("Code");
+    int constructorName = pool.utf8("<init>");
+    int constructorDescriptor = pool.utf8("([J)V");
+    int bucketIndexForName = pool.utf8("bucketIndexFor");
+    int bucketIndexForDescriptor = pool.utf8("(J)I");
+
+    Code constructor = new Code(pool);
+    constructor.op(Code.ALOAD_0).op(Code.ALOAD_1)
+        .op(Code.INVOKESPECIAL).u2(pool.methodRef(SUPERCLASS_NAME, "<init>", "([J)V"))
+        .op(Code.RETURN);
+    Code bucketIndexFor = new Code(pool);
+    bucketIndexForBody.generate(bucketIndexFor);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(CLASS_FILE_MAJOR_VERSION);
+      pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(2); // methods
+      writeMethod(out, ACC_PUBLIC, constructorName, constructorDescriptor, codeName, constructor,
+          2, 2);
+      writeMethod(out, ACC_PUBLIC | ACC_FINAL, bucketIndexForName, bucketIndexForDescriptor,
+          codeName, bucketIndexFor, 6, 3);
+      out.writeShort(0); // attributes
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeMethod(DataOutputStream out, int accessFlags, int name, int descriptor,
+      int codeName, Code code, int maxStack, int maxLocals) throws IOException {
+    out.writeShort(accessFlags);
+    out.writeShort(name);
+    out.writeShort(descriptor);
+    out.writeShort(1); // attributes
+    out.writeShort(codeName);
+    out.writeInt(12 + code.length());
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(code.length());
+    code.writeTo(out);
+    out.writeShort(0); // exception table
+    out.writeShort(0); // attributes
+  }
+
+  /** The constant pool of a class file. */
+  private static final class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int LONG = 5;
+    private static final int CLASS = 7;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String, Integer> indexes = new LinkedHashMap<>();
+    private int nextIndex = 1;
+
+    private interface EntryWriter {
+      void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int numSlots, EntryWriter writer) {
+      Integer existing = indexes.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      int index = nextIndex;
+      try {
+        writer.write(out);
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+      nextIndex += numSlots;
+      indexes.put(key, index);
+      return index;
+    }
+
+    int utf8(String value) {
+      return entry("Utf8:" + value, 1, (o) -> {
+        o.writeByte(UTF8);
+        o.writeUTF(value);
+      });
+    }
+
+    int integer(int value) {
+      return entry("Integer:" + value, 1, (o) -> {
+        o.writeByte(INTEGER);
+        o.writeInt(value);
+      });
+    }
+
+    // Long constants take up two constant pool slots.
+    int longValue(long value) {
+      return entry("Long:" + value, 2, (o) -> {
+        o.writeByte(LONG);
+        o.writeLong(value);
+      });
+    }
+
+    int classRef(String internalName) {
+      int name = utf8(internalName);
+      return entry("Class:" + internalName, 1, (o) -> {
+        o.writeByte(CLASS);
+        o.writeShort(name);
+      });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+      int ownerClass = classRef(owner);
+      int nameIndex = utf8(name);
+      int descriptorIndex = utf8(descriptor);
+      int nameAndType = entry("NameAndType:" + name + ":" + descriptor, 1, (o) -> {
+        o.writeByte(NAME_AND_TYPE);
+        o.writeShort(nameIndex);
+        o.writeShort(descriptorIndex);
+      });
+      return entry("Method:" + owner + "." + name + descriptor, 1, (o) -> {
+        o.writeByte(METHOD_REF);
+        o.writeShort(ownerClass);
+        o.writeShort(nameAndType);
+      });
+    }
+
+    void writeTo(DataOutputStream classOut) throws IOException {
+      out.flush();
+      classOut.writeShort(nextIndex);
+      bytes.writeTo(classOut);
+    }
+  }
+
+  /**
+   * The bytecode of one method. The generated bucketIndexFor(long) methods keep their argument in
+   * local variable slots 1 and 2.
+   */
+  private static final class Code {
+    static final int ICONST_0 = 0x03;
+    static final int LCONST_1 = 0x0a;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int LLOAD_1 = 0x1f;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int ISUB = 0x64;
+    static final int LSUB = 0x65;
+    static final int LNEG = 0x75;
+    static final int L2I = 0x88;
+    static final int LCMP = 0x94;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+
+    private final ConstantPool pool;
+    private byte[] code = new byte[64];
+    private int length = 0;
+
+    Code(ConstantPool pool) {
+      this.pool = pool;
+    }
+
+    int length() {
+      return length;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.write(code, 0, length);
+    }
+
+    Code op(int opcode) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, length * 2);
+      }
+      code[length++] = (byte) opcode;
+      return this;
+    }
+
+    Code u2(int value) {
+      return op(value >>> 8).op(value);
+    }
+
+    Code pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        return op(ICONST_0 + value);
+      }
+      if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        return op(BIPUSH).op(value);
+      }
+      if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        return op(SIPUSH).u2(value);
+      }
+      return op(LDC_W).u2(pool.integer(value));
+    }
+
+    Code pushLong(long value) {
+      return op(LDC2_W).u2(pool.longValue(value));
+    }
+
+    /** Emit a branch instruction, and return its position, for {@link #branchHere(int)}. */
+    int branch(int opcode) {
+      int position = length;
+      op(opcode).u2(0);
+      return position;
+    }
+
+    /** Make the branch instruction at a position jump to the current position. */
+    void branchHere(int branchPosition) {
+      int offset = length - branchPosition;
+      checkArgument(offset <= Short.MAX_VALUE, "The generated method is too large.");
+      code[branchPosition + 1] = (byte) (offset >>> 8);
+      code[branchPosition + 2] = (byte) offset;
+    }
+
+    /**
+     * Return the number of upper bounds that are less than the value, knowing that it is between
+     * {@code low} and {@code high} (inclusive), via a binary tree of comparisons.
+     */
+    void comparisonTree(long[] upperBounds, int low, int high) {
+      if (low == high) {
+        pushInt(low).op(IRETURN);
+        return;
+      }
+      int middle = (low + high) >>> 1;
+      // If value <= upperBounds[middle], the result is at most middle.
+      op(LLOAD_1).pushLong(upperBounds[middle]).op(LCMP);
+      int ifGreater = branch(IFGT);
+      comparisonTree(upperBounds, low, middle);
+      branchHere(ifGreater);
+      comparisonTree(upperBounds, middle + 1, high);
+    }
+
+    /**
+     * Same as BucketSelectors.powerOf2LongValues: return
+     * {@code 64 - numberOfLeadingZeros(max(value, 1) - 1) - minPower}, limited to the range 0
+     * through lastIndex. Math.max and Math.min are intrinsics that compile to conditional moves, so
+     * this has no branches.
+     */
+    void leadingZerosIndex(int minPower, int lastIndex) {
+      pushInt(64 - minPower);
+      op(LLOAD_1).op(LCONST_1);
+      op(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", "max", "(JJ)J"));
+      op(LCONST_1).op(LSUB);
+      op(INVOKESTATIC).u2(pool.methodRef("java/lang/Long", "numberOfLeadingZeros", "(J)I"));
+      op(ISUB);
+      pushInt(0).op(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", "max", "(II)I"));
+      pushInt(lastIndex).op(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", "min", "(II)I"));
+      op(IRETURN);
+    }
+
+    /**
+     * Same as BucketSelectors.linearLongValues: return 0 or lastIndex for values outside of the
+     * range of upper bounds, and otherwise -floorDiv(lowestUpperBound - value, bucketWidth).
+     */
+    void linearIndex(long lowestUpperBound, long highestUpperBound, long bucketWidth,
+        int lastIndex) {
+      op(LLOAD_1).pushLong(lowestUpperBound).op(LCMP);
+      int ifGreaterThanLowest = branch(IFGT);
+      pushInt(0).op(IRETURN);
+      branchHere(ifGreaterThanLowest);
+      op(LLOAD_1).pushLong(highestUpperBound).op(LCMP);
+      int ifAtMostHighest = branch(IFLE);
+      pushInt(lastIndex).op(IRETURN);
+      branchHere(ifAtMostHighest);
+      pushLong(lowestUpperBound).op(LLOAD_1).op(LSUB).pushLong(bucketWidth);
+      op(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", "floorDiv", "(JJ)J"));
+      op(LNEG).op(L2I).op(IRETURN);
+    }
+  }
+}
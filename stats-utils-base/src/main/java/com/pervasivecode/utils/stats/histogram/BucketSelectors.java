@@ -1,7 +1,9 @@
 package com.pervasivecode.utils.stats.histogram;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
 import static java.math.RoundingMode.CEILING;
 import static java.math.RoundingMode.HALF_EVEN;
 import java.math.BigDecimal;
@@ -61,31 +63,73 @@ public class BucketSelectors {
    *        be non-negative, since a long value can't be fractional nor have a fractional
    *        component.)
    * @param numBuckets The number of buckets that the BucketSelector should provide.
-   * @return A {@code BucketSelector<Long>} instance.
+   * @return A {@code LongBucketSelector} instance.
    * @throws IllegalArgumentException if minPower is negative.
    */
-  public static BucketSelector<Long> powerOf2LongValues(int minPower, int numBuckets) {
+  public static LongBucketSelector powerOf2LongValues(int minPower, int numBuckets) {
     checkArgument(minPower >= 0, "minPower must be non-negative. "
         + "Use exponential(double, double, numBuckets) if you need buckets for fractional values.");
+    checkArgument(numBuckets > 0, "numBuckets must be greater than 0.");
+    return new PowerOf2LongBucketSelector(minPower, numBuckets);
+  }
+
+  private static final class PowerOf2LongBucketSelector implements LongBucketSelector {
+    private final int minPower;
+    private final int numBuckets;
+    // True if every upper bound is a positive long value, so that a value's bucket index can be
+    // computed from the number of leading zero bits in the value.
+    private final boolean boundsFitInLong;
 
-    Function<Long, Integer> valueToBucketIndexFunction = (value) -> {
-      long longValue = value.longValue();
+    PowerOf2LongBucketSelector(int minPower, int numBuckets) {
+      this.minPower = minPower;
+      this.numBuckets = numBuckets;
+      this.boundsFitInLong = (long) minPower + numBuckets - 2 <= 62;
+    }
+
+    @Override
+    public int numBuckets() {
+      return numBuckets;
+    }
+
+    @Override
+    public Long bucketUpperBound(int index) {
+      checkUpperBoundIndex(index, numBuckets);
+      return 1L << ((long) index + (long) minPower);
+    }
+
+    @Override
+    public int bucketIndexFor(long value) {
+      if (boundsFitInLong) {
+        return indexFromLeadingZeros(value);
+      }
       long currentBucketMaxValue = 1L << minPower;
       for (int i = 0; i < numBuckets - 1; i++) {
-        if (longValue <= currentBucketMaxValue) {
+        if (value <= currentBucketMaxValue) {
           return i;
         }
         currentBucketMaxValue <<= 1;
       }
       return numBuckets - 1;
-    };
+    }
 
-    Function<Integer, Long> bucketIndexToUpperBoundFunction = (index) -> {
-      return 1L << ((long) index + (long) minPower);
-    };
+    // The smallest power of 2 that is >= value is 2^(64 - numberOfLeadingZeros(value - 1)).
+    private int indexFromLeadingZeros(long value) {
+      int index = 64 - Long.numberOfLeadingZeros(Math.max(value, 1L) - 1) - minPower;
+      return Math.min(Math.max(index, 0), numBuckets - 1);
+    }
 
-    return new FunctionBasedBucketSelector<>(valueToBucketIndexFunction,
-        bucketIndexToUpperBoundFunction, numBuckets);
+    @Override
+    public void bucketIndexesFor(long[] values, int offset, int length, int[] outIndexes) {
+      if (!boundsFitInLong) {
+        LongBucketSelector.super.bucketIndexesFor(values, offset, length, outIndexes);
+        return;
+      }
+      checkPositionIndexes(offset, offset + length, values.length);
+      checkArgument(outIndexes.length >= length, "outIndexes is too small.");
+      for (int i = 0; i < length; i++) {
+        outIndexes[i] = indexFromLeadingZeros(values[offset + i]);
+      }
+    }
   }
 
   /**
@@ -166,29 +210,135 @@ public class BucketSelectors {
    * @param highestUpperBound The upper-bound value for the next-to-last bucket
    *        ({@code index (numBuckets - 2)}).
    * @param numBuckets The total number of buckets.
-   * @return A {@code BucketSelector<Long>} instance.
+   * @return A {@code LongBucketSelector} instance.
    */
-  public static BucketSelector<Long> linearLongValues(long lowestUpperBound, long highestUpperBound,
+  public static LongBucketSelector linearLongValues(long lowestUpperBound, long highestUpperBound,
       int numBuckets) {
+    checkArgument(numBuckets > 0, "numBuckets must be greater than 0.");
     BigDecimal bucketWidth = BigDecimal.valueOf(highestUpperBound - lowestUpperBound)
         .divide(BigDecimal.valueOf(numBuckets - 2), RoundingMode.HALF_EVEN);
+    return new LinearLongBucketSelector(lowestUpperBound, highestUpperBound,
+        bucketWidth.longValue(), numBuckets);
+  }
+
+  private static final class LinearLongBucketSelector implements LongBucketSelector {
+    private final long lowestUpperBound;
+    private final long highestUpperBound;
+    private final long bucketWidth;
+    private final int numBuckets;
+
+    LinearLongBucketSelector(long lowestUpperBound, long highestUpperBound, long bucketWidth,
+        int numBuckets) {
+      this.lowestUpperBound = lowestUpperBound;
+      this.highestUpperBound = highestUpperBound;
+      this.bucketWidth = bucketWidth;
+      this.numBuckets = numBuckets;
+    }
+
+    @Override
+    public int numBuckets() {
+      return numBuckets;
+    }
+
+    @Override
+    public Long bucketUpperBound(int index) {
+      checkUpperBoundIndex(index, numBuckets);
+      return lowestUpperBound + bucketWidth * index;
+    }
 
-    Function<Long, Integer> valueToBucketIndexFunction = (value) -> {
-      checkNotNull(value);
+    @Override
+    public int bucketIndexFor(long value) {
       if (value <= lowestUpperBound) {
         return 0;
       }
       if (value > highestUpperBound) {
         return numBuckets - 1;
       }
-      BigDecimal relativized = BigDecimal.valueOf(value - lowestUpperBound);
-      return relativized.divide(bucketWidth, RoundingMode.CEILING).intValue();
-    };
+      // This is the quotient (value - lowestUpperBound) / bucketWidth, rounded up.
+      return (int) -Math.floorDiv(lowestUpperBound - value, bucketWidth);
+    }
 
-    Function<Integer, Long> bucketIndexToUpperBoundFunction =
-        (index) -> lowestUpperBound + bucketWidth.multiply(BigDecimal.valueOf(index)).longValue();
+    @Override
+    public void bucketIndexesFor(long[] values, int offset, int length, int[] outIndexes) {
+      if (bucketWidth == 0) {
+        // Only values between the lowest and highest upper bounds can be bucketed (by throwing an
+        // ArithmeticException), so the clamping below would throw for every value.
+        LongBucketSelector.super.bucketIndexesFor(values, offset, length, outIndexes);
+        return;
+      }
+      checkPositionIndexes(offset, offset + length, values.length);
+      checkArgument(outIndexes.length >= length, "outIndexes is too small.");
+      final int lastIndex = numBuckets - 1;
+      for (int i = 0; i < length; i++) {
+        long value = values[offset + i];
+        long clamped = Math.min(Math.max(value, lowestUpperBound), highestUpperBound);
+        int index = (int) -Math.floorDiv(lowestUpperBound - clamped, bucketWidth);
+        outIndexes[i] = (value > highestUpperBound) ? lastIndex : index;
+      }
+    }
+  }
 
-    return new FunctionBasedBucketSelector<>(valueToBucketIndexFunction,
-        bucketIndexToUpperBoundFunction, numBuckets);
+  /**
+   * Get a BucketSelector that has an irregular set of {@code long} upper bound values, such as {1,
+   * 5, 7}. This selects the same buckets as an {@link IrregularSetBucketSelector} with the same
+   * upper bound values, but it can select buckets for primitive {@code long} values.
+   *
+   * @param upperBounds The upper bound values for the buckets, in strictly ascending order. (There
+   *        will also be one more bucket that has no upper bound.)
+   * @return A {@code LongBucketSelector} instance.
+   */
+  public static LongBucketSelector irregularLongValues(long... upperBounds) {
+    checkNotNull(upperBounds, "The upperBounds parameter is required.");
+    for (int i = 1; i < upperBounds.length; i++) {
+      checkArgument(upperBounds[i - 1] < upperBounds[i],
+          "upperBounds must be in strictly ascending order.");
+    }
+    return new IrregularLongBucketSelector(upperBounds.clone());
+  }
+
+  private static final class IrregularLongBucketSelector implements LongBucketSelector {
+    private final long[] upperBounds;
+
+    IrregularLongBucketSelector(long[] upperBounds) {
+      this.upperBounds = upperBounds;
+    }
+
+    @Override
+    public int numBuckets() {
+      return upperBounds.length + 1;
+    }
+
+    @Override
+    public Long bucketUpperBound(int index) {
+      checkUpperBoundIndex(index, numBuckets());
+      return upperBounds[index];
+    }
+
+    /**
+     * Count the upper bounds that are less than the value, via a binary search whose number of
+     * steps depends only on the number of upper bounds, and whose steps select the next half
+     * without a branch, so that the search runs at the same speed for any mix of values.
+     */
+    @Override
+    public int bucketIndexFor(long value) {
+      long[] bounds = upperBounds;
+      if (bounds.length == 0) {
+        return 0;
+      }
+      int base = 0;
+      int remaining = bounds.length;
+      while (remaining > 1) {
+        int half = remaining >>> 1;
+        base = (bounds[base + half] < value) ? base + half : base;
+        remaining -= half;
+      }
+      return base + ((bounds[base] < value) ? 1 : 0);
+    }
+  }
+
+  private static void checkUpperBoundIndex(int index, int numBuckets) {
+    checkElementIndex(index, numBuckets);
+    checkArgument(index < numBuckets - 1,
+        IrregularSetBucketSelector.NO_UPPER_BOUND_IN_LAST_BUCKET_MESSAGE);
   }
 }
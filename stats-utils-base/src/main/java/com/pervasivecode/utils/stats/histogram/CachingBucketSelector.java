@@ -0,0 +1,119 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A BucketSelector that remembers the bucket indexes that another BucketSelector recently selected
+ * for values, so that it doesn't have to ask the other BucketSelector again when the same values
+ * are counted again.
+ * <p>
+ * This is useful for BucketSelectors that are expensive, such as those that convert values via
+ * {@link BucketSelectors#transform(BucketSelector, java.util.function.Function,
+ * java.util.function.Function)} or use {@link java.math.BigDecimal} arithmetic, when the values
+ * that are counted repeat often, such as quantized timer readings or fixed payload sizes.
+ * <p>
+ * The cache is direct-mapped: each value can only be stored in one slot, chosen by its hash code,
+ * and a value that is stored in a slot replaces the value that was there before. Slots are read and
+ * replaced without locking. Each slot holds an immutable entry, so a thread always sees a complete
+ * entry, though it may not see an entry that another thread just stored (in which case it will ask
+ * the wrapped BucketSelector instead).
+ * <p>
+ * Values are compared via {@link Object#equals(Object)}, so the value type must implement equals
+ * and hashCode consistently with the wrapped BucketSelector: values that are equal must be counted
+ * in the same bucket.
+ *
+ * @param <T> The type of value handled by this BucketSelector.
+ * @see BucketingSystem
+ */
+public final class CachingBucketSelector<T> implements BucketSelector<T> {
+  /** The number of slots used by {@link #CachingBucketSelector(BucketSelector)}. */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private static final class Entry<T> {
+    final T value;
+    final int bucketIndex;
+
+    Entry(T value, int bucketIndex) {
+      this.value = value;
+      this.bucketIndex = bucketIndex;
+    }
+  }
+
+  private final BucketSelector<T> wrapped;
+  private final Entry<T>[] entries;
+  private final int mask;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * Create a CachingBucketSelector with {@link #DEFAULT_CAPACITY} slots.
+   *
+   * @param wrapped The BucketSelector that determines which bucket each value is counted in.
+   */
+  public CachingBucketSelector(BucketSelector<T> wrapped) {
+    this(wrapped, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a CachingBucketSelector.
+   *
+   * @param wrapped The BucketSelector that determines which bucket each value is counted in.
+   * @param capacity The number of slots in the cache. This must be a power of 2.
+   */
+  @SuppressWarnings("unchecked")
+  public CachingBucketSelector(BucketSelector<T> wrapped, int capacity) {
+    this.wrapped = requireNonNull(wrapped, "The wrapped parameter is required.");
+    checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of 2.");
+    this.entries = (Entry<T>[]) new Entry<?>[capacity];
+    this.mask = capacity - 1;
+  }
+
+  @Override
+  public int numBuckets() {
+    return wrapped.numBuckets();
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return wrapped.bucketUpperBound(index);
+  }
+
+  @Override
+  public int bucketIndexFor(T value) {
+    checkNotNull(value, "Can't bucket a null value.");
+    int h = value.hashCode() * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    Entry<T> entry = entries[slot];
+    if (entry != null && entry.value.equals(value)) {
+      hitCount.increment();
+      return entry.bucketIndex;
+    }
+    missCount.increment();
+    int bucketIndex = wrapped.bucketIndexFor(value);
+    entries[slot] = new Entry<>(value, bucketIndex);
+    return bucketIndex;
+  }
+
+  /**
+   * Get the number of times that a value's bucket index was found in the cache.
+   *
+   * @return The number of cache hits.
+   */
+  public long hitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Get the number of times that a value's bucket index was not found in the cache, and was
+   * selected by the wrapped BucketSelector.
+   *
+   * @return The number of cache misses.
+   */
+  public long missCount() {
+    return missCount.sum();
+  }
+}
@@ -1,10 +1,17 @@
 package com.pervasivecode.utils.stats.histogram;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A thread-safe Histogram based on the {@link AtomicLongArray} class.
+ * <p>
+ * Each instance also keeps track of which buckets have been counted in since they were last
+ * exported by a {@link HistogramDeltaEncoder}, using one bit per bucket, so that the encoder only
+ * has to read the counts of the buckets that have changed. Since exporting the changed buckets
+ * clears them, only one HistogramDeltaEncoder can be created for each instance.
  *
  * @param <T> The type of value counted by this Histogram.
  * @see BucketingSystem
@@ -12,10 +19,14 @@ import java.util.concurrent.atomic.AtomicLongArray;
 public class ConcurrentHistogram<T> implements MutableHistogram<T> {
   private final AtomicLongArray bucketCounts;
   private final BucketSelector<T> bucketer;
+  // Bit (i % 64) of word (i / 64) is set when bucket i is counted in.
+  private final AtomicLongArray dirtyBuckets;
+  private final AtomicBoolean hasDeltaEncoder = new AtomicBoolean(false);
 
   public ConcurrentHistogram(BucketSelector<T> bucketer) {
     this.bucketer = checkNotNull(bucketer);
     this.bucketCounts = new AtomicLongArray(bucketer.numBuckets());
+    this.dirtyBuckets = new AtomicLongArray((bucketer.numBuckets() + Long.SIZE - 1) / Long.SIZE);
   }
 
   @Override
@@ -38,5 +49,56 @@ public class ConcurrentHistogram<T> implements MutableHistogram<T> {
     checkNotNull(value);
     int bucketIndex = bucketer.bucketIndexFor(value);
     bucketCounts.incrementAndGet(bucketIndex);
+    markDirty(bucketIndex);
+  }
+
+  private void markDirty(int bucketIndex) {
+    int wordIndex = bucketIndex / Long.SIZE;
+    long bit = 1L << bucketIndex;
+    // Only write to the shared word when the bit is not already set, since the bit is usually
+    // already set for frequently counted buckets.
+    if ((dirtyBuckets.get(wordIndex) & bit) == 0) {
+      dirtyBuckets.getAndAccumulate(wordIndex, bit, (word, newBit) -> word | newBit);
+    }
+  }
+
+  /**
+   * Record that a HistogramDeltaEncoder is exporting this histogram's changed buckets.
+   *
+   * @throws IllegalStateException if a HistogramDeltaEncoder was already created for this
+   *         histogram.
+   */
+  void registerDeltaEncoder() {
+    checkState(hasDeltaEncoder.compareAndSet(false, true),
+        "A HistogramDeltaEncoder was already created for this histogram.");
+  }
+
+  /**
+   * Clear the set of buckets that have been counted in, and return the indexes of the buckets that
+   * were in the set, in ascending order.
+   * <p>
+   * A bucket's bit is cleared before its count is read by the caller, and a bucket's bit is set
+   * after its count is incremented, so every increment is reflected either in a count that the
+   * caller reads after this method returns, or in a bit that a later call will return.
+   */
+  int[] drainDirtyBucketIndexes() {
+    int numDirty = 0;
+    long[] words = new long[dirtyBuckets.length()];
+    for (int i = 0; i < words.length; i++) {
+      if (dirtyBuckets.get(i) != 0) {
+        words[i] = dirtyBuckets.getAndSet(i, 0);
+        numDirty += Long.bitCount(words[i]);
+      }
+    }
+    int[] indexes = new int[numDirty];
+    int n = 0;
+    for (int i = 0; i < words.length; i++) {
+      long word = words[i];
+      while (word != 0) {
+        indexes[n++] = i * Long.SIZE + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    return indexes;
   }
 }
@@ -0,0 +1,414 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * A TCP server that receives histogram deltas from many {@link HistogramReporter} clients, and
+ * merges them into one cluster-wide histogram per key.
+ * <p>
+ * All connections are handled by a single thread using a non-blocking {@link Selector}. Each
+ * frame received from a client contains a key (such as the name of an endpoint) and the change in
+ * the count of each bucket that changed since that client's previous frame for the same key, and
+ * is added to the server's histogram for that key. A client that sends a frame that is invalid,
+ * or that has a different number of buckets than the server's BucketingSystem, is disconnected.
+ * <p>
+ * Each client identifies itself with a session ID when it connects, and the server keeps the
+ * cumulative counts that each session has reported for each key. The first frame for each key on
+ * a connection contains the client's full counts rather than changes, and replaces the counts that
+ * the same session reported for that key on any previous connection. That way a client that
+ * reconnects after some of its frames were lost neither loses those changes nor has the changes
+ * that were received counted twice. The sessions of the most recently disconnected
+ * {@value #MAX_DISCONNECTED_SESSIONS} clients are kept, so that they can reconnect; a client
+ * whose session has been forgotten has its full counts added again when it reconnects.
+ * <p>
+ * Stream format: the client's 8-byte big-endian session ID, followed by frames. Frame format: a
+ * 4-byte big-endian length of the rest of the frame, followed by the key's length and UTF-8 bytes,
+ * the number of buckets, the number of changed buckets, and then for each changed bucket, the
+ * difference between its index and the previous changed bucket's index and the change in its
+ * count. All numbers other than the session ID and the frame length are variable-length integers,
+ * and the changes in count are ZigZag-encoded.
+ *
+ * @param <T> The type of value counted by the merged histograms.
+ * @see HistogramReporter
+ */
+public final class HistogramAggregationServer<T> implements Closeable {
+  static final int MAX_FRAME_SIZE = 1 << 20;
+  static final int MAX_KEY_LENGTH = 1024;
+  static final int FRAME_LENGTH_SIZE = Integer.BYTES;
+  static final int SESSION_ID_SIZE = Long.BYTES;
+
+  /**
+   * The maximum number of sessions of disconnected clients whose counts are kept, so that the
+   * clients can reconnect without their counts being added twice.
+   */
+  public static final int MAX_DISCONNECTED_SESSIONS = 1024;
+
+  private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+  private final BucketingSystem<T> bucketingSystem;
+  private final int numBuckets;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final ConcurrentMap<String, AtomicLongArray> countsByKey = new ConcurrentHashMap<>();
+  private final AtomicLong framesReceived = new AtomicLong();
+  // Sessions are only accessed by the selector thread. The disconnected sessions are in the order
+  // in which their clients disconnected, so that the oldest can be forgotten.
+  private final Map<Long, Session> sessions = new HashMap<>();
+  private final LinkedHashMap<Long, Session> disconnectedSessions = new LinkedHashMap<>();
+  private final Thread selectorThread;
+  private volatile boolean closed = false;
+
+  private HistogramAggregationServer(BucketingSystem<T> bucketingSystem, Selector selector,
+      ServerSocketChannel serverChannel) {
+    this.bucketingSystem = bucketingSystem;
+    this.numBuckets = bucketingSystem.numBuckets();
+    this.selector = selector;
+    this.serverChannel = serverChannel;
+    this.selectorThread = new Thread(this::runSelectorLoop, "HistogramAggregationServer");
+    this.selectorThread.setDaemon(true);
+  }
+
+  /**
+   * Start a server that listens for connections on the specified address.
+   *
+   * @param bindAddress The address to listen on. Use port 0 to listen on any available port, and
+   *        then call {@link #localAddress()} to find out which port was chosen.
+   * @param bucketingSystem The buckets of the histograms that clients will report.
+   * @param <T> The type of value counted by the merged histograms.
+   * @return A running server.
+   * @throws IOException if the server could not listen on the specified address.
+   */
+  public static <T> HistogramAggregationServer<T> start(InetSocketAddress bindAddress,
+      BucketingSystem<T> bucketingSystem) throws IOException {
+    requireNonNull(bindAddress, "The bindAddress parameter is required.");
+    requireNonNull(bucketingSystem, "The bucketingSystem parameter is required.");
+    Selector selector = Selector.open();
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.configureBlocking(false);
+      serverChannel.bind(bindAddress);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException ioe) {
+      serverChannel.close();
+      selector.close();
+      throw ioe;
+    }
+    HistogramAggregationServer<T> server =
+        new HistogramAggregationServer<>(bucketingSystem, selector, serverChannel);
+    server.selectorThread.start();
+    return server;
+  }
+
+  /**
+   * Get the address that the server is listening on.
+   *
+   * @return The server's address.
+   * @throws IOException if the address could not be determined.
+   */
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) serverChannel.getLocalAddress();
+  }
+
+  /**
+   * Get the merged histogram for a key.
+   *
+   * @param key The key that clients reported histograms for.
+   * @return The histogram containing all of the counts reported for the key, or
+   *         {@link Optional#empty()} if no counts have been reported for the key.
+   */
+  public Optional<ImmutableHistogram<T>> histogram(String key) {
+    requireNonNull(key, "The key parameter is required.");
+    AtomicLongArray counts = countsByKey.get(key);
+    return (counts == null) ? Optional.empty() : Optional.of(snapshot(counts));
+  }
+
+  /**
+   * Get the merged histograms for all keys.
+   *
+   * @return A map of keys to histograms, sorted by key.
+   */
+  public ImmutableSortedMap<String, ImmutableHistogram<T>> histograms() {
+    ImmutableSortedMap.Builder<String, ImmutableHistogram<T>> histograms =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, AtomicLongArray> entry : countsByKey.entrySet()) {
+      histograms.put(entry.getKey(), snapshot(entry.getValue()));
+    }
+    return histograms.build();
+  }
+
+  private ImmutableHistogram<T> snapshot(AtomicLongArray counts) {
+    long[] snapshot = new long[numBuckets];
+    for (int i = 0; i < numBuckets; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return Histograms.histogramOf(snapshot, bucketingSystem);
+  }
+
+  /**
+   * Get the number of frames that have been received and merged since the server started.
+   *
+   * @return The number of frames received.
+   */
+  public long framesReceived() {
+    return framesReceived.get();
+  }
+
+  /**
+   * Stop accepting connections, disconnect all clients, and stop the server's thread.
+   *
+   * @throws IOException if the server's sockets could not be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the server to stop.");
+    }
+  }
+
+  private void runSelectorLoop() {
+    try {
+      while (!closed) {
+        selector.select();
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isReadable()) {
+            read(key);
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      // The selector itself failed, so the server cannot continue.
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key);
+      }
+      try {
+        selector.close();
+      } catch (IOException ioe) {
+        // Nothing else can be done.
+      }
+    }
+  }
+
+  private void accept() {
+    SocketChannel client = null;
+    try {
+      client = serverChannel.accept();
+      if (client != null) {
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new Connection());
+      }
+    } catch (IOException ioe) {
+      // The client disconnected before its connection could be set up.
+      if (client != null) {
+        try {
+          client.close();
+        } catch (IOException closeFailure) {
+          // The channel is no longer usable either way.
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException ioe) {
+      // The channel is no longer usable either way.
+    }
+  }
+
+  private void disconnect(SelectionKey key) {
+    closeQuietly(key);
+    Session session = ((Connection) key.attachment()).session;
+    if (session != null && session.connection == key) {
+      session.connection = null;
+      disconnectedSessions.put(session.id, session);
+      if (disconnectedSessions.size() > MAX_DISCONNECTED_SESSIONS) {
+        Iterator<Session> oldest = disconnectedSessions.values().iterator();
+        sessions.remove(oldest.next().id);
+        oldest.remove();
+      }
+    }
+  }
+
+  private void startSession(SelectionKey key, Connection connection, long sessionId) {
+    Session session = sessions.get(sessionId);
+    if (session == null) {
+      session = new Session(sessionId);
+      sessions.put(sessionId, session);
+    } else {
+      disconnectedSessions.remove(sessionId);
+      if (session.connection != null) {
+        // The client reconnected before its previous connection was seen to fail. Discard any
+        // frames that are still unread on that connection, since the client will send its full
+        // counts again on this one.
+        closeQuietly(session.connection);
+      }
+    }
+    session.connection = key;
+    connection.session = session;
+  }
+
+  private void read(SelectionKey key) {
+    SocketChannel client = (SocketChannel) key.channel();
+    Connection connection = (Connection) key.attachment();
+    ByteBuffer buffer = connection.buffer;
+    try {
+      if (client.read(buffer) < 0) {
+        disconnect(key);
+        return;
+      }
+      buffer.flip();
+      if (connection.session == null) {
+        if (buffer.remaining() < SESSION_ID_SIZE) {
+          buffer.compact();
+          return;
+        }
+        startSession(key, connection, buffer.getLong());
+      }
+      while (buffer.remaining() >= FRAME_LENGTH_SIZE) {
+        int frameLength = buffer.getInt(buffer.position());
+        if (frameLength < 0 || frameLength > MAX_FRAME_SIZE) {
+          throw new ProtocolException("Invalid frame length: " + frameLength);
+        }
+        int frameSize = FRAME_LENGTH_SIZE + frameLength;
+        if (buffer.remaining() < frameSize) {
+          if (buffer.capacity() < frameSize) {
+            ByteBuffer larger = ByteBuffer.allocate(frameSize);
+            larger.put(buffer);
+            larger.flip();
+            connection.buffer = larger;
+            buffer = larger;
+          }
+          break;
+        }
+        int frameEnd = buffer.position() + frameSize;
+        buffer.position(buffer.position() + FRAME_LENGTH_SIZE);
+        ByteBuffer frame = buffer.slice();
+        frame.limit(frameLength);
+        mergeFrame(connection, frame);
+        buffer.position(frameEnd);
+      }
+      buffer.compact();
+    } catch (IOException | RuntimeException e) {
+      // Either the connection failed, or the client sent an invalid frame.
+      disconnect(key);
+    }
+  }
+
+  private void mergeFrame(Connection connection, ByteBuffer frame) throws ProtocolException {
+    long keyLength = Varints.getUnsigned(frame);
+    if (keyLength > MAX_KEY_LENGTH || keyLength > frame.remaining()) {
+      throw new ProtocolException("Invalid key length: " + keyLength);
+    }
+    byte[] keyBytes = new byte[(int) keyLength];
+    frame.get(keyBytes);
+    long frameNumBuckets = Varints.getUnsigned(frame);
+    if (frameNumBuckets != numBuckets) {
+      throw new ProtocolException(String.format(
+          "The frame has %d buckets, but this server expects %d.", frameNumBuckets, numBuckets));
+    }
+    long numChanged = Varints.getUnsigned(frame);
+    if (numChanged > numBuckets) {
+      throw new ProtocolException("Invalid number of changed buckets: " + numChanged);
+    }
+
+    // Decode the whole frame before merging any of it, so that an invalid frame has no effect.
+    int[] bucketIndexes = new int[(int) numChanged];
+    long[] countChanges = new long[(int) numChanged];
+    long bucketIndex = -1;
+    for (int i = 0; i < numChanged; i++) {
+      bucketIndex += Varints.getUnsigned(frame) + 1;
+      if (bucketIndex < 0 || bucketIndex >= numBuckets) {
+        throw new ProtocolException("Invalid bucket index: " + bucketIndex);
+      }
+      bucketIndexes[i] = (int) bucketIndex;
+      countChanges[i] = Varints.getSigned(frame);
+    }
+
+    String key = new String(keyBytes, UTF_8);
+    AtomicLongArray counts =
+        countsByKey.computeIfAbsent(key, (k) -> new AtomicLongArray(numBuckets));
+    Map<String, long[]> sessionCountsByKey = connection.session.countsByKey;
+    if (connection.keys.add(key)) {
+      // The first frame for this key on this connection contains the client's full counts, which
+      // replace the counts that its session previously reported for the key.
+      long[] previousCounts = sessionCountsByKey.getOrDefault(key, new long[numBuckets]);
+      long[] fullCounts = new long[numBuckets];
+      for (int i = 0; i < bucketIndexes.length; i++) {
+        fullCounts[bucketIndexes[i]] = countChanges[i];
+      }
+      for (int i = 0; i < numBuckets; i++) {
+        if (fullCounts[i] != previousCounts[i]) {
+          counts.addAndGet(i, fullCounts[i] - previousCounts[i]);
+        }
+      }
+      sessionCountsByKey.put(key, fullCounts);
+    } else {
+      long[] sessionCounts = sessionCountsByKey.get(key);
+      for (int i = 0; i < bucketIndexes.length; i++) {
+        counts.addAndGet(bucketIndexes[i], countChanges[i]);
+        sessionCounts[bucketIndexes[i]] += countChanges[i];
+      }
+    }
+    framesReceived.incrementAndGet();
+  }
+
+  // The state of one client connection.
+  private static final class Connection {
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    // Null until the client's session ID has been received.
+    private Session session = null;
+    // The keys that the client has sent a frame for on this connection.
+    private final Set<String> keys = new HashSet<>();
+  }
+
+  // The counts that one client has reported for each key, on all of its connections.
+  private static final class Session {
+    private final long id;
+    // The client's current connection, or null if it is disconnected.
+    private SelectionKey connection = null;
+    private final Map<String, long[]> countsByKey = new HashMap<>();
+
+    Session(long id) {
+      this.id = id;
+    }
+  }
+}
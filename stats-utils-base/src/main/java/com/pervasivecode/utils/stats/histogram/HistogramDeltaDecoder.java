@@ -0,0 +1,113 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static java.util.Objects.requireNonNull;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.TreeMap;
+
+/**
+ * Decode the frames produced by a {@link HistogramDeltaEncoder} into histograms.
+ * <p>
+ * The decoder retains the snapshots that it has decoded, so that it can apply subsequent delta
+ * frames to them. After decoding a frame, the receiver should send the frame's sequence number
+ * (available via {@link #lastDecodedSequence()}) back to the encoder's
+ * {@link HistogramDeltaEncoder#acknowledge(long)} method. If a delta frame cannot be decoded
+ * because the decoder does not have the snapshot that it is based on (for example, because the
+ * receiver was restarted), the receiver should call the encoder's
+ * {@link HistogramDeltaEncoder#requestKeyframe()} method.
+ *
+ * @param <T> The type of value counted by the decoded histograms.
+ */
+public final class HistogramDeltaDecoder<T> {
+  // Only the snapshots that an encoder may still use as the base of a delta frame are needed, but
+  // the decoder does not know which snapshots have been acknowledged, so keep a bounded number.
+  static final int MAX_RETAINED_SNAPSHOTS = 256;
+
+  private final BucketingSystem<T> bucketingSystem;
+  private final int numBuckets;
+  private final TreeMap<Long, long[]> snapshotsBySequence = new TreeMap<>();
+  private long lastDecodedSequence = 0;
+
+  /**
+   * Create a decoder for frames that were encoded from histograms with the specified buckets.
+   *
+   * @param bucketingSystem The buckets of the encoded histograms.
+   */
+  public HistogramDeltaDecoder(BucketingSystem<T> bucketingSystem) {
+    this.bucketingSystem =
+        requireNonNull(bucketingSystem, "The bucketingSystem parameter is required.");
+    this.numBuckets = bucketingSystem.numBuckets();
+  }
+
+  /**
+   * Decode a frame.
+   *
+   * @param frame A buffer containing a frame, positioned at the start of the frame. The buffer's
+   *        position will be advanced past the end of the frame.
+   * @return The histogram snapshot that was encoded in the frame.
+   * @throws IllegalArgumentException if the frame is not valid, or if it was encoded from a
+   *         histogram with a different number of buckets.
+   * @throws IllegalStateException if the frame is a delta frame, and the snapshot that it is based
+   *         on is not available. A keyframe is needed in order to continue decoding frames.
+   */
+  public synchronized ImmutableHistogram<T> decode(ByteBuffer frame) {
+    requireNonNull(frame, "The frame parameter is required.");
+    byte frameType = frame.get();
+    long sequence = Varints.getUnsigned(frame);
+    long frameNumBuckets = Varints.getUnsigned(frame);
+    if (frameNumBuckets != numBuckets) {
+      throw new IllegalArgumentException(String.format(
+          "The frame has %d buckets, but this decoder expects %d.", frameNumBuckets, numBuckets));
+    }
+
+    long[] counts = new long[numBuckets];
+    if (frameType == HistogramDeltaEncoder.KEYFRAME) {
+      for (int i = 0; i < numBuckets; i++) {
+        counts[i] = Varints.getUnsigned(frame);
+      }
+    } else if (frameType == HistogramDeltaEncoder.DELTA_FRAME) {
+      long baseSequence = Varints.getUnsigned(frame);
+      long[] baseCounts = snapshotsBySequence.get(baseSequence);
+      if (baseCounts == null) {
+        throw new IllegalStateException(String.format(
+            "Snapshot %d is not available, so a keyframe is needed.", baseSequence));
+      }
+      byte[] bitmap = new byte[(numBuckets + Byte.SIZE - 1) / Byte.SIZE];
+      frame.get(bitmap);
+      BitSet changed = BitSet.valueOf(bitmap);
+      System.arraycopy(baseCounts, 0, counts, 0, numBuckets);
+      for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+        counts[i] += Varints.getSigned(frame);
+      }
+      // The encoder never uses an older base after it has used a newer one.
+      snapshotsBySequence.headMap(baseSequence, false).clear();
+    } else {
+      throw new IllegalArgumentException("Unknown frame type: " + frameType);
+    }
+
+    snapshotsBySequence.put(sequence, counts);
+    while (snapshotsBySequence.size() > MAX_RETAINED_SNAPSHOTS) {
+      snapshotsBySequence.pollFirstEntry();
+    }
+    lastDecodedSequence = sequence;
+    return Histograms.histogramOf(counts, bucketingSystem);
+  }
+
+  /**
+   * Get the sequence number of the most recently decoded frame, which should be acknowledged to
+   * the encoder.
+   *
+   * @return The sequence number of the most recently decoded frame, or 0 if no frames have been
+   *         decoded.
+   */
+  public synchronized long lastDecodedSequence() {
+    return lastDecodedSequence;
+  }
+
+  /**
+   * Discard all of the retained snapshots, so that only a keyframe can be decoded next.
+   */
+  public synchronized void reset() {
+    snapshotsBySequence.clear();
+  }
+}
@@ -0,0 +1,238 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Encode successive snapshots of a {@link ConcurrentHistogram} compactly, for export to another
+ * process that decodes them with a {@link HistogramDeltaDecoder}.
+ * <p>
+ * Each call to {@link #encode()} produces a frame with a sequence number. Most frames are delta
+ * frames, which contain only the buckets whose counts have changed since the most recent snapshot
+ * that the receiver has {@link #acknowledge(long) acknowledged}, as a bitmap of the changed
+ * buckets followed by the change in each of their counts as a variable-length integer. A full
+ * keyframe containing every bucket count is produced instead when no snapshot has been
+ * acknowledged yet, every {@code keyframeInterval} frames, and after
+ * {@link #requestKeyframe()} is called, so that a receiver that has lost its state can
+ * resynchronize.
+ * <p>
+ * The ConcurrentHistogram keeps track of which buckets have been counted in since the previous
+ * frame, so encoding a frame only reads the counts of those buckets, regardless of how many
+ * buckets the histogram has. Since reading those buckets clears them, only one encoder can be
+ * created for each histogram; a second encoder would take changes that the first one has not
+ * encoded yet, and the first encoder's delta frames would silently leave them out.
+ * <p>
+ * The encoder remembers which buckets changed in each frame that has not been acknowledged, so
+ * that it can update the acknowledged counts when one of them is acknowledged. If the receiver
+ * stops acknowledging frames, only the most recent {@link #MAX_UNACKNOWLEDGED_FRAMES} frames are
+ * remembered individually; the changes of older ones are merged, and acknowledgements of them are
+ * ignored (which is safe, since delta frames are then still based on the previously acknowledged
+ * snapshot).
+ * <p>
+ * Instances are thread-safe, but frames should be sent in the order they were produced.
+ *
+ * @see HistogramDeltaDecoder
+ */
+public final class HistogramDeltaEncoder {
+  static final byte KEYFRAME = 1;
+  static final byte DELTA_FRAME = 2;
+
+  /**
+   * The number of unacknowledged frames whose changes are remembered individually. This is the
+   * number of snapshots that a {@link HistogramDeltaDecoder} retains, since a receiver can't
+   * acknowledge a frame that it no longer has the snapshot of.
+   */
+  public static final int MAX_UNACKNOWLEDGED_FRAMES = HistogramDeltaDecoder.MAX_RETAINED_SNAPSHOTS;
+
+  private final ConcurrentHistogram<?> histogram;
+  private final int numBuckets;
+  private final int keyframeInterval;
+
+  // The most recently read count of each bucket.
+  private final long[] currentCounts;
+  // The counts of the most recent acknowledged snapshot, and its sequence number. Until a snapshot
+  // is acknowledged, these are the counts that were read when the encoder was created.
+  private final long[] acknowledgedCounts;
+  private long acknowledgedSequence = 0;
+  // The buckets that changed in each frame that has not been acknowledged yet, oldest first.
+  private final Deque<FrameChanges> unacknowledgedChanges = new ArrayDeque<>();
+  // The buckets that changed in unacknowledged frames that were removed from unacknowledgedChanges
+  // to keep it from growing without limit, their counts as of the last of those frames, and that
+  // frame's sequence number. The counts array is allocated when a frame is first removed.
+  private final BitSet mergedChanges = new BitSet();
+  private long[] mergedCounts = null;
+  private long mergedSequence = 0;
+
+  private long sequence = 0;
+  private int framesSinceKeyframe = 0;
+  private boolean keyframeRequested = true;
+
+  /**
+   * Create an encoder for snapshots of a histogram.
+   *
+   * @param histogram The histogram whose snapshots will be encoded.
+   * @param keyframeInterval The maximum number of frames between keyframes. For example, a value
+   *        of 60 means that at least one of every 60 frames is a keyframe.
+   * @throws IllegalStateException if an encoder was already created for {@code histogram}.
+   */
+  public HistogramDeltaEncoder(ConcurrentHistogram<?> histogram, int keyframeInterval) {
+    this.histogram = requireNonNull(histogram, "The histogram parameter is required.");
+    checkArgument(keyframeInterval > 0, "keyframeInterval must be greater than 0.");
+    histogram.registerDeltaEncoder();
+    this.numBuckets = histogram.numBuckets();
+    this.keyframeInterval = keyframeInterval;
+    this.currentCounts = new long[numBuckets];
+    this.acknowledgedCounts = new long[numBuckets];
+
+    // Clear the dirty buckets before reading every count, so that no increment is missed.
+    histogram.drainDirtyBucketIndexes();
+    for (int i = 0; i < numBuckets; i++) {
+      currentCounts[i] = histogram.countInBucket(i);
+      acknowledgedCounts[i] = currentCounts[i];
+    }
+  }
+
+  /**
+   * Take a snapshot of the histogram and encode it as a keyframe or a delta frame.
+   *
+   * @return A buffer containing the encoded frame, positioned at the start of the frame.
+   */
+  public synchronized ByteBuffer encode() {
+    int[] changedBuckets = histogram.drainDirtyBucketIndexes();
+    long[] changedCounts = new long[changedBuckets.length];
+    for (int i = 0; i < changedBuckets.length; i++) {
+      changedCounts[i] = histogram.countInBucket(changedBuckets[i]);
+      currentCounts[changedBuckets[i]] = changedCounts[i];
+    }
+    sequence++;
+    unacknowledgedChanges.addLast(new FrameChanges(sequence, changedBuckets, changedCounts));
+    if (unacknowledgedChanges.size() > MAX_UNACKNOWLEDGED_FRAMES) {
+      mergeOldestChanges();
+    }
+
+    boolean isKeyframe = keyframeRequested || acknowledgedSequence == 0
+        || framesSinceKeyframe + 1 >= keyframeInterval;
+    return isKeyframe ? encodeKeyframe() : encodeDeltaFrame();
+  }
+
+  private ByteBuffer encodeKeyframe() {
+    keyframeRequested = false;
+    framesSinceKeyframe = 0;
+    ByteBuffer frame = ByteBuffer.allocate(1 + 2 * Varints.MAX_SIZE
+        + numBuckets * Varints.MAX_SIZE);
+    frame.put(KEYFRAME);
+    Varints.putUnsigned(frame, sequence);
+    Varints.putUnsigned(frame, numBuckets);
+    for (long count : currentCounts) {
+      Varints.putUnsigned(frame, count);
+    }
+    frame.flip();
+    return frame;
+  }
+
+  private ByteBuffer encodeDeltaFrame() {
+    framesSinceKeyframe++;
+    BitSet changed = new BitSet(numBuckets);
+    for (int i = mergedChanges.nextSetBit(0); i >= 0; i = mergedChanges.nextSetBit(i + 1)) {
+      if (currentCounts[i] != acknowledgedCounts[i]) {
+        changed.set(i);
+      }
+    }
+    for (FrameChanges changes : unacknowledgedChanges) {
+      for (int bucketIndex : changes.bucketIndexes) {
+        if (currentCounts[bucketIndex] != acknowledgedCounts[bucketIndex]) {
+          changed.set(bucketIndex);
+        }
+      }
+    }
+
+    byte[] bitmap = new byte[(numBuckets + Byte.SIZE - 1) / Byte.SIZE];
+    byte[] changedBitmapBytes = changed.toByteArray();
+    System.arraycopy(changedBitmapBytes, 0, bitmap, 0, changedBitmapBytes.length);
+
+    ByteBuffer frame = ByteBuffer.allocate(1 + 3 * Varints.MAX_SIZE + bitmap.length
+        + changed.cardinality() * Varints.MAX_SIZE);
+    frame.put(DELTA_FRAME);
+    Varints.putUnsigned(frame, sequence);
+    Varints.putUnsigned(frame, numBuckets);
+    Varints.putUnsigned(frame, acknowledgedSequence);
+    frame.put(bitmap);
+    for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+      Varints.putSigned(frame, currentCounts[i] - acknowledgedCounts[i]);
+    }
+    frame.flip();
+    return frame;
+  }
+
+  private void mergeOldestChanges() {
+    FrameChanges oldest = unacknowledgedChanges.removeFirst();
+    if (mergedCounts == null) {
+      mergedCounts = new long[numBuckets];
+    }
+    for (int i = 0; i < oldest.bucketIndexes.length; i++) {
+      mergedChanges.set(oldest.bucketIndexes[i]);
+      mergedCounts[oldest.bucketIndexes[i]] = oldest.counts[i];
+    }
+    mergedSequence = oldest.sequence;
+  }
+
+  /**
+   * Record that the receiver has decoded the frame with the specified sequence number, so that
+   * subsequent delta frames will only contain changes made after that frame's snapshot.
+   *
+   * @param acknowledgedSequence The sequence number of a frame that was decoded by the receiver.
+   *        Acknowledgements of frames older than a previously acknowledged frame, or older than the
+   *        {@link #MAX_UNACKNOWLEDGED_FRAMES} most recent unacknowledged frames, are ignored.
+   */
+  public synchronized void acknowledge(long acknowledgedSequence) {
+    checkArgument(acknowledgedSequence <= sequence,
+        "Frame %s has not been encoded yet.", acknowledgedSequence);
+    if (mergedSequence > this.acknowledgedSequence) {
+      if (acknowledgedSequence < mergedSequence) {
+        // The counts of that frame's snapshot are no longer known.
+        return;
+      }
+      for (int i = mergedChanges.nextSetBit(0); i >= 0; i = mergedChanges.nextSetBit(i + 1)) {
+        acknowledgedCounts[i] = mergedCounts[i];
+      }
+      mergedChanges.clear();
+      this.acknowledgedSequence = mergedSequence;
+    }
+    while (!unacknowledgedChanges.isEmpty()
+        && unacknowledgedChanges.peekFirst().sequence <= acknowledgedSequence) {
+      FrameChanges changes = unacknowledgedChanges.removeFirst();
+      for (int i = 0; i < changes.bucketIndexes.length; i++) {
+        acknowledgedCounts[changes.bucketIndexes[i]] = changes.counts[i];
+      }
+      this.acknowledgedSequence = changes.sequence;
+    }
+  }
+
+  /**
+   * Make the next frame a keyframe, such as when the receiver reports that it was unable to decode
+   * a delta frame.
+   */
+  public synchronized void requestKeyframe() {
+    keyframeRequested = true;
+  }
+
+  synchronized int numUnacknowledgedFrames() {
+    return unacknowledgedChanges.size();
+  }
+
+  private static final class FrameChanges {
+    final long sequence;
+    final int[] bucketIndexes;
+    final long[] counts;
+
+    FrameChanges(long sequence, int[] bucketIndexes, long[] counts) {
+      this.sequence = sequence;
+      this.bucketIndexes = bucketIndexes;
+      this.counts = counts;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A fixed number of thread-safe histograms that all have the same buckets, and whose bucket counts
+ * are all stored in one contiguous array.
+ * <p>
+ * Each histogram is identified by its index in the family (for example, a tenant number), and
+ * costs only the memory of its bucket counts, rather than the separate counts array, selector
+ * reference, and object header of a {@link ConcurrentHistogram}. Values can be counted via
+ * {@link #countValue(int, Object)}, or via a lightweight {@link MutableHistogram} view of one
+ * histogram obtained from {@link #histogram(int)}.
+ * <p>
+ * The counts of histogram {@code i} occupy elements {@code i * numBuckets()} through
+ * {@code (i + 1) * numBuckets() - 1} of the array, so taking a snapshot of every histogram in the
+ * family, or merging them all into one histogram, is a single linear scan.
+ *
+ * @param <T> The type of value counted by the histograms in this family.
+ */
+public final class HistogramFamily<T> {
+  private final BucketSelector<T> bucketer;
+  private final int numBuckets;
+  private final int numHistograms;
+  private final AtomicLongArray counts;
+
+  /**
+   * Create a family of histograms with all counts set to zero.
+   *
+   * @param bucketer The BucketSelector of all of the histograms.
+   * @param numHistograms The number of histograms in the family. This must be positive, and the
+   *        total number of bucket counts ({@code numHistograms * bucketer.numBuckets()}) cannot
+   *        exceed {@link Integer#MAX_VALUE}.
+   */
+  public HistogramFamily(BucketSelector<T> bucketer, int numHistograms) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    checkArgument(numHistograms > 0, "numHistograms must be positive.");
+    this.numBuckets = bucketer.numBuckets();
+    this.numHistograms = numHistograms;
+    long arenaSize = (long) numHistograms * numBuckets;
+    checkArgument(arenaSize <= Integer.MAX_VALUE,
+        "numHistograms * numBuckets cannot exceed Integer.MAX_VALUE.");
+    this.counts = new AtomicLongArray((int) arenaSize);
+  }
+
+  /**
+   * Get the number of histograms in the family.
+   *
+   * @return The number of histograms.
+   */
+  public int numHistograms() {
+    return numHistograms;
+  }
+
+  /**
+   * Get the number of buckets of each histogram in the family.
+   *
+   * @return The number of buckets.
+   */
+  public int numBuckets() {
+    return numBuckets;
+  }
+
+  /**
+   * Count a value in one of the histograms.
+   *
+   * @param histogramIndex The index of the histogram to count the value in.
+   * @param value The value to count.
+   */
+  public void countValue(int histogramIndex, T value) {
+    checkElementIndex(histogramIndex, numHistograms, "histogramIndex");
+    requireNonNull(value, "The value parameter is required.");
+    counts.incrementAndGet(histogramIndex * numBuckets + bucketer.bucketIndexFor(value));
+  }
+
+  /**
+   * Get the count of one bucket of one of the histograms.
+   *
+   * @param histogramIndex The index of the histogram.
+   * @param bucketIndex The index of the bucket.
+   * @return The count of values in the specified bucket of the specified histogram.
+   */
+  public long countInBucket(int histogramIndex, int bucketIndex) {
+    checkElementIndex(histogramIndex, numHistograms, "histogramIndex");
+    checkElementIndex(bucketIndex, numBuckets, "bucketIndex");
+    return counts.get(histogramIndex * numBuckets + bucketIndex);
+  }
+
+  /**
+   * Get a view of one of the histograms. The view does not copy the counts, so values counted via
+   * the view are counted in the family, and vice versa.
+   *
+   * @param histogramIndex The index of the histogram.
+   * @return A MutableHistogram view of the specified histogram.
+   */
+  public MutableHistogram<T> histogram(int histogramIndex) {
+    checkElementIndex(histogramIndex, numHistograms, "histogramIndex");
+    return new Member(histogramIndex * numBuckets);
+  }
+
+  private final class Member implements MutableHistogram<T> {
+    private final int offset;
+
+    private Member(int offset) {
+      this.offset = offset;
+    }
+
+    @Override
+    public int numBuckets() {
+      return numBuckets;
+    }
+
+    @Override
+    public T bucketUpperBound(int index) {
+      return bucketer.bucketUpperBound(index);
+    }
+
+    @Override
+    public long countInBucket(int index) {
+      checkElementIndex(index, numBuckets, "index");
+      return counts.get(offset + index);
+    }
+
+    @Override
+    public void countValue(T value) {
+      requireNonNull(value, "The value parameter is required.");
+      counts.incrementAndGet(offset + bucketer.bucketIndexFor(value));
+    }
+  }
+
+  /**
+   * Take a snapshot of one of the histograms.
+   *
+   * @param histogramIndex The index of the histogram.
+   * @return An immutable copy of the specified histogram.
+   */
+  public ImmutableHistogram<T> snapshot(int histogramIndex) {
+    checkElementIndex(histogramIndex, numHistograms, "histogramIndex");
+    long[] snapshot = new long[numBuckets];
+    int offset = histogramIndex * numBuckets;
+    for (int i = 0; i < numBuckets; i++) {
+      snapshot[i] = counts.get(offset + i);
+    }
+    return Histograms.histogramOf(snapshot, bucketer);
+  }
+
+  /**
+   * Take a snapshot of every histogram in the family.
+   *
+   * @return Immutable copies of all of the histograms, in index order.
+   */
+  public ImmutableList<ImmutableHistogram<T>> snapshotAll() {
+    long[] allCounts = copyCounts();
+    ImmutableList.Builder<ImmutableHistogram<T>> snapshots = ImmutableList.builder();
+    long[] snapshot = new long[numBuckets];
+    for (int h = 0; h < numHistograms; h++) {
+      System.arraycopy(allCounts, h * numBuckets, snapshot, 0, numBuckets);
+      snapshots.add(Histograms.histogramOf(snapshot, bucketer));
+    }
+    return snapshots.build();
+  }
+
+  /**
+   * Combine all of the histograms in the family into one histogram.
+   *
+   * @return A histogram whose bucket counts are the sums of the corresponding bucket counts of
+   *         every histogram in the family.
+   */
+  public ImmutableHistogram<T> merged() {
+    long[] mergedCounts = new long[numBuckets];
+    int bucketIndex = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      mergedCounts[bucketIndex] += counts.get(i);
+      if (++bucketIndex == numBuckets) {
+        bucketIndex = 0;
+      }
+    }
+    return Histograms.histogramOf(mergedCounts, bucketer);
+  }
+
+  /**
+   * Copy the bucket counts of every histogram in the family into an array, with the counts of
+   * histogram {@code i} at indexes {@code i * numBuckets()} through
+   * {@code (i + 1) * numBuckets() - 1}. This is suitable for exporting all of the counts at once.
+   *
+   * @return A new array containing all of the bucket counts.
+   */
+  public long[] copyCounts() {
+    long[] copy = new long[counts.length()];
+    for (int i = 0; i < copy.length; i++) {
+      copy[i] = counts.get(i);
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,725 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only, on-disk store of timestamped histogram snapshots (such as one latency histogram
+ * per minute), which can efficiently produce a single histogram combining all of the snapshots in
+ * a time range.
+ * <p>
+ * All of the snapshots in a journal must have the same buckets as the BucketingSystem that the
+ * journal was created with, and must be appended in nondecreasing timestamp order. A snapshot's
+ * timestamp is typically the start of the interval during which its values were counted.
+ * <p>
+ * Snapshots are appended to segment files in a compact encoding. {@link #append(Instant,
+ * Histogram)} only copies the snapshot's bucket counts and queues them; a background thread
+ * encodes and writes all of the queued snapshots as a group, forcing them to the storage device
+ * once per group, so the cost of appending a snapshot is very small. Use {@link #flush()} to wait
+ * until all previously appended snapshots have been written.
+ * <p>
+ * The journal keeps a sparse index of the timestamps in each segment, and also maintains a rollup
+ * file containing one pre-merged histogram per hour. {@link #histogramForRange(Instant, Instant)}
+ * uses the hourly rollups for each complete hour in the requested range, and memory-maps and
+ * merges only the segment entries that are needed for the partial hours at either end of the
+ * range (and for any hours that do not have a rollup yet, such as the current hour).
+ * <p>
+ * The sparse indexes are rebuilt when a journal is opened, and any incomplete entry at the end of
+ * a file (due to a crash while it was being written) is discarded. An hour's rollup is only written
+ * after the hour's entries have been forced to the storage device, so a crash can leave an hour
+ * without a rollup (whose entries are then merged individually), but never a rollup of entries
+ * that were lost.
+ *
+ * @param <T> The type of value counted by the histograms in this journal.
+ */
+public final class HistogramJournal<T> implements Closeable {
+  static final long MAX_SEGMENT_SIZE = 64L << 20;
+  static final int INDEX_INTERVAL = 64;
+  static final long ROLLUP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final String HEADER_FILE_NAME = "journal.header";
+  private static final String ROLLUP_FILE_NAME = "rollups.journal";
+  private static final String SEGMENT_FILE_PREFIX = "segment-";
+  private static final String SEGMENT_FILE_SUFFIX = ".journal";
+  private static final int MAGIC = 0x484A4E4C; // "HJNL"
+  private static final int VERSION = 1;
+
+  // Each entry consists of the length of the rest of the entry, the timestamp in milliseconds
+  // since the epoch, and then each bucket count as an unsigned variable-length integer.
+  private static final int ENTRY_LENGTH_SIZE = Integer.BYTES;
+  private static final int ENTRY_TIMESTAMP_SIZE = Long.BYTES;
+
+  private final Path directory;
+  private final BucketingSystem<T> bucketingSystem;
+  private final int numBuckets;
+  private final int maxEntrySize;
+
+  private final Object appendLock = new Object();
+  private final BlockingQueue<PendingEntry> pendingEntries = new LinkedBlockingQueue<>();
+  private long lastAppendedTimestamp; // guarded by appendLock
+  private long appendedSequence = 0; // guarded by appendLock
+  private boolean closed = false; // guarded by appendLock
+
+  private final Object stateLock = new Object();
+  private final List<Segment> segments; // guarded by stateLock
+  private final NavigableMap<Long, Long> rollupOffsets; // guarded by stateLock
+  private long rollupFileSize; // guarded by stateLock
+  private long committedSequence = 0; // guarded by stateLock
+  private volatile Exception writerFailure = null;
+
+  // These fields are only used by the writer thread, after construction.
+  private final Thread writer;
+  private FileChannel segmentChannel = null;
+  private long segmentWritePosition;
+  private final FileChannel rollupChannel;
+  private long rollupWritePosition;
+  private long rollupStartMillis;
+  private final long[] rollupCounts;
+  private ByteBuffer encodeBuffer;
+
+  private HistogramJournal(Path directory, BucketingSystem<T> bucketingSystem) throws IOException {
+    this.directory = directory;
+    this.bucketingSystem = bucketingSystem;
+    this.numBuckets = bucketingSystem.numBuckets();
+    this.maxEntrySize = ENTRY_LENGTH_SIZE + ENTRY_TIMESTAMP_SIZE + numBuckets * Varints.MAX_SIZE;
+    this.encodeBuffer = ByteBuffer.allocate(maxEntrySize * 16);
+
+    this.segments = recoverSegments();
+    this.rollupOffsets = new TreeMap<>();
+    Path rollupFile = directory.resolve(ROLLUP_FILE_NAME);
+    this.rollupFileSize = recoverEntries(rollupFile, (timestamp, offset, entrySize) -> {
+      rollupOffsets.put(timestamp, offset);
+    });
+    this.rollupWritePosition = rollupFileSize;
+    this.rollupChannel = FileChannel.open(rollupFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+
+    // Resume accumulating the rollup of the most recent hour, from the entries that it has. That
+    // hour can't have a valid rollup yet, since its rollup is only written after an entry of a
+    // later hour, so a rollup of it can only describe entries that were lost, and is discarded.
+    this.rollupCounts = new long[numBuckets];
+    this.rollupStartMillis = Long.MIN_VALUE;
+    this.lastAppendedTimestamp = Long.MIN_VALUE;
+    if (!segments.isEmpty()) {
+      Segment lastSegment = segments.get(segments.size() - 1);
+      this.lastAppendedTimestamp = lastSegment.lastTimestamp;
+      this.rollupStartMillis = rollupStartFor(lastAppendedTimestamp);
+      rollupOffsets.remove(rollupStartMillis);
+      List<ScanRange> ranges = new ArrayList<>();
+      addScanRanges(rollupStartMillis, rollupStartMillis + ROLLUP_INTERVAL_MILLIS, ranges);
+      scan(ranges, rollupCounts);
+      this.segmentChannel = FileChannel.open(lastSegment.path, StandardOpenOption.WRITE);
+      this.segmentWritePosition = lastSegment.size;
+    }
+
+    this.writer = new Thread(this::runWriter, "HistogramJournal writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Open a journal, creating it if it does not exist yet.
+   *
+   * @param directory The directory containing the journal's files. This will be created if it
+   *        does not exist.
+   * @param bucketingSystem The buckets of the histograms in the journal. If the journal already
+   *        exists, this must have the same number of buckets and bucket upper bounds as the
+   *        BucketingSystem that the journal was created with.
+   * @param <T> The type of value counted by the histograms in this journal.
+   * @return A HistogramJournal that is ready for appending and querying.
+   * @throws IOException if the journal could not be created or read.
+   * @throws IllegalArgumentException if the journal was created with different buckets than
+   *         {@code bucketingSystem}.
+   */
+  public static <T> HistogramJournal<T> open(Path directory, BucketingSystem<T> bucketingSystem)
+      throws IOException {
+    requireNonNull(directory, "The directory parameter is required.");
+    requireNonNull(bucketingSystem, "The bucketingSystem parameter is required.");
+    Files.createDirectories(directory);
+    checkOrWriteHeader(directory.resolve(HEADER_FILE_NAME), bucketingSystem);
+    return new HistogramJournal<>(directory, bucketingSystem);
+  }
+
+  private static void checkOrWriteHeader(Path headerFile, BucketingSystem<?> bucketingSystem)
+      throws IOException {
+    byte[] upperBoundsText =
+        MappedFileHistogram.upperBoundsText(bucketingSystem).getBytes(UTF_8);
+    ByteBuffer expectedHeader = ByteBuffer.allocate(4 * Integer.BYTES + upperBoundsText.length);
+    expectedHeader.putInt(MAGIC).putInt(VERSION).putInt(bucketingSystem.numBuckets())
+        .putInt(upperBoundsText.length).put(upperBoundsText);
+
+    if (!Files.exists(headerFile)) {
+      Files.write(headerFile, expectedHeader.array());
+      return;
+    }
+    ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(headerFile));
+    if (header.remaining() < 2 * Integer.BYTES || header.getInt(0) != MAGIC) {
+      throw new IOException(headerFile + " is not a histogram journal header.");
+    }
+    if (header.getInt(Integer.BYTES) != VERSION) {
+      throw new IOException(String.format("Unsupported histogram journal version %d in %s.",
+          header.getInt(Integer.BYTES), headerFile));
+    }
+    if (!header.equals(ByteBuffer.wrap(expectedHeader.array()))) {
+      throw new IllegalArgumentException("The journal in " + headerFile.getParent()
+          + " has different buckets than the bucketingSystem.");
+    }
+  }
+
+  /**
+   * Append a histogram snapshot to the journal. The snapshot's counts are copied, and will be
+   * written to disk by a background thread.
+   *
+   * @param timestamp The time associated with the snapshot. This cannot be earlier than the
+   *        timestamp of the previously appended snapshot.
+   * @param histogram The snapshot to append. This must have the same number of buckets as the
+   *        journal's BucketingSystem.
+   * @throws IllegalStateException if the journal has been closed, or if an earlier write failed.
+   */
+  public void append(Instant timestamp, Histogram<T> histogram) {
+    requireNonNull(timestamp, "The timestamp parameter is required.");
+    requireNonNull(histogram, "The histogram parameter is required.");
+    checkArgument(histogram.numBuckets() == numBuckets,
+        "The histogram must have %s buckets, but it has %s.", numBuckets, histogram.numBuckets());
+    long timestampMillis = timestamp.toEpochMilli();
+    long[] counts = new long[numBuckets];
+    for (int i = 0; i < numBuckets; i++) {
+      counts[i] = histogram.countInBucket(i);
+      checkArgument(counts[i] >= 0, "Bucket counts cannot be negative.");
+    }
+
+    synchronized (appendLock) {
+      checkState(!closed, "The journal has been closed.");
+      checkWriterHealthy();
+      checkArgument(timestampMillis >= lastAppendedTimestamp,
+          "Snapshots must be appended in timestamp order.");
+      lastAppendedTimestamp = timestampMillis;
+      appendedSequence++;
+      pendingEntries.add(new PendingEntry(appendedSequence, timestampMillis, counts));
+    }
+  }
+
+  private void checkWriterHealthy() {
+    Exception failure = writerFailure;
+    if (failure != null) {
+      throw new IllegalStateException("An earlier write to the journal failed.", failure);
+    }
+  }
+
+  /**
+   * Wait until all of the snapshots that were appended before this method was called have been
+   * written and forced to the storage device.
+   *
+   * @throws IOException if the snapshots could not be written.
+   */
+  public void flush() throws IOException {
+    long targetSequence;
+    synchronized (appendLock) {
+      targetSequence = appendedSequence;
+    }
+    waitForCommit(targetSequence);
+  }
+
+  private void waitForCommit(long targetSequence) throws IOException {
+    synchronized (stateLock) {
+      while (committedSequence < targetSequence) {
+        Exception failure = writerFailure;
+        if (failure != null) {
+          throw new IOException("Writing to the journal failed.", failure);
+        }
+        try {
+          stateLock.wait();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the journal writer.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Make a histogram that combines the counts of all of the snapshots whose timestamps are in the
+   * specified range. Only snapshots that have been written (see {@link #flush()}) are included.
+   *
+   * @param start The start of the time range (inclusive).
+   * @param end The end of the time range (exclusive).
+   * @return A histogram containing the total count for each bucket across all of the snapshots in
+   *         the range.
+   * @throws IOException if the journal's files could not be read.
+   */
+  public ImmutableHistogram<T> histogramForRange(Instant start, Instant end) throws IOException {
+    requireNonNull(start, "The start parameter is required.");
+    requireNonNull(end, "The end parameter is required.");
+    long startMillis = start.toEpochMilli();
+    long endMillis = end.toEpochMilli();
+    checkArgument(startMillis <= endMillis, "start cannot be after end.");
+
+    List<ScanRange> scanRanges = new ArrayList<>();
+    List<Long> rollupsToRead = new ArrayList<>();
+    long rollupLimit;
+    synchronized (stateLock) {
+      long rawStart = startMillis;
+      long firstWholeRollup = rollupStartFor(startMillis);
+      if (firstWholeRollup < startMillis) {
+        firstWholeRollup += ROLLUP_INTERVAL_MILLIS;
+      }
+      long endOfWholeRollups = rollupStartFor(endMillis);
+      if (firstWholeRollup < endOfWholeRollups) {
+        for (Map.Entry<Long, Long> rollup : rollupOffsets
+            .subMap(firstWholeRollup, true, endOfWholeRollups, false).entrySet()) {
+          addScanRanges(rawStart, rollup.getKey(), scanRanges);
+          rollupsToRead.add(rollup.getValue());
+          rawStart = rollup.getKey() + ROLLUP_INTERVAL_MILLIS;
+        }
+      }
+      addScanRanges(rawStart, endMillis, scanRanges);
+      rollupLimit = rollupFileSize;
+    }
+
+    long[] counts = new long[numBuckets];
+    scan(scanRanges, counts);
+    if (!rollupsToRead.isEmpty()) {
+      long firstOffset = rollupsToRead.get(0);
+      try (FileChannel channel =
+          FileChannel.open(directory.resolve(ROLLUP_FILE_NAME), StandardOpenOption.READ)) {
+        MappedByteBuffer mapped =
+            channel.map(MapMode.READ_ONLY, firstOffset, rollupLimit - firstOffset);
+        for (long offset : rollupsToRead) {
+          int position = (int) (offset - firstOffset);
+          addEntryCounts(mapped, position + ENTRY_LENGTH_SIZE + ENTRY_TIMESTAMP_SIZE, counts);
+        }
+      }
+    }
+    return Histograms.histogramOf(counts, bucketingSystem);
+  }
+
+  /**
+   * Stop accepting snapshots, wait for all of the previously appended snapshots to be written, and
+   * close the journal's files.
+   *
+   * @throws IOException if the pending snapshots could not be written, or the files could not be
+   *         closed.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (appendLock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      appendedSequence++;
+      pendingEntries.add(new PendingEntry(appendedSequence, Long.MAX_VALUE, null));
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the journal writer.");
+    }
+    try {
+      if (writerFailure != null) {
+        throw new IOException("Writing to the journal failed.", writerFailure);
+      }
+    } finally {
+      rollupChannel.close();
+      if (segmentChannel != null) {
+        segmentChannel.close();
+      }
+    }
+  }
+
+  // --------------------------------------------------------------------------------------------
+  // Writing
+
+  private void runWriter() {
+    List<PendingEntry> batch = new ArrayList<>();
+    boolean stopping = false;
+    try {
+      while (!stopping) {
+        batch.add(pendingEntries.take());
+        pendingEntries.drainTo(batch);
+        // Nothing can be appended after the end-of-journal marker, so it is always last.
+        stopping = (batch.get(batch.size() - 1).counts == null);
+        commit(batch);
+        batch.clear();
+      }
+    } catch (IOException | RuntimeException | InterruptedException e) {
+      synchronized (stateLock) {
+        writerFailure = e;
+        stateLock.notifyAll();
+      }
+    }
+  }
+
+  private void commit(List<PendingEntry> batch) throws IOException {
+    List<EntryLocation> newEntries = new ArrayList<>(batch.size());
+    List<Segment> newSegments = new ArrayList<>();
+    Map<Long, long[]> completedRollups = new TreeMap<>();
+    Map<Long, Long> newRollups = new TreeMap<>();
+
+    Segment currentSegment;
+    synchronized (stateLock) {
+      currentSegment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+    encodeBuffer.clear();
+    for (PendingEntry entry : batch) {
+      if (entry.counts == null) {
+        continue;
+      }
+      long entryRollupStart = rollupStartFor(entry.timestampMillis);
+      if (entryRollupStart != rollupStartMillis) {
+        if (rollupStartMillis != Long.MIN_VALUE) {
+          completedRollups.put(rollupStartMillis, rollupCounts.clone());
+        }
+        Arrays.fill(rollupCounts, 0L);
+        rollupStartMillis = entryRollupStart;
+      }
+      for (int i = 0; i < numBuckets; i++) {
+        rollupCounts[i] += entry.counts[i];
+      }
+
+      if (currentSegment == null
+          || segmentWritePosition + encodeBuffer.position() + maxEntrySize > MAX_SEGMENT_SIZE) {
+        writeEncodedEntries();
+        currentSegment = startSegment(currentSegment);
+        newSegments.add(currentSegment);
+      }
+      if (encodeBuffer.remaining() < maxEntrySize) {
+        encodeBuffer.flip();
+        encodeBuffer = ByteBuffer.allocate(encodeBuffer.capacity() * 2).put(encodeBuffer);
+      }
+      long offset = segmentWritePosition + encodeBuffer.position();
+      int entrySize = encodeEntry(entry.timestampMillis, entry.counts, encodeBuffer);
+      newEntries.add(new EntryLocation(currentSegment, entry.timestampMillis, offset, entrySize));
+    }
+    writeEncodedEntries();
+    // The rollups are written after their hours' entries have been forced to the storage device,
+    // so that a crash can't leave a rollup of entries that were not written.
+    for (Map.Entry<Long, long[]> rollup : completedRollups.entrySet()) {
+      newRollups.put(rollup.getKey(), rollupWritePosition);
+      writeRollup(rollup.getKey(), rollup.getValue());
+    }
+    if (!newRollups.isEmpty()) {
+      rollupChannel.force(false);
+    }
+
+    synchronized (stateLock) {
+      segments.addAll(newSegments);
+      for (EntryLocation location : newEntries) {
+        location.segment.addEntry(location.timestampMillis, location.offset, location.entrySize);
+      }
+      rollupOffsets.putAll(newRollups);
+      rollupFileSize = rollupWritePosition;
+      committedSequence = batch.get(batch.size() - 1).sequence;
+      stateLock.notifyAll();
+    }
+  }
+
+  /**
+   * Write a completed rollup to the end of the rollup file.
+   */
+  private void writeRollup(long startMillis, long[] counts) throws IOException {
+    ByteBuffer encodedRollup = ByteBuffer.allocate(maxEntrySize);
+    encodeEntry(startMillis, counts, encodedRollup);
+    encodedRollup.flip();
+    while (encodedRollup.hasRemaining()) {
+      rollupWritePosition += rollupChannel.write(encodedRollup, rollupWritePosition);
+    }
+  }
+
+  /**
+   * Write the entries in encodeBuffer to the end of the current segment, force them to the storage
+   * device, and clear encodeBuffer.
+   */
+  private void writeEncodedEntries() throws IOException {
+    encodeBuffer.flip();
+    if (encodeBuffer.hasRemaining()) {
+      while (encodeBuffer.hasRemaining()) {
+        segmentWritePosition += segmentChannel.write(encodeBuffer, segmentWritePosition);
+      }
+      segmentChannel.force(false);
+    }
+    encodeBuffer.clear();
+  }
+
+  private Segment startSegment(Segment previousSegment) throws IOException {
+    if (segmentChannel != null) {
+      segmentChannel.close();
+    }
+    int segmentNumber = (previousSegment == null) ? 0 : previousSegment.segmentNumber + 1;
+    Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_FILE_PREFIX, segmentNumber,
+        SEGMENT_FILE_SUFFIX));
+    segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+    segmentWritePosition = 0;
+    return new Segment(path, segmentNumber);
+  }
+
+  private int encodeEntry(long timestampMillis, long[] counts, ByteBuffer buffer) {
+    int start = buffer.position();
+    buffer.putInt(0);
+    buffer.putLong(timestampMillis);
+    for (long count : counts) {
+      Varints.putUnsigned(buffer, count);
+    }
+    int entrySize = buffer.position() - start;
+    buffer.putInt(start, entrySize - ENTRY_LENGTH_SIZE);
+    return entrySize;
+  }
+
+  // --------------------------------------------------------------------------------------------
+  // Reading
+
+  private static long rollupStartFor(long timestampMillis) {
+    return Math.floorDiv(timestampMillis, ROLLUP_INTERVAL_MILLIS) * ROLLUP_INTERVAL_MILLIS;
+  }
+
+  /**
+   * Add the ranges of segment entries that must be scanned to find the entries with timestamps in
+   * the range [startMillis, endMillis). The caller must hold stateLock.
+   */
+  private void addScanRanges(long startMillis, long endMillis, List<ScanRange> ranges) {
+    if (startMillis >= endMillis) {
+      return;
+    }
+    for (Segment segment : segments) {
+      if (segment.indexSize == 0 || segment.lastTimestamp < startMillis
+          || segment.indexTimestamps[0] >= endMillis) {
+        continue;
+      }
+      long startOffset = segment.scanStartOffset(startMillis);
+      long endOffset = segment.scanEndOffset(endMillis);
+      if (startOffset < endOffset) {
+        ranges.add(new ScanRange(segment.path, startOffset, endOffset, startMillis, endMillis));
+      }
+    }
+  }
+
+  private void scan(List<ScanRange> ranges, long[] counts) throws IOException {
+    for (ScanRange range : ranges) {
+      try (FileChannel channel = FileChannel.open(range.path, StandardOpenOption.READ)) {
+        MappedByteBuffer mapped =
+            channel.map(MapMode.READ_ONLY, range.startOffset, range.endOffset - range.startOffset);
+        int position = 0;
+        while (position < mapped.limit()) {
+          int entryLength = mapped.getInt(position);
+          long timestamp = mapped.getLong(position + ENTRY_LENGTH_SIZE);
+          if (timestamp >= range.endMillis) {
+            break;
+          }
+          if (timestamp >= range.startMillis) {
+            addEntryCounts(mapped, position + ENTRY_LENGTH_SIZE + ENTRY_TIMESTAMP_SIZE, counts);
+          }
+          position += ENTRY_LENGTH_SIZE + entryLength;
+        }
+      }
+    }
+  }
+
+  private void addEntryCounts(ByteBuffer buffer, int position, long[] counts) {
+    buffer.position(position);
+    for (int i = 0; i < numBuckets; i++) {
+      counts[i] += Varints.getUnsigned(buffer);
+    }
+  }
+
+  private List<Segment> recoverSegments() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+      stream.forEach(paths::add);
+    }
+    paths.sort(null);
+
+    List<Segment> recovered = new ArrayList<>();
+    for (Path path : paths) {
+      String fileName = path.getFileName().toString();
+      int segmentNumber = Integer.parseInt(fileName.substring(SEGMENT_FILE_PREFIX.length(),
+          fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+      Segment segment = new Segment(path, segmentNumber);
+      recoverEntries(path, segment::addEntry);
+      if (segment.indexSize == 0) {
+        Files.delete(path);
+      } else {
+        recovered.add(segment);
+      }
+    }
+    return recovered;
+  }
+
+  @FunctionalInterface
+  private interface EntryVisitor {
+    void visit(long timestampMillis, long offset, int entrySize);
+  }
+
+  /**
+   * Visit each complete entry in the file, and truncate any incomplete entry at the end of it.
+   *
+   * @return The size of the file after truncation.
+   */
+  private long recoverEntries(Path path, EntryVisitor visitor) throws IOException {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      long fileSize = channel.size();
+      if (fileSize == 0) {
+        return 0;
+      }
+      MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, fileSize);
+      int minEntryLength = ENTRY_TIMESTAMP_SIZE + numBuckets;
+      int position = 0;
+      while (position + ENTRY_LENGTH_SIZE <= fileSize) {
+        int entryLength = mapped.getInt(position);
+        int entrySize = ENTRY_LENGTH_SIZE + entryLength;
+        if (entryLength < minEntryLength || entryLength > maxEntrySize
+            || position + (long) entrySize > fileSize) {
+          break;
+        }
+        visitor.visit(mapped.getLong(position + ENTRY_LENGTH_SIZE), position, entrySize);
+        position += entrySize;
+      }
+      if (position < fileSize) {
+        channel.truncate(position);
+      }
+      return position;
+    }
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  private static final class PendingEntry {
+    final long sequence;
+    final long timestampMillis;
+    final long[] counts;
+
+    PendingEntry(long sequence, long timestampMillis, long[] counts) {
+      this.sequence = sequence;
+      this.timestampMillis = timestampMillis;
+      this.counts = counts;
+    }
+  }
+
+  private static final class EntryLocation {
+    final Segment segment;
+    final long timestampMillis;
+    final long offset;
+    final int entrySize;
+
+    EntryLocation(Segment segment, long timestampMillis, long offset, int entrySize) {
+      this.segment = segment;
+      this.timestampMillis = timestampMillis;
+      this.offset = offset;
+      this.entrySize = entrySize;
+    }
+  }
+
+  private static final class ScanRange {
+    final Path path;
+    final long startOffset;
+    final long endOffset;
+    final long startMillis;
+    final long endMillis;
+
+    ScanRange(Path path, long startOffset, long endOffset, long startMillis, long endMillis) {
+      this.path = path;
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+    }
+  }
+
+  /**
+   * A segment file, with a sparse index containing the timestamp and offset of every
+   * {@link #INDEX_INTERVAL}th entry. Instances are only modified by the writer thread, while
+   * holding stateLock.
+   */
+  private static final class Segment {
+    final Path path;
+    final int segmentNumber;
+    long size = 0;
+    long lastTimestamp = Long.MIN_VALUE;
+    long[] indexTimestamps = new long[16];
+    long[] indexOffsets = new long[16];
+    int indexSize = 0;
+    int entriesSinceIndexPoint = 0;
+
+    Segment(Path path, int segmentNumber) {
+      this.path = path;
+      this.segmentNumber = segmentNumber;
+    }
+
+    void addEntry(long timestampMillis, long offset, int entrySize) {
+      if (indexSize == 0 || entriesSinceIndexPoint >= INDEX_INTERVAL) {
+        if (indexSize == indexTimestamps.length) {
+          indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+          indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+        }
+        indexTimestamps[indexSize] = timestampMillis;
+        indexOffsets[indexSize] = offset;
+        indexSize++;
+        entriesSinceIndexPoint = 0;
+      }
+      entriesSinceIndexPoint++;
+      lastTimestamp = timestampMillis;
+      size = offset + entrySize;
+    }
+
+    /** Find the first index point whose timestamp is at least timestampMillis. */
+    private int firstIndexPointAtOrAfter(long timestampMillis) {
+      int low = 0;
+      int high = indexSize;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (indexTimestamps[mid] < timestampMillis) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Get the offset of an entry at or before the first entry with a timestamp of at least
+     * startMillis.
+     */
+    long scanStartOffset(long startMillis) {
+      int indexPoint = firstIndexPointAtOrAfter(startMillis);
+      return indexOffsets[Math.max(0, indexPoint - 1)];
+    }
+
+    /**
+     * Get an offset at or after the end of the last entry with a timestamp before endMillis.
+     */
+    long scanEndOffset(long endMillis) {
+      int indexPoint = firstIndexPointAtOrAfter(endMillis);
+      return (indexPoint < indexSize) ? indexOffsets[indexPoint] : size;
+    }
+  }
+}
@@ -0,0 +1,428 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.common.collect.ImmutableList;
+import com.pervasivecode.utils.stats.CoarseTimeSource;
+import com.pervasivecode.utils.time.TimeSource;
+
+/**
+ * A thread-safe collection of histograms, each identified by a name and a {@link LabelSet}, such
+ * as the request latency of each endpoint of each tenant of a service.
+ * <p>
+ * Looking up a histogram via {@link #histogram(String, LabelSet)} does not lock or allocate
+ * anything once the histogram exists, but callers that record into the same histogram repeatedly
+ * should keep the returned {@link RegisteredHistogram} and record into it directly.
+ * <p>
+ * The number of histograms is limited, so that a large number of distinct names or label values
+ * (for example, one per user rather than one per tenant) cannot exhaust the heap. Once the limit is
+ * reached, lookups of new name and label combinations return the registry's one overflow
+ * histogram, whose name is {@link #OVERFLOW_NAME} and whose labels are {@link #OVERFLOW_LABELS}.
+ * The overflow histogram is created along with the registry and is never evicted, so lookups
+ * beyond the limit don't allocate or modify anything.
+ * <p>
+ * Histograms that nobody has recorded into for the idle timeout are removed by
+ * {@link #evictIdleHistograms()}, which should be called periodically. A RegisteredHistogram that
+ * is recorded into after it was evicted is added back to the registry. (A value that is recorded
+ * at the same moment that its histogram is evicted may be lost.)
+ *
+ * @param <T> The type of value counted by the histograms.
+ */
+public final class HistogramRegistry<T> {
+  /** The name of the histogram that counts values for new histograms once the limit is hit. */
+  public static final String OVERFLOW_NAME = "overflow";
+
+  /** The labels of the histogram that counts values for new histograms once the limit is hit. */
+  public static final LabelSet OVERFLOW_LABELS = LabelSet.of("overflow", "true");
+
+  // Approximate size of a RegisteredHistogram, its AtomicLongArray, and its map entry, excluding
+  // the counts themselves, in bytes.
+  private static final int HISTOGRAM_OVERHEAD_BYTES = 128;
+
+  private final BucketSelector<T> bucketer;
+  private final int maxHistograms;
+  private final long idleTimeoutMillis;
+  private final TimeSource timeSource;
+  private final ConcurrentMap<String, ConcurrentMap<LabelSet, RegisteredHistogram<T>>> byName =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger numHistograms = new AtomicInteger();
+  private final AtomicLong retainedBytes = new AtomicLong();
+  private final RegisteredHistogram<T> overflowHistogram;
+  // Set when the overflow histogram is first returned, after which it is included in histograms()
+  // and retainedBytes().
+  private final AtomicBoolean overflowInUse = new AtomicBoolean();
+
+  private HistogramRegistry(Builder<T> builder) {
+    this.bucketer = builder.bucketer;
+    this.maxHistograms = builder.maxHistograms;
+    this.idleTimeoutMillis = builder.idleTimeout.toMillis();
+    this.timeSource = builder.timeSource;
+    this.overflowHistogram =
+        new RegisteredHistogram<>(this, OVERFLOW_NAME, OVERFLOW_LABELS, currentTimeMillis());
+  }
+
+  /**
+   * Obtain a builder that allows construction of a new instance.
+   *
+   * @param bucketer The BucketSelector of all of the histograms in the registry.
+   * @param timeSource The source of time used to determine which histograms are idle.
+   * @param <T> The type of value counted by the histograms.
+   * @return A new Builder instance with the default limit and idle timeout.
+   */
+  public static <T> Builder<T> builder(BucketSelector<T> bucketer, TimeSource timeSource) {
+    return new Builder<>(requireNonNull(bucketer, "The bucketer parameter is required."),
+        requireNonNull(timeSource, "The timeSource parameter is required."));
+  }
+
+  /**
+   * An object that can be used to create a {@link HistogramRegistry}.
+   *
+   * @param <T> The type of value counted by the histograms.
+   */
+  public static final class Builder<T> {
+    private final BucketSelector<T> bucketer;
+    private final TimeSource timeSource;
+    private int maxHistograms = 10_000;
+    private Duration idleTimeout = Duration.ofMinutes(15);
+
+    private Builder(BucketSelector<T> bucketer, TimeSource timeSource) {
+      this.bucketer = bucketer;
+      this.timeSource = timeSource;
+    }
+
+    /**
+     * Set the maximum number of histograms, not including overflow histograms. The default is
+     * 10,000.
+     *
+     * @param maxHistograms The maximum number of histograms. This must be positive.
+     * @return This builder.
+     */
+    public Builder<T> setMaxHistograms(int maxHistograms) {
+      checkArgument(maxHistograms > 0, "maxHistograms must be positive.");
+      this.maxHistograms = maxHistograms;
+      return this;
+    }
+
+    /**
+     * Set how long a histogram can go without any values being recorded into it before it is
+     * evicted by {@link HistogramRegistry#evictIdleHistograms()}. The default is 15 minutes.
+     *
+     * @param idleTimeout The idle timeout. This must be positive.
+     * @return This builder.
+     */
+    public Builder<T> setIdleTimeout(Duration idleTimeout) {
+      requireNonNull(idleTimeout, "The idleTimeout parameter is required.");
+      checkArgument(!idleTimeout.isNegative() && !idleTimeout.isZero(),
+          "idleTimeout must be positive.");
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
+    /**
+     * Create a registry using the current settings of this builder.
+     *
+     * @return A new, empty HistogramRegistry.
+     */
+    public HistogramRegistry<T> build() {
+      return new HistogramRegistry<>(this);
+    }
+  }
+
+  /**
+   * A histogram in a {@link HistogramRegistry}.
+   *
+   * @param <T> The type of value counted by the histogram.
+   */
+  public static final class RegisteredHistogram<T> implements MutableHistogram<T> {
+    private final HistogramRegistry<T> registry;
+    private final String name;
+    private final LabelSet labels;
+    private final AtomicLongArray bucketCounts;
+    private final long retainedBytes;
+
+    // Set when a value is recorded, and cleared by evictIdleHistograms. Only read (not written) by
+    // countValue when it is already set, so that frequent recording doesn't contend on it.
+    private volatile boolean recordedSinceLastSweep = false;
+    private volatile long lastActiveMillis;
+    private volatile boolean evicted = false;
+
+    private RegisteredHistogram(HistogramRegistry<T> registry, String name, LabelSet labels,
+        long nowMillis) {
+      this.registry = registry;
+      this.name = name;
+      this.labels = labels;
+      this.bucketCounts = new AtomicLongArray(registry.bucketer.numBuckets());
+      this.retainedBytes = HISTOGRAM_OVERHEAD_BYTES + (long) Long.BYTES * bucketCounts.length()
+          + labels.retainedBytes();
+      this.lastActiveMillis = nowMillis;
+    }
+
+    /**
+     * Get the name of this histogram.
+     *
+     * @return The histogram's name.
+     */
+    public String name() {
+      return name;
+    }
+
+    /**
+     * Get the labels of this histogram.
+     *
+     * @return The histogram's labels.
+     */
+    public LabelSet labels() {
+      return labels;
+    }
+
+    /**
+     * Get the approximate number of bytes of heap memory retained by this histogram, including its
+     * bucket counts, its labels, and its entry in the registry.
+     *
+     * @return The approximate size of this histogram.
+     */
+    public long retainedBytes() {
+      return retainedBytes;
+    }
+
+    @Override
+    public int numBuckets() {
+      return bucketCounts.length();
+    }
+
+    @Override
+    public T bucketUpperBound(int index) {
+      return registry.bucketer.bucketUpperBound(index);
+    }
+
+    @Override
+    public long countInBucket(int index) {
+      return bucketCounts.get(index);
+    }
+
+    @Override
+    public void countValue(T value) {
+      bucketCounts.incrementAndGet(registry.bucketer.bucketIndexFor(value));
+      if (!recordedSinceLastSweep) {
+        recordedSinceLastSweep = true;
+      }
+      if (evicted) {
+        registry.reinstate(this);
+      }
+    }
+  }
+
+  /**
+   * Get the histogram with no labels that has the specified name, creating it if necessary.
+   *
+   * @param name The name of the histogram.
+   * @return The histogram, or the overflow histogram if the registry is full.
+   */
+  public RegisteredHistogram<T> histogram(String name) {
+    return histogram(name, LabelSet.empty());
+  }
+
+  /**
+   * Get the histogram with the specified name and labels, creating it if necessary.
+   *
+   * @param name The name of the histogram.
+   * @param labels The labels of the histogram.
+   * @return The histogram, or the overflow histogram if the registry is full.
+   */
+  public RegisteredHistogram<T> histogram(String name, LabelSet labels) {
+    ConcurrentMap<LabelSet, RegisteredHistogram<T>> histograms =
+        byName.get(requireNonNull(name, "The name parameter is required."));
+    if (histograms != null) {
+      RegisteredHistogram<T> histogram =
+          histograms.get(requireNonNull(labels, "The labels parameter is required."));
+      if (histogram != null) {
+        return histogram;
+      }
+    }
+    return register(name, labels);
+  }
+
+  private RegisteredHistogram<T> register(String name, LabelSet labels) {
+    requireNonNull(labels, "The labels parameter is required.");
+    checkArgument(!name.isEmpty(), "name cannot be empty.");
+    if (name.equals(OVERFLOW_NAME) && labels.equals(OVERFLOW_LABELS)) {
+      return overflowHistogram();
+    }
+    // Check the limit before reserving a slot, so that lookups beyond the limit don't contend on
+    // the shared count.
+    if (numHistograms.get() >= maxHistograms) {
+      return overflowHistogram();
+    }
+    if (numHistograms.incrementAndGet() > maxHistograms) {
+      numHistograms.decrementAndGet();
+      return overflowHistogram();
+    }
+    RegisteredHistogram<T> histogram =
+        new RegisteredHistogram<>(this, name, labels, currentTimeMillis());
+    RegisteredHistogram<T> existing = putIfAbsent(histogram);
+    if (existing != null) {
+      numHistograms.decrementAndGet();
+      return existing;
+    }
+    retainedBytes.addAndGet(histogram.retainedBytes);
+    return histogram;
+  }
+
+  private RegisteredHistogram<T> overflowHistogram() {
+    if (!overflowInUse.get() && overflowInUse.compareAndSet(false, true)) {
+      retainedBytes.addAndGet(overflowHistogram.retainedBytes);
+    }
+    return overflowHistogram;
+  }
+
+  /**
+   * Add a histogram to the map of histograms with its name, unless the map already has one with the
+   * same labels. This is done while holding the name's entry in byName, so that
+   * evictIdleHistograms can't remove the map (once it becomes empty) while the histogram is being
+   * added to it.
+   *
+   * @return The histogram that was already in the map, or null if the histogram was added.
+   */
+  private RegisteredHistogram<T> putIfAbsent(RegisteredHistogram<T> histogram) {
+    AtomicReference<RegisteredHistogram<T>> existing = new AtomicReference<>();
+    byName.compute(histogram.name, (name, histograms) -> {
+      ConcurrentMap<LabelSet, RegisteredHistogram<T>> withName =
+          (histograms != null) ? histograms : new ConcurrentHashMap<>();
+      existing.set(withName.putIfAbsent(histogram.labels, histogram));
+      return withName;
+    });
+    return existing.get();
+  }
+
+  private void reinstate(RegisteredHistogram<T> histogram) {
+    synchronized (histogram) {
+      if (!histogram.evicted) {
+        return;
+      }
+      RegisteredHistogram<T> existing = putIfAbsent(histogram);
+      if (existing != null) {
+        // Someone looked up the same name and labels after the eviction, and got a new histogram.
+        // Move the counts there, and leave this one evicted so that later counts are moved too.
+        for (int i = 0; i < histogram.bucketCounts.length(); i++) {
+          long count = histogram.bucketCounts.getAndSet(i, 0);
+          if (count != 0) {
+            existing.bucketCounts.addAndGet(i, count);
+          }
+        }
+        existing.recordedSinceLastSweep = true;
+        return;
+      }
+      // The histogram is put back even if that exceeds the limit, since it is still in use.
+      numHistograms.incrementAndGet();
+      retainedBytes.addAndGet(histogram.retainedBytes);
+      histogram.lastActiveMillis = currentTimeMillis();
+      histogram.evicted = false;
+    }
+  }
+
+  /**
+   * Remove histograms that nobody has recorded a value into during the idle timeout. This should
+   * be called periodically, such as once per minute, or before each scrape of the registry's
+   * histograms.
+   *
+   * @return The number of histograms that were removed.
+   */
+  public int evictIdleHistograms() {
+    long nowMillis = currentTimeMillis();
+    int numEvicted = 0;
+    for (Map.Entry<String, ConcurrentMap<LabelSet, RegisteredHistogram<T>>> entry : byName
+        .entrySet()) {
+      ConcurrentMap<LabelSet, RegisteredHistogram<T>> histograms = entry.getValue();
+      for (RegisteredHistogram<T> histogram : histograms.values()) {
+        if (histogram.recordedSinceLastSweep) {
+          histogram.recordedSinceLastSweep = false;
+          histogram.lastActiveMillis = nowMillis;
+          continue;
+        }
+        if (nowMillis - histogram.lastActiveMillis < idleTimeoutMillis) {
+          continue;
+        }
+        synchronized (histogram) {
+          if (histograms.remove(histogram.labels, histogram)) {
+            histogram.evicted = true;
+            numHistograms.decrementAndGet();
+            retainedBytes.addAndGet(-histogram.retainedBytes);
+            numEvicted++;
+          }
+        }
+      }
+      if (histograms.isEmpty()) {
+        // Histograms are only added to the map inside byName.compute, so this can't race with one.
+        byName.computeIfPresent(entry.getKey(), (n, h) -> h.isEmpty() ? null : h);
+      }
+    }
+    return numEvicted;
+  }
+
+  private long currentTimeMillis() {
+    if (timeSource instanceof CoarseTimeSource) {
+      return ((CoarseTimeSource) timeSource).currentTimeMillis();
+    }
+    return timeSource.now().toEpochMilli();
+  }
+
+  /**
+   * Get the number of histograms in the registry, not including the overflow histogram.
+   *
+   * @return The number of histograms.
+   */
+  public int numHistograms() {
+    return numHistograms.get();
+  }
+
+  /**
+   * Get the approximate number of bytes of heap memory retained by all of the histograms in the
+   * registry.
+   *
+   * @return The sum of {@link RegisteredHistogram#retainedBytes()} of all of the histograms.
+   */
+  public long retainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /**
+   * Get the number of distinct names of the histograms in the registry, not including the overflow
+   * histogram.
+   *
+   * @return The number of names.
+   */
+  public int numNames() {
+    return byName.size();
+  }
+
+  /**
+   * Get all of the histograms in the registry, including the overflow histogram if any lookup has
+   * returned it.
+   *
+   * @return The histograms, sorted by name and then by labels.
+   */
+  public ImmutableList<RegisteredHistogram<T>> histograms() {
+    List<RegisteredHistogram<T>> histograms = new ArrayList<>();
+    for (ConcurrentMap<LabelSet, RegisteredHistogram<T>> histogramsWithName : byName.values()) {
+      histograms.addAll(histogramsWithName.values());
+    }
+    if (overflowInUse.get()) {
+      histograms.add(overflowHistogram);
+    }
+    histograms.sort(Comparator.comparing(RegisteredHistogram<T>::name)
+        .thenComparing((h) -> h.labels().toString()));
+    return ImmutableList.copyOf(histograms);
+  }
+}
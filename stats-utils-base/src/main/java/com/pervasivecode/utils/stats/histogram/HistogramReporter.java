@@ -0,0 +1,227 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A client that reports histograms to a {@link HistogramAggregationServer}.
+ * <p>
+ * Each call to {@link #report(String, Histogram)} sends only the changes in the histogram's bucket
+ * counts since the previous report for the same key, so a histogram whose counts have changed in
+ * only a few buckets is sent as a small frame, and nothing is sent for a histogram whose counts
+ * have not changed. Frames are buffered, and are sent when the buffer
+ * is full or when {@link #flush()} is called.
+ * <p>
+ * If the buffered frames can't be sent, the connection is closed, since the server may have
+ * received only part of them, and subsequent calls to {@link #report(String, Histogram)} and
+ * {@link #flush()} fail until {@link #reconnect()} is called. Each reporter has a random session ID
+ * that it sends to the server whenever it connects, and the server keeps the counts that each
+ * session has reported. After reconnecting, the next report for each key sends the histogram's
+ * full counts, which replace the counts that the server had received for that key from this
+ * reporter, so the changes in frames that were lost are not lost, and the changes that the server
+ * did receive are not counted twice.
+ * <p>
+ * A new reporter has a new session, so its first report for each key is added to the counts that
+ * other reporters have sent. Use {@link #reconnect()} rather than a new reporter to continue
+ * reporting the same histograms.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @see HistogramAggregationServer
+ */
+public final class HistogramReporter implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InetSocketAddress serverAddress;
+  private final long sessionId;
+  private final Map<String, long[]> lastReportedCounts = new HashMap<>();
+  private SocketChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private boolean closed = false;
+
+  private HistogramReporter(InetSocketAddress serverAddress, long sessionId,
+      SocketChannel channel) {
+    this.serverAddress = serverAddress;
+    this.sessionId = sessionId;
+    this.channel = channel;
+  }
+
+  /**
+   * Connect to a HistogramAggregationServer.
+   *
+   * @param serverAddress The address of the server.
+   * @return A reporter that is connected to the server.
+   * @throws IOException if the connection could not be made.
+   */
+  public static HistogramReporter connect(InetSocketAddress serverAddress) throws IOException {
+    requireNonNull(serverAddress, "The serverAddress parameter is required.");
+    long sessionId = new SecureRandom().nextLong();
+    return new HistogramReporter(serverAddress, sessionId, openChannel(serverAddress, sessionId));
+  }
+
+  private static SocketChannel openChannel(InetSocketAddress serverAddress, long sessionId)
+      throws IOException {
+    SocketChannel channel = SocketChannel.open(serverAddress);
+    try {
+      channel.socket().setTcpNoDelay(true);
+      ByteBuffer sessionIdBytes = ByteBuffer.allocate(HistogramAggregationServer.SESSION_ID_SIZE);
+      sessionIdBytes.putLong(sessionId).flip();
+      while (sessionIdBytes.hasRemaining()) {
+        channel.write(sessionIdBytes);
+      }
+    } catch (IOException ioe) {
+      try {
+        channel.close();
+      } catch (IOException closeException) {
+        ioe.addSuppressed(closeException);
+      }
+      throw ioe;
+    }
+    return channel;
+  }
+
+  /**
+   * Disconnect from the server, discarding any buffered frames, and connect to it again, such as
+   * after a call to {@link #flush()} has failed. The next report for each key sends the
+   * histogram's full counts, which the server uses in place of the counts that this reporter
+   * previously sent for that key.
+   *
+   * @throws IOException if the connection could not be made, or the reporter has been closed.
+   */
+  public synchronized void reconnect() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+    channel.close();
+    buffer.clear();
+    lastReportedCounts.clear();
+    channel = openChannel(serverAddress, sessionId);
+  }
+
+  /**
+   * Report the current counts of a histogram. The histogram must have the same buckets as the
+   * server's BucketingSystem, and its counts are assumed to be cumulative, so only the changes
+   * since the previous report for the same key are sent.
+   *
+   * @param key The key to report the histogram's counts under, such as the name of an endpoint.
+   * @param histogram The histogram to report.
+   * @throws IOException if the buffered frames could not be sent, or the reporter is not
+   *         connected.
+   */
+  public synchronized void report(String key, Histogram<?> histogram) throws IOException {
+    requireNonNull(key, "The key parameter is required.");
+    requireNonNull(histogram, "The histogram parameter is required.");
+    if (!channel.isOpen()) {
+      throw new ClosedChannelException();
+    }
+    byte[] keyBytes = key.getBytes(UTF_8);
+    checkArgument(keyBytes.length <= HistogramAggregationServer.MAX_KEY_LENGTH,
+        "key cannot be longer than %s bytes.", HistogramAggregationServer.MAX_KEY_LENGTH);
+    int numBuckets = histogram.numBuckets();
+    int maxFrameSize = HistogramAggregationServer.FRAME_LENGTH_SIZE + 3 * Varints.MAX_SIZE
+        + keyBytes.length + 2 * Varints.MAX_SIZE * numBuckets;
+    checkArgument(maxFrameSize <= HistogramAggregationServer.MAX_FRAME_SIZE,
+        "The histogram has too many buckets.");
+    long[] lastCounts = lastReportedCounts.get(key);
+    if (lastCounts == null || lastCounts.length != numBuckets) {
+      lastCounts = new long[numBuckets];
+    }
+
+    // The last reported counts are only updated once the frame is in the buffer, so that the
+    // changes are not lost if the buffered frames can't be sent to make room for it.
+    int[] changedIndexes = new int[numBuckets];
+    long[] counts = new long[numBuckets];
+    int numChanged = 0;
+    for (int i = 0; i < numBuckets; i++) {
+      long count = histogram.countInBucket(i);
+      if (count != lastCounts[i]) {
+        changedIndexes[numChanged] = i;
+        counts[numChanged] = count;
+        numChanged++;
+      }
+    }
+    if (numChanged == 0) {
+      return;
+    }
+
+    if (buffer.remaining() < maxFrameSize) {
+      flush();
+      if (buffer.capacity() < maxFrameSize) {
+        buffer = ByteBuffer.allocate(maxFrameSize);
+      }
+    }
+
+    int frameStart = buffer.position();
+    buffer.position(frameStart + HistogramAggregationServer.FRAME_LENGTH_SIZE);
+    Varints.putUnsigned(buffer, keyBytes.length);
+    buffer.put(keyBytes);
+    Varints.putUnsigned(buffer, numBuckets);
+    Varints.putUnsigned(buffer, numChanged);
+    int previousIndex = -1;
+    for (int i = 0; i < numChanged; i++) {
+      Varints.putUnsigned(buffer, changedIndexes[i] - previousIndex - 1);
+      Varints.putSigned(buffer, counts[i] - lastCounts[changedIndexes[i]]);
+      previousIndex = changedIndexes[i];
+    }
+
+    buffer.putInt(frameStart, buffer.position() - frameStart
+        - HistogramAggregationServer.FRAME_LENGTH_SIZE);
+    for (int i = 0; i < numChanged; i++) {
+      lastCounts[changedIndexes[i]] = counts[i];
+    }
+    lastReportedCounts.put(key, lastCounts);
+  }
+
+  /**
+   * Send all buffered frames to the server.
+   *
+   * @throws IOException if the frames could not be sent, in which case the connection is closed
+   *         until {@link #reconnect()} is called.
+   */
+  public synchronized void flush() throws IOException {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      // Part of a frame may have been sent, so the rest of the stream can't be parsed by the
+      // server.
+      try {
+        channel.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw e;
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Send all buffered frames to the server, and disconnect from it.
+   *
+   * @throws IOException if the frames could not be sent, or the connection could not be closed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    try {
+      if (channel.isOpen()) {
+        flush();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed-size, in-memory time series of histograms, which retains recent histograms at a fine
+ * time resolution and older histograms at progressively coarser resolutions.
+ * <p>
+ * The time series consists of several tiers, each of which has a resolution (such as one second)
+ * and a retention period (such as one hour). Each tier is a ring of slots, one per resolution
+ * interval in its retention period, and stores the bucket counts of all of its slots in a single
+ * {@code long[]} array. Each histogram that is {@link #record(Instant, Histogram) recorded} is one
+ * tick of the finest tier, and its counts are also merged into the slot of each coarser tier that
+ * contains the tick, so memory use is constant regardless of how many ticks are recorded.
+ * <p>
+ * {@link #histogramForRange(Instant, Instant)} combines the ticks in a time range using the
+ * coarsest slots that fit entirely within the range, and finer slots only at the ends of the range,
+ * so that it merges as few slots as possible.
+ * <p>
+ * Example: keep the last hour at one-second resolution, the last day at one-minute resolution, and
+ * the last 30 days at one-hour resolution:
+ *
+ * <pre>
+ * HistogramTimeSeries&lt;Long&gt; latencies = HistogramTimeSeries.builder(bucketSelector)
+ *     .addTier(Duration.ofSeconds(1), Duration.ofHours(1))
+ *     .addTier(Duration.ofMinutes(1), Duration.ofDays(1))
+ *     .addTier(Duration.ofHours(1), Duration.ofDays(30))
+ *     .build();
+ * </pre>
+ *
+ * @param <T> The type of value counted by the histograms in this time series.
+ */
+public final class HistogramTimeSeries<T> {
+  private final BucketingSystem<T> bucketingSystem;
+  private final int numBuckets;
+  private final Tier[] tiers;
+
+  private HistogramTimeSeries(BucketingSystem<T> bucketingSystem, List<Tier> tiers) {
+    this.bucketingSystem = bucketingSystem;
+    this.numBuckets = bucketingSystem.numBuckets();
+    this.tiers = tiers.toArray(new Tier[0]);
+  }
+
+  /**
+   * Obtain a builder that allows construction of a new instance.
+   *
+   * @param bucketingSystem The buckets of the histograms in the time series.
+   * @param <T> The type of value counted by the histograms in the time series.
+   * @return A new Builder instance with no tiers.
+   */
+  public static <T> Builder<T> builder(BucketingSystem<T> bucketingSystem) {
+    return new Builder<>(requireNonNull(bucketingSystem,
+        "The bucketingSystem parameter is required."));
+  }
+
+  /**
+   * An object that can be used to create a {@link HistogramTimeSeries}.
+   *
+   * @param <T> The type of value counted by the histograms in the time series.
+   */
+  public static final class Builder<T> {
+    private final BucketingSystem<T> bucketingSystem;
+    private final List<Tier> tiers = new ArrayList<>();
+
+    private Builder(BucketingSystem<T> bucketingSystem) {
+      this.bucketingSystem = bucketingSystem;
+    }
+
+    /**
+     * Add a tier to the time series. The first tier added is the finest tier, whose resolution is
+     * the duration of one tick. Each tier after the first must have a resolution that is a
+     * multiple of the previous tier's resolution.
+     *
+     * @param resolution The duration covered by each slot of the tier.
+     * @param retention The duration covered by all of the slots of the tier together. This must be
+     *        a multiple of {@code resolution}.
+     * @return This Builder.
+     */
+    public Builder<T> addTier(Duration resolution, Duration retention) {
+      requireNonNull(resolution, "The resolution parameter is required.");
+      requireNonNull(retention, "The retention parameter is required.");
+      long resolutionMillis = resolution.toMillis();
+      long retentionMillis = retention.toMillis();
+      checkArgument(resolutionMillis > 0, "resolution must be at least one millisecond.");
+      checkArgument(retentionMillis >= resolutionMillis && retentionMillis % resolutionMillis == 0,
+          "retention must be a multiple of resolution.");
+      if (!tiers.isEmpty()) {
+        long previousResolution = tiers.get(tiers.size() - 1).resolutionMillis;
+        checkArgument(
+            resolutionMillis > previousResolution && resolutionMillis % previousResolution == 0,
+            "Each tier's resolution must be a multiple of the previous tier's resolution.");
+      }
+      long numSlots = retentionMillis / resolutionMillis;
+      checkArgument(numSlots * bucketingSystem.numBuckets() <= Integer.MAX_VALUE,
+          "The tier has too many slots.");
+      tiers.add(new Tier(resolutionMillis, (int) numSlots, bucketingSystem.numBuckets()));
+      return this;
+    }
+
+    /**
+     * Create a HistogramTimeSeries with the tiers that were added to this Builder.
+     *
+     * @return A new, empty HistogramTimeSeries.
+     * @throws IllegalStateException if no tiers were added.
+     */
+    public HistogramTimeSeries<T> build() {
+      checkState(!tiers.isEmpty(), "At least one tier is required.");
+      return new HistogramTimeSeries<>(bucketingSystem, tiers);
+    }
+  }
+
+  /**
+   * Record the histogram of the values counted during one tick.
+   * <p>
+   * Ticks are normally recorded in chronological order. A tick that is older than the retention
+   * period of a tier (relative to the newest tick recorded so far) is not included in that tier.
+   *
+   * @param tickStart The start time of the tick.
+   * @param histogram The values counted during the tick. This must have the same number of
+   *        buckets as the time series' BucketingSystem.
+   */
+  public synchronized void record(Instant tickStart, Histogram<T> histogram) {
+    requireNonNull(tickStart, "The tickStart parameter is required.");
+    requireNonNull(histogram, "The histogram parameter is required.");
+    checkArgument(histogram.numBuckets() == numBuckets,
+        "The histogram must have %s buckets, but it has %s.", numBuckets, histogram.numBuckets());
+    long tickStartMillis = tickStart.toEpochMilli();
+    for (Tier tier : tiers) {
+      int countsOffset = tier.slotCountsOffsetForWriting(tickStartMillis);
+      if (countsOffset >= 0) {
+        for (int i = 0; i < numBuckets; i++) {
+          tier.counts[countsOffset + i] += histogram.countInBucket(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Make a histogram that combines the counts of the retained ticks whose start times are in the
+   * specified range.
+   * <p>
+   * Parts of the range that are only retained at a resolution too coarse to be split at the
+   * range's endpoints are not included. For example, if the finest retained data for a range's
+   * start time is at one-hour resolution, and the range starts at 14:20, then the values counted
+   * from 14:20 until 15:00 are not included.
+   *
+   * @param start The start of the time range (inclusive).
+   * @param end The end of the time range (exclusive).
+   * @return A histogram containing the total count for each bucket across the ticks in the range.
+   */
+  public synchronized ImmutableHistogram<T> histogramForRange(Instant start, Instant end) {
+    requireNonNull(start, "The start parameter is required.");
+    requireNonNull(end, "The end parameter is required.");
+    long startMillis = start.toEpochMilli();
+    long endMillis = end.toEpochMilli();
+    checkArgument(startMillis <= endMillis, "start cannot be after end.");
+
+    long[] counts = new long[numBuckets];
+    addRange(startMillis, endMillis, tiers.length - 1, counts);
+    return Histograms.histogramOf(counts, bucketingSystem);
+  }
+
+  /**
+   * Add the counts for the range [startMillis, endMillis) using the slots of the specified tier
+   * where possible, and finer tiers elsewhere.
+   */
+  private void addRange(long startMillis, long endMillis, int tierIndex, long[] counts) {
+    if (startMillis >= endMillis || tierIndex < 0) {
+      return;
+    }
+    Tier tier = tiers[tierIndex];
+    long windowStart = tier.windowStartMillis();
+    long windowEnd = tier.windowEndMillis();
+    if (windowStart >= windowEnd) {
+      addRange(startMillis, endMillis, tierIndex - 1, counts);
+      return;
+    }
+
+    // Outside of this tier's retention window, use finer tiers.
+    addRange(startMillis, Math.min(endMillis, windowStart), tierIndex - 1, counts);
+    addRange(Math.max(startMillis, windowEnd), endMillis, tierIndex - 1, counts);
+    long start = Math.max(startMillis, windowStart);
+    long end = Math.min(endMillis, windowEnd);
+    if (start >= end) {
+      return;
+    }
+
+    long firstSlot;
+    long endSlot;
+    if (tierIndex == 0) {
+      // The finest tier's slots are whole ticks, so include each tick that starts in the range.
+      firstSlot = Math.floorDiv(start - 1, tier.resolutionMillis) + 1;
+      endSlot = Math.floorDiv(end - 1, tier.resolutionMillis) + 1;
+    } else {
+      // Use finer tiers for the slots that are only partially within the range.
+      firstSlot = Math.floorDiv(start - 1, tier.resolutionMillis) + 1;
+      endSlot = Math.floorDiv(end, tier.resolutionMillis);
+      if (firstSlot >= endSlot) {
+        addRange(start, end, tierIndex - 1, counts);
+        return;
+      }
+      addRange(start, firstSlot * tier.resolutionMillis, tierIndex - 1, counts);
+      addRange(endSlot * tier.resolutionMillis, end, tierIndex - 1, counts);
+    }
+    for (long slot = firstSlot; slot < endSlot; slot++) {
+      tier.addSlotCounts(slot, counts);
+    }
+  }
+
+  /**
+   * One tier of the time series: a ring of slots, each of which holds the combined counts of all
+   * of the ticks within one resolution interval.
+   */
+  private static final class Tier {
+    final long resolutionMillis;
+    final int numSlots;
+    final int numBuckets;
+    // The bucket counts of slot i are at counts[i * numBuckets] through
+    // counts[(i + 1) * numBuckets - 1].
+    final long[] counts;
+    // The number of the resolution interval (since the epoch) whose counts are in each slot.
+    final long[] slotIntervals;
+    long newestInterval = Long.MIN_VALUE;
+
+    Tier(long resolutionMillis, int numSlots, int numBuckets) {
+      this.resolutionMillis = resolutionMillis;
+      this.numSlots = numSlots;
+      this.numBuckets = numBuckets;
+      this.counts = new long[numSlots * numBuckets];
+      this.slotIntervals = new long[numSlots];
+      Arrays.fill(slotIntervals, Long.MIN_VALUE);
+    }
+
+    long windowStartMillis() {
+      if (newestInterval == Long.MIN_VALUE) {
+        return 0;
+      }
+      return (newestInterval - numSlots + 1) * resolutionMillis;
+    }
+
+    long windowEndMillis() {
+      if (newestInterval == Long.MIN_VALUE) {
+        return 0;
+      }
+      return (newestInterval + 1) * resolutionMillis;
+    }
+
+    private int slotIndex(long interval) {
+      return (int) Math.floorMod(interval, (long) numSlots);
+    }
+
+    /**
+     * Find the offset in {@link #counts} of the slot containing the specified time, reusing the
+     * slot if it contains an older interval. Return -1 if the time is older than this tier's
+     * retention period.
+     */
+    int slotCountsOffsetForWriting(long timeMillis) {
+      long interval = Math.floorDiv(timeMillis, resolutionMillis);
+      if (newestInterval != Long.MIN_VALUE && interval <= newestInterval - numSlots) {
+        return -1;
+      }
+      newestInterval = Math.max(newestInterval, interval);
+      int slotIndex = slotIndex(interval);
+      int offset = slotIndex * numBuckets;
+      if (slotIntervals[slotIndex] != interval) {
+        Arrays.fill(counts, offset, offset + numBuckets, 0L);
+        slotIntervals[slotIndex] = interval;
+      }
+      return offset;
+    }
+
+    void addSlotCounts(long interval, long[] totals) {
+      int slotIndex = slotIndex(interval);
+      if (slotIntervals[slotIndex] != interval) {
+        return;
+      }
+      int offset = slotIndex * numBuckets;
+      for (int i = 0; i < numBuckets; i++) {
+        totals[i] += counts[offset + i];
+      }
+    }
+  }
+}
@@ -1,16 +1,57 @@
 package com.pervasivecode.utils.stats.histogram;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collector.Characteristics;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
 
 /**
  * Utility methods for working with Histograms.
  */
 public class Histograms {
+  /**
+   * How {@link Histograms#rebucket(Histogram, BucketingSystem, RebucketingStrategy)} handles a
+   * bucket of the source histogram that overlaps more than one bucket of the target
+   * BucketingSystem.
+   */
+  public enum RebucketingStrategy {
+    /**
+     * Throw an {@link IllegalArgumentException}, so that every count in the result is exact. Use
+     * this when each target upper bound is also a source upper bound, such as when the target
+     * buckets are unions of the source buckets.
+     */
+    EXACT,
+    /**
+     * Split the count among the overlapping target buckets in proportion to how much of the source
+     * bucket's range each one covers, as if the values in the source bucket were spread uniformly
+     * over its range.
+     */
+    PROPORTIONAL
+  }
+
+  // The number of values whose bucket indexes are selected at once by countValues(long[], ...).
+  private static final int BULK_BLOCK_SIZE = 1024;
+
+  private static final String SPLIT_BUCKET_MESSAGE =
+      "Source bucket %s would have to be split between target buckets.";
+
   private Histograms() {}
 
   /**
    * Transform a histogram's upper bound values using a Function.
+   * <p>
+   * The returned Histogram is a view of the input histogram, so its bucket counts are always the
+   * same as the input histogram's. The transformed upper bound values are computed the first time
+   * they are requested, and are then cached, so the transformation function should not have side
+   * effects.
    *
    * @param input The histogram to transform.
    * @param transformation A function that will transform one upper bound value.
@@ -25,6 +66,10 @@ public class Histograms {
     Objects.requireNonNull(input, "The input histogram parameter is required.");
     Objects.requireNonNull(transformation, "The transformation function parameter is required.");
 
+    final int numUpperBounds = Math.max(0, input.numBuckets() - 1);
+    final AtomicReferenceArray<V> transformedUpperBounds =
+        new AtomicReferenceArray<>(numUpperBounds);
+
     return new Histogram<V>() {
       @Override
       public int numBuckets() {
@@ -33,7 +78,18 @@ public class Histograms {
 
       @Override
       public V bucketUpperBound(int index) {
-        return transformation.apply(input.bucketUpperBound(index));
+        if (index < 0 || index >= numUpperBounds) {
+          // Let the input histogram throw the appropriate exception.
+          return transformation.apply(input.bucketUpperBound(index));
+        }
+        V transformed = transformedUpperBounds.get(index);
+        if (transformed == null) {
+          transformed = transformation.apply(input.bucketUpperBound(index));
+          if (!transformedUpperBounds.compareAndSet(index, null, transformed)) {
+            transformed = transformedUpperBounds.get(index);
+          }
+        }
+        return transformed;
       }
 
       @Override
@@ -42,4 +98,279 @@ public class Histograms {
       }
     };
   }
+
+  /**
+   * Make a {@link Collector} that counts stream elements into an {@link ImmutableHistogram}.
+   * <p>
+   * Each thread that processes part of the stream counts values into its own array of bucket
+   * counts, and the arrays are added together at the end. This makes the Collector faster than
+   * counting values from a parallel stream into one shared {@link ConcurrentHistogram}, since
+   * threads do not contend with each other to update the same bucket counts.
+   *
+   * @param bucketSelector The BucketSelector that determines which bucket each element is counted
+   *        in.
+   * @param <T> The type of stream element, and of value counted by the resulting Histogram.
+   * @return A Collector that produces a histogram of the stream's elements.
+   */
+  public static <T> Collector<T, ?, ImmutableHistogram<T>> toHistogram(
+      BucketSelector<T> bucketSelector) {
+    Objects.requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    return Collector.of( //
+        () -> new long[numBuckets], //
+        (counts, value) -> counts[bucketSelector.bucketIndexFor(value)]++, //
+        Histograms::addCounts, //
+        (counts) -> histogramOf(counts, bucketSelector), //
+        Characteristics.UNORDERED);
+  }
+
+  /**
+   * Make a {@link Collector} that converts each stream element to a {@code long} value, and counts
+   * those values into an {@link ImmutableHistogram}.
+   *
+   * @param valueFunction A function that converts a stream element into the value to count.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @param <T> The type of stream element.
+   * @return A Collector that produces a histogram of the values of the stream's elements.
+   * @see #toHistogram(BucketSelector)
+   */
+  public static <T> Collector<T, ?, ImmutableHistogram<Long>> toHistogram(
+      ToLongFunction<? super T> valueFunction, BucketSelector<Long> bucketSelector) {
+    Objects.requireNonNull(valueFunction, "The valueFunction parameter is required.");
+    Objects.requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    return Collector.of( //
+        () -> new long[numBuckets], //
+        (counts, e) -> counts[bucketSelector.bucketIndexFor(valueFunction.applyAsLong(e))]++, //
+        Histograms::addCounts, //
+        (counts) -> histogramOf(counts, bucketSelector), //
+        Characteristics.UNORDERED);
+  }
+
+  /**
+   * Count all of the values in a {@link LongStream} into an {@link ImmutableHistogram}. If the
+   * stream is parallel, each thread counts values into its own array of bucket counts, and the
+   * arrays are added together at the end.
+   *
+   * @param values The values to count.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of the stream's values.
+   */
+  public static ImmutableHistogram<Long> countValues(LongStream values,
+      BucketSelector<Long> bucketSelector) {
+    Objects.requireNonNull(values, "The values parameter is required.");
+    Objects.requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    long[] counts;
+    if (bucketSelector instanceof LongBucketSelector) {
+      // Select buckets for the primitive values, rather than boxing each one.
+      LongBucketSelector longBucketSelector = (LongBucketSelector) bucketSelector;
+      counts = values.collect( //
+          () -> new long[numBuckets], //
+          (c, value) -> c[longBucketSelector.bucketIndexFor(value)]++, //
+          Histograms::addCounts);
+    } else {
+      counts = values.collect( //
+          () -> new long[numBuckets], //
+          (c, value) -> c[bucketSelector.bucketIndexFor(value)]++, //
+          Histograms::addCounts);
+    }
+    return histogramOf(counts, bucketSelector);
+  }
+
+  /**
+   * Count all of the values in an array into an {@link ImmutableHistogram}.
+   *
+   * @param values The values to count.
+   * @param bucketSelector The LongBucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of the array's values.
+   * @see #countValues(long[], int, int, LongBucketSelector)
+   */
+  public static ImmutableHistogram<Long> countValues(long[] values,
+      LongBucketSelector bucketSelector) {
+    Objects.requireNonNull(values, "The values parameter is required.");
+    return countValues(values, 0, values.length, bucketSelector);
+  }
+
+  /**
+   * Count a range of the values in an array into an {@link ImmutableHistogram}.
+   * <p>
+   * The values are processed in blocks: the bucket indexes of a whole block are selected via
+   * {@link LongBucketSelector#bucketIndexesFor(long[], int, int, int[])}, and then counted. The
+   * counts are spread across four lanes that are added together at the end, so that consecutive
+   * values in the same bucket (which is common, since most values are usually in a few buckets)
+   * increment different counters, rather than each increment waiting for the previous one.
+   *
+   * @param values The array containing the values to count.
+   * @param offset The index in the values array of the first value to count.
+   * @param length The number of values to count.
+   * @param bucketSelector The LongBucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of the values.
+   */
+  public static ImmutableHistogram<Long> countValues(long[] values, int offset, int length,
+      LongBucketSelector bucketSelector) {
+    Objects.requireNonNull(values, "The values parameter is required.");
+    Objects.requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    checkPositionIndexes(offset, offset + length, values.length);
+    final int numBuckets = bucketSelector.numBuckets();
+    final int[] indexes = new int[Math.min(length, BULK_BLOCK_SIZE)];
+    final long[] laneCounts = new long[numBuckets * 4];
+    for (int blockStart = 0; blockStart < length; blockStart += BULK_BLOCK_SIZE) {
+      int blockLength = Math.min(BULK_BLOCK_SIZE, length - blockStart);
+      bucketSelector.bucketIndexesFor(values, offset + blockStart, blockLength, indexes);
+      int i = 0;
+      for (; i + 3 < blockLength; i += 4) {
+        laneCounts[indexes[i]]++;
+        laneCounts[numBuckets + indexes[i + 1]]++;
+        laneCounts[2 * numBuckets + indexes[i + 2]]++;
+        laneCounts[3 * numBuckets + indexes[i + 3]]++;
+      }
+      for (; i < blockLength; i++) {
+        laneCounts[indexes[i]]++;
+      }
+    }
+    long[] counts = new long[numBuckets];
+    for (int lane = 0; lane < 4; lane++) {
+      for (int b = 0; b < numBuckets; b++) {
+        counts[b] += laneCounts[lane * numBuckets + b];
+      }
+    }
+    return histogramOf(counts, bucketSelector);
+  }
+
+  /**
+   * Count all of the values in a {@link DoubleStream} into an {@link ImmutableHistogram}. If the
+   * stream is parallel, each thread counts values into its own array of bucket counts, and the
+   * arrays are added together at the end.
+   *
+   * @param values The values to count.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of the stream's values.
+   */
+  public static ImmutableHistogram<Double> countValues(DoubleStream values,
+      BucketSelector<Double> bucketSelector) {
+    Objects.requireNonNull(values, "The values parameter is required.");
+    Objects.requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    long[] counts = values.collect( //
+        () -> new long[numBuckets], //
+        (c, value) -> c[bucketSelector.bucketIndexFor(value)]++, //
+        Histograms::addCounts);
+    return histogramOf(counts, bucketSelector);
+  }
+
+  /**
+   * Convert a histogram to a different BucketingSystem, such as coarser buckets for display, or the
+   * fixed buckets of a monitoring system that the histogram is exported to.
+   * <p>
+   * Each bucket of the source histogram is added to the target bucket that contains it. If a
+   * source bucket overlaps more than one target bucket, the strategy determines what happens. The
+   * first and last source buckets have no lower and upper bound, respectively, so they can't be
+   * split in proportion to their ranges; their values are treated as if they were all equal to the
+   * bucket's upper bound (for the first bucket) or to the smallest value greater than the
+   * preceding bucket's upper bound (for the last bucket).
+   * <p>
+   * The buckets are matched up in one pass over both sets of upper bounds, so the time this takes
+   * is proportional to the total number of buckets.
+   *
+   * @param source The histogram to convert.
+   * @param target The BucketingSystem of the result.
+   * @param strategy How to handle source buckets that overlap more than one target bucket.
+   * @return A histogram of the same values, counted in the target buckets. The total count is the
+   *         same as the source histogram's total count.
+   * @throws IllegalArgumentException if the strategy is {@link RebucketingStrategy#EXACT} and a
+   *         source bucket overlaps more than one target bucket.
+   */
+  public static ImmutableHistogram<Long> rebucket(Histogram<Long> source,
+      BucketingSystem<Long> target, RebucketingStrategy strategy) {
+    Objects.requireNonNull(source, "The source parameter is required.");
+    Objects.requireNonNull(target, "The target parameter is required.");
+    Objects.requireNonNull(strategy, "The strategy parameter is required.");
+    long[] sourceBounds = upperBounds(source);
+    long[] targetBounds = upperBounds(target);
+    int sourceLastIndex = sourceBounds.length;
+    int targetLastIndex = targetBounds.length;
+    long[] counts = new long[targetLastIndex + 1];
+
+    // The index of the target bucket that contains the lowest value of the current source bucket.
+    int first = 0;
+    for (int s = 0; s <= sourceLastIndex; s++) {
+      long count = source.countInBucket(s);
+      if (s > 0) {
+        long lowerBound = sourceBounds[s - 1];
+        while (first < targetLastIndex && targetBounds[first] <= lowerBound) {
+          first++;
+        }
+      }
+      if (s == sourceLastIndex) {
+        checkArgument(strategy != RebucketingStrategy.EXACT || first == targetLastIndex,
+            SPLIT_BUCKET_MESSAGE, s);
+        counts[first] += count;
+        continue;
+      }
+      long upperBound = sourceBounds[s];
+      // The index of the target bucket that contains the highest value of the source bucket.
+      int last = first;
+      while (last < targetLastIndex && targetBounds[last] < upperBound) {
+        last++;
+      }
+      if (s == 0) {
+        checkArgument(strategy != RebucketingStrategy.EXACT || last == 0, SPLIT_BUCKET_MESSAGE, s);
+        counts[last] += count;
+        continue;
+      }
+      if (first == last) {
+        counts[first] += count;
+        continue;
+      }
+      checkArgument(strategy != RebucketingStrategy.EXACT, SPLIT_BUCKET_MESSAGE, s);
+      // Give each target bucket the part of the count that falls at or below its upper bound, minus
+      // what the preceding target buckets already got, so that the parts add up to the count.
+      double lowerBound = sourceBounds[s - 1];
+      double width = upperBound - lowerBound;
+      long allocated = 0;
+      for (int t = first; t < last; t++) {
+        long cumulative = Math.round(count * ((targetBounds[t] - lowerBound) / width));
+        counts[t] += cumulative - allocated;
+        allocated = cumulative;
+      }
+      counts[last] += count - allocated;
+    }
+    return histogramOf(counts, target);
+  }
+
+  private static long[] upperBounds(BucketingSystem<Long> bucketingSystem) {
+    long[] upperBounds = new long[bucketingSystem.numBuckets() - 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = bucketingSystem.bucketUpperBound(i);
+    }
+    return upperBounds;
+  }
+
+  static long[] addCounts(long[] counts, long[] moreCounts) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += moreCounts[i];
+    }
+    return counts;
+  }
+
+  /**
+   * Make an ImmutableHistogram from an array of bucket counts and the BucketingSystem that the
+   * counts were bucketed with.
+   */
+  static <T> ImmutableHistogram<T> histogramOf(long[] counts, BucketingSystem<T> bucketingSystem) {
+    ImmutableList.Builder<T> upperBounds = ImmutableList.builder();
+    for (int i = 0; i < counts.length - 1; i++) {
+      upperBounds.add(bucketingSystem.bucketUpperBound(i));
+    }
+    return ImmutableHistogram.<T>builder() //
+        .setBucketUpperBounds(upperBounds.build()) //
+        .setCountByBucket(ImmutableList.copyOf(Longs.asList(counts))) //
+        .build();
+  }
 }
@@ -0,0 +1,117 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import java.util.Map;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * An immutable set of label names and values, such as {@code {method="GET", path="/login"}}, that
+ * identifies one of several histograms with the same name in a {@link HistogramRegistry}.
+ * <p>
+ * Labels are kept sorted by name, so two LabelSets with the same names and values are equal
+ * regardless of the order in which the labels were specified. The hash code is computed once, so
+ * a LabelSet that is created once and reused is an inexpensive map key.
+ */
+public final class LabelSet {
+  private static final LabelSet EMPTY = new LabelSet(ImmutableSortedMap.of());
+
+  // Approximate sizes of a String object plus its char array, and of a map entry, in bytes.
+  private static final int STRING_OVERHEAD_BYTES = 56;
+  private static final int ENTRY_OVERHEAD_BYTES = 32;
+
+  private final ImmutableSortedMap<String, String> labels;
+  private final int hashCode;
+  private final String formatted;
+  private final long retainedBytes;
+
+  private LabelSet(ImmutableSortedMap<String, String> labels) {
+    this.labels = labels;
+    this.hashCode = labels.hashCode();
+    this.formatted = PrometheusExpositionWriter.formatLabels(labels);
+    long bytes = STRING_OVERHEAD_BYTES + 2L * formatted.length();
+    for (Map.Entry<String, String> label : labels.entrySet()) {
+      bytes += ENTRY_OVERHEAD_BYTES + 2 * STRING_OVERHEAD_BYTES
+          + 2L * (label.getKey().length() + label.getValue().length());
+    }
+    this.retainedBytes = bytes;
+  }
+
+  /**
+   * Get a LabelSet with no labels.
+   *
+   * @return The empty LabelSet.
+   */
+  public static LabelSet empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Create a LabelSet from pairs of label names and values.
+   * <p>
+   * Example: {@code LabelSet.of("method", "GET", "path", "/login")}
+   *
+   * @param namesAndValues Alternating label names and values.
+   * @return A LabelSet containing the specified labels.
+   * @throws IllegalArgumentException if there is an odd number of parameters, if a label name is
+   *         repeated, or if a label name is not a valid Prometheus label name.
+   */
+  public static LabelSet of(String... namesAndValues) {
+    requireNonNull(namesAndValues, "The namesAndValues parameter is required.");
+    checkArgument(namesAndValues.length % 2 == 0,
+        "namesAndValues must contain an even number of elements.");
+    if (namesAndValues.length == 0) {
+      return EMPTY;
+    }
+    ImmutableSortedMap.Builder<String, String> labels = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      labels.put(requireNonNull(namesAndValues[i], "Label names cannot be null."),
+          requireNonNull(namesAndValues[i + 1], "Label values cannot be null."));
+    }
+    return new LabelSet(labels.build());
+  }
+
+  /**
+   * Get the labels as a map.
+   *
+   * @return A map of label names to values, sorted by name.
+   */
+  public ImmutableSortedMap<String, String> asMap() {
+    return labels;
+  }
+
+  /**
+   * Get the approximate number of bytes of heap memory used by this LabelSet.
+   */
+  long retainedBytes() {
+    return retainedBytes;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!(other instanceof LabelSet)) {
+      return false;
+    }
+    LabelSet otherLabels = (LabelSet) other;
+    return hashCode == otherLabels.hashCode && labels.equals(otherLabels.labels);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * Get the labels in the format used by {@link PrometheusExpositionWriter}, such as
+   * {@code method="GET",path="/login"}.
+   *
+   * @return The formatted labels.
+   */
+  @Override
+  public String toString() {
+    return formatted;
+  }
+}
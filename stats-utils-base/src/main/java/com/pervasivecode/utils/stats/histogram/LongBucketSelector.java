@@ -0,0 +1,52 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * A BucketSelector for {@code long} values that can select buckets for primitive values, without
+ * boxing them, and for whole arrays of values at once.
+ *
+ * @see BucketSelectors#linearLongValues(long, long, int)
+ * @see BucketSelectors#powerOf2LongValues(int, int)
+ * @see BucketSelectors#irregularLongValues(long...)
+ * @see Histograms#countValues(long[], LongBucketSelector)
+ */
+public interface LongBucketSelector extends BucketSelector<Long> {
+  /**
+   * Determine the index of the bucket that a specified value should be counted in.
+   *
+   * @param value The value to compare to bucket upper bounds values when identifying the
+   *        appropriate bucket.
+   * @return The bucket index for the specified value.
+   */
+  public int bucketIndexFor(long value);
+
+  @Override
+  public default int bucketIndexFor(Long value) {
+    checkNotNull(value, "Can't bucket a null value.");
+    return bucketIndexFor(value.longValue());
+  }
+
+  /**
+   * Determine the bucket indexes of a range of values in an array.
+   * <p>
+   * The default implementation calls {@link #bucketIndexFor(long)} for each value. Implementations
+   * override it with a loop that has no data-dependent branches where possible, so that the JIT
+   * compiler can unroll it (and, on some CPUs, vectorize it).
+   *
+   * @param values The array containing the values.
+   * @param offset The index in the values array of the first value.
+   * @param length The number of values.
+   * @param outIndexes The array that the bucket index of value {@code values[offset + i]} will be
+   *        stored into, at index {@code i}.
+   */
+  public default void bucketIndexesFor(long[] values, int offset, int length, int[] outIndexes) {
+    checkPositionIndexes(offset, offset + length, values.length);
+    checkArgument(outIndexes.length >= length, "outIndexes is too small.");
+    for (int i = 0; i < length; i++) {
+      outIndexes[i] = bucketIndexFor(values[offset + i]);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A BucketSelector for small integer values, such as word lengths, retry counts, or batch sizes,
+ * that looks up the bucket index of each value in a range of values in a precomputed table.
+ * <p>
+ * The table is built from another BucketSelector when this selector is created, by selecting a
+ * bucket for every value in the range. After that, selecting a bucket for a value in the range
+ * takes one bounds check and one array load, regardless of how the wrapped selector selects
+ * buckets. Values outside of the range are passed to the wrapped selector.
+ * <p>
+ * Each table entry takes one byte if the wrapped selector has at most 256 buckets, and two bytes
+ * otherwise.
+ *
+ * @see BucketingSystem
+ */
+public final class LookupTableBucketSelector implements LongBucketSelector {
+  /** The largest number of values that the table can cover. */
+  public static final int MAX_TABLE_SIZE = 1 << 20;
+
+  private final BucketSelector<Long> wrapped;
+  private final long minValue;
+  private final int tableSize;
+  // Exactly one of these is non-null. Entries are unsigned.
+  private final byte[] byteTable;
+  private final short[] shortTable;
+
+  /**
+   * Create a LookupTableBucketSelector for a range of values.
+   *
+   * @param wrapped The BucketSelector that determines which bucket each value is counted in.
+   * @param minValue The smallest value in the range covered by the table.
+   * @param maxValue The largest value in the range covered by the table. The range can include at
+   *        most {@link #MAX_TABLE_SIZE} values.
+   */
+  public LookupTableBucketSelector(BucketSelector<Long> wrapped, long minValue, long maxValue) {
+    this.wrapped = requireNonNull(wrapped, "The wrapped parameter is required.");
+    checkArgument(maxValue >= minValue, "maxValue must be at least minValue.");
+    checkArgument(maxValue - minValue < MAX_TABLE_SIZE && maxValue - minValue >= 0,
+        "The range from minValue to maxValue can include at most %s values.", MAX_TABLE_SIZE);
+    int numBuckets = wrapped.numBuckets();
+    checkArgument(numBuckets <= (1 << Short.SIZE),
+        "The wrapped BucketSelector can have at most %s buckets.", 1 << Short.SIZE);
+    this.minValue = minValue;
+    this.tableSize = (int) (maxValue - minValue) + 1;
+    this.byteTable = (numBuckets <= (1 << Byte.SIZE)) ? new byte[tableSize] : null;
+    this.shortTable = (byteTable == null) ? new short[tableSize] : null;
+    for (int i = 0; i < tableSize; i++) {
+      int bucketIndex = wrapped.bucketIndexFor(minValue + i);
+      if (byteTable != null) {
+        byteTable[i] = (byte) bucketIndex;
+      } else {
+        shortTable[i] = (short) bucketIndex;
+      }
+    }
+  }
+
+  @Override
+  public int numBuckets() {
+    return wrapped.numBuckets();
+  }
+
+  @Override
+  public Long bucketUpperBound(int index) {
+    return wrapped.bucketUpperBound(index);
+  }
+
+  @Override
+  public int bucketIndexFor(long value) {
+    // If value - minValue overflows, the result is outside of the table, as the value is.
+    long offset = value - minValue;
+    if (offset >= 0 && offset < tableSize) {
+      if (byteTable != null) {
+        return byteTable[(int) offset] & 0xFF;
+      }
+      return shortTable[(int) offset] & 0xFFFF;
+    }
+    if (wrapped instanceof LongBucketSelector) {
+      return ((LongBucketSelector) wrapped).bucketIndexFor(value);
+    }
+    return wrapped.bucketIndexFor(value);
+  }
+}
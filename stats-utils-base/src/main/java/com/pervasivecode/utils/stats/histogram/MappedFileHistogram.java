@@ -0,0 +1,312 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * A thread-safe MutableHistogram whose bucket counts are stored in a memory-mapped file, so that
+ * several processes can count values into the same histogram and read its counts concurrently,
+ * without any RPC or serialization. Since the counts are stored in the file, they are retained
+ * when the process that is counting values is restarted.
+ * <p>
+ * The file starts with a small header that describes its layout and the bucket upper bounds of the
+ * histogram, followed by one 64-bit counter per bucket in the byte order of the platform. Values
+ * are counted with an atomic fetch-and-add operation on the mapped counter, which is atomic
+ * across processes as well as across threads.
+ * <p>
+ * A process that only needs to read the counts, such as a monitoring agent, can use
+ * {@link #readSnapshot(Path)}, which uses the bucket upper bounds recorded in the header instead of
+ * requiring a BucketSelector. The file is locked while its header is written or read, so a reader
+ * never sees a file whose header has not been completely written.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * MappedFileHistogram&lt;Long&gt; latencies = MappedFileHistogram.open(
+ *     Paths.get("/var/run/myapp/latency.histogram"), BucketSelectors.powerOf2LongValues(0, 32));
+ * latencies.countValue(elapsedMicros);
+ *
+ * // ...and in another process:
+ * ImmutableHistogram&lt;String&gt; snapshot =
+ *     MappedFileHistogram.readSnapshot(Paths.get("/var/run/myapp/latency.histogram"));
+ * </pre>
+ *
+ * @param <T> The type of value counted by this Histogram.
+ * @see ConcurrentHistogram
+ */
+public final class MappedFileHistogram<T> implements MutableHistogram<T> {
+  // Header layout (big-endian): magic, version, counters offset, number of buckets, byte order of
+  // the counters, length of the bucket upper bounds text, then the text itself.
+  private static final int MAGIC = 0x48535447; // "HSTG"
+  private static final int VERSION = 1;
+  private static final int MAGIC_POSITION = 0;
+  private static final int VERSION_POSITION = 4;
+  private static final int COUNTERS_OFFSET_POSITION = 8;
+  private static final int NUM_BUCKETS_POSITION = 12;
+  private static final int BYTE_ORDER_POSITION = 16;
+  private static final int UPPER_BOUNDS_LENGTH_POSITION = 20;
+  private static final int UPPER_BOUNDS_POSITION = 24;
+  private static final int LITTLE_ENDIAN = 1;
+  private static final int BIG_ENDIAN = 2;
+  private static final char UPPER_BOUND_SEPARATOR = '\n';
+
+  // FileLock only coordinates between processes; channels within one JVM that try to lock the same
+  // file at the same time get an OverlappingFileLockException instead of waiting.
+  private static final Object IN_PROCESS_LOCK = new Object();
+
+  private final BucketSelector<T> bucketer;
+  private final int numBuckets;
+  // Holding a strong reference to the mapped buffer prevents it from being unmapped while the
+  // counters are in use.
+  private final MappedByteBuffer mappedFile;
+  private final long countersAddress;
+
+  private MappedFileHistogram(BucketSelector<T> bucketer, MappedByteBuffer mappedFile,
+      int countersOffset) {
+    this.bucketer = bucketer;
+    this.numBuckets = bucketer.numBuckets();
+    this.mappedFile = mappedFile;
+    this.countersAddress = UnsafeMemory.address(mappedFile) + countersOffset;
+  }
+
+  /**
+   * Open a histogram file, creating it if it does not exist yet.
+   * <p>
+   * If the file already exists, it must have been created with a BucketSelector that has the same
+   * number of buckets and the same bucket upper bounds as {@code bucketSelector}, and the values it
+   * contains will continue to be counted.
+   *
+   * @param file The file containing the histogram.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @param <T> The type of value counted by this Histogram.
+   * @return A MutableHistogram whose counts are stored in the file.
+   * @throws IOException if the file could not be created or read, or if it is not a histogram file.
+   * @throws IllegalArgumentException if the file contains a histogram with different buckets than
+   *         {@code bucketSelector}.
+   * @throws UnsupportedOperationException if this JVM does not support atomic operations on
+   *         memory-mapped files.
+   */
+  public static <T> MappedFileHistogram<T> open(Path file, BucketSelector<T> bucketSelector)
+      throws IOException {
+    requireNonNull(file, "The file parameter is required.");
+    requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    UnsafeMemory.checkAvailable();
+
+    int numBuckets = bucketSelector.numBuckets();
+    byte[] upperBoundsText = upperBoundsText(bucketSelector).getBytes(UTF_8);
+    int countersOffset = alignTo8(UPPER_BOUNDS_POSITION + upperBoundsText.length);
+    long fileSize = countersOffset + (long) numBuckets * Long.BYTES;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      synchronized (IN_PROCESS_LOCK) {
+        FileLock lock = channel.lock();
+        try {
+          if (channel.size() == 0) {
+            writeHeader(channel, countersOffset, numBuckets, upperBoundsText, fileSize);
+          } else {
+            ByteBuffer header = readHeader(channel, file);
+            if (header.getInt(NUM_BUCKETS_POSITION) != numBuckets
+                || !header.slice().equals(ByteBuffer.wrap(upperBoundsText))) {
+              throw new IllegalArgumentException(
+                  "The histogram in " + file + " has different buckets than the bucketSelector.");
+            }
+            if (channel.size() < fileSize) {
+              throw new IOException("The histogram file " + file + " is truncated.");
+            }
+          }
+        } finally {
+          lock.release();
+        }
+      }
+      // The mapping remains valid after the channel is closed.
+      MappedByteBuffer mappedFile = channel.map(MapMode.READ_WRITE, 0, fileSize);
+      return new MappedFileHistogram<>(bucketSelector, mappedFile, countersOffset);
+    }
+  }
+
+  /**
+   * Read the current bucket counts of a histogram file, along with the bucket upper bounds that
+   * were recorded in it when it was created.
+   * <p>
+   * Since other processes may be counting values while the snapshot is being read, the snapshot is
+   * not necessarily a consistent point-in-time view of all of the bucket counts together.
+   *
+   * @param file The histogram file to read.
+   * @return A histogram containing the counts in the file, whose bucket upper bounds are the
+   *         {@link String#valueOf(Object) String representations} of the upper bounds of the
+   *         histogram that created the file.
+   * @throws IOException if the file could not be read, or if it is not a histogram file.
+   */
+  public static ImmutableHistogram<String> readSnapshot(Path file) throws IOException {
+    requireNonNull(file, "The file parameter is required.");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // A shared lock waits for a process that is creating the file to finish writing the header.
+      ByteBuffer header;
+      long channelSize;
+      synchronized (IN_PROCESS_LOCK) {
+        FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+        try {
+          header = readHeader(channel, file);
+          channelSize = channel.size();
+        } finally {
+          lock.release();
+        }
+      }
+      int countersOffset = header.getInt(COUNTERS_OFFSET_POSITION);
+      int numBuckets = header.getInt(NUM_BUCKETS_POSITION);
+      long fileSize = countersOffset + (long) numBuckets * Long.BYTES;
+      if (channelSize < fileSize) {
+        throw new IOException("The histogram file " + file + " is truncated.");
+      }
+      List<String> upperBounds = new ArrayList<>();
+      if (numBuckets > 1) {
+        byte[] upperBoundsText = new byte[header.remaining()];
+        header.get(upperBoundsText);
+        upperBounds = Splitter.on(UPPER_BOUND_SEPARATOR)
+            .splitToList(new String(upperBoundsText, UTF_8));
+      }
+
+      // Read the counters through the mapped buffer rather than via its raw address, so that the
+      // buffer stays reachable (and mapped) until the last counter has been read.
+      MappedByteBuffer mappedFile = channel.map(MapMode.READ_ONLY, 0, fileSize);
+      mappedFile.order(ByteOrder.nativeOrder());
+      List<Long> counts = new ArrayList<>(numBuckets);
+      for (int i = 0; i < numBuckets; i++) {
+        counts.add(mappedFile.getLong(countersOffset + i * Long.BYTES));
+      }
+      return ImmutableHistogram.<String>builder() //
+          .setBucketUpperBounds(upperBounds) //
+          .setCountByBucket(counts) //
+          .build();
+    }
+  }
+
+  static String upperBoundsText(BucketingSystem<?> bucketingSystem) {
+    List<String> upperBounds = new ArrayList<>();
+    for (int i = 0; i < bucketingSystem.numBuckets() - 1; i++) {
+      upperBounds.add(String.valueOf(bucketingSystem.bucketUpperBound(i)));
+    }
+    return Joiner.on(UPPER_BOUND_SEPARATOR).join(upperBounds);
+  }
+
+  private static int alignTo8(int position) {
+    return (position + Long.BYTES - 1) & ~(Long.BYTES - 1);
+  }
+
+  private static int nativeByteOrder() {
+    return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN;
+  }
+
+  private static void writeHeader(FileChannel channel, int countersOffset, int numBuckets,
+      byte[] upperBoundsText, long fileSize) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(countersOffset);
+    header.putInt(MAGIC_POSITION, MAGIC);
+    header.putInt(VERSION_POSITION, VERSION);
+    header.putInt(COUNTERS_OFFSET_POSITION, countersOffset);
+    header.putInt(NUM_BUCKETS_POSITION, numBuckets);
+    header.putInt(BYTE_ORDER_POSITION, nativeByteOrder());
+    header.putInt(UPPER_BOUNDS_LENGTH_POSITION, upperBoundsText.length);
+    header.position(UPPER_BOUNDS_POSITION);
+    header.put(upperBoundsText);
+    header.clear();
+
+    // Write the header before extending the file to its full size (which makes the counters all
+    // start at zero), so that the file never has its full size without a complete header.
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+    channel.write(ByteBuffer.allocate(1), fileSize - 1);
+  }
+
+  /**
+   * Read and check the header of a histogram file. The returned buffer's position and limit
+   * surround the bucket upper bounds text.
+   */
+  private static ByteBuffer readHeader(FileChannel channel, Path file) throws IOException {
+    ByteBuffer fixedFields = ByteBuffer.allocate(UPPER_BOUNDS_POSITION);
+    readFully(channel, fixedFields, 0);
+    if (fixedFields.getInt(MAGIC_POSITION) != MAGIC) {
+      throw new IOException(file + " is not a histogram file.");
+    }
+    int version = fixedFields.getInt(VERSION_POSITION);
+    if (version != VERSION) {
+      throw new IOException(
+          String.format("Unsupported histogram file version %d in %s.", version, file));
+    }
+    if (fixedFields.getInt(BYTE_ORDER_POSITION) != nativeByteOrder()) {
+      throw new IOException("The histogram file " + file
+          + " was created on a platform with a different byte order.");
+    }
+    int countersOffset = fixedFields.getInt(COUNTERS_OFFSET_POSITION);
+    int upperBoundsLength = fixedFields.getInt(UPPER_BOUNDS_LENGTH_POSITION);
+    if (fixedFields.getInt(NUM_BUCKETS_POSITION) < 1 || upperBoundsLength < 0
+        || countersOffset != alignTo8(UPPER_BOUNDS_POSITION + upperBoundsLength)) {
+      throw new IOException("The histogram file " + file + " has an invalid header.");
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(countersOffset);
+    readFully(channel, header, 0);
+    header.position(UPPER_BOUNDS_POSITION);
+    header.limit(UPPER_BOUNDS_POSITION + upperBoundsLength);
+    return header;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of histogram file.");
+      }
+    }
+    buffer.clear();
+  }
+
+  @Override
+  public int numBuckets() {
+    return numBuckets;
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    checkElementIndex(index, numBuckets);
+    return UnsafeMemory.getLongVolatile(countersAddress + (long) index * Long.BYTES);
+  }
+
+  @Override
+  public void countValue(T value) {
+    requireNonNull(value, "The value parameter is required.");
+    int bucketIndex = checkElementIndex(bucketer.bucketIndexFor(value), numBuckets);
+    UnsafeMemory.getAndAddLong(countersAddress + (long) bucketIndex * Long.BYTES, 1L);
+  }
+
+  /**
+   * Write the current bucket counts to the storage device containing the file. This is not needed
+   * in order for other processes to see the counts, or for the counts to be retained when this
+   * process exits; it only protects against the loss of recent counts if the whole system fails.
+   */
+  public void force() {
+    mappedFile.force();
+  }
+}
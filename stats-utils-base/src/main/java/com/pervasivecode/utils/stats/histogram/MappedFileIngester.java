@@ -0,0 +1,176 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Build histograms from the numeric values stored in large files, by splitting each file into
+ * several parts and counting the values in each part in parallel.
+ * <p>
+ * Each part of the file is memory-mapped via {@link FileChannel#map(MapMode, long, long)}, and
+ * values are parsed directly from the mapped bytes as described in {@link NumericRecordFormat}.
+ * Parts always begin and end at record boundaries. Each part is counted into its own array of
+ * bucket counts, and the arrays are added together at the end.
+ * <p>
+ * Example: count the values in the third column of a CSV file:
+ *
+ * <pre>
+ * ImmutableHistogram&lt;Long&gt; histogram = MappedFileIngester.countLongValues(path,
+ *     NumericRecordFormat.delimitedText(2, ','), BucketSelectors.powerOf2LongValues(0, 40));
+ * </pre>
+ */
+public class MappedFileIngester {
+  // Keep each mapped part well below the 2GB limit of a MappedByteBuffer, since a text part is
+  // extended to the end of the line that contains its nominal end position.
+  static final long MAX_PART_SIZE = 1L << 30;
+
+  private MappedFileIngester() {}
+
+  /**
+   * Count the values in a file as {@code long} values, splitting the file into one part per
+   * available processor.
+   *
+   * @param file The file containing the values to count.
+   * @param format The format of the records in the file.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of all of the values in the file.
+   * @throws IOException if the file could not be read.
+   * @throws IllegalArgumentException if the file contains a malformed value, as described in
+   *         {@link NumericRecordFormat}.
+   */
+  public static ImmutableHistogram<Long> countLongValues(Path file, NumericRecordFormat format,
+      BucketSelector<Long> bucketSelector) throws IOException {
+    return countLongValues(file, format, bucketSelector,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Count the values in a file as {@code long} values.
+   *
+   * @param file The file containing the values to count.
+   * @param format The format of the records in the file.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @param numParts The minimum number of parts to split the file into. Very large files may be
+   *        split into more parts than this.
+   * @return A histogram of all of the values in the file.
+   * @throws IOException if the file could not be read.
+   * @throws IllegalArgumentException if the file contains a malformed value, as described in
+   *         {@link NumericRecordFormat}.
+   */
+  public static ImmutableHistogram<Long> countLongValues(Path file, NumericRecordFormat format,
+      BucketSelector<Long> bucketSelector, int numParts) throws IOException {
+    requireNonNull(format, "The format parameter is required.");
+    requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    long[] counts = countParts(file, format, numParts, (part) -> {
+      long[] partCounts = new long[numBuckets];
+      format.forEachLong(part, (value) -> partCounts[bucketSelector.bucketIndexFor(value)]++);
+      return partCounts;
+    }, numBuckets);
+    return Histograms.histogramOf(counts, bucketSelector);
+  }
+
+  /**
+   * Count the values in a file as {@code double} values, splitting the file into one part per
+   * available processor.
+   *
+   * @param file The file containing the values to count.
+   * @param format The format of the records in the file.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @return A histogram of all of the values in the file.
+   * @throws IOException if the file could not be read.
+   * @throws IllegalArgumentException if the file contains a malformed value, as described in
+   *         {@link NumericRecordFormat}.
+   */
+  public static ImmutableHistogram<Double> countDoubleValues(Path file, NumericRecordFormat format,
+      BucketSelector<Double> bucketSelector) throws IOException {
+    return countDoubleValues(file, format, bucketSelector,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Count the values in a file as {@code double} values.
+   *
+   * @param file The file containing the values to count.
+   * @param format The format of the records in the file.
+   * @param bucketSelector The BucketSelector that determines which bucket each value is counted
+   *        in.
+   * @param numParts The minimum number of parts to split the file into. Very large files may be
+   *        split into more parts than this.
+   * @return A histogram of all of the values in the file.
+   * @throws IOException if the file could not be read.
+   * @throws IllegalArgumentException if the file contains a malformed value, as described in
+   *         {@link NumericRecordFormat}.
+   */
+  public static ImmutableHistogram<Double> countDoubleValues(Path file, NumericRecordFormat format,
+      BucketSelector<Double> bucketSelector, int numParts) throws IOException {
+    requireNonNull(format, "The format parameter is required.");
+    requireNonNull(bucketSelector, "The bucketSelector parameter is required.");
+    final int numBuckets = bucketSelector.numBuckets();
+    long[] counts = countParts(file, format, numParts, (part) -> {
+      long[] partCounts = new long[numBuckets];
+      format.forEachDouble(part, (value) -> partCounts[bucketSelector.bucketIndexFor(value)]++);
+      return partCounts;
+    }, numBuckets);
+    return Histograms.histogramOf(counts, bucketSelector);
+  }
+
+  private static long[] countParts(Path file, NumericRecordFormat format, int numParts,
+      Function<MappedByteBuffer, long[]> partCounter, int numBuckets) throws IOException {
+    requireNonNull(file, "The file parameter is required.");
+    checkArgument(numParts > 0, "numParts must be greater than 0.");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long[] partStarts = partBoundaries(channel, format, numParts);
+      try {
+        return IntStream.range(0, partStarts.length - 1).parallel().mapToObj((i) -> {
+          long start = partStarts[i];
+          long size = partStarts[i + 1] - start;
+          if (size == 0) {
+            return new long[numBuckets];
+          }
+          try {
+            return partCounter.apply(channel.map(MapMode.READ_ONLY, start, size));
+          } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+          }
+        }).reduce(Histograms::addCounts).orElse(new long[numBuckets]);
+      } catch (UncheckedIOException uioe) {
+        throw uioe.getCause();
+      }
+    }
+  }
+
+  /**
+   * Split the file into parts that start at record boundaries. The returned array contains the
+   * start position of each part, followed by the file size.
+   */
+  static long[] partBoundaries(FileChannel channel, NumericRecordFormat format, int numParts)
+      throws IOException {
+    long fileSize = channel.size();
+    long minPartsForSize = (fileSize + MAX_PART_SIZE - 1) / MAX_PART_SIZE;
+    int actualNumParts = (int) Math.max(numParts, minPartsForSize);
+    actualNumParts = (int) Math.max(1, Math.min(actualNumParts, Math.max(1, fileSize)));
+
+    long[] boundaries = new long[actualNumParts + 1];
+    boundaries[actualNumParts] = fileSize;
+    for (int i = 1; i < actualNumParts; i++) {
+      long nominalStart = fileSize / actualNumParts * i;
+      long start = Math.max(boundaries[i - 1], nominalStart);
+      boundaries[i] = format.nextRecordStart(channel, start, fileSize);
+    }
+    return boundaries;
+  }
+}
@@ -0,0 +1,418 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.function.DoubleConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * A description of how numeric values are stored in a file, for use with
+ * {@link MappedFileIngester}.
+ * <p>
+ * Text formats consist of lines separated by {@code '\n'} (optionally preceded by {@code '\r'}),
+ * where each line contains columns separated by a delimiter. The value to count is taken from one
+ * column of each line. Lines where that column is missing, empty, or does not start with a sign, a
+ * digit, or (for {@code double} values) a decimal point, such as a header line, are skipped. A
+ * column that does start that way must contain a complete number, or an IllegalArgumentException
+ * is thrown: a value that is counted as a {@code long} value must be an integer that fits in a
+ * {@code long} (so values such as {@code 12.5}, {@code 1e3}, and {@code -} are rejected), and a
+ * value that is counted as a {@code double} value must be a decimal number with an optional
+ * exponent.
+ * <p>
+ * Binary formats consist of fixed-width records, each of which contains one little-endian
+ * {@code long} or {@code double} value at a fixed offset within the record. An incomplete record at
+ * the end of the file is ignored.
+ * <p>
+ * Values are parsed directly from the bytes of the file, without creating String instances. Text
+ * values that are counted as {@code double} values are rounded correctly, as by
+ * {@link Double#parseDouble(String)}, if they have at most 15 significant digits and a decimal
+ * exponent of at most 22 in magnitude; other values may differ from the correctly rounded value
+ * in the last bit or two, and only their first 18 significant digits are used.
+ */
+public abstract class NumericRecordFormat {
+  NumericRecordFormat() {}
+
+  /**
+   * Get a format for text files whose columns are separated by a single delimiter character, such
+   * as a comma.
+   *
+   * @param columnIndex The index of the column containing the value to count. The first column
+   *        has an index of 0.
+   * @param delimiter The character that separates columns.
+   * @return A NumericRecordFormat for delimited text files.
+   */
+  public static NumericRecordFormat delimitedText(int columnIndex, char delimiter) {
+    checkArgument(columnIndex >= 0, "columnIndex cannot be negative.");
+    checkArgument(delimiter < 0x80 && delimiter != '\n' && delimiter != '\r',
+        "delimiter must be an ASCII character other than a line separator.");
+    return new TextFormat(columnIndex, (byte) delimiter);
+  }
+
+  /**
+   * Get a format for text files whose columns are separated by any number of spaces and tabs.
+   * Whitespace at the start of a line is ignored.
+   *
+   * @param columnIndex The index of the column containing the value to count. The first column
+   *        has an index of 0.
+   * @return A NumericRecordFormat for whitespace-separated text files.
+   */
+  public static NumericRecordFormat whitespaceSeparatedText(int columnIndex) {
+    checkArgument(columnIndex >= 0, "columnIndex cannot be negative.");
+    return new TextFormat(columnIndex, TextFormat.WHITESPACE);
+  }
+
+  /**
+   * Get a format for binary files containing fixed-width records, each of which contains a
+   * little-endian {@code long} value.
+   *
+   * @param recordLength The number of bytes in each record.
+   * @param valueOffset The offset of the value within each record.
+   * @return A NumericRecordFormat for binary files.
+   */
+  public static NumericRecordFormat littleEndianLongs(int recordLength, int valueOffset) {
+    return new BinaryFormat(recordLength, valueOffset, false);
+  }
+
+  /**
+   * Get a format for binary files containing fixed-width records, each of which contains a
+   * little-endian {@code double} value.
+   *
+   * @param recordLength The number of bytes in each record.
+   * @param valueOffset The offset of the value within each record.
+   * @return A NumericRecordFormat for binary files.
+   */
+  public static NumericRecordFormat littleEndianDoubles(int recordLength, int valueOffset) {
+    return new BinaryFormat(recordLength, valueOffset, true);
+  }
+
+  /**
+   * Find the position of the first record that starts at or after the specified position.
+   */
+  abstract long nextRecordStart(FileChannel channel, long position, long fileSize)
+      throws IOException;
+
+  /**
+   * Parse every record in the buffer, which contains only whole records, as a long value.
+   *
+   * @throws IllegalArgumentException if a record contains a malformed value.
+   */
+  abstract void forEachLong(ByteBuffer records, LongConsumer consumer);
+
+  /**
+   * Parse every record in the buffer, which contains only whole records, as a double value.
+   *
+   * @throws IllegalArgumentException if a record contains a malformed value.
+   */
+  abstract void forEachDouble(ByteBuffer records, DoubleConsumer consumer);
+
+  private static final class BinaryFormat extends NumericRecordFormat {
+    private final int recordLength;
+    private final int valueOffset;
+    private final boolean isDouble;
+
+    BinaryFormat(int recordLength, int valueOffset, boolean isDouble) {
+      checkArgument(valueOffset >= 0, "valueOffset cannot be negative.");
+      checkArgument(recordLength >= valueOffset + Long.BYTES,
+          "recordLength must be large enough to hold a value at valueOffset.");
+      this.recordLength = recordLength;
+      this.valueOffset = valueOffset;
+      this.isDouble = isDouble;
+    }
+
+    @Override
+    long nextRecordStart(FileChannel channel, long position, long fileSize) {
+      long recordIndex = (position + recordLength - 1) / recordLength;
+      return Math.min(recordIndex * recordLength, fileSize);
+    }
+
+    @Override
+    void forEachLong(ByteBuffer records, LongConsumer consumer) {
+      records.order(ByteOrder.LITTLE_ENDIAN);
+      int end = records.limit() - recordLength;
+      for (int pos = 0; pos <= end; pos += recordLength) {
+        if (isDouble) {
+          consumer.accept((long) records.getDouble(pos + valueOffset));
+        } else {
+          consumer.accept(records.getLong(pos + valueOffset));
+        }
+      }
+    }
+
+    @Override
+    void forEachDouble(ByteBuffer records, DoubleConsumer consumer) {
+      records.order(ByteOrder.LITTLE_ENDIAN);
+      int end = records.limit() - recordLength;
+      for (int pos = 0; pos <= end; pos += recordLength) {
+        if (isDouble) {
+          consumer.accept(records.getDouble(pos + valueOffset));
+        } else {
+          consumer.accept(records.getLong(pos + valueOffset));
+        }
+      }
+    }
+  }
+
+  private static final class TextFormat extends NumericRecordFormat {
+    static final byte WHITESPACE = -1;
+    private static final int SCAN_BUFFER_SIZE = 8192;
+    private static final int MAX_SIGNIFICANT_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+        1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final int columnIndex;
+    private final byte delimiter;
+
+    TextFormat(int columnIndex, byte delimiter) {
+      this.columnIndex = columnIndex;
+      this.delimiter = delimiter;
+    }
+
+    @Override
+    long nextRecordStart(FileChannel channel, long position, long fileSize) throws IOException {
+      if (position <= 0) {
+        return 0;
+      }
+      // A record starts at the position just after a newline, so start looking at position - 1.
+      ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+      long scanPosition = position - 1;
+      while (scanPosition < fileSize) {
+        scanBuffer.clear();
+        int numRead = channel.read(scanBuffer, scanPosition);
+        if (numRead <= 0) {
+          break;
+        }
+        for (int i = 0; i < numRead; i++) {
+          if (scanBuffer.get(i) == '\n') {
+            return scanPosition + i + 1;
+          }
+        }
+        scanPosition += numRead;
+      }
+      return fileSize;
+    }
+
+    private boolean isDelimiter(byte b) {
+      if (delimiter == WHITESPACE) {
+        return b == ' ' || b == '\t';
+      }
+      return b == delimiter;
+    }
+
+    /**
+     * Find the start of the value column in the line that starts at lineStart, or -1 if the line
+     * does not have enough columns.
+     */
+    private int columnStart(ByteBuffer records, int lineStart, int lineEnd) {
+      int pos = lineStart;
+      if (delimiter == WHITESPACE) {
+        while (pos < lineEnd && isDelimiter(records.get(pos))) {
+          pos++;
+        }
+      }
+      for (int column = 0; column < columnIndex; column++) {
+        while (pos < lineEnd && !isDelimiter(records.get(pos))) {
+          pos++;
+        }
+        if (pos >= lineEnd) {
+          return -1;
+        }
+        pos++;
+        if (delimiter == WHITESPACE) {
+          while (pos < lineEnd && isDelimiter(records.get(pos))) {
+            pos++;
+          }
+        }
+      }
+      return pos;
+    }
+
+    private static int lineEnd(ByteBuffer records, int lineStart, int limit) {
+      int pos = lineStart;
+      while (pos < limit && records.get(pos) != '\n') {
+        pos++;
+      }
+      return pos;
+    }
+
+    /**
+     * Determine whether the value column ends at pos: at the end of the line, at a delimiter, or at
+     * the carriage return that precedes the newline.
+     */
+    private boolean isColumnEnd(ByteBuffer records, int pos, int lineEnd) {
+      if (pos == lineEnd) {
+        return true;
+      }
+      byte b = records.get(pos);
+      return isDelimiter(b) || (b == '\r' && pos + 1 == lineEnd);
+    }
+
+    private IllegalArgumentException malformedValue(ByteBuffer records, int columnStart,
+        int lineEnd, String type) {
+      int columnEnd = columnStart;
+      while (!isColumnEnd(records, columnEnd, lineEnd)) {
+        columnEnd++;
+      }
+      byte[] column = new byte[columnEnd - columnStart];
+      for (int i = 0; i < column.length; i++) {
+        column[i] = records.get(columnStart + i);
+      }
+      return new IllegalArgumentException(
+          String.format("Malformed %s value \"%s\".", type, new String(column, US_ASCII)));
+    }
+
+    @Override
+    void forEachLong(ByteBuffer records, LongConsumer consumer) {
+      int limit = records.limit();
+      int lineStart = 0;
+      while (lineStart < limit) {
+        int lineEnd = lineEnd(records, lineStart, limit);
+        int columnStart = columnStart(records, lineStart, lineEnd);
+        if (columnStart >= 0 && columnStart < lineEnd) {
+          int pos = columnStart;
+          boolean negative = false;
+          byte b = records.get(pos);
+          if (b == '-' || b == '+') {
+            negative = (b == '-');
+            pos++;
+          } else if (b < '0' || b > '9') {
+            lineStart = lineEnd + 1;
+            continue;
+          }
+          // Accumulate the value as a negative number, since Long.MIN_VALUE has no positive
+          // counterpart.
+          long negativeValue = 0;
+          boolean hasDigits = false;
+          try {
+            while (pos < lineEnd) {
+              int digit = records.get(pos) - '0';
+              if (digit < 0 || digit > 9) {
+                break;
+              }
+              negativeValue = Math.subtractExact(Math.multiplyExact(negativeValue, 10), digit);
+              hasDigits = true;
+              pos++;
+            }
+            if (!hasDigits || !isColumnEnd(records, pos, lineEnd)) {
+              throw malformedValue(records, columnStart, lineEnd, "long");
+            }
+            consumer.accept(negative ? negativeValue : Math.negateExact(negativeValue));
+          } catch (ArithmeticException ae) {
+            throw malformedValue(records, columnStart, lineEnd, "long");
+          }
+        }
+        lineStart = lineEnd + 1;
+      }
+    }
+
+    @Override
+    void forEachDouble(ByteBuffer records, DoubleConsumer consumer) {
+      int limit = records.limit();
+      int lineStart = 0;
+      while (lineStart < limit) {
+        int lineEnd = lineEnd(records, lineStart, limit);
+        int columnStart = columnStart(records, lineStart, lineEnd);
+        if (columnStart >= 0 && columnStart < lineEnd) {
+          int pos = columnStart;
+          boolean negative = false;
+          byte b = records.get(pos);
+          if (b == '-' || b == '+') {
+            negative = (b == '-');
+            pos++;
+          } else if ((b < '0' || b > '9') && b != '.') {
+            lineStart = lineEnd + 1;
+            continue;
+          }
+
+          // Accumulate up to MAX_SIGNIFICANT_DIGITS digits in a long mantissa, and track the
+          // decimal exponent that the mantissa must be scaled by.
+          long mantissa = 0;
+          int numSignificantDigits = 0;
+          int exponent = 0;
+          boolean hasDigits = false;
+          boolean inFraction = false;
+          while (pos < lineEnd) {
+            byte c = records.get(pos);
+            if (c == '.' && !inFraction) {
+              inFraction = true;
+              pos++;
+              continue;
+            }
+            int digit = c - '0';
+            if (digit < 0 || digit > 9) {
+              break;
+            }
+            hasDigits = true;
+            if (numSignificantDigits < MAX_SIGNIFICANT_DIGITS) {
+              if (mantissa != 0 || digit != 0) {
+                numSignificantDigits++;
+              }
+              mantissa = mantissa * 10 + digit;
+              if (inFraction) {
+                exponent--;
+              }
+            } else if (!inFraction) {
+              exponent++;
+            }
+            pos++;
+          }
+          if (!hasDigits) {
+            throw malformedValue(records, columnStart, lineEnd, "double");
+          }
+
+          if (pos < lineEnd && (records.get(pos) == 'e' || records.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < lineEnd && (records.get(pos) == '-' || records.get(pos) == '+')) {
+              negativeExponent = (records.get(pos) == '-');
+              pos++;
+            }
+            int explicitExponent = 0;
+            boolean hasExponentDigits = false;
+            while (pos < lineEnd) {
+              int digit = records.get(pos) - '0';
+              if (digit < 0 || digit > 9) {
+                break;
+              }
+              if (explicitExponent < 10000) {
+                explicitExponent = explicitExponent * 10 + digit;
+              }
+              hasExponentDigits = true;
+              pos++;
+            }
+            if (!hasExponentDigits) {
+              throw malformedValue(records, columnStart, lineEnd, "double");
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+          }
+          if (!isColumnEnd(records, pos, lineEnd)) {
+            throw malformedValue(records, columnStart, lineEnd, "double");
+          }
+
+          double value = scale(mantissa, exponent);
+          consumer.accept(negative ? -value : value);
+        }
+        lineStart = lineEnd + 1;
+      }
+    }
+
+    private static double scale(long mantissa, int exponent) {
+      if (mantissa == 0) {
+        return 0.0;
+      }
+      // A mantissa of at most 2^53 converts to a double exactly, and then multiplying or dividing
+      // it by an exactly-representable power of ten is correctly rounded. A larger mantissa is
+      // rounded when it is converted, so the result may be off by one unit in the last place.
+      if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+        return mantissa * POWERS_OF_TEN[exponent];
+      }
+      if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+        return mantissa / POWERS_OF_TEN[-exponent];
+      }
+      return mantissa * Math.pow(10, exponent);
+    }
+  }
+}
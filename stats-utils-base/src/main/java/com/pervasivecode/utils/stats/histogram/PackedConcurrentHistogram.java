@@ -0,0 +1,173 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Histogram that stores its bucket counts as 16-bit or 32-bit counters packed into
+ * {@code long} words, using a half or a quarter of the memory of a {@link ConcurrentHistogram}.
+ * <p>
+ * Each counter is incremented via a compare-and-set of the word that contains it. When a counter
+ * reaches its limit (65,536 for 16-bit counters, or 4,294,967,296 for 32-bit counters, minus the
+ * number of buckets), its bucket is promoted: the bucket gets a separate 64-bit counter, which
+ * counts the bucket's values from then on, and the packed counter is replaced by the number of that
+ * 64-bit counter (which is why the limit leaves room for one number per bucket). Only promoted
+ * buckets have a 64-bit counter, and the 64-bit counters are allocated in chunks that double in
+ * size, so each promoted bucket costs 8 to 16 more bytes. A histogram with a few busy buckets, such
+ * as a latency histogram, still uses much less memory than a ConcurrentHistogram.
+ * <p>
+ * Recording a value costs one bucket selection, a read of the counter's word, and a
+ * compare-and-set of the word (or an increment of the 64-bit counter, if the bucket has been
+ * promoted), which is retried if another thread changed any counter in the same word in the
+ * meantime. Under low contention this is about as fast as
+ * {@link ConcurrentHistogram#countValue(Object)}; under heavy contention on adjacent buckets it is
+ * somewhat slower, since 2 or 4 buckets share each word. The {@code PackedHistogramBenchmark}
+ * example measures both.
+ *
+ * @param <T> The type of value counted by this Histogram.
+ */
+public final class PackedConcurrentHistogram<T> implements MutableHistogram<T> {
+  private final BucketSelector<T> bucketer;
+  private final int counterBits;
+  private final int countersPerWord;
+  private final long counterMask;
+  // Packed counters below this value are counts. Values from this value up are the number of the
+  // bucket's 64-bit counter, plus this value.
+  private final long promotionThreshold;
+  private final AtomicLongArray words;
+  // The 64-bit counters of promoted buckets. Chunk c holds counters 2^c - 1 through 2^(c+1) - 2.
+  // Replaced (with a copy that has one more chunk) when the chunks are full. The chunks themselves
+  // are never replaced, so a thread that uses an old copy still increments the current counters.
+  private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+  // Guarded by this.
+  private int numPromoted = 0;
+
+  /**
+   * Create a histogram with all counts set to zero.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in. With
+   *        16-bit counters, it can have at most 32,768 buckets.
+   * @param counterBits The width of each packed counter: either 16 or 32.
+   */
+  public PackedConcurrentHistogram(BucketSelector<T> bucketer, int counterBits) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    checkArgument(counterBits == 16 || counterBits == 32, "counterBits must be 16 or 32.");
+    this.counterBits = counterBits;
+    this.countersPerWord = Long.SIZE / counterBits;
+    this.counterMask = (1L << counterBits) - 1;
+    int numBuckets = bucketer.numBuckets();
+    checkArgument(numBuckets <= (1L << (counterBits - 1)),
+        "With %s-bit counters, the bucketer can have at most %s buckets.", counterBits,
+        1L << (counterBits - 1));
+    this.promotionThreshold = counterMask + 1 - numBuckets;
+    this.words = new AtomicLongArray((numBuckets + countersPerWord - 1) / countersPerWord);
+  }
+
+  @Override
+  public int numBuckets() {
+    return bucketer.numBuckets();
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    checkElementIndex(index, numBuckets(), "index");
+    long counter = (words.get(index / countersPerWord) >>> shiftFor(index)) & counterMask;
+    if (counter >= promotionThreshold) {
+      int slot = (int) (counter - promotionThreshold);
+      int chunk = chunkFor(slot);
+      return chunks[chunk].get(offsetFor(slot, chunk));
+    }
+    return counter;
+  }
+
+  @Override
+  public void countValue(T value) {
+    requireNonNull(value, "The value parameter is required.");
+    int bucketIndex = bucketer.bucketIndexFor(value);
+    int wordIndex = bucketIndex / countersPerWord;
+    int shift = shiftFor(bucketIndex);
+    long increment = 1L << shift;
+    while (true) {
+      long word = words.get(wordIndex);
+      long counter = (word >>> shift) & counterMask;
+      if (counter >= promotionThreshold) {
+        // The bucket has been promoted. The chunks are published before the packed counter is
+        // changed to the slot number, so this thread's copy of the chunks includes the slot.
+        int slot = (int) (counter - promotionThreshold);
+        int chunk = chunkFor(slot);
+        chunks[chunk].incrementAndGet(offsetFor(slot, chunk));
+        return;
+      }
+      if (counter == promotionThreshold - 1) {
+        promote(wordIndex, shift);
+        continue;
+      }
+      if (words.compareAndSet(wordIndex, word, word + increment)) {
+        return;
+      }
+    }
+  }
+
+  private int shiftFor(int bucketIndex) {
+    return (bucketIndex % countersPerWord) * counterBits;
+  }
+
+  private static int chunkFor(int slot) {
+    return 31 - Integer.numberOfLeadingZeros(slot + 1);
+  }
+
+  private static int offsetFor(int slot, int chunk) {
+    return slot + 1 - (1 << chunk);
+  }
+
+  /**
+   * Give a full bucket a 64-bit counter that starts at the bucket's count, and replace the bucket's
+   * packed counter with the counter's slot number. Only the thread holding the lock changes a full
+   * packed counter, so the count can't change in the meantime.
+   */
+  private synchronized void promote(int wordIndex, int shift) {
+    long full = promotionThreshold - 1;
+    if (((words.get(wordIndex) >>> shift) & counterMask) != full) {
+      // Another thread promoted the bucket already.
+      return;
+    }
+    int slot = numPromoted++;
+    int chunk = chunkFor(slot);
+    AtomicLongArray[] current = chunks;
+    if (chunk == current.length) {
+      current = Arrays.copyOf(current, chunk + 1);
+      current[chunk] = new AtomicLongArray(1 << chunk);
+    }
+    current[chunk].set(offsetFor(slot, chunk), full);
+    chunks = current;
+    long marker = (promotionThreshold + slot - full) << shift;
+    while (true) {
+      long word = words.get(wordIndex);
+      if (words.compareAndSet(wordIndex, word, word + marker)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the approximate number of bytes of heap memory used to store the bucket counts, including
+   * the 64-bit counters of promoted buckets, if any.
+   *
+   * @return The size of the counters, in bytes.
+   */
+  public long counterBytes() {
+    long bytes = (long) Long.BYTES * words.length();
+    for (AtomicLongArray chunk : chunks) {
+      bytes += (long) Long.BYTES * chunk.length();
+    }
+    return bytes;
+  }
+}
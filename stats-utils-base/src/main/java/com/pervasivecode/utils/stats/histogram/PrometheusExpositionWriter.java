@@ -0,0 +1,353 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Render histograms in the Prometheus text exposition format (which is also accepted by OpenMetrics
+ * scrapers), as a series of cumulative {@code _bucket} samples with {@code le} labels, followed by
+ * {@code _count} and (optionally) {@code _sum} samples.
+ * <p>
+ * The output is written directly into a byte buffer that is reused from one scrape to the next,
+ * without creating intermediate Strings for the samples. The {@code le} label of each bucket is
+ * rendered once per BucketingSystem, by creating a {@link BucketLabels} instance, and is then
+ * reused for every histogram that has those buckets.
+ * <p>
+ * Example output for a histogram named {@code latency_ms} with labels {@code path="/login"}:
+ *
+ * <pre>
+ * latency_ms_bucket{path="/login",le="10"} 4
+ * latency_ms_bucket{path="/login",le="100"} 9
+ * latency_ms_bucket{path="/login",le="+Inf"} 10
+ * latency_ms_count{path="/login"} 10
+ * </pre>
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @see PrometheusScrapeEndpoint
+ */
+public final class PrometheusExpositionWriter {
+  /** The HTTP Content-Type of the text exposition format. */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  private static final byte[] BUCKET_SUFFIX = "_bucket{".getBytes(UTF_8);
+  private static final byte[] COUNT_SUFFIX = "_count".getBytes(UTF_8);
+  private static final byte[] SUM_SUFFIX = "_sum".getBytes(UTF_8);
+
+  /**
+   * The precomputed {@code le} labels of the buckets of a BucketingSystem.
+   *
+   * @param <T> The type of value counted by histograms that have these buckets.
+   */
+  public static final class BucketLabels<T> {
+    private final int numBuckets;
+    private final byte[][] leLabels;
+
+    private BucketLabels(BucketingSystem<T> bucketingSystem,
+        Function<? super T, String> upperBoundFormatter) {
+      this.numBuckets = bucketingSystem.numBuckets();
+      this.leLabels = new byte[numBuckets][];
+      for (int i = 0; i < numBuckets; i++) {
+        String upperBound = (i == numBuckets - 1) ? "+Inf"
+            : upperBoundFormatter.apply(bucketingSystem.bucketUpperBound(i));
+        leLabels[i] = ("le=\"" + escapeLabelValue(upperBound) + "\"}").getBytes(UTF_8);
+      }
+    }
+
+    /**
+     * Render the {@code le} labels of the buckets of a BucketingSystem whose upper bound values are
+     * not numbers, using a function that formats each upper bound value as a Prometheus floating
+     * point value, such as "0.25" or "1e6".
+     *
+     * @param bucketingSystem The buckets to render labels for.
+     * @param upperBoundFormatter A function that formats an upper bound value as a number.
+     * @param <T> The type of value counted by histograms that have these buckets.
+     * @return The rendered labels.
+     */
+    public static <T> BucketLabels<T> of(BucketingSystem<T> bucketingSystem,
+        Function<? super T, String> upperBoundFormatter) {
+      requireNonNull(bucketingSystem, "The bucketingSystem parameter is required.");
+      requireNonNull(upperBoundFormatter, "The upperBoundFormatter parameter is required.");
+      return new BucketLabels<>(bucketingSystem, upperBoundFormatter);
+    }
+
+    /**
+     * Render the {@code le} labels of the buckets of a BucketingSystem whose upper bound values are
+     * numbers.
+     *
+     * @param bucketingSystem The buckets to render labels for.
+     * @param <T> The type of value counted by histograms that have these buckets.
+     * @return The rendered labels.
+     */
+    public static <T extends Number> BucketLabels<T> of(BucketingSystem<T> bucketingSystem) {
+      return of(bucketingSystem, PrometheusExpositionWriter::formatUpperBound);
+    }
+  }
+
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int size = 0;
+  private final byte[] digits = new byte[20];
+
+  /**
+   * Discard everything that has been written, so that the buffer can be reused for the next
+   * scrape.
+   */
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * Get the number of bytes that have been written.
+   *
+   * @return The size of the output.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Copy the output to a stream.
+   *
+   * @param out The stream to write the output to.
+   * @throws IOException if the stream could not be written to.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    requireNonNull(out, "The out parameter is required.");
+    out.write(buffer, 0, size);
+  }
+
+  /**
+   * Get a copy of the output.
+   *
+   * @return The output, as UTF-8 bytes.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, size, UTF_8);
+  }
+
+  /**
+   * Write the {@code # HELP} and {@code # TYPE} lines that precede the samples of a histogram
+   * metric. These should be written once per metric name, before the first call to
+   * {@link #writeHistogram(String, String, Histogram, BucketLabels)} for that name.
+   *
+   * @param name The metric name, such as "http_request_duration_seconds".
+   * @param help A description of the metric.
+   */
+  public void writeHistogramHeader(String name, String help) {
+    checkMetricName(name);
+    requireNonNull(help, "The help parameter is required.");
+    writeText("# HELP ");
+    writeText(name);
+    writeByte(' ');
+    writeText(help.replace("\\", "\\\\").replace("\n", "\\n"));
+    writeText("\n# TYPE ");
+    writeText(name);
+    writeText(" histogram\n");
+  }
+
+  /**
+   * Write the bucket and count samples of a histogram. No {@code _sum} sample is written, since a
+   * Histogram does not record the sum of the values that it counted.
+   *
+   * @param name The metric name, such as "http_request_duration_seconds".
+   * @param labels The labels that identify this histogram among others with the same name, in the
+   *        format produced by {@link #formatLabels(Map)}, or an empty string.
+   * @param histogram The histogram to write.
+   * @param bucketLabels The rendered {@code le} labels of the histogram's buckets.
+   * @param <T> The type of value counted by the histogram.
+   */
+  public <T> void writeHistogram(String name, String labels, Histogram<T> histogram,
+      BucketLabels<T> bucketLabels) {
+    checkMetricName(name);
+    requireNonNull(labels, "The labels parameter is required.");
+    requireNonNull(histogram, "The histogram parameter is required.");
+    requireNonNull(bucketLabels, "The bucketLabels parameter is required.");
+    int numBuckets = histogram.numBuckets();
+    checkArgument(numBuckets == bucketLabels.numBuckets,
+        "The histogram has %s buckets, but bucketLabels has %s.", numBuckets,
+        bucketLabels.numBuckets);
+
+    long cumulativeCount = 0;
+    for (int i = 0; i < numBuckets; i++) {
+      cumulativeCount += histogram.countInBucket(i);
+      writeText(name);
+      writeBytes(BUCKET_SUFFIX);
+      if (!labels.isEmpty()) {
+        writeText(labels);
+        writeByte(',');
+      }
+      writeBytes(bucketLabels.leLabels[i]);
+      writeByte(' ');
+      writeLong(cumulativeCount);
+      writeByte('\n');
+    }
+
+    writeText(name);
+    writeBytes(COUNT_SUFFIX);
+    writeLabels(labels);
+    writeByte(' ');
+    writeLong(cumulativeCount);
+    writeByte('\n');
+  }
+
+  /**
+   * Write the bucket, count, and sum samples of a histogram.
+   *
+   * @param name The metric name, such as "http_request_duration_seconds".
+   * @param labels The labels that identify this histogram among others with the same name, in the
+   *        format produced by {@link #formatLabels(Map)}, or an empty string.
+   * @param histogram The histogram to write.
+   * @param bucketLabels The rendered {@code le} labels of the histogram's buckets.
+   * @param sum The sum of all of the values counted by the histogram.
+   * @param <T> The type of value counted by the histogram.
+   */
+  public <T> void writeHistogram(String name, String labels, Histogram<T> histogram,
+      BucketLabels<T> bucketLabels, double sum) {
+    writeHistogram(name, labels, histogram, bucketLabels);
+    writeText(name);
+    writeBytes(SUM_SUFFIX);
+    writeLabels(labels);
+    writeByte(' ');
+    writeText(formatNumber(sum));
+    writeByte('\n');
+  }
+
+  /**
+   * Format a set of label names and values for use with
+   * {@link #writeHistogram(String, String, Histogram, BucketLabels)}. Label values are escaped as
+   * needed.
+   * <p>
+   * Since a histogram's labels usually do not change, the result should be computed once and
+   * reused for each scrape.
+   *
+   * @param labels The label names and values, in the order that they should be written.
+   * @return The formatted labels, such as {@code method="GET",path="/login"}.
+   */
+  public static String formatLabels(Map<String, String> labels) {
+    requireNonNull(labels, "The labels parameter is required.");
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> label : labels.entrySet()) {
+      String labelName = label.getKey();
+      checkArgument(isValidName(labelName, false) && !labelName.equals("le"),
+          "Invalid label name: '%s'", labelName);
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(labelName).append("=\"").append(escapeLabelValue(label.getValue())).append('"');
+    }
+    return sb.toString();
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static String formatUpperBound(Number value) {
+    if (value instanceof Double || value instanceof Float) {
+      return formatNumber(value.doubleValue());
+    }
+    return value.toString();
+  }
+
+  private static String formatNumber(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return (value > 0) ? "+Inf" : "-Inf";
+    }
+    return Double.toString(value);
+  }
+
+  private static boolean isValidName(String name, boolean allowColons) {
+    if (name.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+          || (c == ':' && allowColons) || (c >= '0' && c <= '9' && i > 0);
+      if (!valid) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void checkMetricName(String name) {
+    requireNonNull(name, "The name parameter is required.");
+    checkArgument(isValidName(name, true), "Invalid metric name: '%s'", name);
+  }
+
+  private void writeLabels(String labels) {
+    if (!labels.isEmpty()) {
+      writeByte('{');
+      writeText(labels);
+      writeByte('}');
+    }
+  }
+
+  private void ensureCapacity(int additionalBytes) {
+    if (size + additionalBytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additionalBytes));
+    }
+  }
+
+  private void writeByte(char c) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) c;
+  }
+
+  private void writeBytes(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  private void writeText(String text) {
+    int length = text.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        // Rare: the text is not all ASCII, so let the JDK encode it.
+        size -= i;
+        writeBytes(text.getBytes(UTF_8));
+        return;
+      }
+      buffer[size++] = (byte) c;
+    }
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      writeText(Long.toString(value));
+      return;
+    }
+    ensureCapacity(digits.length);
+    if (value < 0) {
+      buffer[size++] = '-';
+      value = -value;
+    }
+    int numDigits = 0;
+    do {
+      digits[numDigits++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value != 0);
+    while (numDigits > 0) {
+      buffer[size++] = digits[--numDigits];
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP server that Prometheus can scrape, which serves the histograms that a collector
+ * function writes to a {@link PrometheusExpositionWriter}.
+ * <p>
+ * Requests are handled one at a time by a single thread, which reuses the same
+ * PrometheusExpositionWriter (and therefore the same output buffer) for every scrape.
+ * <p>
+ * This uses the {@code com.sun.net.httpserver} HTTP server that is included in the JDK, so it has
+ * no additional dependencies. Applications that already have an HTTP server can use a
+ * PrometheusExpositionWriter directly instead.
+ * <p>
+ * If the collector function throws an exception, the scrape gets a 500 (Internal Server Error)
+ * response, and the exception is logged via {@link Logger java.util.logging}.
+ */
+public final class PrometheusScrapeEndpoint implements Closeable {
+  private static final Logger logger = Logger.getLogger(PrometheusScrapeEndpoint.class.getName());
+
+  private final HttpServer server;
+  private final Consumer<PrometheusExpositionWriter> collector;
+  private final PrometheusExpositionWriter writer = new PrometheusExpositionWriter();
+
+  private PrometheusScrapeEndpoint(HttpServer server,
+      Consumer<PrometheusExpositionWriter> collector) {
+    this.server = server;
+    this.collector = collector;
+  }
+
+  /**
+   * Start serving histograms.
+   *
+   * @param bindAddress The address to listen on. Use port 0 to listen on any available port, and
+   *        then call {@link #localAddress()} to find out which port was chosen.
+   * @param path The path to serve the histograms at, such as "/metrics".
+   * @param collector A function that writes the current state of all of the histograms to be
+   *        served, using
+   *        {@link PrometheusExpositionWriter#writeHistogramHeader(String, String)} and
+   *        {@link PrometheusExpositionWriter#writeHistogram(String, String, Histogram,
+   *        PrometheusExpositionWriter.BucketLabels)}. It will be called once per scrape.
+   * @return A running endpoint.
+   * @throws IOException if the server could not listen on the specified address.
+   */
+  public static PrometheusScrapeEndpoint start(InetSocketAddress bindAddress, String path,
+      Consumer<PrometheusExpositionWriter> collector) throws IOException {
+    requireNonNull(bindAddress, "The bindAddress parameter is required.");
+    requireNonNull(path, "The path parameter is required.");
+    requireNonNull(collector, "The collector parameter is required.");
+    checkArgument(path.startsWith("/"), "path must start with '/'.");
+
+    HttpServer server = HttpServer.create(bindAddress, 0);
+    PrometheusScrapeEndpoint endpoint = new PrometheusScrapeEndpoint(server, collector);
+    server.createContext(path, endpoint::handle);
+    // With no executor, requests are handled one at a time by the server's dispatcher thread.
+    server.setExecutor(null);
+    server.start();
+    return endpoint;
+  }
+
+  /**
+   * Get the address that the endpoint is listening on.
+   *
+   * @return The endpoint's address.
+   */
+  public InetSocketAddress localAddress() {
+    return server.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      synchronized (writer) {
+        writer.reset();
+        try {
+          collector.accept(writer);
+        } catch (RuntimeException e) {
+          // Don't let the exception reach the HttpServer's dispatcher thread, which would drop the
+          // connection instead of finishing the 500 response.
+          logger.log(Level.WARNING, "The collector failed to write the histograms.", e);
+          exchange.sendResponseHeaders(500, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", PrometheusExpositionWriter.CONTENT_TYPE);
+        if (method.equals("HEAD")) {
+          exchange.sendResponseHeaders(200, -1);
+          return;
+        }
+        exchange.sendResponseHeaders(200, writer.size());
+        try (OutputStream body = exchange.getResponseBody()) {
+          writer.writeTo(body);
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Stop serving histograms, waiting up to one second for a scrape in progress to finish.
+   */
+  @Override
+  public void close() {
+    server.stop(1);
+  }
+}
@@ -0,0 +1,82 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Histogram that only one thread may count values in, but that any thread may read.
+ * <p>
+ * This is intended for recorders that are confined to a single thread, such as an event loop.
+ * Counting a value does not use an atomic read-modify-write operation (as
+ * {@link ConcurrentHistogram} does): the owning thread reads the bucket's count, and writes the
+ * incremented count back with an ordered write ({@link AtomicLongArray#lazySet(int, long)}), which
+ * costs about as much as a plain write. Threads other than the owner that read the counts (for
+ * example, to take a snapshot via {@link ImmutableHistogram#copyOf(Histogram)}) always see a
+ * complete, non-torn count, and never see a count decrease.
+ * <p>
+ * The owning thread is the first thread that counts a value. When assertions are enabled (via the
+ * JVM's {@code -ea} option), counting a value on any other thread throws an AssertionError. When
+ * assertions are disabled, counting values on more than one thread will lose some counts.
+ *
+ * @param <T> The type of value counted by this Histogram.
+ */
+public final class SingleWriterHistogram<T> implements MutableHistogram<T> {
+  private final BucketSelector<T> bucketer;
+  private final AtomicLongArray bucketCounts;
+  // Only used when assertions are enabled.
+  private volatile Thread owner = null;
+
+  /**
+   * Create a histogram with all counts set to zero.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   */
+  public SingleWriterHistogram(BucketSelector<T> bucketer) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    this.bucketCounts = new AtomicLongArray(bucketer.numBuckets());
+  }
+
+  @Override
+  public int numBuckets() {
+    return bucketer.numBuckets();
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    checkElementIndex(index, bucketCounts.length(), "index");
+    return bucketCounts.get(index);
+  }
+
+  /**
+   * Count a value. This must only be called by the owning thread.
+   *
+   * @param value The value to count.
+   */
+  @Override
+  public void countValue(T value) {
+    assert isOwnedByCurrentThread() : "Only the owning thread (" + owner.getName()
+        + ") can count values in this histogram.";
+    requireNonNull(value, "The value parameter is required.");
+    int bucketIndex = bucketer.bucketIndexFor(value);
+    // Only this thread writes the count, so the read-then-write doesn't need to be atomic.
+    bucketCounts.lazySet(bucketIndex, bucketCounts.get(bucketIndex) + 1);
+  }
+
+  private boolean isOwnedByCurrentThread() {
+    Thread currentThread = Thread.currentThread();
+    if (owner == null) {
+      synchronized (this) {
+        if (owner == null) {
+          owner = currentThread;
+        }
+      }
+    }
+    return owner == currentThread;
+  }
+}
@@ -0,0 +1,290 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Histogram for BucketSelectors with a very large number of buckets, most of which
+ * are expected to remain empty. Only the counts of non-empty buckets are stored, in an
+ * open-addressing hash table that maps bucket indexes to counts.
+ * <p>
+ * New buckets are inserted into the table without locking, via compare-and-set of a table slot.
+ * When the table becomes half full it is replaced with one twice as large, and once the fraction
+ * of buckets that are non-empty exceeds the dense fill ratio, it is replaced with a
+ * {@link ConcurrentHistogram}-style array that has one counter per bucket, since that then uses
+ * less memory than the table. While the table is being replaced (which only one thread does at a
+ * time), threads that count values wait for the replacement to be finished, so that no counts are
+ * lost.
+ * <p>
+ * {@link #nonZeroBucketIndexes()} lists only the buckets that have been counted in, so that callers
+ * can examine the histogram's contents without visiting every bucket.
+ *
+ * @param <T> The type of value counted by this Histogram.
+ */
+public final class SparseConcurrentHistogram<T> implements MutableHistogram<T> {
+  /** The default fraction of non-empty buckets at which the histogram switches to an array. */
+  public static final double DEFAULT_DENSE_FILL_RATIO = 0.125;
+
+  private static final int INITIAL_CAPACITY = 16;
+  // Key values are bucket indexes plus one, so that 0 can mean "empty".
+  private static final int EMPTY = 0;
+  // Marks an empty slot of a table that is being replaced, so that nothing can be inserted there.
+  private static final int FROZEN_EMPTY = -1;
+  // Set in the count of a slot of a table that is being replaced, so that it can't be incremented.
+  private static final long FROZEN = Long.MIN_VALUE;
+  private static final int NOT_FOUND = -1;
+  private static final int REPLACING = -2;
+  private static final int FULL = -3;
+
+  private static final class Table {
+    final AtomicIntegerArray keys;
+    final AtomicLongArray counts;
+    final AtomicInteger size = new AtomicInteger();
+    final int mask;
+
+    Table(int capacity) {
+      this.keys = new AtomicIntegerArray(capacity);
+      this.counts = new AtomicLongArray(capacity);
+      this.mask = capacity - 1;
+    }
+
+    int capacity() {
+      return mask + 1;
+    }
+
+    /**
+     * Find the slot containing a bucket's count, inserting the bucket if necessary and requested.
+     * Returns the slot, or NOT_FOUND, REPLACING, or FULL.
+     */
+    int slotFor(int bucketIndex, boolean insert) {
+      int key = bucketIndex + 1;
+      int slot = hash(bucketIndex) & mask;
+      for (int probes = 0; probes <= mask; probes++) {
+        int existingKey = keys.get(slot);
+        if (existingKey == EMPTY) {
+          if (!insert) {
+            return NOT_FOUND;
+          }
+          if (keys.compareAndSet(slot, EMPTY, key)) {
+            size.incrementAndGet();
+            return slot;
+          }
+          existingKey = keys.get(slot);
+        }
+        if (existingKey == key) {
+          return slot;
+        }
+        if (existingKey == FROZEN_EMPTY) {
+          return REPLACING;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return insert ? FULL : NOT_FOUND;
+    }
+
+    private static int hash(int bucketIndex) {
+      int h = bucketIndex * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+  private final BucketSelector<T> bucketer;
+  private final int denseThreshold;
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+  // Non-null once the histogram has switched to one counter per bucket.
+  private volatile AtomicLongArray dense = null;
+
+  /**
+   * Create a histogram with all counts set to zero, which switches to one counter per bucket when
+   * more than {@link #DEFAULT_DENSE_FILL_RATIO} of its buckets are non-empty.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   */
+  public SparseConcurrentHistogram(BucketSelector<T> bucketer) {
+    this(bucketer, DEFAULT_DENSE_FILL_RATIO);
+  }
+
+  /**
+   * Create a histogram with all counts set to zero.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   * @param denseFillRatio The fraction of buckets that must be non-empty before the histogram
+   *        switches to one counter per bucket. This must be greater than 0 and at most 1.
+   */
+  public SparseConcurrentHistogram(BucketSelector<T> bucketer, double denseFillRatio) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    checkArgument(denseFillRatio > 0.0 && denseFillRatio <= 1.0,
+        "denseFillRatio must be greater than 0 and at most 1.");
+    this.denseThreshold = (int) Math.ceil(bucketer.numBuckets() * denseFillRatio);
+  }
+
+  @Override
+  public int numBuckets() {
+    return bucketer.numBuckets();
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  @Override
+  public void countValue(T value) {
+    requireNonNull(value, "The value parameter is required.");
+    int bucketIndex = bucketer.bucketIndexFor(value);
+    while (true) {
+      AtomicLongArray denseCounts = dense;
+      if (denseCounts != null) {
+        denseCounts.incrementAndGet(bucketIndex);
+        return;
+      }
+      Table t = table;
+      int slot = t.slotFor(bucketIndex, true);
+      if (slot == FULL) {
+        replace(t);
+      } else if (slot != REPLACING && increment(t.counts, slot)) {
+        int size = t.size.get();
+        if (size > t.capacity() / 2 || size > denseThreshold) {
+          replace(t);
+        }
+        return;
+      }
+      awaitReplacement(t);
+    }
+  }
+
+  private static boolean increment(AtomicLongArray counts, int slot) {
+    while (true) {
+      long count = counts.get(slot);
+      if ((count & FROZEN) != 0) {
+        return false;
+      }
+      if (counts.compareAndSet(slot, count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    checkElementIndex(index, numBuckets(), "index");
+    while (true) {
+      AtomicLongArray denseCounts = dense;
+      if (denseCounts != null) {
+        return denseCounts.get(index);
+      }
+      Table t = table;
+      int slot = t.slotFor(index, false);
+      if (slot == NOT_FOUND) {
+        return 0;
+      }
+      if (slot != REPLACING) {
+        long count = t.counts.get(slot);
+        if ((count & FROZEN) == 0) {
+          return count;
+        }
+      }
+      awaitReplacement(t);
+    }
+  }
+
+  private void awaitReplacement(Table t) {
+    while (table == t && dense == null) {
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Replace a table with a larger one, or with one counter per bucket. The old table's slots are
+   * frozen one at a time as their contents are copied, so that nothing can change them after they
+   * have been copied.
+   */
+  private synchronized void replace(Table t) {
+    if (table != t || dense != null) {
+      // Another thread already replaced it.
+      return;
+    }
+    boolean toDense = t.size.get() > denseThreshold;
+    AtomicLongArray denseCounts = toDense ? new AtomicLongArray(numBuckets()) : null;
+    Table larger = toDense ? null : new Table(t.capacity() * 2);
+    for (int slot = 0; slot < t.capacity(); slot++) {
+      int key = t.keys.get(slot);
+      if (key == EMPTY) {
+        if (t.keys.compareAndSet(slot, EMPTY, FROZEN_EMPTY)) {
+          continue;
+        }
+        key = t.keys.get(slot);
+      }
+      long count = t.counts.getAndAccumulate(slot, FROZEN, (c, frozen) -> c | frozen);
+      int bucketIndex = key - 1;
+      if (toDense) {
+        denseCounts.set(bucketIndex, count);
+      } else {
+        int newSlot = larger.slotFor(bucketIndex, true);
+        larger.counts.set(newSlot, count);
+      }
+    }
+    if (toDense) {
+      dense = denseCounts;
+    } else {
+      table = larger;
+    }
+  }
+
+  /**
+   * Determine whether this histogram has switched from storing only non-empty buckets to storing
+   * one counter per bucket.
+   *
+   * @return True if there is one counter per bucket.
+   */
+  public boolean isDense() {
+    return dense != null;
+  }
+
+  /**
+   * Get the indexes of the buckets that have a count greater than zero.
+   * <p>
+   * If values are being counted concurrently, buckets that become non-empty during this call may
+   * or may not be included.
+   *
+   * @return The indexes of the non-empty buckets, in ascending order.
+   */
+  public int[] nonZeroBucketIndexes() {
+    while (true) {
+      AtomicLongArray denseCounts = dense;
+      if (denseCounts != null) {
+        int[] indexes = new int[denseCounts.length()];
+        int numIndexes = 0;
+        for (int i = 0; i < denseCounts.length(); i++) {
+          if (denseCounts.get(i) != 0) {
+            indexes[numIndexes++] = i;
+          }
+        }
+        return Arrays.copyOf(indexes, numIndexes);
+      }
+      Table t = table;
+      int[] indexes = new int[t.capacity()];
+      int numIndexes = 0;
+      boolean replacing = false;
+      for (int slot = 0; slot < t.capacity() && !replacing; slot++) {
+        int key = t.keys.get(slot);
+        if (key == FROZEN_EMPTY) {
+          replacing = true;
+        } else if (key != EMPTY && (t.counts.get(slot) & ~FROZEN) != 0) {
+          indexes[numIndexes++] = key - 1;
+        }
+      }
+      if (!replacing) {
+        indexes = Arrays.copyOf(indexes, numIndexes);
+        Arrays.sort(indexes);
+        return indexes;
+      }
+      awaitReplacement(t);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Histogram that spreads each bucket's count across several stripes, so that threads
+ * counting values in the same bucket at the same time usually update different counters.
+ * <p>
+ * The number of stripes is bounded by the number of processors rather than by the number of
+ * threads, so this is suitable for servers that use a very large number of short-lived threads
+ * (such as one virtual thread per request), where a per-thread recorder kept in a
+ * {@link ThreadLocal} would be allocated for every thread and never reused. No per-thread state is
+ * kept: the first stripe tried is chosen by a hash of the current thread's ID, and when a
+ * compare-and-set of a counter fails because another thread updated it at the same time, the next
+ * stripe tried is chosen by rehashing. Counting a value never blocks or holds a monitor, so it does
+ * not pin a virtual thread to its carrier thread.
+ * <p>
+ * Reading a bucket's count sums the bucket's counters in every stripe, so reads cost more than
+ * they do with a {@link ConcurrentHistogram}, and the counters use the number of stripes times as
+ * much memory.
+ *
+ * @param <T> The type of value counted by this Histogram.
+ */
+public final class StripedHistogram<T> implements MutableHistogram<T> {
+  // Padding after each stripe's counters, so that adjacent stripes don't share a cache line.
+  private static final int PADDING_LONGS = 8;
+
+  private final BucketSelector<T> bucketer;
+  private final int stripeMask;
+  private final int stripeLength;
+  private final AtomicLongArray counters;
+
+  /**
+   * Create a histogram with all counts set to zero, with one stripe per available processor
+   * (rounded up to a power of 2).
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   */
+  public StripedHistogram(BucketSelector<T> bucketer) {
+    this(bucketer, defaultNumStripes());
+  }
+
+  /**
+   * Create a histogram with all counts set to zero.
+   *
+   * @param bucketer The BucketSelector that determines which bucket a value is counted in.
+   * @param numStripes The number of stripes to spread each bucket's count across. This must be a
+   *        power of 2.
+   */
+  public StripedHistogram(BucketSelector<T> bucketer, int numStripes) {
+    this.bucketer = requireNonNull(bucketer, "The bucketer parameter is required.");
+    checkArgument(numStripes > 0 && Integer.bitCount(numStripes) == 1,
+        "numStripes must be a power of 2.");
+    this.stripeMask = numStripes - 1;
+    this.stripeLength = bucketer.numBuckets() + PADDING_LONGS;
+    this.counters = new AtomicLongArray(Math.multiplyExact(numStripes, stripeLength));
+  }
+
+  private static int defaultNumStripes() {
+    int numProcessors = Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit(Math.max(1, numProcessors * 2 - 1));
+  }
+
+  @Override
+  public int numBuckets() {
+    return bucketer.numBuckets();
+  }
+
+  @Override
+  public T bucketUpperBound(int index) {
+    return bucketer.bucketUpperBound(index);
+  }
+
+  /**
+   * Get the number of stripes that each bucket's count is spread across.
+   *
+   * @return The number of stripes.
+   */
+  public int numStripes() {
+    return stripeMask + 1;
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    checkElementIndex(index, numBuckets(), "index");
+    long count = 0;
+    for (int offset = index; offset < counters.length(); offset += stripeLength) {
+      count += counters.get(offset);
+    }
+    return count;
+  }
+
+  @Override
+  public void countValue(T value) {
+    requireNonNull(value, "The value parameter is required.");
+    int bucketIndex = bucketer.bucketIndexFor(value);
+    int probe = hash(Thread.currentThread().getId());
+    while (true) {
+      int offset = (probe & stripeMask) * stripeLength + bucketIndex;
+      long count = counters.get(offset);
+      if (counters.compareAndSet(offset, count, count + 1)) {
+        return;
+      }
+      // Another thread is counting in this stripe too, so try a different one.
+      probe ^= probe << 13;
+      probe ^= probe >>> 17;
+      probe ^= probe << 5;
+    }
+  }
+
+  private static int hash(long threadId) {
+    long h = threadId * 0x9E3779B97F4A7C15L;
+    int probe = (int) (h ^ (h >>> 32));
+    // The xorshift rehash in countValue needs a nonzero starting value.
+    return (probe == 0) ? 1 : probe;
+  }
+}
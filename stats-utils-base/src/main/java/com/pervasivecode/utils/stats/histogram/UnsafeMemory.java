@@ -0,0 +1,103 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static java.lang.invoke.MethodType.methodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Atomic operations on off-heap memory, such as the contents of a direct or memory-mapped
+ * {@link ByteBuffer}.
+ * <p>
+ * Java 8 has no public API for atomically updating the contents of a ByteBuffer, so this uses
+ * {@code sun.misc.Unsafe}, which is looked up reflectively so that there is no compile-time
+ * dependency on it. Callers must keep a strong reference to the ByteBuffer whose memory they are
+ * accessing, so that the memory is not released while it is in use.
+ */
+final class UnsafeMemory {
+  private static final MethodHandle GET_AND_ADD_LONG;
+  private static final MethodHandle GET_LONG_VOLATILE;
+  private static final long BUFFER_ADDRESS_OFFSET;
+  private static final MethodHandle GET_LONG_FIELD;
+  private static final Throwable UNAVAILABILITY_CAUSE;
+
+  static {
+    MethodHandle getAndAddLong = null;
+    MethodHandle getLongVolatile = null;
+    MethodHandle getLongField = null;
+    long bufferAddressOffset = -1L;
+    Throwable unavailabilityCause = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+      getAndAddLong = lookup.findVirtual(unsafeClass, "getAndAddLong",
+          methodType(long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+      getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+          methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      getLongField = lookup.findVirtual(unsafeClass, "getLong",
+          methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      MethodHandle objectFieldOffset = lookup
+          .findVirtual(unsafeClass, "objectFieldOffset", methodType(long.class, Field.class))
+          .bindTo(unsafe);
+      bufferAddressOffset =
+          (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+    } catch (Throwable t) {
+      unavailabilityCause = t;
+    }
+    GET_AND_ADD_LONG = getAndAddLong;
+    GET_LONG_VOLATILE = getLongVolatile;
+    GET_LONG_FIELD = getLongField;
+    BUFFER_ADDRESS_OFFSET = bufferAddressOffset;
+    UNAVAILABILITY_CAUSE = unavailabilityCause;
+  }
+
+  private UnsafeMemory() {}
+
+  /**
+   * Throw an UnsupportedOperationException if atomic off-heap memory operations are not available
+   * in this JVM.
+   */
+  static void checkAvailable() {
+    if (UNAVAILABILITY_CAUSE != null) {
+      throw new UnsupportedOperationException(
+          "Atomic off-heap memory operations are not available in this JVM.", UNAVAILABILITY_CAUSE);
+    }
+  }
+
+  /**
+   * Get the address of the first byte of a direct (or memory-mapped) ByteBuffer.
+   */
+  static long address(ByteBuffer directBuffer) {
+    checkAvailable();
+    if (!directBuffer.isDirect()) {
+      throw new IllegalArgumentException("The buffer must be a direct ByteBuffer.");
+    }
+    try {
+      return (long) GET_LONG_FIELD.invokeExact((Object) directBuffer, BUFFER_ADDRESS_OFFSET);
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  static long getAndAddLong(long address, long delta) {
+    try {
+      return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address, delta);
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  static long getLongVolatile(long address) {
+    try {
+      return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+}
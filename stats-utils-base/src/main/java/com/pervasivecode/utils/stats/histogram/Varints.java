@@ -0,0 +1,57 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length encoding of {@code long} values, using 7 bits per byte with the high bit of each
+ * byte indicating that another byte follows. Small values use fewer bytes, which makes this a
+ * compact encoding for bucket counts, most of which are usually small.
+ */
+final class Varints {
+  /** The maximum number of bytes used to encode one value. */
+  static final int MAX_SIZE = 10;
+
+  private Varints() {}
+
+  /**
+   * Write a value at the buffer's position, treating it as an unsigned value.
+   */
+  static void putUnsigned(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Read an unsigned value from the buffer's position.
+   */
+  static long getUnsigned(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * Write a value that may be negative at the buffer's position, using the ZigZag encoding so that
+   * values near zero use few bytes regardless of their sign.
+   */
+  static void putSigned(ByteBuffer buffer, long value) {
+    putUnsigned(buffer, (value << 1) ^ (value >> 63));
+  }
+
+  /**
+   * Read a value that was written by {@link #putSigned(ByteBuffer, long)}.
+   */
+  static long getSigned(ByteBuffer buffer) {
+    long encoded = getUnsigned(buffer);
+    return (encoded >>> 1) ^ -(encoded & 1);
+  }
+}
@@ -0,0 +1,82 @@
+package com.pervasivecode.utils.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class CoarseTimeSourceTest {
+  private static void awaitCondition(BooleanSupplier condition, String description)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        Truth.assert_().fail("Timed out waiting until " + description);
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void constructor_withZeroResolution_shouldThrow() {
+    try {
+      new CoarseTimeSource(Duration.ZERO);
+      Truth.assert_().fail("Expected an exception due to the zero resolution argument.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("resolution");
+    }
+  }
+
+  @Test
+  public void currentTimeMillis_shouldBeCloseToSystemTime() throws Exception {
+    long before = System.currentTimeMillis();
+    try (CoarseTimeSource timeSource = new CoarseTimeSource(Duration.ofMillis(1))) {
+      long cached = timeSource.currentTimeMillis();
+      long after = System.currentTimeMillis();
+      assertThat(cached).isAtLeast(before);
+      assertThat(cached).isAtMost(after);
+      assertThat(timeSource.now().toEpochMilli()).isAtLeast(cached);
+    }
+  }
+
+  @Test
+  public void timeValues_shouldAdvanceUntilClosed() throws Exception {
+    CoarseTimeSource timeSource = new CoarseTimeSource(Duration.ofMillis(1));
+    long startMillis = timeSource.currentTimeMillis();
+    long startNanos = timeSource.nanoTime();
+    awaitCondition(() -> timeSource.currentTimeMillis() > startMillis
+        && timeSource.nanoTime() > startNanos, "the time values advance");
+
+    timeSource.close();
+    long closedMillis = timeSource.currentTimeMillis();
+    awaitCondition(() -> System.currentTimeMillis() > closedMillis + 5, "the system time advances");
+    assertThat(timeSource.currentTimeMillis()).isEqualTo(closedMillis);
+  }
+
+  @Test
+  public void close_whenInterrupted_shouldStopAndKeepInterruptStatus() throws Exception {
+    CoarseTimeSource timeSource = new CoarseTimeSource(Duration.ofMillis(1));
+    Thread.currentThread().interrupt();
+    try {
+      timeSource.close();
+      assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    } finally {
+      Thread.interrupted();
+    }
+    long closedMillis = timeSource.currentTimeMillis();
+    awaitCondition(() -> System.currentTimeMillis() > closedMillis + 5, "the system time advances");
+    assertThat(timeSource.currentTimeMillis()).isEqualTo(closedMillis);
+  }
+
+  @Test
+  public void simpleDurationEstimator_shouldUseCachedTime() throws Exception {
+    try (CoarseTimeSource timeSource = new CoarseTimeSource(Duration.ofMillis(1))) {
+      SimpleDurationEstimator estimator = new SimpleDurationEstimator(timeSource);
+      long startMillis = timeSource.currentTimeMillis();
+      awaitCondition(() -> timeSource.currentTimeMillis() > startMillis, "the time advances");
+      estimator.recordAmountSoFar(1000);
+      assertThat(estimator.estimatedRateAsAmountPerSecond()).isGreaterThan(0.0f);
+    }
+  }
+}
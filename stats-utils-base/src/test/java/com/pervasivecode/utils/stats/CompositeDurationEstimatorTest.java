@@ -0,0 +1,192 @@
+package com.pervasivecode.utils.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.time.testing.FakeTimeSource;
+
+public class CompositeDurationEstimatorTest {
+  private FakeTimeSource timeSource;
+  private CompositeDurationEstimator root;
+
+  @Before
+  public void setup() {
+    this.timeSource = new FakeTimeSource(false);
+    this.root = CompositeDurationEstimator.root(timeSource);
+  }
+
+  @Test
+  public void newChild_withNegativeTotal_shouldThrow() {
+    try {
+      root.newChild(-1);
+      Truth.assert_().fail("Expected an exception due to the negative totalAmount argument.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("negative");
+    }
+  }
+
+  @Test
+  public void amounts_shouldRollUpToAllAncestors() {
+    CompositeDurationEstimator group = root.newChild(0);
+    CompositeDurationEstimator p1 = group.newChild(100);
+    CompositeDurationEstimator p2 = group.newChild(50);
+    CompositeDurationEstimator p3 = root.newChild(25);
+
+    assertThat(root.totalAmount()).isEqualTo(175L);
+    assertThat(group.totalAmount()).isEqualTo(150L);
+    assertThat(root.amountSoFar()).isEqualTo(0L);
+
+    p1.recordAmountSoFar(10);
+    p2.recordAmountSoFar(20);
+    p3.recordAmountSoFar(5);
+    assertThat(group.amountSoFar()).isEqualTo(30L);
+    assertThat(root.amountSoFar()).isEqualTo(35L);
+    assertThat(root.remainingAmount()).isEqualTo(140L);
+
+    p1.recordAmountSoFar(40);
+    assertThat(group.amountSoFar()).isEqualTo(60L);
+    assertThat(root.amountSoFar()).isEqualTo(65L);
+
+    p2.setTotalAmount(70);
+    assertThat(group.totalAmount()).isEqualTo(170L);
+    assertThat(root.totalAmount()).isEqualTo(195L);
+    assertThat(root.remainingAmount()).isEqualTo(130L);
+  }
+
+  @Test
+  public void estimatedRate_shouldUseAggregateAmount() {
+    CompositeDurationEstimator p1 = root.newChild(100);
+    CompositeDurationEstimator p2 = root.newChild(100);
+    assertThat(root.estimatedRateAsAmountPerSecond()).isWithin(0.001f).of(0f);
+
+    timeSource.advance(Duration.ofSeconds(2));
+    p1.recordAmountSoFar(10);
+    p2.recordAmountSoFar(30);
+    assertThat(root.estimatedRateAsAmountPerSecond()).isWithin(0.001f).of(20.0f);
+    assertThat(p1.estimatedRateAsAmountPerSecond()).isWithin(0.001f).of(5.0f);
+
+    Optional<Duration> estimate = root.estimateTimeToProcessAmount(100);
+    assertThat(estimate.isPresent()).isTrue();
+    assertThat(estimate.get()).isEqualTo(Duration.ofSeconds(5));
+  }
+
+  @Test
+  public void estimateTimeToCompletion_withNoProgress_shouldBeEmpty() {
+    root.newChild(100);
+    timeSource.advance(Duration.ofSeconds(1));
+    assertThat(root.estimateTimeToCompletion().isPresent()).isFalse();
+    assertThat(root.estimateCriticalPathTimeToCompletion().isPresent()).isFalse();
+  }
+
+  @Test
+  public void estimateTimeToCompletion_withNoWork_shouldBeZero() {
+    assertThat(root.estimateTimeToCompletion().get()).isEqualTo(Duration.ZERO);
+    assertThat(root.estimateCriticalPathTimeToCompletion().get()).isEqualTo(Duration.ZERO);
+  }
+
+  @Test
+  public void estimateTimeToCompletion_shouldUseSlowestPartition() {
+    CompositeDurationEstimator fast = root.newChild(100);
+    CompositeDurationEstimator slow = root.newChild(100);
+
+    timeSource.advance(Duration.ofSeconds(10));
+    fast.recordAmountSoFar(90);
+    slow.recordAmountSoFar(10);
+
+    // Aggregate: 100 units in 10s => 10 units/s; 100 left => 10s.
+    assertThat(root.estimateTimeToProcessAmount(root.remainingAmount()).get())
+        .isEqualTo(Duration.ofSeconds(10));
+    // Critical path: slow partition does 1 unit/s; 90 left => 90s.
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(90));
+    assertThat(root.estimateTimeToCompletion().get()).isEqualTo(Duration.ofSeconds(90));
+
+    // The critical path estimate counts down as time passes.
+    timeSource.advance(Duration.ofSeconds(30));
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(60));
+
+    // When the slow partition finishes, the critical path moves to the remaining partition.
+    slow.recordAmountSoFar(100);
+    fast.recordAmountSoFar(99);
+    Optional<Duration> estimate = root.estimateCriticalPathTimeToCompletion();
+    assertThat(estimate.get()).isLessThan(Duration.ofSeconds(1));
+  }
+
+  @Test
+  public void finishedPartitions_shouldNotAffectCriticalPath() {
+    CompositeDurationEstimator done = root.newChild(10);
+    CompositeDurationEstimator running = root.newChild(100);
+    timeSource.advance(Duration.ofSeconds(10));
+    done.recordAmountSoFar(10);
+    running.recordAmountSoFar(50);
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(10));
+
+    running.recordAmountSoFar(100);
+    assertThat(root.estimateTimeToCompletion().get()).isEqualTo(Duration.ZERO);
+  }
+
+  @Test
+  public void criticalPath_whenSlowestPartitionSpeedsUp_shouldMoveToNextSlowest() {
+    CompositeDurationEstimator group = root.newChild(0);
+    CompositeDurationEstimator a = group.newChild(100);
+    CompositeDurationEstimator b = group.newChild(100);
+    CompositeDurationEstimator c = group.newChild(100);
+    root.newChild(100).recordAmountSoFar(100);
+
+    timeSource.advance(Duration.ofSeconds(10));
+    a.recordAmountSoFar(50);
+    b.recordAmountSoFar(10);
+    c.recordAmountSoFar(20);
+    // b does 1 unit/s; 90 left => 90s.
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(90));
+
+    // b speeds up to 9 units/s (10s left), so c (2 units/s; 40s left) is now the slowest.
+    b.recordAmountSoFar(90);
+    assertThat(group.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(40));
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(40));
+
+    // A partition added later can become the slowest.
+    CompositeDurationEstimator d = group.newChild(100);
+    assertThat(root.estimateCriticalPathTimeToCompletion().isPresent()).isFalse();
+    timeSource.advance(Duration.ofSeconds(10));
+    d.recordAmountSoFar(10);
+    c.recordAmountSoFar(40);
+    // d does 1 unit/s; 90 left => 90s.
+    assertThat(root.estimateCriticalPathTimeToCompletion().get())
+        .isEqualTo(Duration.ofSeconds(90));
+  }
+
+  @Test
+  public void concurrentUpdates_shouldAllBeCounted() throws InterruptedException {
+    int numThreads = 8;
+    int numUpdates = 1000;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      CompositeDurationEstimator partition = root.newChild(numUpdates);
+      threads.add(new Thread(() -> {
+        for (int i = 1; i <= numUpdates; i++) {
+          partition.recordAmountSoFar(i);
+        }
+      }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertThat(root.amountSoFar()).isEqualTo((long) numThreads * numUpdates);
+    assertThat(root.remainingAmount()).isEqualTo(0L);
+    assertThat(root.estimateCriticalPathTimeToCompletion().get()).isEqualTo(Duration.ZERO);
+  }
+}
@@ -0,0 +1,118 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.SplittableRandom;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class AdaptiveBoundariesTest {
+  private static long[] upperBounds(BucketingSystem<Long> bucketingSystem) {
+    long[] upperBounds = new long[bucketingSystem.numBuckets() - 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = bucketingSystem.bucketUpperBound(i);
+    }
+    return upperBounds;
+  }
+
+  private static long[] counts(Histogram<?> histogram) {
+    long[] counts = new long[histogram.numBuckets()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = histogram.countInBucket(i);
+    }
+    return counts;
+  }
+
+  @Test
+  public void build_withUniformValues_shouldMakeEqualSizedBuckets() {
+    long[] values = new long[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[values.length - 1 - i] = i + 1;
+    }
+    LongBucketSelector selector = AdaptiveBoundaries.builder(4).addValues(values).build();
+    assertThat(upperBounds(selector)).asList().containsExactly(250L, 500L, 750L).inOrder();
+    assertThat(counts(Histograms.countValues(values, selector))).asList()
+        .containsExactly(250L, 250L, 250L, 250L).inOrder();
+  }
+
+  @Test
+  public void build_withRepeatedValue_shouldShareRemainingValuesAmongRemainingBuckets() {
+    long[] values = new long[1100];
+    for (int i = 0; i < 100; i++) {
+      values[i] = i + 2;
+    }
+    for (int i = 100; i < values.length; i++) {
+      values[i] = 1;
+    }
+    LongBucketSelector selector = AdaptiveBoundaries.builder(4).addValues(values).build();
+    assertThat(upperBounds(selector)).asList().containsExactly(1L, 35L, 68L).inOrder();
+  }
+
+  @Test
+  public void build_withTooFewDistinctValues_shouldMakeFewerBuckets() {
+    LongBucketSelector selector =
+        AdaptiveBoundaries.builder(10).addValues(5, 5, 5, 7, 7).build();
+    assertThat(upperBounds(selector)).asList().containsExactly(5L).inOrder();
+    assertThat(selector.bucketIndexFor(7L)).isEqualTo(1);
+
+    LongBucketSelector oneBucket = AdaptiveBoundaries.builder(1).addValues(1, 2, 3).build();
+    assertThat(oneBucket.numBuckets()).isEqualTo(1);
+  }
+
+  @Test
+  public void build_withNoValues_shouldThrow() {
+    try {
+      AdaptiveBoundaries.builder(3).addValues().build();
+      Truth.assert_().fail("Expected an exception due to the lack of sample values.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("No sample values");
+    }
+  }
+
+  @Test
+  public void rebucket_withBoundariesFromHistogram_shouldMatchCountingWithNewBoundaries() {
+    SplittableRandom random = new SplittableRandom(5);
+    long[] values = new long[20_000];
+    for (int i = 0; i < values.length; i++) {
+      // Skewed, like latencies: most values are small, with a long tail.
+      values[i] = (long) (1000.0 * Math.exp(random.nextDouble() * 4.0));
+    }
+    ImmutableHistogram<Long> fine =
+        Histograms.countValues(values, BucketSelectors.linearLongValues(0, 100_000, 1_000));
+
+    LongBucketSelector adaptive = AdaptiveBoundaries.builder(16).addHistogram(fine).build();
+    assertThat(adaptive.numBuckets()).isEqualTo(16);
+    ImmutableHistogram<Long> coarse = AdaptiveBoundaries.rebucket(fine, adaptive);
+    assertThat(coarse).isEqualTo(Histograms.countValues(values, adaptive));
+    assertThat(coarse.totalCount()).isEqualTo((long) values.length);
+    // Equi-depth: no bucket has much more than its share of the values.
+    for (long count : counts(coarse)) {
+      assertThat(count).isAtMost((long) (2 * values.length / 16));
+    }
+  }
+
+  @Test
+  public void rebucket_withBucketThatWouldBeSplit_shouldThrow() {
+    ImmutableHistogram<Long> source =
+        Histograms.countValues(new long[] {1, 15, 25}, BucketSelectors.irregularLongValues(10, 20));
+    try {
+      AdaptiveBoundaries.rebucket(source, BucketSelectors.irregularLongValues(10, 15, 20));
+      Truth.assert_().fail("Expected an exception due to a source bucket being split.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("bucket 1");
+    }
+    try {
+      AdaptiveBoundaries.rebucket(source, BucketSelectors.irregularLongValues(10, 20, 30));
+      Truth.assert_().fail("Expected an exception due to the last source bucket being split.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("bucket 2");
+    }
+    try {
+      AdaptiveBoundaries.rebucket(source, BucketSelectors.irregularLongValues(5, 20));
+      Truth.assert_().fail("Expected an exception due to the first source bucket being split.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("bucket 0");
+    }
+    assertThat(counts(AdaptiveBoundaries.rebucket(source, BucketSelectors.irregularLongValues(20))))
+        .asList().containsExactly(2L, 1L).inOrder();
+  }
+}
@@ -0,0 +1,97 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.stats.histogram.AsyncHistogram.OverflowPolicy;
+
+public class AsyncHistogramTest {
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+  }
+
+  @Test
+  public void flush_shouldMakeAllRecordedValuesVisible() throws Exception {
+    ConcurrentHistogram<Long> expected = new ConcurrentHistogram<>(bucketer);
+    try (AsyncHistogram histogram = new AsyncHistogram(bucketer, 64, OverflowPolicy.SPIN)) {
+      for (long i = -10; i < 50; i++) {
+        histogram.recordValue(i);
+        histogram.countValue(i);
+        expected.countValue(i);
+        expected.countValue(i);
+      }
+      histogram.flush();
+      assertThat(ImmutableHistogram.copyOf(histogram))
+          .isEqualTo(ImmutableHistogram.copyOf(expected));
+      assertThat(histogram.droppedCount()).isEqualTo(0L);
+    }
+  }
+
+  @Test
+  public void recordValue_fromSeveralThreads_withSpin_shouldNotLoseValues() throws Exception {
+    try (AsyncHistogram histogram = new AsyncHistogram(bucketer, 16, OverflowPolicy.SPIN)) {
+      List<Thread> threads = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        Thread thread = new Thread(() -> {
+          for (long i = 0; i < 100_000; i++) {
+            histogram.recordValue(i % 40);
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      histogram.flush();
+      assertThat(ImmutableHistogram.copyOf(histogram).totalCount()).isEqualTo(400_000L);
+      // Values 1 through 10 of each group of 40 are in bucket 1.
+      assertThat(histogram.countInBucket(1)).isEqualTo(100_000L);
+      assertThat(histogram.droppedCount()).isEqualTo(0L);
+    }
+  }
+
+  @Test
+  public void recordValue_withDrop_shouldCountEveryValueAsCountedOrDropped() throws Exception {
+    try (AsyncHistogram histogram = new AsyncHistogram(bucketer, 4, OverflowPolicy.DROP)) {
+      for (int i = 0; i < 1_000_000; i++) {
+        histogram.recordValue(5L);
+      }
+      histogram.flush();
+      assertThat(histogram.countInBucket(1) + histogram.droppedCount()).isEqualTo(1_000_000L);
+    }
+  }
+
+  @Test
+  public void close_shouldCountRemainingValuesAndRejectNewOnes() {
+    AsyncHistogram histogram = new AsyncHistogram(bucketer, 1024, OverflowPolicy.SPIN);
+    for (int i = 0; i < 1000; i++) {
+      histogram.recordValue(25L);
+    }
+    histogram.close();
+    assertThat(histogram.countInBucket(3)).isEqualTo(1000L);
+    try {
+      histogram.recordValue(25L);
+      Truth.assert_().fail("Expected an exception since the histogram is closed.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("closed");
+    }
+  }
+
+  @Test
+  public void constructor_withInvalidCapacity_shouldThrow() {
+    try {
+      new AsyncHistogram(bucketer, 100, OverflowPolicy.DROP);
+      Truth.assert_().fail("Expected an exception due to the invalid capacity.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("power of 2");
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.SplittableRandom;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.stats.histogram.BucketSelectorCompiler.CompiledSelector;
+
+public class BucketSelectorCompilerTest {
+  private static long[] testValues() {
+    long[] values = new long[5_000];
+    for (int i = 0; i < 3_000; i++) {
+      values[i] = i - 1_500;
+    }
+    SplittableRandom random = new SplittableRandom(3);
+    for (int i = 3_000; i < values.length; i++) {
+      values[i] = random.nextLong() >> random.nextInt(64);
+    }
+    values[3_000] = Long.MIN_VALUE;
+    values[3_001] = Long.MAX_VALUE;
+    return values;
+  }
+
+  private static void assertSameBuckets(LongBucketSelector compiled,
+      LongBucketSelector expected) {
+    assertThat(compiled).isInstanceOf(CompiledSelector.class);
+    assertThat(compiled.numBuckets()).isEqualTo(expected.numBuckets());
+    for (int i = 0; i < expected.numBuckets() - 1; i++) {
+      assertThat(compiled.bucketUpperBound(i)).isEqualTo(expected.bucketUpperBound(i));
+    }
+    for (long value : testValues()) {
+      if (compiled.bucketIndexFor(value) != expected.bucketIndexFor(value)) {
+        Truth.assert_().fail("Wrong bucket for value " + value + ": "
+            + compiled.bucketIndexFor(value) + " instead of " + expected.bucketIndexFor(value));
+      }
+    }
+  }
+
+  @Test
+  public void irregularLongValues_shouldMatchInterpretedSelector() {
+    long[][] boundSets = {{}, {7}, {1, 5}, {-100, 1, 5, 7, 1000, 1001},
+        {Long.MIN_VALUE, -1, 0, 1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144, Long.MAX_VALUE}};
+    for (long[] upperBounds : boundSets) {
+      assertSameBuckets(BucketSelectorCompiler.irregularLongValues(upperBounds),
+          BucketSelectors.irregularLongValues(upperBounds));
+    }
+  }
+
+  @Test
+  public void irregularLongValues_withMaxUnrolledBounds_shouldCompileInlinableMethod() {
+    long[] upperBounds = new long[BucketSelectorCompiler.MAX_UNROLLED_BOUNDS];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = Long.MIN_VALUE + i * 1_000_000_007L;
+    }
+    assertSameBuckets(BucketSelectorCompiler.irregularLongValues(upperBounds),
+        BucketSelectors.irregularLongValues(upperBounds));
+    // HotSpot's default -XX:FreqInlineSize is 325 bytes of bytecode.
+    assertThat(BucketSelectorCompiler.irregularLongValuesCodeSize(upperBounds)).isAtMost(325);
+  }
+
+  @Test
+  public void irregularLongValues_withTooManyBounds_shouldNotCompile() {
+    long[] upperBounds = new long[BucketSelectorCompiler.MAX_UNROLLED_BOUNDS + 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = i * 10;
+    }
+    LongBucketSelector selector = BucketSelectorCompiler.irregularLongValues(upperBounds);
+    assertThat(selector).isNotInstanceOf(CompiledSelector.class);
+    assertThat(selector.bucketIndexFor(15L)).isEqualTo(2);
+  }
+
+  @Test
+  public void powerOf2LongValues_shouldMatchInterpretedSelector() {
+    assertSameBuckets(BucketSelectorCompiler.powerOf2LongValues(0, 10),
+        BucketSelectors.powerOf2LongValues(0, 10));
+    assertSameBuckets(BucketSelectorCompiler.powerOf2LongValues(3, 60),
+        BucketSelectors.powerOf2LongValues(3, 60));
+    assertSameBuckets(BucketSelectorCompiler.powerOf2LongValues(0, 1),
+        BucketSelectors.powerOf2LongValues(0, 1));
+  }
+
+  @Test
+  public void linearLongValues_shouldMatchInterpretedSelector() {
+    assertSameBuckets(BucketSelectorCompiler.linearLongValues(-1000, 2000, 5),
+        BucketSelectors.linearLongValues(-1000, 2000, 5));
+    assertSameBuckets(BucketSelectorCompiler.linearLongValues(0, 1_000_000, 40_002),
+        BucketSelectors.linearLongValues(0, 1_000_000, 40_002));
+  }
+
+  @Test
+  public void compiledSelectors_shouldEachHaveTheirOwnClass() {
+    LongBucketSelector a = BucketSelectorCompiler.irregularLongValues(1, 2, 3);
+    LongBucketSelector b = BucketSelectorCompiler.irregularLongValues(1, 2, 3);
+    assertThat(a.getClass()).isNotEqualTo(b.getClass());
+
+    ConcurrentHistogram<Long> histogram = new ConcurrentHistogram<>(a);
+    histogram.countValue(2L);
+    histogram.countValue(4L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+  }
+}
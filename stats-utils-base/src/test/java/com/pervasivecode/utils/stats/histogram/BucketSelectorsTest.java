@@ -1,7 +1,13 @@
 package com.pervasivecode.utils.stats.histogram;
 
 import static com.google.common.truth.Truth.assertThat;
+import java.util.List;
+import java.util.SplittableRandom;
 import org.junit.Test;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.common.truth.Truth;
 import com.pervasivecode.utils.stats.histogram.BucketSelector;
 import com.pervasivecode.utils.stats.histogram.BucketSelectors;
@@ -185,4 +191,80 @@ public class BucketSelectorsTest {
     assertThat(bucketer.bucketUpperBound(2)).isEqualTo(25.0);
     assertThat(bucketer.bucketUpperBound(3)).isEqualTo(125.0);
   }
+
+  @Test
+  public void irregularLongValues_shouldMatchIrregularSetBucketSelector() {
+    long[] upperBounds = {-100, 1, 5, 7, 1000, 1001};
+    LongBucketSelector bucketer = BucketSelectors.irregularLongValues(upperBounds);
+    IrregularSetBucketSelector<Long> expected =
+        new IrregularSetBucketSelector<>(ImmutableSortedSet.copyOf(Longs.asList(upperBounds)));
+    assertThat(bucketer.numBuckets()).isEqualTo(expected.numBuckets());
+    for (int i = 0; i < upperBounds.length; i++) {
+      assertThat(bucketer.bucketUpperBound(i)).isEqualTo(expected.bucketUpperBound(i));
+    }
+    for (long value = -200; value < 1100; value++) {
+      if (bucketer.bucketIndexFor(value) != expected.bucketIndexFor(value)) {
+        Truth.assert_().fail("Wrong bucket for value " + value);
+      }
+    }
+    assertThat(bucketer.bucketIndexFor(Long.MIN_VALUE)).isEqualTo(0);
+    assertThat(bucketer.bucketIndexFor(Long.MAX_VALUE)).isEqualTo(6);
+    assertThat(BucketSelectors.irregularLongValues().bucketIndexFor(5L)).isEqualTo(0);
+  }
+
+  @Test
+  public void irregularLongValues_withUnsortedBounds_shouldThrow() {
+    try {
+      BucketSelectors.irregularLongValues(1, 5, 5, 7);
+      Truth.assert_().fail("Expected an exception due to the repeated upper bound.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("ascending");
+    }
+  }
+
+  @Test
+  public void bucketIndexesFor_shouldMatchBucketIndexFor() {
+    List<LongBucketSelector> bucketers = ImmutableList.of(
+        BucketSelectors.powerOf2LongValues(0, 10),
+        BucketSelectors.powerOf2LongValues(3, 64),
+        BucketSelectors.linearLongValues(-1000, 2000, 5),
+        BucketSelectors.linearLongValues(0, 100, 12),
+        BucketSelectors.irregularLongValues(-100, 1, 5, 7, 1000, 1001));
+    long[] values = new long[2000];
+    for (int i = 0; i < 1000; i++) {
+      values[i] = i * 3 - 1500;
+    }
+    SplittableRandom random = new SplittableRandom(7);
+    for (int i = 1000; i < values.length; i++) {
+      values[i] = random.nextLong();
+    }
+    values[1000] = Long.MIN_VALUE;
+    values[1001] = Long.MAX_VALUE;
+    values[1002] = 0;
+
+    int[] indexes = new int[values.length];
+    for (LongBucketSelector bucketer : bucketers) {
+      bucketer.bucketIndexesFor(values, 0, values.length, indexes);
+      for (int i = 0; i < values.length; i++) {
+        Long boxed = values[i];
+        if (indexes[i] != bucketer.bucketIndexFor(boxed)) {
+          Truth.assert_().fail("Wrong bucket for value " + values[i] + ": " + indexes[i]
+              + " instead of " + bucketer.bucketIndexFor(boxed));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void powerOf2LongValues_withMoreBucketsThanFitInLong_shouldPutLargeValuesInLastBucket() {
+    LongBucketSelector bucketer = BucketSelectors.powerOf2LongValues(2, 70);
+    assertThat(bucketer.bucketIndexFor(4L)).isEqualTo(0);
+    assertThat(bucketer.bucketIndexFor(5L)).isEqualTo(1);
+    assertThat(bucketer.bucketIndexFor(1L << 62)).isEqualTo(60);
+    assertThat(bucketer.bucketIndexFor((1L << 62) + 1)).isEqualTo(69);
+
+    int[] indexes = new int[2];
+    bucketer.bucketIndexesFor(new long[] {5L, Long.MAX_VALUE}, 0, 2, indexes);
+    assertThat(Ints.asList(indexes)).containsExactly(1, 69).inOrder();
+  }
 }
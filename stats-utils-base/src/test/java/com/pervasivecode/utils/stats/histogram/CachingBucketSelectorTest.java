@@ -0,0 +1,66 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class CachingBucketSelectorTest {
+  private static final BucketSelector<Long> POWER_OF_2 = BucketSelectors.powerOf2LongValues(0, 10);
+
+  @Test
+  public void bucketIndexFor_shouldMatchWrappedSelector() {
+    CachingBucketSelector<Long> selector = new CachingBucketSelector<>(POWER_OF_2, 16);
+    assertThat(selector.numBuckets()).isEqualTo(POWER_OF_2.numBuckets());
+    assertThat(selector.bucketUpperBound(3)).isEqualTo(POWER_OF_2.bucketUpperBound(3));
+    for (int pass = 0; pass < 3; pass++) {
+      for (long value = -10; value <= 2000; value++) {
+        if (selector.bucketIndexFor(value) != POWER_OF_2.bucketIndexFor(value)) {
+          Truth.assert_().fail("Wrong bucket for value " + value + ": "
+              + selector.bucketIndexFor(value) + " instead of " + POWER_OF_2.bucketIndexFor(value));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bucketIndexFor_withRepeatedValues_shouldOnlyAskWrappedSelectorOnce() {
+    AtomicInteger wrappedCalls = new AtomicInteger();
+    BucketSelector<Long> counting = BucketSelectors.transform(POWER_OF_2, (Long v) -> {
+      wrappedCalls.incrementAndGet();
+      return v;
+    }, (Long v) -> v);
+    CachingBucketSelector<Long> selector = new CachingBucketSelector<>(counting);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(selector.bucketIndexFor(4096L)).isEqualTo(POWER_OF_2.bucketIndexFor(4096L));
+      assertThat(selector.bucketIndexFor(17L)).isEqualTo(POWER_OF_2.bucketIndexFor(17L));
+    }
+    assertThat(wrappedCalls.get()).isEqualTo(2);
+    assertThat(selector.missCount()).isEqualTo(2L);
+    assertThat(selector.hitCount()).isEqualTo(198L);
+  }
+
+  @Test
+  public void bucketIndexFor_withOneSlot_shouldReplaceEntries() {
+    CachingBucketSelector<Long> selector = new CachingBucketSelector<>(POWER_OF_2, 1);
+    selector.bucketIndexFor(1L);
+    selector.bucketIndexFor(1L);
+    selector.bucketIndexFor(100L);
+    assertThat(selector.bucketIndexFor(1L)).isEqualTo(POWER_OF_2.bucketIndexFor(1L));
+    assertThat(selector.hitCount()).isEqualTo(1L);
+    assertThat(selector.missCount()).isEqualTo(3L);
+  }
+
+  @Test
+  public void constructor_withInvalidCapacity_shouldThrow() {
+    for (int capacity : new int[] {0, -4, 3, 100}) {
+      try {
+        new CachingBucketSelector<>(POWER_OF_2, capacity);
+        Truth.assert_().fail("Expected an exception due to the invalid capacity " + capacity);
+      } catch (IllegalArgumentException iae) {
+        assertThat(iae).hasMessageThat().contains("power of 2");
+      }
+    }
+  }
+}
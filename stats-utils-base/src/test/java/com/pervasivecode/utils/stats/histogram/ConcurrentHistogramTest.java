@@ -45,4 +45,18 @@ public class ConcurrentHistogramTest {
     histogram.countValue(-345f);
     assertThat(histogram.countInBucket(5)).isEqualTo(2);
   }
+
+  @Test
+  public void drainDirtyBucketIndexes_shouldReturnCountedBucketsOnce() {
+    when(bucketer.bucketIndexFor(1f)).thenReturn(1);
+    when(bucketer.bucketIndexFor(36f)).thenReturn(36);
+    assertThat(histogram.drainDirtyBucketIndexes()).isEmpty();
+    histogram.countValue(36f);
+    histogram.countValue(1f);
+    histogram.countValue(36f);
+    assertThat(histogram.drainDirtyBucketIndexes()).asList().containsExactly(1, 36).inOrder();
+    assertThat(histogram.drainDirtyBucketIndexes()).isEmpty();
+    histogram.countValue(1f);
+    assertThat(histogram.drainDirtyBucketIndexes()).asList().containsExactly(1);
+  }
 }
@@ -0,0 +1,210 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class HistogramAggregationServerTest {
+  private BucketSelector<Long> bucketer;
+  private HistogramAggregationServer<Long> server;
+
+  @Before
+  public void setup() throws IOException {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    server = HistogramAggregationServer
+        .start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), bucketer);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  private void awaitFramesReceived(long numFrames) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (server.framesReceived() < numFrames) {
+      if (System.currentTimeMillis() > deadline) {
+        Truth.assert_().fail("Timed out waiting for frames. Received: " + server.framesReceived());
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void report_fromSeveralReporters_shouldBeMergedByKey() throws Exception {
+    ConcurrentHistogram<Long> histogramA = new ConcurrentHistogram<>(bucketer);
+    ConcurrentHistogram<Long> histogramB = new ConcurrentHistogram<>(bucketer);
+    histogramA.countValue(5L);
+    histogramB.countValue(5L);
+    histogramB.countValue(25L);
+
+    try (HistogramReporter reporterA = HistogramReporter.connect(server.localAddress());
+        HistogramReporter reporterB = HistogramReporter.connect(server.localAddress())) {
+      reporterA.report("/login", histogramA);
+      reporterA.report("/logout", histogramA);
+      reporterB.report("/login", histogramB);
+      reporterA.flush();
+      reporterB.flush();
+      awaitFramesReceived(3);
+    }
+
+    ImmutableHistogram<Long> login = server.histogram("/login").get();
+    assertThat(login.countInBucket(1)).isEqualTo(2L);
+    assertThat(login.countInBucket(3)).isEqualTo(1L);
+    assertThat(server.histogram("/logout").get().totalCount()).isEqualTo(1L);
+    assertThat(server.histogram("/missing").isPresent()).isFalse();
+    assertThat(server.histograms().keySet()).containsExactly("/login", "/logout").inOrder();
+  }
+
+  @Test
+  public void report_withCumulativeHistogram_shouldOnlyAddChanges() throws Exception {
+    ConcurrentHistogram<Long> histogram = new ConcurrentHistogram<>(bucketer);
+    try (HistogramReporter reporter = HistogramReporter.connect(server.localAddress())) {
+      histogram.countValue(-5L);
+      histogram.countValue(15L);
+      reporter.report("key", histogram);
+      // Nothing changed, so nothing is sent.
+      reporter.report("key", histogram);
+      histogram.countValue(15L);
+      histogram.countValue(1000L);
+      reporter.report("key", histogram);
+      reporter.flush();
+      awaitFramesReceived(2);
+    }
+    assertThat(server.histogram("key").get()).isEqualTo(ImmutableHistogram.copyOf(histogram));
+  }
+
+  @Test
+  public void report_withManyFrames_shouldReceiveAll() throws Exception {
+    List<ConcurrentHistogram<Long>> histograms = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      histograms.add(new ConcurrentHistogram<>(bucketer));
+    }
+    try (HistogramReporter reporter = HistogramReporter.connect(server.localAddress())) {
+      for (int i = 0; i < 20_000; i++) {
+        int keyIndex = i % histograms.size();
+        histograms.get(keyIndex).countValue((long) (i % 40));
+        reporter.report("key" + keyIndex, histograms.get(keyIndex));
+      }
+      reporter.flush();
+      awaitFramesReceived(20_000);
+    }
+    for (int i = 0; i < histograms.size(); i++) {
+      assertThat(server.histogram("key" + i).get())
+          .isEqualTo(ImmutableHistogram.copyOf(histograms.get(i)));
+    }
+  }
+
+  @Test
+  public void report_afterReconnect_shouldReplaceCountsInsteadOfAddingThem() throws Exception {
+    ConcurrentHistogram<Long> histogram = new ConcurrentHistogram<>(bucketer);
+    ConcurrentHistogram<Long> other = new ConcurrentHistogram<>(bucketer);
+    other.countValue(25L);
+    try (HistogramReporter reporter = HistogramReporter.connect(server.localAddress());
+        HistogramReporter otherReporter = HistogramReporter.connect(server.localAddress())) {
+      otherReporter.report("key", other);
+      otherReporter.flush();
+      histogram.countValue(5L);
+      histogram.countValue(15L);
+      reporter.report("key", histogram);
+      reporter.flush();
+      awaitFramesReceived(2);
+
+      // This frame is discarded by reconnecting, as if it had been lost.
+      histogram.countValue(15L);
+      reporter.report("key", histogram);
+      reporter.reconnect();
+
+      histogram.countValue(-5L);
+      reporter.report("key", histogram);
+      reporter.flush();
+      awaitFramesReceived(3);
+      histogram.countValue(5L);
+      reporter.report("key", histogram);
+      reporter.flush();
+      awaitFramesReceived(4);
+    }
+
+    ImmutableHistogram<Long> merged = server.histogram("key").get();
+    assertThat(merged.countInBucket(0)).isEqualTo(1L);
+    assertThat(merged.countInBucket(1)).isEqualTo(2L);
+    assertThat(merged.countInBucket(2)).isEqualTo(2L);
+    assertThat(merged.countInBucket(3)).isEqualTo(1L);
+    assertThat(merged.totalCount()).isEqualTo(6L);
+  }
+
+  @Test
+  public void invalidFrame_shouldDisconnectClient() throws Exception {
+    try (SocketChannel client = SocketChannel.open(server.localAddress())) {
+      // A session ID, then a frame with a 3-byte key and 7 buckets, which does not match the
+      // server's 5 buckets.
+      ByteBuffer frame = ByteBuffer.allocate(64);
+      frame.putLong(1L);
+      frame.putInt(6).put((byte) 3).put(new byte[] {'a', 'b', 'c'}).put((byte) 7).put((byte) 0);
+      frame.flip();
+      client.write(frame);
+      assertThat(client.read(ByteBuffer.allocate(1))).isEqualTo(-1);
+    }
+    assertThat(server.framesReceived()).isEqualTo(0L);
+    assertThat(server.histograms().isEmpty()).isTrue();
+  }
+
+  @Test
+  public void report_afterFailedFlush_shouldThrowUntilReconnected() throws Exception {
+    try (ServerSocketChannel peer = ServerSocketChannel.open()) {
+      peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      HistogramReporter reporter =
+          HistogramReporter.connect((InetSocketAddress) peer.getLocalAddress());
+      try (SocketChannel accepted = peer.accept()) {
+        // Reset the connection, so that subsequent writes fail.
+        accepted.setOption(StandardSocketOptions.SO_LINGER, 0);
+      }
+
+      ConcurrentHistogram<Long> histogram = new ConcurrentHistogram<>(bucketer);
+      boolean flushFailed = false;
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (!flushFailed && System.currentTimeMillis() < deadline) {
+        histogram.countValue(5L);
+        reporter.report("key", histogram);
+        try {
+          reporter.flush();
+        } catch (IOException ioe) {
+          flushFailed = true;
+        }
+      }
+      assertThat(flushFailed).isTrue();
+
+      histogram.countValue(5L);
+      try {
+        reporter.report("key", histogram);
+        Truth.assert_().fail("Expected an exception due to the failed flush.");
+      } catch (IOException ioe) {
+        assertThat(ioe).isInstanceOf(ClosedChannelException.class);
+      }
+
+      reporter.reconnect();
+      reporter.report("key", histogram);
+      reporter.flush();
+      reporter.close();
+      try {
+        reporter.reconnect();
+        Truth.assert_().fail("Expected an exception due to the reporter being closed.");
+      } catch (IOException ioe) {
+        assertThat(ioe).isInstanceOf(ClosedChannelException.class);
+      }
+    }
+  }
+}
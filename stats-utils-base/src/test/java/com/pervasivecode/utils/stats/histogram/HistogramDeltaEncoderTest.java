@@ -0,0 +1,175 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class HistogramDeltaEncoderTest {
+  private BucketSelector<Long> bucketer;
+  private ConcurrentHistogram<Long> histogram;
+  private HistogramDeltaEncoder encoder;
+  private HistogramDeltaDecoder<Long> decoder;
+
+  @Before
+  public void setup() {
+    // 1000 buckets with upper bounds 0, 1, 2, ... 998
+    bucketer = BucketSelectors.linearLongValues(0, 998, 1000);
+    histogram = new ConcurrentHistogram<>(bucketer);
+    encoder = new HistogramDeltaEncoder(histogram, 10);
+    decoder = new HistogramDeltaDecoder<>(bucketer);
+  }
+
+  private ImmutableHistogram<Long> roundTrip() {
+    ImmutableHistogram<Long> decoded = decoder.decode(encoder.encode());
+    encoder.acknowledge(decoder.lastDecodedSequence());
+    return decoded;
+  }
+
+  @Test
+  public void encode_withSmallChanges_shouldProduceSmallDeltaFrames() {
+    for (long i = 0; i < 1000; i++) {
+      histogram.countValue(i);
+    }
+    ByteBuffer keyframe = encoder.encode();
+    assertThat(keyframe.get(0)).isEqualTo(HistogramDeltaEncoder.KEYFRAME);
+    assertThat(keyframe.remaining()).isAtLeast(1000);
+    assertThat(decoder.decode(keyframe)).isEqualTo(ImmutableHistogram.copyOf(histogram));
+    encoder.acknowledge(decoder.lastDecodedSequence());
+
+    histogram.countValue(5L);
+    histogram.countValue(700L);
+    histogram.countValue(700L);
+    ByteBuffer delta = encoder.encode();
+    assertThat(delta.get(0)).isEqualTo(HistogramDeltaEncoder.DELTA_FRAME);
+    assertThat(delta.remaining()).isLessThan(200);
+    ImmutableHistogram<Long> decoded = decoder.decode(delta);
+    assertThat(decoded).isEqualTo(ImmutableHistogram.copyOf(histogram));
+    assertThat(decoded.countInBucket(700)).isEqualTo(3L);
+  }
+
+  @Test
+  public void encode_withoutAcknowledgements_shouldIncludeAllChangesSinceAcknowledgedSnapshot() {
+    roundTrip();
+    histogram.countValue(1L);
+    ImmutableHistogram<Long> first = decoder.decode(encoder.encode());
+    histogram.countValue(2L);
+    ImmutableHistogram<Long> second = decoder.decode(encoder.encode());
+
+    assertThat(first.countInBucket(1)).isEqualTo(1L);
+    assertThat(second.countInBucket(1)).isEqualTo(1L);
+    assertThat(second.countInBucket(2)).isEqualTo(1L);
+
+    // A receiver that missed the first delta frame can still decode the second one.
+    HistogramDeltaDecoder<Long> otherDecoder = new HistogramDeltaDecoder<>(bucketer);
+    encoder.requestKeyframe();
+    otherDecoder.decode(encoder.encode());
+    encoder.acknowledge(otherDecoder.lastDecodedSequence());
+    histogram.countValue(3L);
+    encoder.encode();
+    histogram.countValue(4L);
+    ImmutableHistogram<Long> latest = otherDecoder.decode(encoder.encode());
+    assertThat(latest).isEqualTo(ImmutableHistogram.copyOf(histogram));
+  }
+
+  @Test
+  public void encode_shouldProduceKeyframesPeriodically() {
+    roundTrip();
+    int numKeyframes = 0;
+    for (int i = 0; i < 30; i++) {
+      histogram.countValue((long) i);
+      ByteBuffer frame = encoder.encode();
+      if (frame.get(0) == HistogramDeltaEncoder.KEYFRAME) {
+        numKeyframes++;
+      }
+      assertThat(decoder.decode(frame)).isEqualTo(ImmutableHistogram.copyOf(histogram));
+      encoder.acknowledge(decoder.lastDecodedSequence());
+    }
+    assertThat(numKeyframes).isEqualTo(3);
+  }
+
+  @Test
+  public void encode_withoutAcknowledgements_shouldOnlyRememberRecentFrames() {
+    int numFrames = 3 * HistogramDeltaEncoder.MAX_UNACKNOWLEDGED_FRAMES;
+    histogram = new ConcurrentHistogram<>(bucketer);
+    encoder = new HistogramDeltaEncoder(histogram, 2 * numFrames);
+    roundTrip();
+    ByteBuffer lastFrame = null;
+    for (int i = 0; i < numFrames; i++) {
+      histogram.countValue((long) (i % 1000));
+      lastFrame = encoder.encode();
+      assertThat(encoder.numUnacknowledgedFrames())
+          .isAtMost(HistogramDeltaEncoder.MAX_UNACKNOWLEDGED_FRAMES);
+    }
+    assertThat(lastFrame.get(0)).isEqualTo(HistogramDeltaEncoder.DELTA_FRAME);
+    // The delta is still based on the acknowledged snapshot, which the decoder has.
+    assertThat(decoder.decode(lastFrame)).isEqualTo(ImmutableHistogram.copyOf(histogram));
+
+    // Acknowledging a frame whose changes were merged is ignored.
+    encoder.acknowledge(2);
+    histogram.countValue(1L);
+    assertThat(decoder.decode(encoder.encode())).isEqualTo(ImmutableHistogram.copyOf(histogram));
+    encoder.acknowledge(decoder.lastDecodedSequence());
+    assertThat(encoder.numUnacknowledgedFrames()).isEqualTo(0);
+
+    histogram.countValue(2L);
+    ByteBuffer delta = encoder.encode();
+    assertThat(delta.get(0)).isEqualTo(HistogramDeltaEncoder.DELTA_FRAME);
+    assertThat(delta.remaining()).isLessThan(200);
+    assertThat(decoder.decode(delta)).isEqualTo(ImmutableHistogram.copyOf(histogram));
+  }
+
+  @Test
+  public void constructor_withSecondEncoderForHistogram_shouldThrow() {
+    try {
+      new HistogramDeltaEncoder(histogram, 10);
+      Truth.assert_().fail("Expected an exception due to the histogram already having an encoder.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("already created");
+    }
+  }
+
+  @Test
+  public void decode_withUnknownBase_shouldRequireKeyframe() {
+    roundTrip();
+    histogram.countValue(1L);
+    ByteBuffer delta = encoder.encode();
+    decoder.reset();
+    try {
+      decoder.decode(delta);
+      Truth.assert_().fail("Expected an exception due to the base snapshot being unavailable.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("keyframe is needed");
+    }
+    encoder.requestKeyframe();
+    assertThat(roundTrip()).isEqualTo(ImmutableHistogram.copyOf(histogram));
+  }
+
+  @Test
+  public void decode_withWrongNumberOfBuckets_shouldThrow() {
+    HistogramDeltaDecoder<Long> smallDecoder =
+        new HistogramDeltaDecoder<>(BucketSelectors.linearLongValues(0, 10, 3));
+    try {
+      smallDecoder.decode(encoder.encode());
+      Truth.assert_().fail("Expected an exception due to the number of buckets being different.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("1000 buckets");
+    }
+  }
+
+  @Test
+  public void varints_shouldRoundTrip() {
+    long[] values = {0, 1, -1, 127, 128, -300, Long.MAX_VALUE, Long.MIN_VALUE};
+    ByteBuffer buffer = ByteBuffer.allocate(values.length * 2 * Varints.MAX_SIZE);
+    for (long value : values) {
+      Varints.putSigned(buffer, value);
+      Varints.putUnsigned(buffer, value);
+    }
+    buffer.flip();
+    for (long value : values) {
+      assertThat(Varints.getSigned(buffer)).isEqualTo(value);
+      assertThat(Varints.getUnsigned(buffer)).isEqualTo(value);
+    }
+  }
+}
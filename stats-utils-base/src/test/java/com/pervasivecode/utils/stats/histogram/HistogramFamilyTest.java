@@ -0,0 +1,76 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.collect.ImmutableList;
+import com.google.common.truth.Truth;
+
+public class HistogramFamilyTest {
+  private BucketSelector<Long> bucketer;
+  private HistogramFamily<Long> family;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    family = new HistogramFamily<>(bucketer, 3);
+  }
+
+  @Test
+  public void countValue_shouldOnlyCountInSpecifiedHistogram() {
+    family.countValue(0, 5L);
+    family.countValue(1, 5L);
+    family.countValue(1, 25L);
+    family.histogram(2).countValue(100L);
+
+    assertThat(family.countInBucket(0, 1)).isEqualTo(1L);
+    assertThat(family.countInBucket(1, 1)).isEqualTo(1L);
+    assertThat(family.countInBucket(1, 3)).isEqualTo(1L);
+    assertThat(family.countInBucket(0, 3)).isEqualTo(0L);
+    MutableHistogram<Long> last = family.histogram(2);
+    assertThat(last.countInBucket(4)).isEqualTo(1L);
+    assertThat(last.numBuckets()).isEqualTo(5);
+    assertThat(last.bucketUpperBound(3)).isEqualTo(30L);
+  }
+
+  @Test
+  public void snapshotAll_shouldMatchIndividualSnapshots() {
+    for (long i = 0; i < 100; i++) {
+      family.countValue((int) (i % 3), i);
+    }
+    ImmutableList<ImmutableHistogram<Long>> snapshots = family.snapshotAll();
+    assertThat(snapshots).hasSize(3);
+    for (int h = 0; h < 3; h++) {
+      assertThat(snapshots.get(h)).isEqualTo(family.snapshot(h));
+      assertThat(snapshots.get(h)).isEqualTo(ImmutableHistogram.copyOf(family.histogram(h)));
+    }
+    assertThat(family.merged().totalCount()).isEqualTo(100L);
+    assertThat(family.merged().countInBucket(0)).isEqualTo(1L);
+    assertThat(family.merged().countInBucket(4)).isEqualTo(69L);
+
+    long[] counts = family.copyCounts();
+    assertThat(counts.length).isEqualTo(15);
+    assertThat(counts[5 + 1]).isEqualTo(family.countInBucket(1, 1));
+  }
+
+  @Test
+  public void countValue_withInvalidIndex_shouldThrow() {
+    try {
+      family.countValue(3, 1L);
+      Truth.assert_().fail("Expected an exception due to the invalid histogram index.");
+    } catch (IndexOutOfBoundsException ioobe) {
+      assertThat(ioobe).hasMessageThat().contains("histogramIndex");
+    }
+  }
+
+  @Test
+  public void constructor_withTooManyCounts_shouldThrow() {
+    try {
+      new HistogramFamily<>(bucketer, Integer.MAX_VALUE / 2);
+      Truth.assert_().fail("Expected an exception due to the family being too large.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("Integer.MAX_VALUE");
+    }
+  }
+}
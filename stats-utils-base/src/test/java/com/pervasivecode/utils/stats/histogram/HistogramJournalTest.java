@@ -0,0 +1,220 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class HistogramJournalTest {
+  private static final Instant START = Instant.parse("2018-06-01T12:00:00Z");
+
+  private Path directory;
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("HistogramJournalTest");
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  /** Make the histogram for minute {@code i}, which has {@code i} values in bucket i % 5. */
+  private ImmutableHistogram<Long> minuteHistogram(int i) {
+    long[] counts = new long[5];
+    counts[i % 5] = i;
+    counts[4] = 1_000_000L;
+    return Histograms.histogramOf(counts, bucketer);
+  }
+
+  private void appendMinutes(HistogramJournal<Long> journal, int firstMinute, int numMinutes) {
+    for (int i = firstMinute; i < firstMinute + numMinutes; i++) {
+      journal.append(START.plus(Duration.ofMinutes(i)), minuteHistogram(i));
+    }
+  }
+
+  /** Add up the minute histograms in the range [startMinute, endMinute). */
+  private ImmutableHistogram<Long> expectedTotal(int startMinute, int endMinute) {
+    long[] counts = new long[5];
+    for (int i = startMinute; i < endMinute; i++) {
+      ImmutableHistogram<Long> minute = minuteHistogram(i);
+      for (int j = 0; j < 5; j++) {
+        counts[j] += minute.countInBucket(j);
+      }
+    }
+    return Histograms.histogramOf(counts, bucketer);
+  }
+
+  private ImmutableHistogram<Long> query(HistogramJournal<Long> journal, int startMinute,
+      int endMinute) throws IOException {
+    return journal.histogramForRange(START.plus(Duration.ofMinutes(startMinute)),
+        START.plus(Duration.ofMinutes(endMinute)));
+  }
+
+  @Test
+  public void histogramForRange_shouldMergeEntriesInRange() throws IOException {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 0, 300);
+      journal.flush();
+
+      // 14:00 to 15:30, which covers one whole hour and one partial hour.
+      assertThat(query(journal, 120, 210)).isEqualTo(expectedTotal(120, 210));
+      // Partial hours at both ends, plus several whole hours.
+      assertThat(query(journal, 17, 283)).isEqualTo(expectedTotal(17, 283));
+      // The current hour, which does not have a rollup yet.
+      assertThat(query(journal, 250, 400)).isEqualTo(expectedTotal(250, 300));
+      assertThat(query(journal, 0, 300)).isEqualTo(expectedTotal(0, 300));
+      assertThat(query(journal, 5, 6)).isEqualTo(expectedTotal(5, 6));
+      assertThat(query(journal, 5, 5).totalCount()).isEqualTo(0L);
+      assertThat(query(journal, -100, 0).totalCount()).isEqualTo(0L);
+    }
+  }
+
+  @Test
+  public void histogramForRange_withSeveralSnapshotsPerTimestamp_shouldIncludeAll()
+      throws IOException {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      for (int i = 0; i < 200; i++) {
+        journal.append(START.plus(Duration.ofMinutes(i / 100)), minuteHistogram(1));
+      }
+      journal.flush();
+      assertThat(query(journal, 0, 1).countInBucket(1)).isEqualTo(100L);
+      assertThat(query(journal, 1, 2).countInBucket(1)).isEqualTo(100L);
+    }
+  }
+
+  @Test
+  public void open_withExistingJournal_shouldRetainEntriesAndContinueAppending()
+      throws IOException {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 0, 90);
+    }
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 90, 100);
+      journal.flush();
+      assertThat(query(journal, 0, 190)).isEqualTo(expectedTotal(0, 190));
+      assertThat(query(journal, 60, 120)).isEqualTo(expectedTotal(60, 120));
+    }
+    assertThat(Files.size(directory.resolve("rollups.journal"))).isGreaterThan(0L);
+  }
+
+  @Test
+  public void open_withIncompleteLastEntry_shouldDiscardIt() throws IOException {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 0, 10);
+    }
+    Path segment = directory.resolve("segment-0000000000.journal");
+    long size = Files.size(segment);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 3);
+    }
+
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      assertThat(query(journal, 0, 10)).isEqualTo(expectedTotal(0, 9));
+      appendMinutes(journal, 9, 1);
+      journal.flush();
+      assertThat(query(journal, 0, 10)).isEqualTo(expectedTotal(0, 10));
+    }
+  }
+
+  @Test
+  public void open_withRollupOfLostEntries_shouldRebuildRollupFromEntries() throws IOException {
+    // Minute 60 completes the rollup of the first hour.
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 0, 61);
+    }
+    // Lose the entries for minutes 55 through 60 (each entry is 19 bytes), leaving a rollup of
+    // entries that don't exist.
+    Path segment = directory.resolve("segment-0000000000.journal");
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(55 * 19);
+    }
+
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      assertThat(query(journal, 0, 60)).isEqualTo(expectedTotal(0, 55));
+      appendMinutes(journal, 55, 10);
+      journal.flush();
+      assertThat(query(journal, 0, 60)).isEqualTo(expectedTotal(0, 60));
+      assertThat(query(journal, 0, 65)).isEqualTo(expectedTotal(0, 65));
+    }
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      assertThat(query(journal, 0, 60)).isEqualTo(expectedTotal(0, 60));
+    }
+  }
+
+  @Test
+  public void append_fromManyThreads_shouldKeepEverySnapshot() throws Exception {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      List<Thread> threads = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        threads.add(new Thread(() -> {
+          for (int i = 0; i < 500; i++) {
+            journal.append(START, minuteHistogram(3));
+          }
+        }));
+      }
+      threads.forEach(Thread::start);
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      journal.flush();
+      assertThat(query(journal, 0, 1).countInBucket(3)).isEqualTo(6_000L);
+    }
+  }
+
+  @Test
+  public void append_withEarlierTimestamp_shouldThrow() throws IOException {
+    try (HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer)) {
+      appendMinutes(journal, 5, 1);
+      try {
+        appendMinutes(journal, 4, 1);
+        Truth.assert_().fail("Expected an exception due to the timestamp being out of order.");
+      } catch (IllegalArgumentException iae) {
+        assertThat(iae).hasMessageThat().contains("timestamp order");
+      }
+    }
+  }
+
+  @Test
+  public void open_withDifferentBuckets_shouldThrow() throws IOException {
+    HistogramJournal.open(directory, bucketer).close();
+    try {
+      HistogramJournal.open(directory, BucketSelectors.linearLongValues(0, 40, 5));
+      Truth.assert_().fail("Expected an exception due to the buckets being different.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("different buckets");
+    }
+  }
+
+  @Test
+  public void append_afterClose_shouldThrow() throws IOException {
+    HistogramJournal<Long> journal = HistogramJournal.open(directory, bucketer);
+    journal.close();
+    try {
+      appendMinutes(journal, 0, 1);
+      Truth.assert_().fail("Expected an exception due to the journal being closed.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("closed");
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.stats.histogram.HistogramRegistry.RegisteredHistogram;
+import com.pervasivecode.utils.time.testing.FakeTimeSource;
+
+public class HistogramRegistryTest {
+  private FakeTimeSource timeSource;
+  private HistogramRegistry<Long> registry;
+
+  @Before
+  public void setup() {
+    timeSource = new FakeTimeSource(false);
+    // Upper bounds: 0, 10, 20, 30
+    registry = HistogramRegistry.builder(BucketSelectors.linearLongValues(0, 30, 5), timeSource)
+        .setMaxHistograms(3)
+        .setIdleTimeout(Duration.ofMinutes(10))
+        .build();
+  }
+
+  @Test
+  public void histogram_withSameNameAndLabels_shouldReturnSameHistogram() {
+    RegisteredHistogram<Long> login =
+        registry.histogram("latency", LabelSet.of("path", "/login", "method", "GET"));
+    login.countValue(15L);
+    RegisteredHistogram<Long> sameLogin =
+        registry.histogram("latency", LabelSet.of("method", "GET", "path", "/login"));
+    assertThat(sameLogin).isSameAs(login);
+    assertThat(sameLogin.countInBucket(2)).isEqualTo(1L);
+    assertThat(login.labels().toString()).isEqualTo("method=\"GET\",path=\"/login\"");
+
+    assertThat(registry.histogram("latency", LabelSet.of("path", "/logout"))).isNotSameAs(login);
+    assertThat(registry.histogram("size")).isNotSameAs(login);
+    assertThat(registry.numHistograms()).isEqualTo(3);
+  }
+
+  @Test
+  public void histogram_beyondLimit_shouldReturnOverflowHistogram() {
+    for (int i = 0; i < 3; i++) {
+      registry.histogram("latency", LabelSet.of("tenant", "t" + i)).countValue(1L);
+    }
+    RegisteredHistogram<Long> overflow1 =
+        registry.histogram("latency", LabelSet.of("tenant", "t3"));
+    RegisteredHistogram<Long> overflow2 =
+        registry.histogram("latency", LabelSet.of("tenant", "t4"));
+    assertThat(overflow1.name()).isEqualTo(HistogramRegistry.OVERFLOW_NAME);
+    assertThat(overflow1.labels()).isEqualTo(HistogramRegistry.OVERFLOW_LABELS);
+    assertThat(overflow2).isSameAs(overflow1);
+    assertThat(registry.numHistograms()).isEqualTo(3);
+    assertThat(registry.histograms()).hasSize(4);
+    assertThat(registry.histogram("other")).isSameAs(overflow1);
+    assertThat(registry.histogram(HistogramRegistry.OVERFLOW_NAME,
+        HistogramRegistry.OVERFLOW_LABELS)).isSameAs(overflow1);
+  }
+
+  @Test
+  public void histogram_withManyNamesBeyondLimit_shouldNotGrowRegistry() {
+    for (int i = 0; i < 3; i++) {
+      registry.histogram("name" + i).countValue(1L);
+    }
+    long retainedBytes = registry.retainedBytes();
+    RegisteredHistogram<Long> overflow = registry.histogram("name3");
+    long retainedBytesWithOverflow = registry.retainedBytes();
+    assertThat(retainedBytesWithOverflow).isEqualTo(retainedBytes + overflow.retainedBytes());
+
+    for (int i = 4; i < 10_000; i++) {
+      assertThat(registry.histogram("name" + i, LabelSet.of("i", "x"))).isSameAs(overflow);
+    }
+    assertThat(registry.numNames()).isEqualTo(3);
+    assertThat(registry.histograms()).hasSize(4);
+    assertThat(registry.retainedBytes()).isEqualTo(retainedBytesWithOverflow);
+  }
+
+  @Test
+  public void evictIdleHistograms_shouldOnlyEvictHistogramsWithoutRecentValues() {
+    RegisteredHistogram<Long> busy = registry.histogram("busy");
+    RegisteredHistogram<Long> idle = registry.histogram("idle");
+    idle.countValue(5L);
+    long retainedBytes = registry.retainedBytes();
+    assertThat(retainedBytes).isEqualTo(busy.retainedBytes() + idle.retainedBytes());
+
+    for (int minute = 0; minute < 15; minute++) {
+      busy.countValue(5L);
+      timeSource.advance(Duration.ofMinutes(1));
+      registry.evictIdleHistograms();
+    }
+    assertThat(registry.histograms()).containsExactly(busy);
+    assertThat(registry.numHistograms()).isEqualTo(1);
+    assertThat(registry.numNames()).isEqualTo(1);
+    assertThat(registry.retainedBytes()).isEqualTo(busy.retainedBytes());
+
+    // Recording into an evicted histogram puts it back.
+    idle.countValue(25L);
+    assertThat(registry.histogram("idle")).isSameAs(idle);
+    assertThat(registry.numNames()).isEqualTo(2);
+    assertThat(idle.countInBucket(3)).isEqualTo(1L);
+    assertThat(registry.retainedBytes()).isEqualTo(retainedBytes);
+  }
+
+  @Test
+  public void countValue_afterReplacement_shouldRecordIntoReplacement() {
+    RegisteredHistogram<Long> original = registry.histogram("latency");
+    timeSource.advance(Duration.ofMinutes(11));
+    assertThat(registry.evictIdleHistograms()).isEqualTo(1);
+
+    RegisteredHistogram<Long> replacement = registry.histogram("latency");
+    assertThat(replacement).isNotSameAs(original);
+    original.countValue(5L);
+    original.countValue(5L);
+    assertThat(replacement.countInBucket(1)).isEqualTo(2L);
+    assertThat(original.countInBucket(1)).isEqualTo(0L);
+    assertThat(registry.numHistograms()).isEqualTo(1);
+  }
+
+  @Test
+  public void labelSetOf_withDuplicateName_shouldThrow() {
+    try {
+      LabelSet.of("path", "/a", "path", "/b");
+      Truth.assert_().fail("Expected an exception due to the duplicate label name.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("path");
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class HistogramTimeSeriesTest {
+  private static final Instant START = Instant.parse("2018-06-01T12:00:00Z");
+
+  private BucketSelector<Long> bucketer;
+  private HistogramTimeSeries<Long> timeSeries;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    // 1s for 2 minutes, 10s for 10 minutes, 1 minute for 1 hour.
+    timeSeries = HistogramTimeSeries.builder(bucketer) //
+        .addTier(Duration.ofSeconds(1), Duration.ofMinutes(2)) //
+        .addTier(Duration.ofSeconds(10), Duration.ofMinutes(10)) //
+        .addTier(Duration.ofMinutes(1), Duration.ofHours(1)) //
+        .build();
+  }
+
+  /** Make a histogram with one value in bucket 1 and {@code second} values in bucket 2. */
+  private ImmutableHistogram<Long> tickHistogram(int second) {
+    return Histograms.histogramOf(new long[] {0, 1, second, 0, 0}, bucketer);
+  }
+
+  private void recordSeconds(int firstSecond, int numSeconds) {
+    for (int i = firstSecond; i < firstSecond + numSeconds; i++) {
+      timeSeries.record(START.plusSeconds(i), tickHistogram(i));
+    }
+  }
+
+  private ImmutableHistogram<Long> query(int startSecond, int endSecond) {
+    return timeSeries.histogramForRange(START.plusSeconds(startSecond),
+        START.plusSeconds(endSecond));
+  }
+
+  private static long sumOfSeconds(int startSecond, int endSecond) {
+    long total = 0;
+    for (int i = startSecond; i < endSecond; i++) {
+      total += i;
+    }
+    return total;
+  }
+
+  @Test
+  public void histogramForRange_withinFinestTier_shouldIncludeEachTick() {
+    recordSeconds(0, 100);
+    ImmutableHistogram<Long> histogram = query(13, 77);
+    assertThat(histogram.countInBucket(1)).isEqualTo(64L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(sumOfSeconds(13, 77));
+    assertThat(query(0, 100).countInBucket(1)).isEqualTo(100L);
+    assertThat(query(50, 50).totalCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void histogramForRange_withOlderTicks_shouldUseCoarserTiers() {
+    recordSeconds(0, 3600);
+
+    // The last 2 minutes are at 1s resolution.
+    assertThat(query(3555, 3597).countInBucket(1)).isEqualTo(42L);
+    // 10s resolution is retained from 3000 onward, so 3003 is rounded up to 3010.
+    assertThat(query(3003, 3600).countInBucket(1)).isEqualTo(590L);
+    assertThat(query(3003, 3600).countInBucket(2)).isEqualTo(sumOfSeconds(3010, 3600));
+    // Only 1-minute resolution is retained before 3000, so 125 is rounded up to 180 and 2990 is
+    // rounded down to 2940.
+    assertThat(query(125, 2990).countInBucket(1)).isEqualTo(2940L - 180L);
+    assertThat(query(0, 3600).countInBucket(1)).isEqualTo(3600L);
+  }
+
+  @Test
+  public void histogramForRange_beforeRetentionPeriod_shouldBeEmpty() {
+    recordSeconds(0, 4000);
+    // The newest tick is in minute 66, so the 60 1-minute slots cover minutes 7 through 66.
+    assertThat(query(0, 420).totalCount()).isEqualTo(0L);
+    assertThat(query(0, 480).countInBucket(1)).isEqualTo(60L);
+  }
+
+  @Test
+  public void record_withTickOlderThanFinestTier_shouldOnlyUpdateCoarserTiers() {
+    recordSeconds(600, 1);
+    timeSeries.record(START.plusSeconds(300), tickHistogram(1));
+
+    assertThat(query(300, 301).totalCount()).isEqualTo(0L);
+    assertThat(query(300, 310).countInBucket(1)).isEqualTo(1L);
+    assertThat(query(0, 601).countInBucket(1)).isEqualTo(2L);
+  }
+
+  @Test
+  public void record_afterLongGap_shouldNotReuseStaleSlots() {
+    recordSeconds(0, 10);
+    // Exactly one finest-tier retention period later, so the same slots are used.
+    recordSeconds(120, 10);
+    assertThat(query(120, 130).countInBucket(1)).isEqualTo(10L);
+    assertThat(query(0, 130).countInBucket(1)).isEqualTo(20L);
+  }
+
+  @Test
+  public void addTier_withNonMultipleResolution_shouldThrow() {
+    try {
+      HistogramTimeSeries.builder(bucketer) //
+          .addTier(Duration.ofSeconds(2), Duration.ofMinutes(2)) //
+          .addTier(Duration.ofSeconds(3), Duration.ofMinutes(10));
+      Truth.assert_().fail("Expected an exception due to the resolution not being a multiple.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("multiple of the previous tier");
+    }
+  }
+
+  @Test
+  public void build_withNoTiers_shouldThrow() {
+    try {
+      HistogramTimeSeries.builder(bucketer).build();
+      Truth.assert_().fail("Expected an exception due to there being no tiers.");
+    } catch (IllegalStateException ise) {
+      assertThat(ise).hasMessageThat().contains("At least one tier");
+    }
+  }
+}
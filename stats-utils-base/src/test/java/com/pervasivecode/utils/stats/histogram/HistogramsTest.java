@@ -1,6 +1,11 @@
 package com.pervasivecode.utils.stats.histogram;
 
 import static com.google.common.truth.Truth.assertThat;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 import org.junit.Test;
 import com.google.common.collect.ImmutableList;
 import com.google.common.truth.Truth;
@@ -55,4 +60,164 @@ public class HistogramsTest {
       assertThat(iae).hasMessageThat().contains("last bucket");
     }
   }
+
+  @Test
+  public void transformValues_shouldOnlyTransformEachUpperBoundOnce() {
+    AtomicInteger numTransformations = new AtomicInteger(0);
+    Histogram<String> transformed = Histograms.transformValues(buildValidHistogram(), (v) -> {
+      numTransformations.incrementAndGet();
+      return v.toLowerCase();
+    });
+
+    String first = transformed.bucketUpperBound(0);
+    assertThat(first).isEqualTo("l");
+    assertThat(transformed.bucketUpperBound(0)).isSameAs(first);
+    assertThat(numTransformations.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void toHistogram_shouldCountStreamElements() {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, 5);
+    ImmutableHistogram<Long> histogram =
+        Stream.of(1L, 2L, 3L, 4L, 5L, 100L).collect(Histograms.toHistogram(bucketer));
+
+    assertThat(histogram.numBuckets()).isEqualTo(5);
+    assertThat(histogram.bucketUpperBound(3)).isEqualTo(8L);
+    assertThat(histogram.countInBucket(0)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(1L);
+  }
+
+  @Test
+  public void toHistogram_withParallelStream_shouldMatchSequentialCounts() {
+    BucketSelector<Long> bucketer = BucketSelectors.linearLongValues(0, 1000, 12);
+    ImmutableHistogram<Long> sequential =
+        LongStream.range(0, 100_000).boxed().collect(Histograms.toHistogram(bucketer));
+    ImmutableHistogram<Long> parallel = LongStream.range(0, 100_000).boxed().parallel()
+        .collect(Histograms.toHistogram(bucketer));
+
+    assertThat(parallel).isEqualTo(sequential);
+    assertThat(parallel.totalCount()).isEqualTo(100_000L);
+  }
+
+  @Test
+  public void toHistogram_withValueFunction_shouldCountFunctionValues() {
+    BucketSelector<Long> bucketer = BucketSelectors.powerOf2LongValues(0, 5);
+    ImmutableHistogram<Long> histogram = Stream.of("a", "to", "the", "four", "nineteen")
+        .parallel().collect(Histograms.toHistogram(String::length, bucketer));
+
+    assertThat(histogram.countInBucket(0)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(0L);
+  }
+
+  @Test
+  public void countValues_withLongStream_shouldCountAllValues() {
+    BucketSelector<Long> bucketer = BucketSelectors.linearLongValues(0, 100, 12);
+    ImmutableHistogram<Long> histogram =
+        Histograms.countValues(LongStream.rangeClosed(1, 110).parallel(), bucketer);
+
+    assertThat(histogram.countInBucket(0)).isEqualTo(0L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(10L);
+    assertThat(histogram.countInBucket(10)).isEqualTo(10L);
+    assertThat(histogram.countInBucket(11)).isEqualTo(10L);
+  }
+
+  @Test
+  public void countValues_withDoubleStream_shouldCountAllValues() {
+    BucketSelector<Double> bucketer = BucketSelectors.exponential(10.0, 0.0, 4);
+    ImmutableHistogram<Double> histogram =
+        Histograms.countValues(DoubleStream.of(0.5, 1.0, 5.0, 50.0, 99.0, 1000.0), bucketer);
+
+    assertThat(histogram.countInBucket(0)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+  }
+
+  @Test
+  public void countValues_withLongArray_shouldMatchLongStream() {
+    LongBucketSelector bucketer = BucketSelectors.powerOf2LongValues(0, 24);
+    SplittableRandom random = new SplittableRandom(42);
+    // Not a multiple of the block size or of the number of counting lanes.
+    long[] values = new long[5_003];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextLong(-10, 1L << 25);
+    }
+    assertThat(Histograms.countValues(values, bucketer))
+        .isEqualTo(Histograms.countValues(LongStream.of(values), bucketer));
+
+    ImmutableHistogram<Long> middle = Histograms.countValues(values, 1000, 2001, bucketer);
+    assertThat(middle).isEqualTo(
+        Histograms.countValues(LongStream.of(values).skip(1000).limit(2001), bucketer));
+    assertThat(middle.totalCount()).isEqualTo(2001L);
+  }
+
+  @Test
+  public void countValues_withInvalidArrayRange_shouldThrow() {
+    try {
+      Histograms.countValues(new long[10], 5, 6, BucketSelectors.powerOf2LongValues(0, 4));
+      Truth.assert_().fail("Expected an exception due to the invalid range.");
+    } catch (IndexOutOfBoundsException ioobe) {
+      assertThat(ioobe).hasMessageThat().contains("end index");
+    }
+  }
+
+  @Test
+  public void rebucket_withNestedBoundaries_shouldMatchCountingWithTargetBoundaries() {
+    LongBucketSelector fine = BucketSelectors.linearLongValues(0, 100, 12);
+    LongBucketSelector coarse = BucketSelectors.irregularLongValues(20, 50, 100);
+    ImmutableHistogram<Long> source = Histograms.countValues(LongStream.rangeClosed(-5, 110), fine);
+
+    assertThat(Histograms.rebucket(source, coarse, Histograms.RebucketingStrategy.EXACT))
+        .isEqualTo(Histograms.countValues(LongStream.rangeClosed(-5, 110), coarse));
+    assertThat(Histograms.rebucket(source, coarse, Histograms.RebucketingStrategy.PROPORTIONAL))
+        .isEqualTo(Histograms.countValues(LongStream.rangeClosed(-5, 110), coarse));
+  }
+
+  @Test
+  public void rebucket_withProportionalStrategy_shouldSplitCountsByRange() {
+    ImmutableHistogram<Long> source = Histograms.countValues(LongStream.rangeClosed(1, 105),
+        BucketSelectors.irregularLongValues(0, 100));
+    ImmutableHistogram<Long> rebucketed = Histograms.rebucket(source,
+        BucketSelectors.irregularLongValues(25, 50, 60),
+        Histograms.RebucketingStrategy.PROPORTIONAL);
+
+    assertThat(rebucketed.countInBucket(0)).isEqualTo(25L);
+    assertThat(rebucketed.countInBucket(1)).isEqualTo(25L);
+    assertThat(rebucketed.countInBucket(2)).isEqualTo(10L);
+    assertThat(rebucketed.countInBucket(3)).isEqualTo(45L);
+    assertThat(rebucketed.bucketUpperBound(2)).isEqualTo(60L);
+  }
+
+  @Test
+  public void rebucket_withProportionalStrategy_shouldPreserveTotalCount() {
+    SplittableRandom random = new SplittableRandom(7);
+    long[] values = new long[10_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextLong(-1000, 1_000_000);
+    }
+    ImmutableHistogram<Long> source =
+        Histograms.countValues(values, BucketSelectors.linearLongValues(0, 999_000, 1000));
+    ImmutableHistogram<Long> rebucketed = Histograms.rebucket(source,
+        BucketSelectors.powerOf2LongValues(0, 24), Histograms.RebucketingStrategy.PROPORTIONAL);
+    assertThat(rebucketed.totalCount()).isEqualTo((long) values.length);
+  }
+
+  @Test
+  public void rebucket_withExactStrategyAndOverlappingBuckets_shouldThrow() {
+    ImmutableHistogram<Long> source = Histograms.countValues(LongStream.rangeClosed(1, 105),
+        BucketSelectors.irregularLongValues(0, 100));
+    try {
+      Histograms.rebucket(source, BucketSelectors.irregularLongValues(0, 50, 100),
+          Histograms.RebucketingStrategy.EXACT);
+      Truth.assert_().fail("Expected an exception due to a source bucket being split.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("bucket 1");
+    }
+  }
 }
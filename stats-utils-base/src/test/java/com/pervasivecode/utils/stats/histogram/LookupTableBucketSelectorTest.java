@@ -0,0 +1,60 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import org.junit.Test;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.truth.Truth;
+
+public class LookupTableBucketSelectorTest {
+  private static void assertSameBuckets(LongBucketSelector selector,
+      BucketSelector<Long> expected, long minValue, long maxValue) {
+    assertThat(selector.numBuckets()).isEqualTo(expected.numBuckets());
+    for (long value = minValue; value <= maxValue; value++) {
+      if (selector.bucketIndexFor(value) != expected.bucketIndexFor(value)) {
+        Truth.assert_().fail("Wrong bucket for value " + value + ": "
+            + selector.bucketIndexFor(value) + " instead of " + expected.bucketIndexFor(value));
+      }
+    }
+    assertThat(selector.bucketIndexFor(Long.MIN_VALUE))
+        .isEqualTo(expected.bucketIndexFor(Long.MIN_VALUE));
+    assertThat(selector.bucketIndexFor(Long.MAX_VALUE))
+        .isEqualTo(expected.bucketIndexFor(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void bucketIndexFor_shouldMatchWrappedSelector() {
+    BucketSelector<Long> powerOf2 = BucketSelectors.powerOf2LongValues(0, 5);
+    assertSameBuckets(new LookupTableBucketSelector(powerOf2, 0, 64), powerOf2, -100, 200);
+
+    // A selector that isn't a LongBucketSelector, used for values outside of the table.
+    BucketSelector<Long> irregular =
+        new IrregularSetBucketSelector<>(ImmutableSortedSet.of(199L, 299L, 399L, 499L, 599L));
+    LookupTableBucketSelector statusClasses = new LookupTableBucketSelector(irregular, 100, 599);
+    assertSameBuckets(statusClasses, irregular, 0, 1000);
+    assertThat(statusClasses.bucketIndexFor(404L)).isEqualTo(3);
+    assertThat(statusClasses.bucketUpperBound(3)).isEqualTo(499L);
+  }
+
+  @Test
+  public void bucketIndexFor_withMoreThan256Buckets_shouldMatchWrappedSelector() {
+    BucketSelector<Long> linear = BucketSelectors.linearLongValues(-1000, 1000, 2002);
+    assertSameBuckets(new LookupTableBucketSelector(linear, -1500, 1500), linear, -2000, 2000);
+  }
+
+  @Test
+  public void constructor_withTooLargeRange_shouldThrow() {
+    BucketSelector<Long> powerOf2 = BucketSelectors.powerOf2LongValues(0, 5);
+    try {
+      new LookupTableBucketSelector(powerOf2, 0, LookupTableBucketSelector.MAX_TABLE_SIZE);
+      Truth.assert_().fail("Expected an exception due to the range being too large.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("at most");
+    }
+    try {
+      new LookupTableBucketSelector(powerOf2, Long.MIN_VALUE, Long.MAX_VALUE);
+      Truth.assert_().fail("Expected an exception due to the range being too large.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("at most");
+    }
+  }
+}
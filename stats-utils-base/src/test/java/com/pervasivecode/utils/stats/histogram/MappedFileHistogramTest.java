@@ -0,0 +1,122 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class MappedFileHistogramTest {
+  private Path file;
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() throws IOException {
+    file = Files.createTempFile("MappedFileHistogramTest", ".histogram");
+    Files.delete(file);
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void open_withNewFile_shouldStartWithZeroCounts() throws IOException {
+    MappedFileHistogram<Long> histogram = MappedFileHistogram.open(file, bucketer);
+    assertThat(histogram.numBuckets()).isEqualTo(5);
+    assertThat(histogram.bucketUpperBound(3)).isEqualTo(30L);
+    for (int i = 0; i < 5; i++) {
+      assertThat(histogram.countInBucket(i)).isEqualTo(0L);
+    }
+  }
+
+  @Test
+  public void open_withExistingFile_shouldRetainCounts() throws IOException {
+    MappedFileHistogram<Long> histogram = MappedFileHistogram.open(file, bucketer);
+    histogram.countValue(5L);
+    histogram.countValue(25L);
+    histogram.countValue(26L);
+    histogram.force();
+
+    MappedFileHistogram<Long> reopened = MappedFileHistogram.open(file, bucketer);
+    reopened.countValue(99L);
+    assertThat(reopened.countInBucket(1)).isEqualTo(1L);
+    assertThat(reopened.countInBucket(3)).isEqualTo(2L);
+    assertThat(reopened.countInBucket(4)).isEqualTo(1L);
+  }
+
+  @Test
+  public void countValue_withTwoInstancesOfSameFile_shouldShareCounts() throws IOException {
+    MappedFileHistogram<Long> writer = MappedFileHistogram.open(file, bucketer);
+    MappedFileHistogram<Long> reader = MappedFileHistogram.open(file, bucketer);
+    writer.countValue(15L);
+    writer.countValue(-1L);
+    assertThat(reader.countInBucket(0)).isEqualTo(1L);
+    assertThat(reader.countInBucket(2)).isEqualTo(1L);
+  }
+
+  @Test
+  public void countValue_fromManyThreads_shouldCountEveryValue() throws Exception {
+    MappedFileHistogram<Long> histogram = MappedFileHistogram.open(file, bucketer);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      MappedFileHistogram<Long> threadHistogram = MappedFileHistogram.open(file, bucketer);
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          threadHistogram.countValue(12L);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(histogram.countInBucket(2)).isEqualTo(40_000L);
+  }
+
+  @Test
+  public void open_withDifferentBuckets_shouldThrow() throws IOException {
+    MappedFileHistogram.open(file, bucketer);
+    try {
+      MappedFileHistogram.open(file, BucketSelectors.linearLongValues(0, 40, 5));
+      Truth.assert_().fail("Expected an exception due to the buckets being different.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("different buckets");
+    }
+  }
+
+  @Test
+  public void open_withNonHistogramFile_shouldThrow() throws IOException {
+    Files.write(file, new byte[100]);
+    try {
+      MappedFileHistogram.open(file, bucketer);
+      Truth.assert_().fail("Expected an exception due to the file not being a histogram file.");
+    } catch (IOException ioe) {
+      assertThat(ioe).hasMessageThat().contains("not a histogram file");
+    }
+  }
+
+  @Test
+  public void readSnapshot_shouldReturnCountsAndUpperBounds() throws IOException {
+    MappedFileHistogram<Long> histogram = MappedFileHistogram.open(file, bucketer);
+    histogram.countValue(3L);
+    histogram.countValue(30L);
+    histogram.countValue(30L);
+
+    ImmutableHistogram<String> snapshot = MappedFileHistogram.readSnapshot(file);
+    assertThat(snapshot.numBuckets()).isEqualTo(5);
+    assertThat(snapshot.bucketUpperBound(0)).isEqualTo("0");
+    assertThat(snapshot.bucketUpperBound(3)).isEqualTo("30");
+    assertThat(snapshot.countInBucket(1)).isEqualTo(1L);
+    assertThat(snapshot.countInBucket(3)).isEqualTo(2L);
+    assertThat(snapshot.totalCount()).isEqualTo(3L);
+  }
+}
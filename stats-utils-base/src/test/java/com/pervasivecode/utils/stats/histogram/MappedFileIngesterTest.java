@@ -0,0 +1,177 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class MappedFileIngesterTest {
+  private Path file;
+  private BucketSelector<Long> longBucketer;
+  private BucketSelector<Double> doubleBucketer;
+
+  @Before
+  public void setup() throws IOException {
+    file = Files.createTempFile("MappedFileIngesterTest", ".dat");
+    // Upper bounds: 0, 10, 20, 30
+    longBucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    // Upper bounds: 1.0, 10.0, 100.0
+    doubleBucketer = BucketSelectors.exponential(10.0, 0.0, 4);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private void writeText(String text) throws IOException {
+    Files.write(file, text.getBytes(US_ASCII));
+  }
+
+  @Test
+  public void countLongValues_withCsv_shouldCountColumnAndSkipHeader() throws IOException {
+    writeText("name,latency,size\n" + "a,5,1\n" + "b,15,2\r\n" + "c,-3,3\n" + "d,25,4\n"
+        + "e,100,5\n" + "f\n" + "g,,7\n" + "h,10,8");
+
+    ImmutableHistogram<Long> histogram = MappedFileIngester.countLongValues(file,
+        NumericRecordFormat.delimitedText(1, ','), longBucketer, 1);
+
+    assertThat(histogram.countInBucket(0)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(1L);
+    assertThat(histogram.totalCount()).isEqualTo(6L);
+  }
+
+  @Test
+  public void countDoubleValues_withWhitespaceColumns_shouldParseDecimals() throws IOException {
+    writeText("  GET  0.5 x\n" + "GET\t1.0\n" + "PUT 2.5e1\n" + "GET 99.99\n" + "GET 1.5E+2\n"
+        + "GET 0.000000000000000000000123450e24\n" + "GET -7\n");
+
+    ImmutableHistogram<Double> histogram = MappedFileIngester.countDoubleValues(file,
+        NumericRecordFormat.whitespaceSeparatedText(1), doubleBucketer, 1);
+
+    assertThat(histogram.countInBucket(0)).isEqualTo(3L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(0L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(2L);
+  }
+
+  @Test
+  public void countLongValues_withExtremeValues_shouldParseThem() throws IOException {
+    writeText("-9223372036854775808\n" + "+9223372036854775807\n" + "0\n");
+    ImmutableHistogram<Long> histogram = MappedFileIngester.countLongValues(file,
+        NumericRecordFormat.delimitedText(0, ','), longBucketer, 1);
+    assertThat(histogram.countInBucket(0)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(1L);
+  }
+
+  @Test
+  public void countLongValues_withMalformedValue_shouldThrow() throws IOException {
+    for (String value : new String[] {"12.5", "1e3", "-", "12abc", "9223372036854775808",
+        "-9223372036854775809", "123456789012345678901234567890"}) {
+      writeText("a,5\n" + "b," + value + "\r\n" + "c,6\n");
+      try {
+        MappedFileIngester.countLongValues(file, NumericRecordFormat.delimitedText(1, ','),
+            longBucketer, 1);
+        Truth.assert_().fail("Expected an exception due to the malformed value " + value);
+      } catch (IllegalArgumentException iae) {
+        assertThat(iae).hasMessageThat().contains("\"" + value + "\"");
+      }
+    }
+  }
+
+  @Test
+  public void countDoubleValues_withMalformedValue_shouldThrow() throws IOException {
+    for (String value : new String[] {"1.2.3", "1e", "2.5e+", "-", ".", "5x", "1,5"}) {
+      writeText("GET 0.5\n" + "GET " + value + " x\n");
+      try {
+        MappedFileIngester.countDoubleValues(file,
+            NumericRecordFormat.whitespaceSeparatedText(1), doubleBucketer, 1);
+        Truth.assert_().fail("Expected an exception due to the malformed value " + value);
+      } catch (IllegalArgumentException iae) {
+        assertThat(iae).hasMessageThat().contains("\"" + value + "\"");
+      }
+    }
+  }
+
+  @Test
+  public void countLongValues_withManyParts_shouldMatchSinglePart() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10_000; i++) {
+      sb.append(i % 37).append(',').append(i).append('\n');
+    }
+    writeText(sb.toString());
+    NumericRecordFormat format = NumericRecordFormat.delimitedText(0, ',');
+
+    ImmutableHistogram<Long> onePart =
+        MappedFileIngester.countLongValues(file, format, longBucketer, 1);
+    ImmutableHistogram<Long> manyParts =
+        MappedFileIngester.countLongValues(file, format, longBucketer, 13);
+
+    assertThat(onePart.totalCount()).isEqualTo(10_000L);
+    assertThat(manyParts).isEqualTo(onePart);
+  }
+
+  @Test
+  public void countLongValues_withBinaryLongs_shouldReadLittleEndianRecords() throws IOException {
+    // 16-byte records: an 8-byte value followed by 8 bytes of padding, plus a partial record.
+    ByteBuffer buffer = ByteBuffer.allocate(16 * 1000 + 5).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < 1000; i++) {
+      buffer.putLong(i % 40).putLong(-1L);
+    }
+    Files.write(file, buffer.array());
+
+    ImmutableHistogram<Long> histogram = MappedFileIngester.countLongValues(file,
+        NumericRecordFormat.littleEndianLongs(16, 0), longBucketer, 7);
+
+    assertThat(histogram.totalCount()).isEqualTo(1000L);
+    assertThat(histogram.countInBucket(0)).isEqualTo(25L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(250L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(225L);
+  }
+
+  @Test
+  public void countDoubleValues_withBinaryDoubles_shouldReadValueAtOffset() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(12 * 4).order(ByteOrder.LITTLE_ENDIAN);
+    double[] values = {0.5, 5.0, 50.0, 500.0};
+    for (double value : values) {
+      buffer.putInt(0).putDouble(value);
+    }
+    Files.write(file, buffer.array());
+
+    ImmutableHistogram<Double> histogram = MappedFileIngester.countDoubleValues(file,
+        NumericRecordFormat.littleEndianDoubles(12, 4), doubleBucketer, 3);
+
+    for (int i = 0; i < 4; i++) {
+      assertThat(histogram.countInBucket(i)).isEqualTo(1L);
+    }
+  }
+
+  @Test
+  public void countLongValues_withEmptyFile_shouldReturnEmptyHistogram() throws IOException {
+    writeText("");
+    ImmutableHistogram<Long> histogram = MappedFileIngester.countLongValues(file,
+        NumericRecordFormat.delimitedText(0, ','), longBucketer);
+    assertThat(histogram.numBuckets()).isEqualTo(5);
+    assertThat(histogram.totalCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void littleEndianLongs_withTooShortRecord_shouldThrow() {
+    try {
+      NumericRecordFormat.littleEndianLongs(8, 4);
+      Truth.assert_().fail("Expected an exception due to the record being too short.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("recordLength");
+    }
+  }
+}
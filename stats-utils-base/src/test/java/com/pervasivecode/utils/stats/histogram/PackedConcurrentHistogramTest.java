@@ -0,0 +1,134 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class PackedConcurrentHistogramTest {
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+  }
+
+  @Test
+  public void countValue_shouldCountInSeparateBuckets() {
+    for (int counterBits : new int[] {16, 32}) {
+      PackedConcurrentHistogram<Long> histogram =
+          new PackedConcurrentHistogram<>(bucketer, counterBits);
+      ConcurrentHistogram<Long> expected = new ConcurrentHistogram<>(bucketer);
+      for (long i = -10; i < 50; i++) {
+        histogram.countValue(i);
+        expected.countValue(i);
+      }
+      assertThat(ImmutableHistogram.copyOf(histogram))
+          .isEqualTo(ImmutableHistogram.copyOf(expected));
+      assertThat(histogram.bucketUpperBound(1)).isEqualTo(10L);
+    }
+  }
+
+  @Test
+  public void countValue_pastCounterLimit_shouldPromoteBucket() {
+    PackedConcurrentHistogram<Long> histogram = new PackedConcurrentHistogram<>(bucketer, 16);
+    // 5 buckets of 16 bits each fit in 2 longs.
+    assertThat(histogram.counterBytes()).isEqualTo(16L);
+
+    for (int i = 0; i < 70_000; i++) {
+      histogram.countValue(15L);
+    }
+    histogram.countValue(5L);
+    histogram.countValue(25L);
+
+    assertThat(histogram.countInBucket(2)).isEqualTo(70_000L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+    // One 64-bit counter.
+    assertThat(histogram.counterBytes()).isEqualTo(16L + 8L);
+  }
+
+  @Test
+  public void counterBytes_afterPromotion_shouldBeLessThanConcurrentHistogram() {
+    // Upper bounds: 1, 2, 3, 4, 5, 6, 7
+    BucketSelector<Long> eightBuckets = BucketSelectors.linearLongValues(1, 7, 8);
+    PackedConcurrentHistogram<Long> histogram = new PackedConcurrentHistogram<>(eightBuckets, 16);
+    long concurrentHistogramBytes = 8L * Long.BYTES;
+    // Promote one busy bucket, as happens quickly in a latency histogram.
+    for (int i = 0; i < 100_000; i++) {
+      histogram.countValue(3L);
+    }
+    assertThat(histogram.countInBucket(2)).isEqualTo(100_000L);
+    assertThat(histogram.counterBytes()).isAtMost(concurrentHistogramBytes / 2);
+  }
+
+  @Test
+  public void countValue_withEveryBucketPromoted_shouldCountEveryValue() throws Exception {
+    BucketSelector<Long> manyBuckets = BucketSelectors.linearLongValues(0, 19, 21);
+    PackedConcurrentHistogram<Long> histogram = new PackedConcurrentHistogram<>(manyBuckets, 16);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (long i = 0; i < 21 * 20_000; i++) {
+          histogram.countValue(i % 21);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int i = 0; i < 21; i++) {
+      assertThat(histogram.countInBucket(i)).isEqualTo(80_000L);
+    }
+  }
+
+  @Test
+  public void countValue_fromSeveralThreads_shouldCountEveryValue() throws Exception {
+    PackedConcurrentHistogram<Long> histogram = new PackedConcurrentHistogram<>(bucketer, 16);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (long i = 0; i < 40_000; i++) {
+          histogram.countValue(i % 40);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Each thread counts 1,000 zeros, 10,000 values in each of the next 3 buckets, and 9,000 in
+    // the last bucket.
+    assertThat(histogram.countInBucket(0)).isEqualTo(4_000L);
+    assertThat(histogram.countInBucket(1)).isEqualTo(40_000L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(40_000L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(40_000L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(36_000L);
+  }
+
+  @Test
+  public void constructor_withTooManyBucketsFor16BitCounters_shouldThrow() {
+    try {
+      new PackedConcurrentHistogram<>(BucketSelectors.linearLongValues(0, 40_000, 40_002), 16);
+      Truth.assert_().fail("Expected an exception due to the number of buckets.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("at most 32768 buckets");
+    }
+  }
+
+  @Test
+  public void constructor_withUnsupportedWidth_shouldThrow() {
+    try {
+      new PackedConcurrentHistogram<>(bucketer, 8);
+      Truth.assert_().fail("Expected an exception due to the unsupported counter width.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("16 or 32");
+    }
+  }
+}
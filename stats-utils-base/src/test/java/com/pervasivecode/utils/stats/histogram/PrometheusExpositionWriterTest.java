@@ -0,0 +1,115 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.stats.histogram.PrometheusExpositionWriter.BucketLabels;
+
+public class PrometheusExpositionWriterTest {
+  private BucketSelector<Long> bucketer;
+  private BucketLabels<Long> bucketLabels;
+  private ConcurrentHistogram<Long> histogram;
+  private PrometheusExpositionWriter writer;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    bucketLabels = BucketLabels.of(bucketer);
+    histogram = new ConcurrentHistogram<>(bucketer);
+    writer = new PrometheusExpositionWriter();
+  }
+
+  @Test
+  public void writeHistogram_shouldWriteCumulativeBucketCounts() {
+    histogram.countValue(-3L);
+    histogram.countValue(5L);
+    histogram.countValue(15L);
+    histogram.countValue(15L);
+    histogram.countValue(500L);
+
+    writer.writeHistogramHeader("latency_ms", "Request latency.\nIn milliseconds.");
+    writer.writeHistogram("latency_ms", "", histogram, bucketLabels);
+    assertThat(writer.toString()).isEqualTo(String.join("\n", //
+        "# HELP latency_ms Request latency.\\nIn milliseconds.", //
+        "# TYPE latency_ms histogram", //
+        "latency_ms_bucket{le=\"0\"} 1", //
+        "latency_ms_bucket{le=\"10\"} 2", //
+        "latency_ms_bucket{le=\"20\"} 4", //
+        "latency_ms_bucket{le=\"30\"} 4", //
+        "latency_ms_bucket{le=\"+Inf\"} 5", //
+        "latency_ms_count 5", //
+        ""));
+  }
+
+  @Test
+  public void writeHistogram_withLabelsAndSum_shouldWriteLabelsOnEverySample() {
+    histogram.countValue(25L);
+    String labels = PrometheusExpositionWriter
+        .formatLabels(ImmutableMap.of("path", "/a\"b\\c", "region", "\u6771\u4eac"));
+    writer.writeHistogram("latency_ms", labels, histogram, bucketLabels, 25.5);
+
+    String output = new String(writer.toByteArray(), UTF_8);
+    String expectedLabels = "path=\"/a\\\"b\\\\c\",region=\"\u6771\u4eac\"";
+    assertThat(output).contains("latency_ms_bucket{" + expectedLabels + ",le=\"30\"} 1\n");
+    assertThat(output).contains("latency_ms_count{" + expectedLabels + "} 1\n");
+    assertThat(output).endsWith("latency_ms_sum{" + expectedLabels + "} 25.5\n");
+  }
+
+  @Test
+  public void bucketLabels_withFormatter_shouldUseFormattedUpperBounds() {
+    BucketSelector<String> stringBucketer =
+        new IrregularSetBucketSelector<>(ImmutableSortedSet.of("1.5", "2.5"));
+    ConcurrentHistogram<String> stringHistogram = new ConcurrentHistogram<>(stringBucketer);
+    stringHistogram.countValue("2.0");
+    writer.writeHistogram("size", "", stringHistogram, BucketLabels.of(stringBucketer, (s) -> s));
+    assertThat(writer.toString()).isEqualTo(String.join("\n", //
+        "size_bucket{le=\"1.5\"} 0", //
+        "size_bucket{le=\"2.5\"} 1", //
+        "size_bucket{le=\"+Inf\"} 1", //
+        "size_count 1", //
+        ""));
+  }
+
+  @Test
+  public void reset_shouldReuseBuffer() throws Exception {
+    for (int i = 0; i < 10_000; i++) {
+      writer.writeHistogram("latency_ms", "", histogram, bucketLabels);
+    }
+    int size = writer.size();
+    writer.reset();
+    assertThat(writer.size()).isEqualTo(0);
+    writer.writeHistogram("latency_ms", "", histogram, bucketLabels);
+    assertThat(writer.size()).isEqualTo(size / 10_000);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    assertThat(out.toString("UTF-8")).isEqualTo(writer.toString());
+  }
+
+  @Test
+  public void writeHistogram_withInvalidName_shouldThrow() {
+    try {
+      writer.writeHistogram("2fast", "", histogram, bucketLabels);
+      Truth.assert_().fail("Expected an exception due to the invalid metric name.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("2fast");
+    }
+  }
+
+  @Test
+  public void writeHistogram_withMismatchedBucketLabels_shouldThrow() {
+    try {
+      writer.writeHistogram("latency_ms", "", histogram,
+          BucketLabels.of(BucketSelectors.linearLongValues(0, 10, 3)));
+      Truth.assert_().fail("Expected an exception due to the number of buckets being different.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("5 buckets");
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.io.ByteStreams;
+import com.pervasivecode.utils.stats.histogram.PrometheusExpositionWriter.BucketLabels;
+
+public class PrometheusScrapeEndpointTest {
+  private ConcurrentHistogram<Long> histogram;
+  private PrometheusScrapeEndpoint endpoint;
+
+  @Before
+  public void setup() throws IOException {
+    // Upper bounds: 0, 10, 20, 30
+    BucketSelector<Long> bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    BucketLabels<Long> bucketLabels = BucketLabels.of(bucketer);
+    histogram = new ConcurrentHistogram<>(bucketer);
+    endpoint = PrometheusScrapeEndpoint.start(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/metrics", (writer) -> {
+          writer.writeHistogramHeader("latency_ms", "Request latency.");
+          writer.writeHistogram("latency_ms", "", histogram, bucketLabels);
+        });
+  }
+
+  @After
+  public void tearDown() {
+    endpoint.close();
+  }
+
+  private HttpURLConnection connect(String method) throws IOException {
+    return connect(endpoint, method);
+  }
+
+  private static HttpURLConnection connect(PrometheusScrapeEndpoint endpoint, String method)
+      throws IOException {
+    InetSocketAddress address = endpoint.localAddress();
+    URL url = new URL("http", address.getHostString(), address.getPort(), "/metrics");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    return connection;
+  }
+
+  @Test
+  public void get_shouldServeCurrentCounts() throws Exception {
+    for (int i = 1; i <= 2; i++) {
+      histogram.countValue(15L);
+      HttpURLConnection connection = connect("GET");
+      assertThat(connection.getResponseCode()).isEqualTo(200);
+      assertThat(connection.getContentType()).isEqualTo(PrometheusExpositionWriter.CONTENT_TYPE);
+      try (InputStream body = connection.getInputStream()) {
+        String text = new String(ByteStreams.toByteArray(body), UTF_8);
+        assertThat(text).startsWith("# HELP latency_ms Request latency.\n");
+        assertThat(text).contains("latency_ms_bucket{le=\"20\"} " + i + "\n");
+        assertThat(text).contains("latency_ms_count " + i + "\n");
+      }
+    }
+  }
+
+  @Test
+  public void post_shouldBeRejected() throws Exception {
+    HttpURLConnection connection = connect("POST");
+    assertThat(connection.getResponseCode()).isEqualTo(405);
+  }
+
+  @Test
+  public void get_withFailingCollector_shouldRespondWithError() throws Exception {
+    AtomicBoolean fail = new AtomicBoolean(true);
+    PrometheusScrapeEndpoint failingEndpoint = PrometheusScrapeEndpoint.start(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/metrics", (writer) -> {
+          if (fail.get()) {
+            throw new IllegalStateException("The histograms are unavailable.");
+          }
+          writer.writeHistogramHeader("latency_ms", "Request latency.");
+        });
+    try {
+      assertThat(connect(failingEndpoint, "GET").getResponseCode()).isEqualTo(500);
+      fail.set(false);
+      assertThat(connect(failingEndpoint, "GET").getResponseCode()).isEqualTo(200);
+    } finally {
+      failingEndpoint.close();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class SingleWriterHistogramTest {
+  private BucketSelector<Long> bucketer;
+  private SingleWriterHistogram<Long> histogram;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+    histogram = new SingleWriterHistogram<>(bucketer);
+  }
+
+  @Test
+  public void countValue_shouldBehaveLikeConcurrentHistogram() {
+    ConcurrentHistogram<Long> expected = new ConcurrentHistogram<>(bucketer);
+    for (long i = -10; i < 50; i++) {
+      histogram.countValue(i);
+      expected.countValue(i);
+    }
+    assertThat(ImmutableHistogram.copyOf(histogram))
+        .isEqualTo(ImmutableHistogram.copyOf(expected));
+
+    HistogramTimeSeries<Long> timeSeries = HistogramTimeSeries.builder(bucketer)
+        .addTier(Duration.ofSeconds(1), Duration.ofMinutes(1))
+        .build();
+    Instant start = Instant.ofEpochSecond(1000);
+    timeSeries.record(start, histogram);
+    timeSeries.record(start.plusSeconds(1), expected);
+    ImmutableHistogram<Long> merged = timeSeries.histogramForRange(start, start.plusSeconds(2));
+    assertThat(merged.totalCount()).isEqualTo(120L);
+    assertThat(merged.countInBucket(1)).isEqualTo(20L);
+  }
+
+  @Test
+  public void countInBucket_fromAnotherThread_shouldNeverDecrease() throws Exception {
+    AtomicReference<String> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      long previous = 0;
+      while (previous < 1_000_000L) {
+        long current = histogram.countInBucket(1);
+        if (current < previous) {
+          failure.set("Count decreased from " + previous + " to " + current);
+          return;
+        }
+        previous = current;
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 1_000_000; i++) {
+      histogram.countValue(5L);
+    }
+    reader.join();
+    assertThat(failure.get()).isNull();
+    assertThat(histogram.countInBucket(1)).isEqualTo(1_000_000L);
+  }
+
+  @Test
+  public void countValue_fromAnotherThread_shouldFailWhenAssertionsAreEnabled() throws Exception {
+    boolean assertionsEnabled = false;
+    assert (assertionsEnabled = true);
+    assumeTrue(assertionsEnabled);
+
+    histogram.countValue(1L);
+    AtomicReference<Throwable> thrown = new AtomicReference<>();
+    Thread otherThread = new Thread(() -> {
+      try {
+        histogram.countValue(2L);
+      } catch (Throwable t) {
+        thrown.set(t);
+      }
+    }, "other");
+    otherThread.start();
+    otherThread.join();
+    if (!(thrown.get() instanceof AssertionError)) {
+      Truth.assert_().fail("Expected an AssertionError, but got: " + thrown.get());
+    }
+    assertThat(thrown.get()).hasMessageThat().contains("owning thread");
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+  }
+}
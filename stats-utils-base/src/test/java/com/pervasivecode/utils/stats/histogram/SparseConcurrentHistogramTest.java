@@ -0,0 +1,94 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.primitives.Ints;
+import com.google.common.truth.Truth;
+
+public class SparseConcurrentHistogramTest {
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() {
+    // 100,000 buckets with upper bounds 0, 1, 2, ... 99,998
+    bucketer = BucketSelectors.linearLongValues(0, 99_998, 100_000);
+  }
+
+  @Test
+  public void countValue_withFewBuckets_shouldStaySparse() {
+    SparseConcurrentHistogram<Long> histogram = new SparseConcurrentHistogram<>(bucketer);
+    histogram.countValue(-5L);
+    histogram.countValue(17L);
+    histogram.countValue(17L);
+    histogram.countValue(1_000_000L);
+
+    assertThat(histogram.isDense()).isFalse();
+    assertThat(histogram.countInBucket(0)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(17)).isEqualTo(2L);
+    assertThat(histogram.countInBucket(18)).isEqualTo(0L);
+    assertThat(histogram.countInBucket(99_999)).isEqualTo(1L);
+    assertThat(Ints.asList(histogram.nonZeroBucketIndexes()))
+        .containsExactly(0, 17, 99_999).inOrder();
+  }
+
+  @Test
+  public void countValue_withManyBuckets_shouldGrowAndThenBecomeDense() {
+    SparseConcurrentHistogram<Long> histogram = new SparseConcurrentHistogram<>(bucketer, 0.05);
+    ConcurrentHistogram<Long> expected = new ConcurrentHistogram<>(bucketer);
+    for (long i = 0; i < 4_000; i++) {
+      histogram.countValue(i * 7);
+      expected.countValue(i * 7);
+    }
+    assertThat(histogram.isDense()).isFalse();
+    assertThat(histogram.nonZeroBucketIndexes()).hasLength(4_000);
+    assertThat(ImmutableHistogram.copyOf(histogram))
+        .isEqualTo(ImmutableHistogram.copyOf(expected));
+
+    for (long i = 0; i < 4_000; i++) {
+      histogram.countValue(i * 7 + 1);
+      expected.countValue(i * 7 + 1);
+    }
+    assertThat(histogram.isDense()).isTrue();
+    assertThat(histogram.nonZeroBucketIndexes()).hasLength(8_000);
+    assertThat(ImmutableHistogram.copyOf(histogram))
+        .isEqualTo(ImmutableHistogram.copyOf(expected));
+  }
+
+  @Test
+  public void countValue_fromSeveralThreads_shouldNotLoseCountsWhileGrowing() throws Exception {
+    SparseConcurrentHistogram<Long> histogram = new SparseConcurrentHistogram<>(bucketer, 0.2);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (long i = 0; i < 30_000; i++) {
+          histogram.countValue(i);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(histogram.isDense()).isTrue();
+    for (int i = 0; i < 30_000; i++) {
+      if (histogram.countInBucket(i) != 4L) {
+        Truth.assert_().fail("Bucket " + i + " has count " + histogram.countInBucket(i));
+      }
+    }
+    assertThat(histogram.nonZeroBucketIndexes()).hasLength(30_000);
+  }
+
+  @Test
+  public void constructor_withInvalidFillRatio_shouldThrow() {
+    try {
+      new SparseConcurrentHistogram<>(bucketer, 0.0);
+      Truth.assert_().fail("Expected an exception due to the invalid fill ratio.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("denseFillRatio");
+    }
+  }
+}
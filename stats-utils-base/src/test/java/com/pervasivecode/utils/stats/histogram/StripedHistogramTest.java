@@ -0,0 +1,66 @@
+package com.pervasivecode.utils.stats.histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.truth.Truth;
+
+public class StripedHistogramTest {
+  private BucketSelector<Long> bucketer;
+
+  @Before
+  public void setup() {
+    // Upper bounds: 0, 10, 20, 30
+    bucketer = BucketSelectors.linearLongValues(0, 30, 5);
+  }
+
+  @Test
+  public void countValue_shouldBehaveLikeConcurrentHistogram() {
+    StripedHistogram<Long> histogram = new StripedHistogram<>(bucketer, 4);
+    ConcurrentHistogram<Long> expected = new ConcurrentHistogram<>(bucketer);
+    for (long i = -10; i < 50; i++) {
+      histogram.countValue(i);
+      expected.countValue(i);
+    }
+    assertThat(histogram.numStripes()).isEqualTo(4);
+    assertThat(ImmutableHistogram.copyOf(histogram))
+        .isEqualTo(ImmutableHistogram.copyOf(expected));
+  }
+
+  @Test
+  public void countValue_fromManyShortLivedThreads_shouldNotLoseCounts() throws Exception {
+    StripedHistogram<Long> histogram = new StripedHistogram<>(bucketer);
+    assertThat(Integer.bitCount(histogram.numStripes())).isEqualTo(1);
+    assertThat(histogram.numStripes())
+        .isAtLeast(Runtime.getRuntime().availableProcessors());
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 200; t++) {
+      Thread thread = new Thread(() -> {
+        for (long i = 0; i < 5_000; i++) {
+          histogram.countValue(i % 40);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(ImmutableHistogram.copyOf(histogram).totalCount()).isEqualTo(1_000_000L);
+    // Values 1 through 10 of each group of 40 are in bucket 1.
+    assertThat(histogram.countInBucket(1)).isEqualTo(250_000L);
+  }
+
+  @Test
+  public void constructor_withInvalidNumStripes_shouldThrow() {
+    try {
+      new StripedHistogram<>(bucketer, 3);
+      Truth.assert_().fail("Expected an exception due to the invalid number of stripes.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("numStripes");
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.pervasivecode.utils.stats.histogram.measure;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.measure.Quantity;
+import javax.measure.Unit;
+import javax.measure.UnitConverter;
+
+/**
+ * Converts plain numeric magnitudes in arbitrary units of measure Q into magnitudes in a single
+ * base unit, without creating any {@link Quantity} instances.
+ * <p>
+ * The {@link UnitConverter} for each source unit is looked up once and then cached. Values that are
+ * already in the base unit are not converted at all. Other values are converted by the cached
+ * UnitConverter itself, rather than by multiplying them by a cached scaling factor: the scaling
+ * factor of a downscaling conversion (such as milliseconds to hours) is usually an inexact
+ * reciprocal, so exact multiples of the base unit would not always convert to whole numbers.
+ *
+ * @param <Q> The kind of quantity whose magnitudes will be converted. Example:
+ *        {@link javax.measure.quantity.Power Power}.
+ */
+final class BaseUnitConversions<Q extends Quantity<Q>> {
+  private final Unit<Q> baseUnit;
+  private final ConcurrentHashMap<Unit<Q>, Conversion<Q>> conversionsBySourceUnit;
+
+  // Most callers convert values in just one unit, so remember the last conversion that was used
+  // and skip the map lookup if the same source unit is used again.
+  private volatile Conversion<Q> lastConversion;
+
+  /**
+   * Create a cache of conversions into the specified base unit.
+   *
+   * @param baseUnit The unit that all magnitudes will be converted into.
+   */
+  BaseUnitConversions(Unit<Q> baseUnit) {
+    this.baseUnit = checkNotNull(baseUnit);
+    this.conversionsBySourceUnit = new ConcurrentHashMap<>();
+    this.lastConversion = new Conversion<>(baseUnit, null);
+  }
+
+  /**
+   * Convert a magnitude in the specified unit into a magnitude in the base unit.
+   *
+   * @param magnitude The numeric value to convert.
+   * @param sourceUnit The unit that {@code magnitude} is expressed in.
+   * @return The equivalent numeric value in the base unit.
+   */
+  double toBaseUnit(double magnitude, Unit<Q> sourceUnit) {
+    return conversionFrom(sourceUnit).apply(magnitude);
+  }
+
+  /**
+   * Convert a {@link Quantity} into a magnitude in the base unit.
+   *
+   * @param value The quantity to convert.
+   * @return The equivalent numeric value in the base unit.
+   */
+  double toBaseUnit(Quantity<Q> value) {
+    return conversionFrom(value.getUnit()).apply(value.getValue()).doubleValue();
+  }
+
+  /**
+   * Convert a {@link Quantity} into a magnitude in the base unit, converting its numeric value the
+   * same way that {@link Quantity#to(Unit)} does, rather than converting it to a double first.
+   *
+   * @param value The quantity to convert.
+   * @return The equivalent numeric value in the base unit, truncated to a long value.
+   */
+  long toBaseUnitAsLong(Quantity<Q> value) {
+    return conversionFrom(value.getUnit()).apply(value.getValue()).longValue();
+  }
+
+  private Conversion<Q> conversionFrom(Unit<Q> sourceUnit) {
+    Conversion<Q> conversion = lastConversion;
+    if (conversion.sourceUnit == sourceUnit) {
+      return conversion;
+    }
+    conversion = conversionsBySourceUnit.get(sourceUnit);
+    if (conversion == null) {
+      // Units that are equal to the base unit, even if they are distinct instances, are not
+      // converted, just as Quantity.to(Unit) returns the same Quantity for an equal unit.
+      UnitConverter converter = sourceUnit.getConverterTo(baseUnit);
+      boolean isIdentity = sourceUnit.equals(baseUnit) || converter.isIdentity();
+      conversion = new Conversion<>(sourceUnit, isIdentity ? null : converter);
+      conversionsBySourceUnit.putIfAbsent(sourceUnit, conversion);
+    }
+    lastConversion = conversion;
+    return conversion;
+  }
+
+  private static final class Conversion<Q extends Quantity<Q>> {
+    private final Unit<Q> sourceUnit;
+    private final UnitConverter converter;
+
+    Conversion(Unit<Q> sourceUnit, UnitConverter converter) {
+      this.sourceUnit = sourceUnit;
+      this.converter = converter;
+    }
+
+    double apply(double magnitude) {
+      return (converter == null) ? magnitude : converter.convert(magnitude);
+    }
+
+    Number apply(Number magnitude) {
+      return (converter == null) ? magnitude : converter.convert(magnitude);
+    }
+  }
+}
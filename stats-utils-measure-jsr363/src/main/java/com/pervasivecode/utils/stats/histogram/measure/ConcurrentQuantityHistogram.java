@@ -0,0 +1,85 @@
+package com.pervasivecode.utils.stats.histogram.measure;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import javax.measure.Quantity;
+import javax.measure.Unit;
+import javax.measure.spi.QuantityFactory;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import com.pervasivecode.utils.stats.histogram.BucketingSystem;
+import com.pervasivecode.utils.stats.histogram.ConcurrentHistogram;
+import com.pervasivecode.utils.stats.histogram.MutableHistogram;
+
+/**
+ * A thread-safe Histogram that counts {@link Quantity}{@code <Q>} values, using a BucketSelector
+ * of plain {@code Double} values that represent magnitudes in a single base unit.
+ * <p>
+ * In addition to {@link #countValue(Quantity)}, values can be counted via
+ * {@link #record(double, Unit)}, which takes a plain magnitude and its unit, and never creates a
+ * {@link Quantity} instance. The unit converter from each source unit into the base unit is looked
+ * up once and cached.
+ * <p>
+ * To use a {@code BucketSelector<Long>} such as
+ * {@link BucketSelectors#powerOf2LongValues(int, int)}, wrap it via
+ * {@link BucketSelectors#transform(BucketSelector, java.util.function.Function,
+ * java.util.function.Function)}.
+ *
+ * @param <Q> The kind of quantity that this histogram counts. Example:
+ *        {@link javax.measure.quantity.Power Power}.
+ * @see BucketingSystem
+ */
+public class ConcurrentQuantityHistogram<Q extends Quantity<Q>>
+    implements MutableHistogram<Quantity<Q>> {
+  private final ConcurrentHistogram<Double> histogram;
+  private final Unit<Q> baseUnit;
+  private final QuantityFactory<Q> quantityFactory;
+  private final BaseUnitConversions<Q> conversions;
+
+  /**
+   * Create an empty histogram.
+   *
+   * @param unitlessBucketer A BucketSelector that selects a bucket for a magnitude expressed in
+   *        {@code baseUnit}.
+   * @param baseUnit The unit that the upper bound values of {@code unitlessBucketer} represent.
+   * @param quantityFactory An object that can instantiate objects of type {@code Quantity<Q>}.
+   */
+  public ConcurrentQuantityHistogram(BucketSelector<Double> unitlessBucketer, Unit<Q> baseUnit,
+      QuantityFactory<Q> quantityFactory) {
+    this.histogram = new ConcurrentHistogram<>(checkNotNull(unitlessBucketer));
+    this.baseUnit = checkNotNull(baseUnit);
+    this.quantityFactory = checkNotNull(quantityFactory);
+    this.conversions = new BaseUnitConversions<>(baseUnit);
+  }
+
+  @Override
+  public int numBuckets() {
+    return histogram.numBuckets();
+  }
+
+  @Override
+  public Quantity<Q> bucketUpperBound(int index) {
+    return quantityFactory.create(histogram.bucketUpperBound(index), baseUnit);
+  }
+
+  @Override
+  public long countInBucket(int index) {
+    return histogram.countInBucket(index);
+  }
+
+  @Override
+  public void countValue(Quantity<Q> value) {
+    checkNotNull(value);
+    histogram.countValue(conversions.toBaseUnit(value));
+  }
+
+  /**
+   * Count a value expressed as a plain magnitude and a unit, without creating a {@link Quantity}.
+   *
+   * @param magnitude The numeric part of the value to count.
+   * @param unit The unit of {@code magnitude}. This must be convertible into the base unit.
+   */
+  public void record(double magnitude, Unit<Q> unit) {
+    checkNotNull(unit);
+    histogram.countValue(conversions.toBaseUnit(magnitude, unit));
+  }
+}
@@ -20,6 +20,11 @@ public class ImmutableQuantityHistogram {
   /**
    * Make a copy of a histogram, transforming its upper bound values into instances of
    * {@link Quantity} with the specified measurement and unit.
+   * <p>
+   * This creates a new {@link Quantity} for every upper bound value each time it is called. To
+   * present many histograms that share the same bucketing (such as periodic snapshots of one
+   * histogram) as histograms of {@link Quantity} values without copying them, use
+   * {@link QuantityBucketingSystem#view(Histogram)} instead.
    *
    * @param histogram The histogram of plain {@link Number} values.
    * @param baseUnit The unit that the upper bound values in the histogram should represent.
@@ -0,0 +1,117 @@
+package com.pervasivecode.utils.stats.histogram.measure;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.measure.Quantity;
+import javax.measure.Unit;
+import javax.measure.spi.QuantityFactory;
+import com.pervasivecode.utils.stats.histogram.BucketingSystem;
+import com.pervasivecode.utils.stats.histogram.Histogram;
+
+/**
+ * A BucketingSystem whose upper bound values are {@link Quantity} instances representing the upper
+ * bound values of a BucketingSystem of plain numeric values.
+ * <p>
+ * Each {@link Quantity} upper bound value is created the first time it is requested, and is then
+ * cached and reused. This makes it cheap to present many histograms that share the same bucketing
+ * (such as periodic snapshots of the same histogram) as histograms of Quantity values, via
+ * {@link #view(Histogram)}, without creating any new Quantity instances for each one.
+ *
+ * @param <Q> The kind of quantity that the upper bound values represent. Example:
+ *        {@link javax.measure.quantity.Power Power}.
+ * @see ImmutableQuantityHistogram
+ */
+public final class QuantityBucketingSystem<Q extends Quantity<Q>>
+    implements BucketingSystem<Quantity<Q>> {
+  private final BucketingSystem<? extends Number> unitlessBucketingSystem;
+  private final Unit<Q> baseUnit;
+  private final QuantityFactory<Q> quantityFactory;
+  private final int numBuckets;
+  private final AtomicReferenceArray<Quantity<Q>> upperBounds;
+
+  private QuantityBucketingSystem(BucketingSystem<? extends Number> unitlessBucketingSystem,
+      Unit<Q> baseUnit, QuantityFactory<Q> quantityFactory) {
+    this.unitlessBucketingSystem = unitlessBucketingSystem;
+    this.baseUnit = baseUnit;
+    this.quantityFactory = quantityFactory;
+    this.numBuckets = unitlessBucketingSystem.numBuckets();
+    this.upperBounds = new AtomicReferenceArray<>(Math.max(0, numBuckets - 1));
+  }
+
+  /**
+   * Create a QuantityBucketingSystem based on a BucketingSystem of plain numeric values, such as a
+   * {@link com.pervasivecode.utils.stats.histogram.BucketSelector BucketSelector} or a
+   * {@link Histogram}.
+   *
+   * @param unitlessBucketingSystem The BucketingSystem of plain {@link Number} values.
+   * @param baseUnit The unit that the upper bound values of {@code unitlessBucketingSystem}
+   *        represent.
+   * @param quantityFactory An object that can instantiate objects of type {@code Quantity<Q>}.
+   * @param <Q> The kind of quantity that the upper bound values represent.
+   * @return A BucketingSystem of {@link Quantity} values.
+   */
+  public static <Q extends Quantity<Q>> QuantityBucketingSystem<Q> of(
+      BucketingSystem<? extends Number> unitlessBucketingSystem, Unit<Q> baseUnit,
+      QuantityFactory<Q> quantityFactory) {
+    requireNonNull(unitlessBucketingSystem, "The unitlessBucketingSystem argument is required.");
+    requireNonNull(baseUnit, "The baseUnit argument is required.");
+    requireNonNull(quantityFactory, "The quantityFactory argument is required.");
+    return new QuantityBucketingSystem<>(unitlessBucketingSystem, baseUnit, quantityFactory);
+  }
+
+  @Override
+  public int numBuckets() {
+    return numBuckets;
+  }
+
+  @Override
+  public Quantity<Q> bucketUpperBound(int index) {
+    checkElementIndex(index, numBuckets);
+    checkArgument(index < numBuckets - 1, "There is no upper bound for the last bucket.");
+    Quantity<Q> upperBound = upperBounds.get(index);
+    if (upperBound == null) {
+      upperBound =
+          quantityFactory.create(unitlessBucketingSystem.bucketUpperBound(index), baseUnit);
+      if (!upperBounds.compareAndSet(index, null, upperBound)) {
+        upperBound = upperBounds.get(index);
+      }
+    }
+    return upperBound;
+  }
+
+  /**
+   * Present a histogram of plain numeric values as a histogram of {@link Quantity} values, without
+   * copying it. The returned histogram's bucket counts are read from {@code histogram}, and its
+   * upper bound values are the cached upper bound values of this BucketingSystem.
+   *
+   * @param histogram A histogram that uses the same bucketing as the BucketingSystem that this
+   *        QuantityBucketingSystem was created from.
+   * @return A view of {@code histogram} whose upper bound values are {@link Quantity} instances.
+   * @throws IllegalArgumentException if {@code histogram} has a different number of buckets.
+   */
+  public Histogram<Quantity<Q>> view(Histogram<? extends Number> histogram) {
+    requireNonNull(histogram, "The histogram argument is required.");
+    checkArgument(histogram.numBuckets() == numBuckets,
+        "The histogram has %s buckets, but this BucketingSystem has %s buckets.",
+        histogram.numBuckets(), numBuckets);
+
+    return new Histogram<Quantity<Q>>() {
+      @Override
+      public int numBuckets() {
+        return numBuckets;
+      }
+
+      @Override
+      public Quantity<Q> bucketUpperBound(int index) {
+        return QuantityBucketingSystem.this.bucketUpperBound(index);
+      }
+
+      @Override
+      public long countInBucket(int index) {
+        return histogram.countInBucket(index);
+      }
+    };
+  }
+}
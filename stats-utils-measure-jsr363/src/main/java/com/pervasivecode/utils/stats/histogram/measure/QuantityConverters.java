@@ -15,6 +15,9 @@ class QuantityConverters {
   /**
    * Convert {@link Quantity}{@code <T>} values into Long values, and Long values into
    * {@link Quantity}{@code <T>} values.
+   * <p>
+   * The unit converter from each source unit into {@code baseUnit} is looked up once and cached,
+   * so converting a Quantity into a Long does not create an intermediate Quantity.
    *
    * @param baseUnit The base unit for Quantities of measure <T>.
    * @param quantityFactory An object that can instantiate objects of type {@code Quantity<T>}.
@@ -24,11 +27,12 @@ class QuantityConverters {
       Unit<T> baseUnit, QuantityFactory<T> quantityFactory) {
     checkNotNull(quantityFactory);
     checkNotNull(baseUnit);
+    BaseUnitConversions<T> conversions = new BaseUnitConversions<>(baseUnit);
 
     return new Converter<Quantity<T>, Long>() {
       @Override
       protected Long doForward(Quantity<T> value) {
-        return value.to(baseUnit).getValue().longValue();
+        return conversions.toBaseUnitAsLong(value);
       }
 
       @Override
@@ -41,6 +45,9 @@ class QuantityConverters {
   /**
    * Convert {@link Quantity}{@code <T>} values into Double values, and Double values into
    * {@link Quantity}{@code <T>} values.
+   * <p>
+   * The unit converter from each source unit into {@code baseUnit} is looked up once and cached,
+   * so converting a Quantity into a Double does not create an intermediate Quantity.
    *
    * @param baseUnit The base unit for Quantities of measure <T>.
    * @param quantityFactory An object that can instantiate objects of type {@code Quantity<T>}.
@@ -50,11 +57,12 @@ class QuantityConverters {
       Unit<T> baseUnit, QuantityFactory<T> quantityFactory) {
     checkNotNull(baseUnit);
     checkNotNull(quantityFactory);
+    BaseUnitConversions<T> conversions = new BaseUnitConversions<>(baseUnit);
 
     return new Converter<Quantity<T>, Double>() {
       @Override
       protected Double doForward(Quantity<T> value) {
-        return value.to(baseUnit).getValue().doubleValue();
+        return conversions.toBaseUnit(value);
       }
 
       @Override
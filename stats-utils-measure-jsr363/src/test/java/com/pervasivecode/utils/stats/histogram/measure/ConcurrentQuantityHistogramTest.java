@@ -0,0 +1,79 @@
+package com.pervasivecode.utils.stats.histogram.measure;
+
+import static com.google.common.truth.Truth.assertThat;
+import javax.measure.quantity.Power;
+import javax.measure.quantity.Temperature;
+import javax.measure.spi.QuantityFactory;
+import javax.measure.spi.ServiceProvider;
+import org.junit.Before;
+import org.junit.Test;
+import com.pervasivecode.utils.stats.histogram.BucketSelector;
+import com.pervasivecode.utils.stats.histogram.BucketSelectors;
+import tec.uom.se.quantity.Quantities;
+import tec.uom.se.unit.MetricPrefix;
+import tec.uom.se.unit.Units;
+
+public class ConcurrentQuantityHistogramTest {
+  private QuantityFactory<Power> powerFactory;
+  private ConcurrentQuantityHistogram<Power> histogram;
+
+  private static BucketSelector<Double> linear(long lowestUpperBound, long highestUpperBound,
+      int numBuckets) {
+    return BucketSelectors.transform(
+        BucketSelectors.linearLongValues(lowestUpperBound, highestUpperBound, numBuckets),
+        Double::longValue, Long::doubleValue);
+  }
+
+  @Before
+  public void setup() {
+    powerFactory = ServiceProvider.current().getQuantityFactory(Power.class);
+    // Upper bounds: 0 W, 1000 W, 2000 W, 3000 W
+    histogram = new ConcurrentQuantityHistogram<>(linear(0, 3000, 5), Units.WATT, powerFactory);
+  }
+
+  @Test
+  public void bucketUpperBound_shouldBeQuantityInBaseUnit() {
+    assertThat(histogram.numBuckets()).isEqualTo(5);
+    assertThat(histogram.bucketUpperBound(1)).isEqualTo(powerFactory.create(1000.0, Units.WATT));
+  }
+
+  @Test
+  public void record_withBaseUnit_shouldNotConvert() {
+    histogram.record(999.0, Units.WATT);
+    histogram.record(1000.0, Units.WATT);
+    assertThat(histogram.countInBucket(1)).isEqualTo(2L);
+  }
+
+  @Test
+  public void record_withScaledUnit_shouldConvertToBaseUnit() {
+    histogram.record(2.0, MetricPrefix.KILO(Units.WATT));
+    histogram.record(1.5, MetricPrefix.MEGA(Units.WATT));
+    histogram.record(2.5, MetricPrefix.KILO(Units.WATT));
+    histogram.record(0.5, MetricPrefix.KILO(Units.WATT));
+    assertThat(histogram.countInBucket(1)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(2)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(3)).isEqualTo(1L);
+    assertThat(histogram.countInBucket(4)).isEqualTo(1L);
+  }
+
+  @Test
+  public void countValue_shouldMatchRecord() {
+    histogram.countValue(Quantities.getQuantity(2500, Units.WATT));
+    histogram.countValue(Quantities.getQuantity(2.5, MetricPrefix.KILO(Units.WATT)));
+    histogram.record(2500.0, Units.WATT);
+    assertThat(histogram.countInBucket(3)).isEqualTo(3L);
+  }
+
+  @Test
+  public void record_withOffsetUnit_shouldConvertToBaseUnit() {
+    QuantityFactory<Temperature> temperatureFactory =
+        ServiceProvider.current().getQuantityFactory(Temperature.class);
+    // Upper bounds: 270 K, 271 K, ... 280 K
+    ConcurrentQuantityHistogram<Temperature> temperatures =
+        new ConcurrentQuantityHistogram<>(linear(270, 280, 12), Units.KELVIN, temperatureFactory);
+
+    temperatures.record(1.0, Units.CELSIUS); // 274.15 K
+    temperatures.record(274.0, Units.KELVIN);
+    assertThat(temperatures.countInBucket(4)).isEqualTo(2L);
+  }
+}
@@ -7,12 +7,14 @@ import javax.measure.quantity.Area;
 import javax.measure.quantity.MagneticFluxDensity;
 import javax.measure.quantity.Pressure;
 import javax.measure.quantity.Speed;
+import javax.measure.quantity.Time;
 import javax.measure.spi.QuantityFactory;
 import javax.measure.spi.ServiceProvider;
 import org.junit.Before;
 import org.junit.Test;
 import com.pervasivecode.utils.stats.histogram.BucketSelector;
 import systems.uom.common.USCustomary;
+import tec.uom.se.unit.MetricPrefix;
 import tec.uom.se.unit.Units;
 
 public class QuantityBucketSelectorsTest {
@@ -169,4 +171,20 @@ public class QuantityBucketSelectorsTest {
     assertThat(bucketer.bucketUpperBound(2)).isEqualTo(quantityFactory.create(1000, pa));
     assertThat(bucketer.bucketUpperBound(3)).isEqualTo(quantityFactory.create(2000, pa));
   }
+
+  @Test
+  public void linear_withDownscalingUnitConversion_shouldBucketExactMultiplesCorrectly() {
+    QuantityFactory<Time> quantityFactory = serviceProvider.getQuantityFactory(Time.class);
+    Unit<Time> hour = Units.HOUR;
+    Unit<Time> ms = MetricPrefix.MILLI(Units.SECOND);
+
+    // Upper bounds: 1 h, 2 h, ... 1000 h
+    BucketSelector<Quantity<Time>> bucketer = QuantityBucketSelectors.linear(hour,
+        quantityFactory, quantityFactory.create(1, hour), quantityFactory.create(1000, hour), 1001);
+
+    for (long numHours = 1; numHours <= 1000; numHours++) {
+      Quantity<Time> value = quantityFactory.create(numHours * 3_600_000L, ms);
+      assertThat(bucketer.bucketIndexFor(value)).isEqualTo((int) numHours - 1);
+    }
+  }
 }
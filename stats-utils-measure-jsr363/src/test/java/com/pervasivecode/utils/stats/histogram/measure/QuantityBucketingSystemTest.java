@@ -0,0 +1,124 @@
+package com.pervasivecode.utils.stats.histogram.measure;
+
+import static com.google.common.truth.Truth.assertThat;
+import javax.measure.Quantity;
+import javax.measure.Unit;
+import javax.measure.quantity.MagneticFluxDensity;
+import javax.measure.spi.QuantityFactory;
+import javax.measure.spi.ServiceProvider;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.common.collect.ImmutableList;
+import com.google.common.truth.Truth;
+import com.pervasivecode.utils.stats.histogram.Histogram;
+import com.pervasivecode.utils.stats.histogram.ImmutableHistogram;
+import tec.uom.se.unit.Units;
+
+public class QuantityBucketingSystemTest {
+  private QuantityFactory<MagneticFluxDensity> quantityFactory;
+  private Unit<MagneticFluxDensity> tesla;
+  private ImmutableHistogram<Long> plainHistogram;
+
+  @Before
+  public void setup() {
+    quantityFactory = ServiceProvider.current().getQuantityFactory(MagneticFluxDensity.class);
+    tesla = Units.TESLA;
+    plainHistogram = ImmutableHistogram.<Long>builder()
+        .setBucketUpperBounds(ImmutableList.of(5L, 10L, 15L))
+        .setCountByBucket(ImmutableList.of(3L, 4L, 5L, 6L)).build();
+  }
+
+  @Test
+  public void of_shouldRequireBucketingSystemParam() {
+    try {
+      QuantityBucketingSystem.of(null, tesla, quantityFactory);
+      Truth.assert_().fail("Expected null pointer exception due to null bucketing system");
+    } catch (NullPointerException npe) {
+      assertThat(npe).hasMessageThat().contains("unitlessBucketingSystem");
+    }
+  }
+
+  @Test
+  public void bucketUpperBound_shouldBeCreatedOnceAndReused() {
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(plainHistogram, tesla, quantityFactory);
+    assertThat(bucketing.numBuckets()).isEqualTo(4);
+
+    Quantity<MagneticFluxDensity> upperBound = bucketing.bucketUpperBound(1);
+    assertThat(upperBound).isEqualTo(quantityFactory.create(10L, tesla));
+    assertThat(bucketing.bucketUpperBound(1)).isSameAs(upperBound);
+  }
+
+  @Test
+  public void bucketUpperBound_withLastBucket_shouldThrow() {
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(plainHistogram, tesla, quantityFactory);
+    try {
+      bucketing.bucketUpperBound(3);
+      Truth.assert_().fail("Expected exception due to last bucket index having no upper bound.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("last bucket");
+    }
+  }
+
+  @Test
+  public void bucketUpperBound_withOutOfRangeIndex_shouldThrow() {
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(plainHistogram, tesla, quantityFactory);
+    for (int index : new int[] {-1, 4}) {
+      try {
+        bucketing.bucketUpperBound(index);
+        Truth.assert_().fail("Expected exception due to out-of-range index " + index);
+      } catch (IndexOutOfBoundsException ioobe) {
+        assertThat(ioobe).hasMessageThat().contains("index");
+      }
+    }
+  }
+
+  @Test
+  public void bucketUpperBound_withOnlyOneBucket_shouldThrow() {
+    ImmutableHistogram<Long> oneBucket = ImmutableHistogram.<Long>builder()
+        .setBucketUpperBounds(ImmutableList.of()).setCountByBucket(ImmutableList.of(7L)).build();
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(oneBucket, tesla, quantityFactory);
+    assertThat(bucketing.numBuckets()).isEqualTo(1);
+    try {
+      bucketing.bucketUpperBound(0);
+      Truth.assert_().fail("Expected exception due to last bucket index having no upper bound.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("last bucket");
+    }
+  }
+
+  @Test
+  public void view_shouldShareCountsAndUpperBounds() {
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(plainHistogram, tesla, quantityFactory);
+    ImmutableHistogram<Long> laterSnapshot = ImmutableHistogram.<Long>builder()
+        .setBucketUpperBounds(ImmutableList.of(5L, 10L, 15L))
+        .setCountByBucket(ImmutableList.of(7L, 8L, 9L, 10L)).build();
+
+    Histogram<Quantity<MagneticFluxDensity>> first = bucketing.view(plainHistogram);
+    Histogram<Quantity<MagneticFluxDensity>> second = bucketing.view(laterSnapshot);
+
+    assertThat(first.countInBucket(2)).isEqualTo(5L);
+    assertThat(second.countInBucket(2)).isEqualTo(9L);
+    assertThat(second.bucketUpperBound(2)).isSameAs(first.bucketUpperBound(2));
+    assertThat(second.bucketUpperBound(2)).isEqualTo(quantityFactory.create(15L, tesla));
+  }
+
+  @Test
+  public void view_withWrongNumberOfBuckets_shouldThrow() {
+    QuantityBucketingSystem<MagneticFluxDensity> bucketing =
+        QuantityBucketingSystem.of(plainHistogram, tesla, quantityFactory);
+    ImmutableHistogram<Long> otherHistogram = ImmutableHistogram.<Long>builder()
+        .setBucketUpperBounds(ImmutableList.of(5L))
+        .setCountByBucket(ImmutableList.of(1L, 2L)).build();
+    try {
+      bucketing.view(otherHistogram);
+      Truth.assert_().fail("Expected exception due to mismatched number of buckets.");
+    } catch (IllegalArgumentException iae) {
+      assertThat(iae).hasMessageThat().contains("buckets");
+    }
+  }
+}